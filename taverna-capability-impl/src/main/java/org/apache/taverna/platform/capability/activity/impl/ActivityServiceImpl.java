@@ -20,8 +20,10 @@
 package org.apache.taverna.platform.capability.activity.impl;
 
 import java.net.URI;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.taverna.workflowmodel.processor.activity.Activity;
@@ -36,23 +38,24 @@ import org.apache.taverna.scufl2.api.port.OutputActivityPort;
 
 import com.fasterxml.jackson.databind.JsonNode;
 
+/**
+ * Creates activities with the <code>ActivityFactory</code>s available, which
+ * are looked up by activity type through an index rebuilt when the factories
+ * change.
+ */
 public class ActivityServiceImpl implements ActivityService {
 	private List<ActivityFactory> activityFactories;
+	/** Factories by activity type, or <code>null</code> until rebuilt */
+	private volatile Map<URI, ActivityFactory> factoryIndex;
 
 	@Override
 	public Set<URI> getActivityTypes() {
-		Set<URI> activityTypes = new HashSet<>();
-		for (ActivityFactory activityFactory : activityFactories)
-			activityTypes.add(activityFactory.getActivityType());
-		return activityTypes;
+		return new HashSet<>(getFactoryIndex().keySet());
 	}
 
 	@Override
 	public boolean activityExists(URI uri) {
-		for (ActivityFactory activityFactory : activityFactories)
-			if (activityFactory.getActivityType().equals(uri))
-				return true;
-		return false;
+		return getFactoryIndex().containsKey(uri);
 	}
 
 	@Override
@@ -124,16 +127,48 @@ public class ActivityServiceImpl implements ActivityService {
 	 * @param activityFactories
 	 *            the list of available <code>ActivityFactory</code>s
 	 */
-	public void setActivityFactories(List<ActivityFactory> activityFactories) {
+	public synchronized void setActivityFactories(
+			List<ActivityFactory> activityFactories) {
 		this.activityFactories = activityFactories;
+		factoryIndex = null;
+	}
+
+	/**
+	 * Called by Spring DM when an <code>ActivityFactory</code> is added or
+	 * removed, the index of factories is rebuilt on next use.
+	 */
+	public synchronized void activityFactoriesUpdated(Object service,
+			Map<?, ?> properties) {
+		factoryIndex = null;
+	}
+
+	private Map<URI, ActivityFactory> getFactoryIndex() {
+		Map<URI, ActivityFactory> index = factoryIndex;
+		if (index == null)
+			index = buildFactoryIndex();
+		return index;
+	}
+
+	private synchronized Map<URI, ActivityFactory> buildFactoryIndex() {
+		if (factoryIndex == null) {
+			Map<URI, ActivityFactory> index = new HashMap<>();
+			for (ActivityFactory activityFactory : activityFactories) {
+				URI activityType = activityFactory.getActivityType();
+				// First factory for the type wins, as it did when scanning
+				if (!index.containsKey(activityType))
+					index.put(activityType, activityFactory);
+			}
+			factoryIndex = index;
+		}
+		return factoryIndex;
 	}
 
 	private ActivityFactory getActivityFactory(URI activityType)
 			throws ActivityNotFoundException {
-		for (ActivityFactory activityFactory : activityFactories)
-			if (activityFactory.getActivityType().equals(activityType))
-				return activityFactory;
-		throw new ActivityNotFoundException("Could not find an activity for "
-				+ activityType);
+		ActivityFactory activityFactory = getFactoryIndex().get(activityType);
+		if (activityFactory == null)
+			throw new ActivityNotFoundException(
+					"Could not find an activity for " + activityType);
+		return activityFactory;
 	}
 }
@@ -20,8 +20,10 @@
 package org.apache.taverna.platform.capability.dispatch.impl;
 
 import java.net.URI;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
@@ -34,6 +36,10 @@ import org.apache.taverna.platform.capability.api.DispatchLayerService;
 import com.fasterxml.jackson.databind.JsonNode;
 
 /**
+ * Creates dispatch layers with the <code>DispatchLayerFactory</code>s
+ * available, which are looked up by dispatch layer type through an index
+ * rebuilt when the factories change.
+ * 
  * @author David Withers
  */
 public class DispatchLayerServiceImpl implements DispatchLayerService {
@@ -42,23 +48,17 @@ public class DispatchLayerServiceImpl implements DispatchLayerService {
 			.getLogger(DispatchLayerServiceImpl.class.getName());
 
 	private List<DispatchLayerFactory> dispatchLayerFactories;
+	/** Factories by dispatch layer type, or <code>null</code> until rebuilt */
+	private volatile Map<URI, DispatchLayerFactory> factoryIndex;
 
 	@Override
 	public Set<URI> getDispatchLayerTypes() {
-		Set<URI> dispatchLayerTypes = new HashSet<>();
-		for (DispatchLayerFactory dispatchLayerFactory : dispatchLayerFactories)
-			dispatchLayerTypes.addAll(dispatchLayerFactory
-					.getDispatchLayerTypes());
-		return dispatchLayerTypes;
+		return new HashSet<>(getFactoryIndex().keySet());
 	}
 
 	@Override
 	public boolean dispatchLayerExists(URI dispatchLayerType) {
-		for (DispatchLayerFactory dispatchLayerFactory : dispatchLayerFactories)
-			if (dispatchLayerFactory.getDispatchLayerTypes().contains(
-					dispatchLayerType))
-				return true;
-		return false;
+		return getFactoryIndex().containsKey(dispatchLayerType);
 	}
 
 	@Override
@@ -94,18 +94,49 @@ public class DispatchLayerServiceImpl implements DispatchLayerService {
 	 * @param dispatchLayerFactories
 	 *            the list of available <code>DispatchLayerFactory</code>s
 	 */
-	public void setDispatchLayerFactories(
+	public synchronized void setDispatchLayerFactories(
 			List<DispatchLayerFactory> dispatchLayerFactories) {
 		this.dispatchLayerFactories = dispatchLayerFactories;
+		factoryIndex = null;
+	}
+
+	/**
+	 * Called by Spring DM when a <code>DispatchLayerFactory</code> is added or
+	 * removed, the index of factories is rebuilt on next use.
+	 */
+	public synchronized void dispatchLayerFactoriesUpdated(Object service,
+			Map<?, ?> properties) {
+		factoryIndex = null;
+	}
+
+	private Map<URI, DispatchLayerFactory> getFactoryIndex() {
+		Map<URI, DispatchLayerFactory> index = factoryIndex;
+		if (index == null)
+			index = buildFactoryIndex();
+		return index;
+	}
+
+	private synchronized Map<URI, DispatchLayerFactory> buildFactoryIndex() {
+		if (factoryIndex == null) {
+			Map<URI, DispatchLayerFactory> index = new HashMap<>();
+			for (DispatchLayerFactory dispatchLayerFactory : dispatchLayerFactories)
+				for (URI dispatchLayerType : dispatchLayerFactory
+						.getDispatchLayerTypes())
+					// First factory for the type wins, as it did when scanning
+					if (!index.containsKey(dispatchLayerType))
+						index.put(dispatchLayerType, dispatchLayerFactory);
+			factoryIndex = index;
+		}
+		return factoryIndex;
 	}
 
 	private DispatchLayerFactory getDispatchLayerFactory(URI dispatchLayerType)
 			throws DispatchLayerNotFoundException {
-		for (DispatchLayerFactory dispatchLayerFactory : dispatchLayerFactories)
-			if (dispatchLayerFactory.getDispatchLayerTypes().contains(
-					dispatchLayerType))
-				return dispatchLayerFactory;
-		throw new DispatchLayerNotFoundException(
-				"Could not find a dispatch layer for " + dispatchLayerType);
+		DispatchLayerFactory dispatchLayerFactory = getFactoryIndex().get(
+				dispatchLayerType);
+		if (dispatchLayerFactory == null)
+			throw new DispatchLayerNotFoundException(
+					"Could not find a dispatch layer for " + dispatchLayerType);
+		return dispatchLayerFactory;
 	}
 }
@@ -19,8 +19,13 @@
 
 package org.apache.taverna.activities.dataflow;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.taverna.facade.FacadeListener;
 import org.apache.taverna.facade.ResultListener;
@@ -28,11 +33,14 @@ import org.apache.taverna.facade.WorkflowInstanceFacade;
 import org.apache.taverna.facade.WorkflowInstanceFacade.State;
 import org.apache.taverna.invocation.TokenOrderException;
 import org.apache.taverna.invocation.WorkflowDataToken;
+import org.apache.taverna.reference.ReferenceService;
 import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.reference.T2ReferenceType;
 import org.apache.taverna.workflowmodel.Dataflow;
 import org.apache.taverna.workflowmodel.InvalidDataflowException;
 import org.apache.taverna.workflowmodel.processor.activity.AbstractAsynchronousActivity;
 import org.apache.taverna.workflowmodel.processor.activity.ActivityConfigurationException;
+import org.apache.taverna.workflowmodel.processor.activity.ActivityOutputPort;
 import org.apache.taverna.workflowmodel.processor.activity.AsynchronousActivityCallback;
 import org.apache.taverna.workflowmodel.processor.activity.NestedDataflow;
 
@@ -42,6 +50,11 @@ import com.fasterxml.jackson.databind.JsonNode;
 
 /**
  * An Activity providing nested Dataflow functionality.
+ * <p>
+ * If the output ports have a granular depth lower than their depth the
+ * elements of the outputs are streamed to the parent workflow as the nested
+ * workflow produces them, otherwise the outputs are returned once the nested
+ * workflow has finished.
  *
  * @author David Withers
  */
@@ -87,13 +100,23 @@ public class DataflowActivity extends AbstractAsynchronousActivity<JsonNode> imp
 					return;
 				}
 
+				Map<String, Integer> outputDepths = new HashMap<>();
+				for (ActivityOutputPort outputPort : getOutputPorts())
+					outputDepths.put(outputPort.getName(),
+							outputPort.getDepth());
+				final ResultStreamer streamer = new ResultStreamer(callback,
+						outputDepths, streamingDepth());
+
 				final ResultListener rl = new ResultListener() {
 
 
 					public void resultTokenProduced(WorkflowDataToken dataToken, String port) {
 						if (dataToken.getIndex().length == 0) {
-							outputData.put(port, dataToken.getData());
-						}
+							synchronized (outputData) {
+								outputData.put(port, dataToken.getData());
+							}
+						} else
+							streamer.resultTokenProduced(dataToken, port);
 					}
 				};
 				
@@ -111,7 +134,9 @@ public class DataflowActivity extends AbstractAsynchronousActivity<JsonNode> imp
 						if (newState == State.completed) {
 							facade.removeResultListener(rl);
 							facade.removeFacadeListener(this);
-							callback.receiveResult(outputData, new int[]{});
+							synchronized (outputData) {
+								streamer.complete(outputData);
+							}
 						}
 					}
 					
@@ -138,6 +163,158 @@ public class DataflowActivity extends AbstractAsynchronousActivity<JsonNode> imp
 		});
 	}
 
+	/**
+	 * Return the length of the index of the results streamed by this
+	 * activity, the difference between the depth and the granular depth of
+	 * the output ports, or 0 if the results are not streamed because the
+	 * output ports have no granular depth or don't agree on it.
+	 */
+	protected int streamingDepth() {
+		int streamingDepth = -1;
+		for (ActivityOutputPort outputPort : getOutputPorts()) {
+			int portStreamingDepth = outputPort.getDepth()
+					- outputPort.getGranularDepth();
+			if (streamingDepth == -1)
+				streamingDepth = portStreamingDepth;
+			else if (streamingDepth != portStreamingDepth)
+				return 0;
+		}
+		return Math.max(streamingDepth, 0);
+	}
+
+	/**
+	 * Passes the elements of the nested workflow outputs to the callback as
+	 * they are produced, so that the processors downstream don't have to wait
+	 * for the whole nested workflow to finish. An element is sent once every
+	 * output has produced the element with the same index.
+	 * <p>
+	 * An output can still produce only its final value, for instance an empty
+	 * list or a list from a processor which doesn't stream. Until an element
+	 * has been sent for every output nothing is streamed, and if the nested
+	 * workflow finishes before that the final outputs are sent as one result.
+	 * Once elements have been streamed, the elements which are still missing
+	 * from some outputs when the nested workflow finishes are completed from
+	 * the final values of those outputs, and the elements of the final values
+	 * which were never streamed are sent as well, so that no output is lost.
+	 * An output whose final value has no such element gets an error document
+	 * in its place.
+	 */
+	static class ResultStreamer {
+		private final AsynchronousActivityCallback callback;
+		private final Map<String, Integer> outputDepths;
+		private final int streamingDepth;
+		private final Map<String, Element> pending = new LinkedHashMap<>();
+		private final Set<String> sent = new HashSet<>();
+
+		ResultStreamer(AsynchronousActivityCallback callback,
+				Map<String, Integer> outputDepths, int streamingDepth) {
+			this.callback = callback;
+			this.outputDepths = outputDepths;
+			this.streamingDepth = streamingDepth;
+		}
+
+		synchronized void resultTokenProduced(WorkflowDataToken dataToken,
+				String port) {
+			int[] index = dataToken.getIndex();
+			if (streamingDepth == 0 || index.length != streamingDepth)
+				return;
+			Element element = element(index);
+			element.data.put(port, dataToken.getData());
+			if (element.data.size() == outputDepths.size()) {
+				pending.remove(element.key);
+				send(element);
+			}
+		}
+
+		/**
+		 * Finish the stream, or send the final outputs if not every output
+		 * was streamed.
+		 */
+		synchronized void complete(Map<String, T2Reference> outputData) {
+			if (sent.isEmpty()) {
+				pending.clear();
+				callback.receiveResult(outputData, new int[] {});
+				return;
+			}
+			for (Map.Entry<String, T2Reference> output : outputData
+					.entrySet())
+				addElements(output.getKey(), output.getValue(), new int[] {});
+			for (Element element : pending.values()) {
+				for (String port : outputDepths.keySet())
+					if (!element.data.containsKey(port))
+						element.data.put(port, missing(port, element.index));
+				send(element);
+			}
+			pending.clear();
+			sent.clear();
+			callback.receiveCompletion(new int[] {});
+		}
+
+		/**
+		 * Add the elements of a final output value which weren't streamed to
+		 * the pending elements, without replacing the streamed ones.
+		 */
+		private void addElements(String port, T2Reference reference,
+				int[] index) {
+			if (index.length == streamingDepth) {
+				if (sent.contains(Arrays.toString(index)))
+					return;
+				Element element = element(index);
+				if (!element.data.containsKey(port))
+					element.data.put(port, reference);
+			} else if (reference.getReferenceType()
+					== T2ReferenceType.IdentifiedList) {
+				List<T2Reference> list = referenceService().getListService()
+						.getList(reference);
+				for (int i = 0; i < list.size(); i++) {
+					int[] elementIndex = Arrays.copyOf(index, index.length + 1);
+					elementIndex[index.length] = i;
+					addElements(port, list.get(i), elementIndex);
+				}
+			}
+		}
+
+		private T2Reference missing(String port, int[] index) {
+			String message = "Nested workflow output " + port
+					+ " has no element " + Arrays.toString(index);
+			return referenceService()
+					.getErrorDocumentService()
+					.registerError(message,
+							outputDepths.get(port) - index.length,
+							callback.getContext()).getId();
+		}
+
+		private ReferenceService referenceService() {
+			return callback.getContext().getReferenceService();
+		}
+
+		private Element element(int[] index) {
+			String key = Arrays.toString(index);
+			Element element = pending.get(key);
+			if (element == null) {
+				element = new Element(key, index);
+				pending.put(key, element);
+			}
+			return element;
+		}
+
+		private void send(Element element) {
+			sent.add(element.key);
+			callback.receiveResult(element.data, element.index);
+		}
+
+		private static class Element {
+			private final String key;
+			private final int[] index;
+			private final Map<String, T2Reference> data = new HashMap<>();
+
+			private Element(String key, int[] index) {
+				this.key = key;
+				this.index = index;
+			}
+		}
+	}
+
 //	private void buildInputPorts() throws ActivityConfigurationException {
 //		inputPorts.clear();
 //		for (DataflowInputPort dataflowInputPort : dataflow.getInputPorts()) {
@@ -19,14 +19,32 @@
 
 package org.apache.taverna.activities.dataflow;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.taverna.activities.testutils.ActivityInvoker;
+import org.apache.taverna.activities.testutils.DummyCallback;
+import org.apache.taverna.invocation.WorkflowDataToken;
+import org.apache.taverna.invocation.impl.InvocationContextImpl;
+import org.apache.taverna.reference.ErrorDocument;
+import org.apache.taverna.reference.ErrorDocumentService;
+import org.apache.taverna.reference.IdentifiedList;
+import org.apache.taverna.reference.ListService;
+import org.apache.taverna.reference.ReferenceService;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.reference.T2ReferenceType;
 import org.apache.taverna.workflowmodel.Dataflow;
 import org.apache.taverna.workflowmodel.Datalink;
 import org.apache.taverna.workflowmodel.Edits;
@@ -94,4 +112,245 @@ public class DataflowActivityTest {
 				activity.getConfiguration());
 	}
 
+	@Test
+	public void testStreamingDepth() throws Exception {
+		Edits edits = new EditsImpl();
+		assertEquals(0, activity.streamingDepth());
+		edits.getAddActivityOutputPortEdit(activity,
+				new ActivityOutputPortImpl("list", 1, 0)).doEdit();
+		assertEquals(1, activity.streamingDepth());
+		edits.getAddActivityOutputPortEdit(activity,
+				new ActivityOutputPortImpl("single", 0, 0)).doEdit();
+		assertEquals(0, activity.streamingDepth());
+	}
+
+	@Test
+	public void testResultsStreamedOnceAllOutputsProduced() {
+		RecordingCallback callback = new RecordingCallback();
+		DataflowActivity.ResultStreamer streamer = new DataflowActivity.ResultStreamer(
+				callback, outputDepths("a", "b"), 1);
+		streamer.resultTokenProduced(token(new int[] { 1 }, "a1"), "a");
+		streamer.resultTokenProduced(token(new int[] { 0 }, "a0"), "a");
+		assertEquals(0, callback.results.size());
+		streamer.resultTokenProduced(token(new int[] { 0 }, "b0"), "b");
+		assertEquals(1, callback.results.size());
+		assertArrayEquals(new int[] { 0 }, callback.indexes.get(0));
+		assertEquals("a0", callback.results.get(0).get("a").toString());
+		assertEquals("b0", callback.results.get(0).get("b").toString());
+
+		// The element missing from b is taken from its final value
+		Map<String, T2Reference> outputData = new HashMap<String, T2Reference>();
+		outputData.put("a", callback.list("a", "a0", "a1"));
+		outputData.put("b", callback.list("b", "b0", "b1"));
+		streamer.complete(outputData);
+		assertEquals(2, callback.results.size());
+		assertArrayEquals(new int[] { 1 }, callback.indexes.get(1));
+		assertEquals("a1", callback.results.get(1).get("a").toString());
+		assertEquals("b1", callback.results.get(1).get("b").toString());
+		assertArrayEquals(new int[] {}, callback.completion);
+	}
+
+	@Test
+	public void testElementsNotStreamedSentFromFinalResults() {
+		RecordingCallback callback = new RecordingCallback();
+		DataflowActivity.ResultStreamer streamer = new DataflowActivity.ResultStreamer(
+				callback, outputDepths("a", "b"), 1);
+		streamer.resultTokenProduced(token(new int[] { 0 }, "a0"), "a");
+		streamer.resultTokenProduced(token(new int[] { 0 }, "b0"), "b");
+		streamer.resultTokenProduced(token(new int[] { 1 }, "b1"), "b");
+		assertEquals(1, callback.results.size());
+
+		// a only produced its final value for the rest of its elements, and
+		// b has no element [2]
+		Map<String, T2Reference> outputData = new HashMap<String, T2Reference>();
+		outputData.put("a", callback.list("a", "a0", "a1", "a2"));
+		outputData.put("b", callback.list("b", "b0", "b1"));
+		streamer.complete(outputData);
+		assertEquals(3, callback.results.size());
+		assertArrayEquals(new int[] { 1 }, callback.indexes.get(1));
+		assertEquals("a1", callback.results.get(1).get("a").toString());
+		assertEquals("b1", callback.results.get(1).get("b").toString());
+		assertArrayEquals(new int[] { 2 }, callback.indexes.get(2));
+		assertEquals("a2", callback.results.get(2).get("a").toString());
+		assertEquals("error", callback.results.get(2).get("b").toString());
+		assertEquals(1, callback.errors.size());
+		assertEquals("Nested workflow output b has no element [2]",
+				callback.errors.get(0));
+		assertArrayEquals(new int[] {}, callback.completion);
+	}
+
+	@Test
+	public void testFinalResultsWithoutStreaming() {
+		RecordingCallback callback = new RecordingCallback();
+		DataflowActivity.ResultStreamer streamer = new DataflowActivity.ResultStreamer(
+				callback, outputDepths("a"), 0);
+		streamer.resultTokenProduced(token(new int[] { 0 }, "a0"), "a");
+		Map<String, T2Reference> outputData = new HashMap<String, T2Reference>();
+		outputData.put("a", new DummyReference("a"));
+		streamer.complete(outputData);
+		assertEquals(1, callback.results.size());
+		assertSame(outputData, callback.results.get(0));
+		assertArrayEquals(new int[] {}, callback.indexes.get(0));
+		assertNull(callback.completion);
+	}
+
+	@Test
+	public void testFinalResultsWhenAnOutputDoesNotStream() {
+		RecordingCallback callback = new RecordingCallback();
+		DataflowActivity.ResultStreamer streamer = new DataflowActivity.ResultStreamer(
+				callback, outputDepths("a", "b"), 1);
+		streamer.resultTokenProduced(token(new int[] { 0 }, "a0"), "a");
+		streamer.resultTokenProduced(token(new int[] { 1 }, "a1"), "a");
+		assertEquals(0, callback.results.size());
+
+		// b only produces its final value, here an empty list
+		Map<String, T2Reference> outputData = new HashMap<String, T2Reference>();
+		outputData.put("a", new DummyReference("a"));
+		outputData.put("b", new DummyReference("b"));
+		streamer.complete(outputData);
+		assertEquals(1, callback.results.size());
+		assertSame(outputData, callback.results.get(0));
+		assertArrayEquals(new int[] {}, callback.indexes.get(0));
+		assertNull(callback.completion);
+	}
+
+	private Map<String, Integer> outputDepths(String... ports) {
+		Map<String, Integer> outputDepths = new HashMap<String, Integer>();
+		for (String port : ports)
+			outputDepths.put(port, 1);
+		return outputDepths;
+	}
+
+	private WorkflowDataToken token(int[] index, String name) {
+		return new WorkflowDataToken("facade0:dataflow", index,
+				new DummyReference(name), new InvocationContextImpl(null, null));
+	}
+
+	/**
+	 * Records what is sent to the parent workflow, and resolves the lists and
+	 * registers the error documents of a {@link ReferenceService} stub.
+	 */
+	private static class RecordingCallback extends DummyCallback implements
+			InvocationHandler {
+		private final List<Map<String, T2Reference>> results = new ArrayList<Map<String, T2Reference>>();
+		private final List<int[]> indexes = new ArrayList<int[]>();
+		private final Map<T2Reference, List<T2Reference>> lists = new HashMap<T2Reference, List<T2Reference>>();
+		private final List<String> errors = new ArrayList<String>();
+		private int[] completion;
+
+		RecordingCallback() {
+			super(null);
+			referenceService = proxy(ReferenceService.class);
+			invocationContext = new InvocationContextImpl(referenceService,
+					null);
+		}
+
+		T2Reference list(String name, String... elements) {
+			T2Reference list = new DummyReference(name,
+					T2ReferenceType.IdentifiedList);
+			List<T2Reference> references = new ArrayList<T2Reference>();
+			for (String element : elements)
+				references.add(new DummyReference(element));
+			lists.put(list, references);
+			return list;
+		}
+
+		@Override
+		public void receiveResult(Map<String, T2Reference> data, int[] index) {
+			results.add(data);
+			indexes.add(index);
+		}
+
+		@Override
+		public void receiveCompletion(int[] completionIndex) {
+			completion = completionIndex;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			switch (method.getName()) {
+			case "getListService":
+				return proxy(ListService.class);
+			case "getErrorDocumentService":
+				return proxy(ErrorDocumentService.class);
+			case "getList":
+				return proxy(IdentifiedList.class, lists.get(args[0]));
+			case "registerError":
+				errors.add((String) args[0]);
+				return proxy(ErrorDocument.class);
+			case "getId":
+				return new DummyReference("error");
+			default:
+				throw new UnsupportedOperationException(method.getName());
+			}
+		}
+
+		private <T> T proxy(Class<T> type) {
+			return type.cast(Proxy.newProxyInstance(getClass()
+					.getClassLoader(), new Class<?>[] { type }, this));
+		}
+
+		private <T> T proxy(Class<T> type, final List<T2Reference> list) {
+			return type.cast(Proxy.newProxyInstance(getClass()
+					.getClassLoader(), new Class<?>[] { type },
+					new InvocationHandler() {
+						@Override
+						public Object invoke(Object proxy, Method method,
+								Object[] args) throws Throwable {
+							return method.invoke(list, args);
+						}
+					}));
+		}
+	}
+
+	private static class DummyReference implements T2Reference {
+		private final String name;
+		private final T2ReferenceType type;
+
+		DummyReference(String name) {
+			this(name, T2ReferenceType.ReferenceSet);
+		}
+
+		DummyReference(String name, T2ReferenceType type) {
+			this.name = name;
+			this.type = type;
+		}
+
+		@Override
+		public T2ReferenceType getReferenceType() {
+			return type;
+		}
+
+		@Override
+		public int getDepth() {
+			return type == T2ReferenceType.IdentifiedList ? 1 : 0;
+		}
+
+		@Override
+		public boolean containsErrors() {
+			return false;
+		}
+
+		@Override
+		public String getNamespacePart() {
+			return "test";
+		}
+
+		@Override
+		public String getLocalPart() {
+			return name;
+		}
+
+		@Override
+		public URI toUri() {
+			return URI.create("t2:ref//test?" + name);
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
 }
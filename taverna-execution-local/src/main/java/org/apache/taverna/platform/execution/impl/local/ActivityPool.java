@@ -0,0 +1,155 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.platform.execution.impl.local;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.taverna.workflowmodel.processor.activity.Activity;
+import org.apache.taverna.workflowmodel.processor.activity.ShareableActivity;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Configured {@link ShareableActivity} instances, shared by the processors
+ * binding an activity of the same type with the same configuration and
+ * ports, so that identical processors, within a workflow or across workflows,
+ * don't each create and configure their own instance.
+ * <p>
+ * Instances are looked up by activity type, the hash of the configuration and
+ * a description of the ports, and only shared if the configurations are
+ * equal. The pool is only used if enabled by setting the system property
+ * <code>{@value #ENABLED_PROPERTY}</code> to <code>true</code>, at most
+ * <code>{@value #SIZE_PROPERTY}</code> instances are kept, the least recently
+ * used ones are dropped first.
+ */
+public class ActivityPool {
+	public static final String ENABLED_PROPERTY = "taverna.execution.activityPool";
+	public static final String SIZE_PROPERTY = "taverna.execution.activityPoolSize";
+	public static final int DEFAULT_SIZE = 1000;
+
+	private final Map<Key, Activity<?>> activities;
+
+	/**
+	 * Create a pool of the size given by the {@value #SIZE_PROPERTY} system
+	 * property.
+	 */
+	public ActivityPool() {
+		this(Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE));
+	}
+
+	@SuppressWarnings("serial")
+	public ActivityPool(final int size) {
+		if (size < 1)
+			throw new IllegalArgumentException("size < 1");
+		activities = new LinkedHashMap<Key, Activity<?>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Key, Activity<?>> eldest) {
+				return size() > size;
+			}
+		};
+	}
+
+	/**
+	 * Return a pool if enabled by the {@value #ENABLED_PROPERTY} system
+	 * property, otherwise <code>null</code>.
+	 */
+	public static ActivityPool createDefault() {
+		if (!Boolean.getBoolean(ENABLED_PROPERTY))
+			return null;
+		return new ActivityPool();
+	}
+
+	/**
+	 * Return the instance configured for the activity type, configuration and
+	 * ports, or <code>null</code> if there is none.
+	 * 
+	 * @param ports
+	 *            description of the ports of the activity and of their mapping
+	 *            to the ports of the processor
+	 */
+	public synchronized Activity<?> get(URI activityType,
+			JsonNode configuration, String ports) {
+		return activities.get(new Key(activityType, configuration, ports));
+	}
+
+	/**
+	 * Keep the configured instance unless there is one already, which is
+	 * returned. Activities which are not {@link ShareableActivity shareable}
+	 * are not kept.
+	 * 
+	 * @return the instance kept already, or <code>null</code>
+	 */
+	public synchronized Activity<?> putIfAbsent(URI activityType,
+			JsonNode configuration, String ports, Activity<?> activity) {
+		if (!(activity instanceof ShareableActivity))
+			return null;
+		Key key = new Key(activityType, configuration == null ? null
+				: configuration.deepCopy(), ports);
+		Activity<?> pooled = activities.get(key);
+		if (pooled == null)
+			activities.put(key, activity);
+		return pooled;
+	}
+
+	public synchronized int size() {
+		return activities.size();
+	}
+
+	public synchronized void clear() {
+		activities.clear();
+	}
+
+	private static final class Key {
+		private final URI activityType;
+		private final JsonNode configuration;
+		private final String ports;
+		private final int hash;
+
+		private Key(URI activityType, JsonNode configuration, String ports) {
+			this.activityType = activityType;
+			this.configuration = configuration;
+			this.ports = ports;
+			int hash = activityType.hashCode();
+			hash = 31 * hash
+					+ (configuration == null ? 0 : configuration.hashCode());
+			this.hash = 31 * hash + ports.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return hash == other.hash
+					&& activityType.equals(other.activityType)
+					&& ports.equals(other.ports)
+					&& (configuration == null ? other.configuration == null
+							: configuration.equals(other.configuration));
+		}
+	}
+}
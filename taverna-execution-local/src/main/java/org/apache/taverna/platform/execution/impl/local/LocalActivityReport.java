@@ -0,0 +1,82 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.platform.execution.impl.local;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.taverna.monitor.MonitorableProperty;
+import org.apache.taverna.monitor.NoSuchPropertyException;
+import org.apache.taverna.platform.report.ActivityReport;
+import org.apache.taverna.scufl2.api.activity.Activity;
+
+/**
+ * ActivityReport implementation taking the result cache counters from the
+ * MonitorableProperty objects of the processor running the activity.
+ */
+public class LocalActivityReport extends ActivityReport {
+	private static final String DISPATCH_MEMOIZE_HITS = "dispatch:memoize:hits";
+	private static final String DISPATCH_MEMOIZE_MISSES = "dispatch:memoize:misses";
+
+	private Map<String, MonitorableProperty<?>> propertyMap;
+
+	public LocalActivityReport(Activity activity) {
+		super(activity);
+		propertyMap = new HashMap<String, MonitorableProperty<?>>();
+	}
+
+	/**
+	 * Take the properties relevant to the activity from the properties of its
+	 * processor, keyed by property name.
+	 */
+	public void addProperties(Map<String, MonitorableProperty<?>> properties) {
+		for (String name : new String[] { DISPATCH_MEMOIZE_HITS,
+				DISPATCH_MEMOIZE_MISSES })
+			if (properties.containsKey(name))
+				propertyMap.put(name, properties.get(name));
+	}
+
+	public void saveProperties() {
+		for (Entry<String, MonitorableProperty<?>> entry : propertyMap
+				.entrySet())
+			entry.setValue(new StaticProperty(entry.getValue()));
+	}
+
+	@Override
+	public int getCacheHits() {
+		return getCount(DISPATCH_MEMOIZE_HITS, super.getCacheHits());
+	}
+
+	@Override
+	public int getCacheMisses() {
+		return getCount(DISPATCH_MEMOIZE_MISSES, super.getCacheMisses());
+	}
+
+	private int getCount(String name, int defaultValue) {
+		MonitorableProperty<?> property = propertyMap.get(name);
+		try {
+			if (property != null && property.getValue() instanceof Number)
+				return ((Number) property.getValue()).intValue();
+		} catch (NoSuchPropertyException e) {
+		}
+		return defaultValue;
+	}
+}
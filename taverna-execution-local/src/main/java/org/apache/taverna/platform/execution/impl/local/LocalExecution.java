@@ -109,11 +109,29 @@ public class LocalExecution extends AbstractExecution implements ResultListener
 			ActivityService activityService,
 			DispatchLayerService dispatchLayerService)
 			throws InvalidWorkflowException {
+		this(workflowBundle, workflow, profile, dataBundle, referenceService,
+				edits, new WorkflowToDataflowMapper(workflowBundle, profile,
+						edits, activityService, dispatchLayerService));
+	}
+
+	/**
+	 * Constructs an Execution running the dataflows of a mapping of the
+	 * workflow bundle, which may be shared with other executions.
+	 * 
+	 * @param mapping
+	 *            the mapping of the <code>WorkflowBundle</code> with the
+	 *            <code>Profile</code> into dataflows
+	 * @throws InvalidWorkflowException
+	 *             if the specified workflow is invalid
+	 */
+	public LocalExecution(WorkflowBundle workflowBundle, Workflow workflow,
+			Profile profile, Bundle dataBundle,
+			ReferenceService referenceService, Edits edits,
+			WorkflowToDataflowMapper mapping) throws InvalidWorkflowException {
 		super(workflowBundle, workflow, profile, dataBundle);
 		this.referenceService = referenceService;
+		this.mapping = mapping;
 		try {
-			mapping = new WorkflowToDataflowMapper(workflowBundle, profile,
-					edits, activityService, dispatchLayerService);
 			Dataflow dataflow = mapping.getDataflow(workflow);
 			for (DataflowInputPort dataflowInputPort : dataflow.getInputPorts())
 				inputPorts.put(dataflowInputPort.getName(), dataflowInputPort);
@@ -184,6 +202,7 @@ public class LocalExecution extends AbstractExecution implements ResultListener
 		facade.cancelWorkflowRun();
 		facade.removeResultListener(this);
 		MonitorManager.getInstance().removeObserver(executionMonitor);
+		executionMonitor.removeResultListeners();
 	}
 
 	@Override
@@ -200,7 +219,7 @@ public class LocalExecution extends AbstractExecution implements ResultListener
 	@Override
 	public ActivityReport createActivityReport(
 			org.apache.taverna.scufl2.api.activity.Activity activity) {
-		return new ActivityReport(activity);
+		return new LocalActivityReport(activity);
 	}
 
 	private InvocationContext createContext() {
@@ -31,6 +31,7 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -90,6 +91,12 @@ public class LocalExecutionMonitor implements Observer<MonitorMessage> {
 	private Map<String, Invocation> invocations;
 	private Map<String, String> invocationToActivity;
 	private Map<T2Reference, Path> referenceToPath;
+	/** Reports of the inlined processors enclosing a processor, by its id */
+	private Map<String, List<StatusReport<?, ?>>> enclosingReports;
+	/** Processors still to complete, by report of an inlined processor */
+	private Map<StatusReport<?, ?>, Integer> runningInlined;
+	/** Listeners on the output ports of the dataflows, by invocation id */
+	private final Map<String, RunResultListener> resultListeners = new HashMap<>();
 	private final String facadeId;
 	private final Bundle dataBundle;
 
@@ -102,6 +109,8 @@ public class LocalExecutionMonitor implements Observer<MonitorMessage> {
 		invocations = new HashMap<>();
 		invocationToActivity = new HashMap<>();
 		referenceToPath = new HashMap<>();
+		enclosingReports = new HashMap<>();
+		runningInlined = new IdentityHashMap<>();
 		mapReports("", workflowReport, mapping);
 	}
 
@@ -115,17 +124,67 @@ public class LocalExecutionMonitor implements Observer<MonitorMessage> {
 			dataflowId = id + ID_SEPARATOR + dataflow.getLocalName();
 		}
 		reports.put(dataflowId, workflowReport);
+		mapProcessorReports(dataflowId, workflowReport, null,
+				new ArrayList<StatusReport<?, ?>>(), mapping);
+	}
+
+	/**
+	 * Map the reports of the processors of the workflow, which run in the
+	 * dataflow with the id. The processors of the nested workflow of an
+	 * inlined processor run in the dataflow of the inlined processor, their
+	 * reports are mapped with the reports of the inlined processors enclosing
+	 * them so that these are started and completed with them.
+	 */
+	private void mapProcessorReports(String dataflowId,
+			WorkflowReport workflowReport, Processor inlinedProcessor,
+			List<StatusReport<?, ?>> enclosing,
+			WorkflowToDataflowMapper mapping) throws InvalidWorkflowException {
 		for (ProcessorReport processorReport : workflowReport
 				.getProcessorReports()) {
-			Processor processor = mapping.getDataflowProcessor(processorReport
-					.getSubject());
+			Processor processor;
+			if (inlinedProcessor == null)
+				processor = mapping.getDataflowProcessor(processorReport
+						.getSubject());
+			else
+				processor = mapping.getInlinedProcessor(inlinedProcessor,
+						processorReport.getSubject());
+			if (mapping.isInlined(processor)) {
+				for (ActivityReport activityReport : processorReport
+						.getActivityReports()) {
+					WorkflowReport nestedWorkflowReport = activityReport
+							.getNestedWorkflowReport();
+					if (nestedWorkflowReport == null)
+						continue;
+					List<StatusReport<?, ?>> nestedEnclosing = new ArrayList<>(
+							enclosing);
+					nestedEnclosing.add(processorReport);
+					nestedEnclosing.add(activityReport);
+					nestedEnclosing.add(nestedWorkflowReport);
+					mapProcessorReports(dataflowId, nestedWorkflowReport,
+							processor, nestedEnclosing, mapping);
+				}
+				continue;
+			}
 			String processorId = dataflowId + ID_SEPARATOR
 					+ processor.getLocalName();
 			reports.put(processorId, (LocalProcessorReport) processorReport);
+			if (!enclosing.isEmpty()) {
+				enclosingReports.put(processorId, enclosing);
+				for (StatusReport<?, ?> report : enclosing) {
+					Integer running = runningInlined.get(report);
+					runningInlined.put(report, running == null ? 1
+							: running + 1);
+				}
+			}
 			for (ActivityReport activityReport : processorReport
 					.getActivityReports()) {
-				Activity<?> activity = mapping
-						.getDataflowActivity(activityReport.getSubject());
+				Activity<?> activity;
+				if (inlinedProcessor == null)
+					activity = mapping.getDataflowActivity(activityReport
+							.getSubject());
+				else
+					activity = mapping.getInlinedActivity(inlinedProcessor,
+							activityReport.getSubject());
 				String activityId = processorId + ID_SEPARATOR
 						+ activity.hashCode();
 				reports.put(activityId, activityReport);
@@ -180,35 +239,33 @@ public class LocalExecutionMonitor implements Observer<MonitorMessage> {
 				}
 				try {
 					Path outputs = DataBundles.getOutputs(dataBundle);
-					DataflowResultListener dataflowResultListener = new DataflowResultListener(
-							outputs);
 					for (DataflowOutputPort dataflowOutputPort : dataflow
 							.getOutputPorts()) {
 						String portName = dataflowOutputPort.getName();
 						Path portPath = DataBundles.getPort(outputs, portName);
 						invocation.setOutput(portName, portPath);
-						dataflowOutputPort
-								.addResultListener(dataflowResultListener);
 					}
+					addResultListener(getInvocationId(owningProcess),
+							new DataflowResultListener(dataflow,
+									owningProcess, outputs));
 				} catch (IOException e) {
 					logger.log(WARNING, "Error setting output ports", e);
 				}
 				invocations.put(getInvocationId(owningProcess), invocation);
 			} else {
 				invocation.setInputs(parentInvocation.getInputs());
-				NestedDataflowResultListener resultListener = new NestedDataflowResultListener(
-						invocation);
-				for (DataflowOutputPort dataflowOutputPort : dataflow
-						.getOutputPorts()) {
-					dataflowOutputPort.addResultListener(resultListener);
-				}
+				addResultListener(getInvocationId(owningProcess),
+						new NestedDataflowResultListener(dataflow,
+								owningProcess, invocation));
 				invocations.put(getInvocationId(owningProcess), invocation);
 			}
 		} else if (dataflowObject instanceof Processor) {
-			StatusReport<?, ?> report = reports.get(getReportId(owningProcess));
+			String reportId = getReportId(owningProcess);
+			StatusReport<?, ?> report = reports.get(reportId);
 			report.setStartedDate(new Date());
 			if (report instanceof LocalProcessorReport)
 				((LocalProcessorReport) report).addProperties(properties);
+			startEnclosingReports(reportId);
 		} else if (dataflowObject instanceof Activity) {
 			Activity<?> activity = (Activity<?>) dataflowObject;
 			invocationToActivity.put(owningProcess[owningProcess.length - 1],
@@ -285,10 +342,12 @@ public class LocalExecutionMonitor implements Observer<MonitorMessage> {
 	}
 
 	public void deregisterNode(String[] owningProcess) {
-		StatusReport<?, ?> report = reports.get(getReportId(owningProcess));
+		String reportId = getReportId(owningProcess);
+		StatusReport<?, ?> report = reports.get(reportId);
 		if (report == null) {
 			return;
 		} else if (report instanceof WorkflowReport) {
+			removeResultListener(getInvocationId(owningProcess));
 			Invocation invocation = invocations
 					.remove(getInvocationId(owningProcess));
 			invocation.setCompletedDate(new Date());
@@ -296,6 +355,7 @@ public class LocalExecutionMonitor implements Observer<MonitorMessage> {
 		} else if (report instanceof LocalProcessorReport) {
 			((LocalProcessorReport) report).saveProperties();
 			report.setCompletedDate(new Date());
+			completeEnclosingReports(reportId);
 		} else if (report instanceof ActivityReport) {
 			// Invocation may still exist if the activity failed
 			Invocation invocation = invocations
@@ -310,6 +370,65 @@ public class LocalExecutionMonitor implements Observer<MonitorMessage> {
 		}
 	}
 
+	private void addResultListener(String invocationId,
+			RunResultListener resultListener) {
+		synchronized (resultListeners) {
+			resultListeners.put(invocationId, resultListener);
+		}
+		resultListener.addToPorts();
+	}
+
+	private void removeResultListener(String invocationId) {
+		RunResultListener resultListener;
+		synchronized (resultListeners) {
+			resultListener = resultListeners.remove(invocationId);
+		}
+		if (resultListener != null)
+			resultListener.removeFromPorts();
+	}
+
+	/**
+	 * Stop listening to the output ports of the dataflows of the run, which
+	 * are shared with other runs of the same workflow. This is done as each
+	 * dataflow finishes, and must be done for a run which is cancelled.
+	 */
+	public void removeResultListeners() {
+		List<RunResultListener> removed;
+		synchronized (resultListeners) {
+			removed = new ArrayList<>(resultListeners.values());
+			resultListeners.clear();
+		}
+		for (RunResultListener resultListener : removed)
+			resultListener.removeFromPorts();
+	}
+
+	private void startEnclosingReports(String reportId) {
+		List<StatusReport<?, ?>> enclosing = enclosingReports.get(reportId);
+		if (enclosing != null)
+			synchronized (runningInlined) {
+				for (StatusReport<?, ?> report : enclosing)
+					if (report.getStartedDate() == null)
+						report.setStartedDate(new Date());
+			}
+	}
+
+	/**
+	 * Complete the reports of the inlined processors once all the processors
+	 * replacing them have completed.
+	 */
+	private void completeEnclosingReports(String reportId) {
+		List<StatusReport<?, ?>> enclosing = enclosingReports.get(reportId);
+		if (enclosing != null)
+			synchronized (runningInlined) {
+				for (StatusReport<?, ?> report : enclosing) {
+					int running = runningInlined.get(report) - 1;
+					runningInlined.put(report, running);
+					if (running == 0)
+						report.setCompletedDate(new Date());
+				}
+			}
+	}
+
 	public void addPropertiesToNode(String[] owningProcess,
 			Set<MonitorableProperty<?>> newProperties) {
 		StatusReport<?, ?> report = reports.get(getReportId(owningProcess));
@@ -486,15 +605,65 @@ public class LocalExecutionMonitor implements Observer<MonitorMessage> {
 		}
 	}
 
-	private class NestedDataflowResultListener implements ResultListener {
+	/**
+	 * Listener on the output ports of a dataflow for the results of one run.
+	 * The dataflow can be shared by concurrent runs, so only the tokens owned
+	 * by the run are passed on.
+	 */
+	private abstract class RunResultListener implements ResultListener {
+		private final Dataflow dataflow;
+		private final String owningProcess;
+
+		/**
+		 * @param owningProcess
+		 *            the owning process the dataflow was registered with
+		 */
+		public RunResultListener(Dataflow dataflow, String[] owningProcess) {
+			this.dataflow = dataflow;
+			// The outputs are owned by the facade running the dataflow
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < owningProcess.length - 1; i++) {
+				if (i > 0)
+					sb.append(':');
+				sb.append(owningProcess[i]);
+			}
+			this.owningProcess = sb.toString();
+		}
+
+		public void addToPorts() {
+			for (DataflowOutputPort dataflowOutputPort : dataflow
+					.getOutputPorts())
+				dataflowOutputPort.addResultListener(this);
+		}
+
+		public void removeFromPorts() {
+			for (DataflowOutputPort dataflowOutputPort : dataflow
+					.getOutputPorts())
+				dataflowOutputPort.removeResultListener(this);
+		}
+
+		@Override
+		public void resultTokenProduced(WorkflowDataToken token, String portName) {
+			if (owningProcess.equals(token.getOwningProcess()))
+				runResultProduced(token, portName);
+		}
+
+		protected abstract void runResultProduced(WorkflowDataToken token,
+				String portName);
+	}
+
+	private class NestedDataflowResultListener extends RunResultListener {
 		private final Invocation invocation;
 
-		public NestedDataflowResultListener(Invocation invocation) {
+		public NestedDataflowResultListener(Dataflow dataflow,
+				String[] owningProcess, Invocation invocation) {
+			super(dataflow, owningProcess);
 			this.invocation = invocation;
 		}
 
 		@Override
-		public void resultTokenProduced(WorkflowDataToken token, String portName) {
+		protected void runResultProduced(WorkflowDataToken token,
+				String portName) {
 			try {
 				if (token.isFinal())
 					invocation
@@ -509,16 +678,19 @@ public class LocalExecutionMonitor implements Observer<MonitorMessage> {
 
 	}
 
-	private class DataflowResultListener implements ResultListener {
+	private class DataflowResultListener extends RunResultListener {
 		private Path outputs;
 		private Map<String, Integer> depthSeen = new HashMap<>();
 
-		public DataflowResultListener(Path outputs) {
+		public DataflowResultListener(Dataflow dataflow,
+				String[] owningProcess, Path outputs) {
+			super(dataflow, owningProcess);
 			this.outputs = outputs;
 		}
 
 		@Override
-		public void resultTokenProduced(WorkflowDataToken token, String portName) {
+		protected void runResultProduced(WorkflowDataToken token,
+				String portName) {
 			Integer depth = depthSeen.get(portName);
 			if (depth == null || depth.equals(token.getIndex().length)) {
 				if (depth == null)
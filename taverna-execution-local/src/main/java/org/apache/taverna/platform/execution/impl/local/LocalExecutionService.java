@@ -19,10 +19,8 @@
 
 package org.apache.taverna.platform.execution.impl.local;
 
-import java.net.URI;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.WeakHashMap;
 
 import org.apache.taverna.reference.ReferenceService;
 import org.apache.taverna.workflowmodel.Dataflow;
@@ -43,6 +41,10 @@ import org.apache.taverna.scufl2.api.profiles.Profile;
 
 /**
  * Service for executing Taverna workflows on a local Taverna Dataflow Engine.
+ * <p>
+ * The dataflows a workflow bundle is mapped into can be kept in a
+ * {@link WorkflowPlanCache} and reused by later runs of the same revisions of
+ * the bundle with the same profile, if the cache is given a size.
  *
  * @author David Withers
  */
@@ -52,6 +54,8 @@ public class LocalExecutionService extends AbstractExecutionService implements
 	private ActivityService activityService;
 	private DispatchLayerService dispatchLayerService;
 	private ReferenceService referenceService;
+	private final WorkflowPlanCache planCache = new WorkflowPlanCache();
+	private final ActivityPool activityPool = ActivityPool.createDefault();
 
 	/**
 	 * Constructs an execution service that executes workflows using the T2
@@ -76,9 +80,11 @@ public class LocalExecutionService extends AbstractExecutionService implements
 	protected Execution createExecutionImpl(WorkflowBundle workflowBundle,
 			Workflow workflow, Profile profile, Bundle dataBundle)
 			throws InvalidWorkflowException {
+		boolean inlining = Boolean
+				.getBoolean(WorkflowToDataflowMapper.INLINE_PROPERTY);
 		return new LocalExecution(workflowBundle, workflow, profile,
-				dataBundle, referenceService, edits, activityService,
-				dispatchLayerService);
+				dataBundle, referenceService, edits, getPlan(workflowBundle,
+						profile, inlining));
 	}
 
 	/**
@@ -121,28 +127,60 @@ public class LocalExecutionService extends AbstractExecutionService implements
 		this.referenceService = referenceService;
 	}
 
-	private WeakHashMap<URI, WorkflowToDataflowMapper> cache = new WeakHashMap<>();
+	/**
+	 * Return the cache of the dataflows workflow bundles are mapped into.
+	 */
+	public WorkflowPlanCache getPlanCache() {
+		return planCache;
+	}
+
+	/**
+	 * Return the pool of the activities shared by the processors of the
+	 * mapped workflows, or <code>null</code> if activities are not pooled.
+	 */
+	public ActivityPool getActivityPool() {
+		return activityPool;
+	}
 
-	private synchronized WorkflowToDataflowMapper getMapper(
-			WorkflowBundle bundle) {
-		WorkflowToDataflowMapper m = cache.get(bundle.getIdentifier());
-		if (m == null) {
-			m = new WorkflowToDataflowMapper(bundle, bundle.getMainProfile(),
-					edits, activityService, dispatchLayerService);
-			cache.put(bundle.getIdentifier(), m);
+	/**
+	 * Return the mapping of the workflow bundle with the profile, reusing the
+	 * one made for a previous run if it is still cached. The dataflows are
+	 * only created once asked for.
+	 */
+	private synchronized WorkflowToDataflowMapper getPlan(
+			WorkflowBundle bundle, Profile profile, boolean inlining) {
+		WorkflowToDataflowMapper plan = planCache.get(bundle, profile,
+				inlining);
+		if (plan == null) {
+			plan = new WorkflowToDataflowMapper(bundle, profile, edits,
+					activityService, dispatchLayerService, activityPool,
+					inlining);
+			planCache.put(plan);
 		}
-		return m;
+		return plan;
 	}
 
+	/**
+	 * Return the dataflow of the workflow. Nested workflows are never inlined
+	 * in it, as it can be run with a provenance reporter, which would only
+	 * know the processors replacing the nested workflow processors.
+	 */
 	@Override
 	public Dataflow getDataflow(Workflow workflow)
 			throws InvalidWorkflowException {
-		return getMapper(workflow.getParent()).getDataflow(workflow);
+		WorkflowBundle bundle = workflow.getParent();
+		return getPlan(bundle, bundle.getMainProfile(), false).getDataflow(
+				workflow);
 	}
 
+	/**
+	 * Return the dataflow of the main workflow of the bundle, without
+	 * inlining nested workflows, as {@link #getDataflow(Workflow)}.
+	 */
 	@Override
-	public synchronized Dataflow getDataflow(WorkflowBundle bundle)
+	public Dataflow getDataflow(WorkflowBundle bundle)
 			throws InvalidWorkflowException {
-		return getMapper(bundle).getDataflow(bundle.getMainWorkflow());
+		return getPlan(bundle, bundle.getMainProfile(), false).getDataflow(
+				bundle.getMainWorkflow());
 	}
 }
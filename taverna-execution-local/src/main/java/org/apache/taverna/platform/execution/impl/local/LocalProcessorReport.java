@@ -28,6 +28,7 @@ import java.util.Set;
 import org.apache.taverna.monitor.MonitorableProperty;
 import org.apache.taverna.monitor.NoSuchPropertyException;
 import org.apache.taverna.monitor.SteerableProperty;
+import org.apache.taverna.platform.report.ActivityReport;
 import org.apache.taverna.platform.report.ProcessorReport;
 import org.apache.taverna.scufl2.api.core.Processor;
 
@@ -53,12 +54,20 @@ public class LocalProcessorReport extends ProcessorReport {
 		for (MonitorableProperty<?> property : properties) {
 			propertyMap.put(getPropertyName(property), property);
 		}
+		// The dispatch layers report per processor, pass on what the
+		// activity reports need
+		for (ActivityReport activityReport : getActivityReports())
+			if (activityReport instanceof LocalActivityReport)
+				((LocalActivityReport) activityReport).addProperties(propertyMap);
 	}
 
 	public void saveProperties() {
 		for (Entry<String, MonitorableProperty<?>> entry : propertyMap
 				.entrySet())
 			entry.setValue(new StaticProperty(entry.getValue()));
+		for (ActivityReport activityReport : getActivityReports())
+			if (activityReport instanceof LocalActivityReport)
+				((LocalActivityReport) activityReport).saveProperties();
 	}
 
 	@Override
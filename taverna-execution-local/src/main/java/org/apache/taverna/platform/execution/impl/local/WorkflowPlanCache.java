@@ -0,0 +1,144 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.platform.execution.impl.local;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.taverna.scufl2.api.container.WorkflowBundle;
+import org.apache.taverna.scufl2.api.core.Workflow;
+import org.apache.taverna.scufl2.api.profiles.Profile;
+
+/**
+ * Keeps the mappings of recently run workflow bundles into dataflows, so that
+ * repeated runs of a bundle with the same profile reuse the dataflows rather
+ * than creating all the activities, dispatch layers and links again.
+ * <p>
+ * A mapping is only reused for the same <code>WorkflowBundle</code> and
+ * <code>Profile</code> objects it was made from, as the reports of a run refer
+ * to the objects of the bundle, while the workflows of the bundle still have
+ * the revisions they had when the mapping was made, and while the
+ * <code>{@value WorkflowToDataflowMapper#INLINE_PROPERTY}</code> system
+ * property has the value it had when the mapping was made, as the mapping
+ * reads it once.
+ * <p>
+ * A bundle is mutable and can be edited in place without a new revision of its
+ * workflows, after which a cached mapping would run the workflows as they were
+ * before the edit, so the cache keeps nothing unless the
+ * <code>{@value #SIZE_PROPERTY}</code> system property gives it a size. It
+ * should only be enabled where the bundles which are run are not edited, or
+ * get a new revision of the workflows they change, or where the cache is
+ * {@link #clear() cleared} when they are edited.
+ * <p>
+ * The dataflows of a mapping are immutable and keep no state of the runs,
+ * which the engine holds per run. The listeners a run puts on the output ports
+ * of a dataflow only take the tokens of the run and are removed when it
+ * finishes or is cancelled. At most
+ * <code>{@value #SIZE_PROPERTY}</code> mappings are kept, the least recently
+ * used ones are dropped first.
+ */
+public class WorkflowPlanCache {
+	public static final String SIZE_PROPERTY = "taverna.execution.planCacheSize";
+	public static final int DEFAULT_SIZE = 0;
+
+	private final int size;
+	private final Map<String, WorkflowToDataflowMapper> plans;
+
+	/**
+	 * Create a cache of the size given by the {@value #SIZE_PROPERTY} system
+	 * property.
+	 */
+	public WorkflowPlanCache() {
+		this(Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE));
+	}
+
+	/**
+	 * @param size
+	 *            the number of mappings to keep, or 0 to keep none
+	 */
+	@SuppressWarnings("serial")
+	public WorkflowPlanCache(final int size) {
+		if (size < 0)
+			throw new IllegalArgumentException("size < 0");
+		this.size = size;
+		plans = new LinkedHashMap<String, WorkflowToDataflowMapper>(16, 0.75f,
+				true) {
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, WorkflowToDataflowMapper> eldest) {
+				return size() > size;
+			}
+		};
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Return the mapping made from the current revisions of the workflows of
+	 * the bundle with the profile, which inlines nested workflows if they are
+	 * inlined now, or <code>null</code> if there is none.
+	 */
+	public WorkflowToDataflowMapper get(WorkflowBundle bundle, Profile profile) {
+		return get(bundle, profile,
+				Boolean.getBoolean(WorkflowToDataflowMapper.INLINE_PROPERTY));
+	}
+
+	/**
+	 * Return the mapping made from the current revisions of the workflows of
+	 * the bundle with the profile, which inlines nested workflows if
+	 * <code>inlining</code> is true, or <code>null</code> if there is none.
+	 */
+	public synchronized WorkflowToDataflowMapper get(WorkflowBundle bundle,
+			Profile profile, boolean inlining) {
+		WorkflowToDataflowMapper plan = plans.get(key(bundle, profile,
+				inlining));
+		if (plan == null || plan.getWorkflowBundle() != bundle
+				|| plan.getProfile() != profile)
+			return null;
+		return plan;
+	}
+
+	/**
+	 * Keep the mapping, replacing any made from a bundle, workflow revisions
+	 * and profile with the same identifiers which inlines nested workflows the
+	 * same way.
+	 */
+	public synchronized void put(WorkflowToDataflowMapper plan) {
+		if (size > 0)
+			plans.put(key(plan.getWorkflowBundle(), plan.getProfile(),
+					plan.isInliningNestedWorkflows()), plan);
+	}
+
+	public synchronized void clear() {
+		plans.clear();
+	}
+
+	private static String key(WorkflowBundle bundle, Profile profile,
+			boolean inlining) {
+		StringBuilder key = new StringBuilder();
+		key.append(bundle.getIdentifier());
+		for (Workflow workflow : bundle.getWorkflows())
+			key.append(" ").append(workflow.getIdentifier());
+		key.append(" ").append(profile == null ? "" : profile.getName());
+		return key.append(" ").append(inlining).toString();
+	}
+}
@@ -21,11 +21,18 @@ package org.apache.taverna.platform.execution.impl.local;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
 
+import org.apache.taverna.invocation.ConcurrencyGovernor;
 import org.apache.taverna.reference.ExternalReferenceSPI;
 import org.apache.taverna.workflowmodel.Dataflow;
 import org.apache.taverna.workflowmodel.DataflowInputPort;
@@ -37,6 +44,7 @@ import org.apache.taverna.workflowmodel.EventForwardingOutputPort;
 import org.apache.taverna.workflowmodel.EventHandlingInputPort;
 import org.apache.taverna.workflowmodel.Merge;
 import org.apache.taverna.workflowmodel.MergeInputPort;
+import org.apache.taverna.workflowmodel.MergeOutputPort;
 import org.apache.taverna.workflowmodel.ProcessorInputPort;
 import org.apache.taverna.workflowmodel.ProcessorOutputPort;
 import org.apache.taverna.workflowmodel.processor.activity.ActivityInputPort;
@@ -86,10 +94,35 @@ import com.fasterxml.jackson.databind.JsonNode;
 
 /**
  * Translates a scufl2 {@link Workflow} into a {@link Dataflow}.
+ * <p>
+ * The dataflows are made immutable once mapped so that, with the mapping,
+ * they can be shared by concurrent runs of the workflow.
+ * <p>
+ * If the system property <code>{@value #INLINE_PROPERTY}</code> is set to
+ * <code>true</code> the processors running a nested workflow are replaced by
+ * the processors of the nested workflow, so that the nested workflow doesn't
+ * need a workflow instance of its own for every invocation. The processors of
+ * the nested workflow are named after the processor they replace and are
+ * mapped to the nested workflow processors by
+ * {@link #getInlinedProcessor(org.apache.taverna.workflowmodel.Processor, Processor)
+ * getInlinedProcessor()}, which the reports of a {@link LocalExecution} use
+ * to report on the nested workflow processors. The provenance items of the
+ * engine would name the inlined processors instead, so dataflows run with a
+ * provenance reporter must be mapped without inlining.
+ * <p>
+ * A nested workflow is only inlined if its outputs all depend on all its
+ * inputs and all its processors have inputs, so that nothing in it runs
+ * before the processor it replaces would have been invoked, and an input
+ * which is an error ends up on all the outputs as it does when the processor
+ * is not invoked. The results differ in one case: when an input is a list
+ * holding errors the nested workflow is not invoked and all its outputs are
+ * errors, where the inlined processors still produce the elements which
+ * don't depend on the errors.
  * 
  * @author David Withers
  */
 public class WorkflowToDataflowMapper {
+	public static final String INLINE_PROPERTY = "taverna.execution.inlineNestedWorkflows";
 	private static final URI NESTED_WORKFLOW_URI = URI
 			.create("http://ns.taverna.org.uk/2010/activity/nested-workflow");
 
@@ -104,15 +137,52 @@ public class WorkflowToDataflowMapper {
 	private final Map<org.apache.taverna.workflowmodel.Processor, Processor> dataflowToWorkflowProcessors;
 	private final Map<Activity, org.apache.taverna.workflowmodel.processor.activity.Activity<?>> workflowToDataflowActivities;
 	private final Map<org.apache.taverna.workflowmodel.processor.activity.Activity<?>, Activity> dataflowToWorkflowActivities;
-	@SuppressWarnings("unused")
+	private final Map<org.apache.taverna.workflowmodel.Processor, Map<org.apache.taverna.workflowmodel.processor.activity.Activity<?>, Activity>> processorActivities;
 	private final WorkflowBundle workflowBundle;
 	private final Profile profile;
 	private final ActivityService activityService;
 	private final DispatchLayerService dispatchLayerService;
+	private final ActivityPool activityPool;
+	private final boolean inlineNestedWorkflows;
+	private final Map<org.apache.taverna.workflowmodel.Processor, Inlining> inlinings = new HashMap<>();
 
 	public WorkflowToDataflowMapper(WorkflowBundle workflowBundle,
 			Profile profile, Edits edits, ActivityService activityService,
 			DispatchLayerService dispatchLayerService) {
+		this(workflowBundle, profile, edits, activityService,
+				dispatchLayerService, null);
+	}
+
+	/**
+	 * @param activityPool
+	 *            pool of the activities shared with other processors, or
+	 *            <code>null</code> to create an activity for every processor
+	 */
+	public WorkflowToDataflowMapper(WorkflowBundle workflowBundle,
+			Profile profile, Edits edits, ActivityService activityService,
+			DispatchLayerService dispatchLayerService, ActivityPool activityPool) {
+		this(workflowBundle, profile, edits, activityService,
+				dispatchLayerService, activityPool, Boolean
+						.getBoolean(INLINE_PROPERTY));
+	}
+
+	/**
+	 * @param activityPool
+	 *            pool of the activities shared with other processors, or
+	 *            <code>null</code> to create an activity for every processor
+	 * @param inlineNestedWorkflows
+	 *            true to replace the processors running nested workflows by
+	 *            the processors of the nested workflows, which should only be
+	 *            done for dataflows whose runs report on the nested processors
+	 *            through {@link #getInlinedProcessor(org.apache.taverna.workflowmodel.Processor, Processor)
+	 *            getInlinedProcessor()}
+	 */
+	public WorkflowToDataflowMapper(WorkflowBundle workflowBundle,
+			Profile profile, Edits edits, ActivityService activityService,
+			DispatchLayerService dispatchLayerService,
+			ActivityPool activityPool, boolean inlineNestedWorkflows) {
+		this.activityPool = activityPool;
+		this.inlineNestedWorkflows = inlineNestedWorkflows;
 		this.workflowBundle = workflowBundle;
 		this.profile = profile;
 		this.edits = edits;
@@ -127,17 +197,37 @@ public class WorkflowToDataflowMapper {
 		dataflowToWorkflowProcessors = new HashMap<>();
 		workflowToDataflowActivities = new IdentityHashMap<>();
 		dataflowToWorkflowActivities = new HashMap<>();
+		processorActivities = new HashMap<>();
+	}
+
+	public WorkflowBundle getWorkflowBundle() {
+		return workflowBundle;
+	}
+
+	public Profile getProfile() {
+		return profile;
+	}
+
+	/**
+	 * Return true if the processors running nested workflows are replaced by
+	 * the processors of the nested workflows, as set by the
+	 * <code>{@value #INLINE_PROPERTY}</code> system property when the mapping
+	 * was created, unless it was created not to.
+	 */
+	public boolean isInliningNestedWorkflows() {
+		return inlineNestedWorkflows;
 	}
 
 	public Workflow getWorkflow(Dataflow dataflow) {
 		return dataflowToWorkflow.get(dataflow);
 	}
 
-	public Dataflow getDataflow(Workflow workflow)
+	public synchronized Dataflow getDataflow(Workflow workflow)
 			throws InvalidWorkflowException {
 		if (!workflowToDataflow.containsKey(workflow)) {
 			try {
 				Dataflow dataflow = createDataflow(workflow);
+				dataflow.setImmutable();
 				workflowToDataflow.put(workflow, dataflow);
 				dataflowToWorkflow.put(dataflow, workflow);
 			} catch (EditException | ActivityConfigurationException
@@ -160,16 +250,70 @@ public class WorkflowToDataflowMapper {
 		return workflowToDataflowProcessors.get(workflowProcessor);
 	}
 
+	/**
+	 * Return the activity a dataflow activity was made for. An activity shared
+	 * by several processors is mapped to the activity of the first processor,
+	 * use {@link #getWorkflowActivity(org.apache.taverna.workflowmodel.Processor, org.apache.taverna.workflowmodel.processor.activity.Activity)}
+	 * for the activity bound to a particular processor.
+	 */
 	public Activity getWorkflowActivity(
 			org.apache.taverna.workflowmodel.processor.activity.Activity<?> dataflowActiviy) {
 		return dataflowToWorkflowActivities.get(dataflowActiviy);
 	}
 
+	/**
+	 * Return the activity bound to the processor which the dataflow activity
+	 * of the dataflow processor stands for, or <code>null</code> if the
+	 * activity doesn't belong to the processor.
+	 */
+	public Activity getWorkflowActivity(
+			org.apache.taverna.workflowmodel.Processor dataflowProcessor,
+			org.apache.taverna.workflowmodel.processor.activity.Activity<?> dataflowActiviy) {
+		Map<org.apache.taverna.workflowmodel.processor.activity.Activity<?>, Activity> activities = processorActivities
+				.get(dataflowProcessor);
+		return activities == null ? null : activities.get(dataflowActiviy);
+	}
+
 	public org.apache.taverna.workflowmodel.processor.activity.Activity<?> getDataflowActivity(
 			Activity workflowActivity) {
 		return workflowToDataflowActivities.get(workflowActivity);
 	}
 
+	/**
+	 * Return true if the processor has been replaced by the processors of its
+	 * nested workflow.
+	 */
+	public boolean isInlined(
+			org.apache.taverna.workflowmodel.Processor dataflowProcessor) {
+		return inlinings.containsKey(dataflowProcessor);
+	}
+
+	/**
+	 * Return the processor which replaces a processor of the nested workflow
+	 * of an inlined processor, or <code>null</code> if the processor has not
+	 * been inlined.
+	 */
+	public org.apache.taverna.workflowmodel.Processor getInlinedProcessor(
+			org.apache.taverna.workflowmodel.Processor inlinedProcessor,
+			Processor workflowProcessor) {
+		Inlining inlining = inlinings.get(inlinedProcessor);
+		return inlining == null ? null : inlining.processors
+				.get(workflowProcessor);
+	}
+
+	/**
+	 * Return the activity of the processor which replaces a processor of the
+	 * nested workflow of an inlined processor, or <code>null</code> if the
+	 * processor has not been inlined.
+	 */
+	public org.apache.taverna.workflowmodel.processor.activity.Activity<?> getInlinedActivity(
+			org.apache.taverna.workflowmodel.Processor inlinedProcessor,
+			Activity workflowActivity) {
+		Inlining inlining = inlinings.get(inlinedProcessor);
+		return inlining == null ? null : inlining.activities
+				.get(workflowActivity);
+	}
+
 	protected Dataflow createDataflow(Workflow workflow) throws EditException,
 			ActivityNotFoundException, ActivityConfigurationException,
 			InvalidWorkflowException, DispatchLayerNotFoundException,
@@ -183,7 +327,9 @@ public class WorkflowToDataflowMapper {
 		addOutputPorts(workflow, dataflow);
 		addProcessors(workflow, dataflow);
 		addDataLinks(workflow, dataflow);
-		addControlLinks(workflow);
+		addControlLinks(workflow, workflowToDataflowProcessors);
+		if (inlineNestedWorkflows)
+			inlineNestedWorkflows(dataflow);
 
 		return dataflow;
 	}
@@ -192,49 +338,65 @@ public class WorkflowToDataflowMapper {
 			throws EditException, ActivityNotFoundException,
 			ActivityConfigurationException, InvalidWorkflowException,
 			DispatchLayerNotFoundException, DispatchLayerConfigurationException {
-		for (Processor processor : workflow.getProcessors()) {
-			org.apache.taverna.workflowmodel.Processor dataflowProcessor = edits
-					.createProcessor(processor.getName());
-			edits.getAddProcessorEdit(dataflow, dataflowProcessor).doEdit();
-			// map the processor
+		for (Processor processor : workflow.getProcessors())
+			addProcessor(processor, processor.getName(), dataflow, null);
+	}
+
+	/**
+	 * Add the processor to the dataflow, as part of the nested workflow of an
+	 * inlined processor if <code>inlining</code> is not <code>null</code>.
+	 */
+	private org.apache.taverna.workflowmodel.Processor addProcessor(
+			Processor processor, String name, Dataflow dataflow,
+			Inlining inlining) throws EditException,
+			ActivityNotFoundException, ActivityConfigurationException,
+			InvalidWorkflowException, DispatchLayerNotFoundException,
+			DispatchLayerConfigurationException {
+		org.apache.taverna.workflowmodel.Processor dataflowProcessor = edits
+				.createProcessor(name);
+		edits.getAddProcessorEdit(dataflow, dataflowProcessor).doEdit();
+		// map the processor
+		if (inlining == null)
 			workflowToDataflowProcessors.put(processor, dataflowProcessor);
-			dataflowToWorkflowProcessors.put(dataflowProcessor, processor);
-			// add input ports
-			for (InputProcessorPort inputProcessorPort : processor
-					.getInputPorts()) {
-				if (inputProcessorPort.getDatalinksTo().isEmpty())
-					continue;
-				ProcessorInputPort processorInputPort = edits
-						.createProcessorInputPort(dataflowProcessor,
-								inputProcessorPort.getName(),
-								inputProcessorPort.getDepth());
-				edits.getAddProcessorInputPortEdit(dataflowProcessor,
-						processorInputPort).doEdit();
-				inputPorts.put(inputProcessorPort, processorInputPort);
-			}
-			// add output ports
-			for (OutputProcessorPort outputProcessorPort : processor
-					.getOutputPorts()) {
-				ProcessorOutputPort processorOutputPort = edits
-						.createProcessorOutputPort(dataflowProcessor,
-								outputProcessorPort.getName(),
-								outputProcessorPort.getDepth(),
-								outputProcessorPort.getGranularDepth());
-				edits.getAddProcessorOutputPortEdit(dataflowProcessor,
-						processorOutputPort).doEdit();
-				outputPorts.put(outputProcessorPort, processorOutputPort);
-			}
+		else
+			inlining.processors.put(processor, dataflowProcessor);
+		dataflowToWorkflowProcessors.put(dataflowProcessor, processor);
+		// add input ports
+		for (InputProcessorPort inputProcessorPort : processor
+				.getInputPorts()) {
+			if (inputProcessorPort.getDatalinksTo().isEmpty())
+				continue;
+			ProcessorInputPort processorInputPort = edits
+					.createProcessorInputPort(dataflowProcessor,
+							inputProcessorPort.getName(),
+							inputProcessorPort.getDepth());
+			edits.getAddProcessorInputPortEdit(dataflowProcessor,
+					processorInputPort).doEdit();
+			inputPorts.put(inputProcessorPort, processorInputPort);
+		}
+		// add output ports
+		for (OutputProcessorPort outputProcessorPort : processor
+				.getOutputPorts()) {
+			ProcessorOutputPort processorOutputPort = edits
+					.createProcessorOutputPort(dataflowProcessor,
+							outputProcessorPort.getName(),
+							outputProcessorPort.getDepth(),
+							outputProcessorPort.getGranularDepth());
+			edits.getAddProcessorOutputPortEdit(dataflowProcessor,
+					processorOutputPort).doEdit();
+			outputPorts.put(outputProcessorPort, processorOutputPort);
+		}
 
-			// add dispatch stack
-			addDispatchStack(processor, dataflowProcessor);
+		// add dispatch stack
+		addDispatchStack(processor, dataflowProcessor);
 
-			addIterationStrategy(processor, dataflowProcessor);
+		addIterationStrategy(processor, dataflowProcessor);
 
-			// add bound activities
-			for (ProcessorBinding processorBinding : scufl2Tools
-					.processorBindingsForProcessor(processor, profile))
-				addActivity(processorBinding);
-		}
+		// add bound activities
+		for (ProcessorBinding processorBinding : scufl2Tools
+				.processorBindingsForProcessor(processor, profile))
+			addActivity(processorBinding, dataflowProcessor, inlining);
+		return dataflowProcessor;
 	}
 
 	private void addDispatchStack(Processor processor,
@@ -262,7 +424,7 @@ public class WorkflowToDataflowMapper {
 		addDispatchLayer(
 				dispatchStack,
 				URI.create("http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/Failover"),
-				layer++, null);
+				layer++, json == null ? null : json.get("failover"));
 		addDispatchLayer(
 				dispatchStack,
 				URI.create("http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/Retry"),
@@ -271,11 +433,76 @@ public class WorkflowToDataflowMapper {
 				dispatchStack,
 				URI.create("http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/Stop"),
 				layer++, null);
-		addDispatchLayer(
-				dispatchStack,
-				URI.create("http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/Invoke"),
-				layer++, null);
+		if (json != null && json.has("memoize"))
+			addDispatchLayer(
+					dispatchStack,
+					URI.create("http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/Memoize"),
+					layer++, json.get("memoize"));
+		if (json != null && json.has("collapse"))
+			addDispatchLayer(
+					dispatchStack,
+					URI.create("http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/Collapse"),
+					layer++, json.get("collapse"));
+		if (json != null && json.has("circuitBreaker"))
+			addDispatchLayer(
+					dispatchStack,
+					URI.create("http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/CircuitBreaker"),
+					layer++, json.get("circuitBreaker"));
+		if (json != null && json.has("rateLimit"))
+			addDispatchLayer(
+					dispatchStack,
+					URI.create("http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/RateLimit"),
+					layer++, json.get("rateLimit"));
+		if ((json != null && json.has("governor")) || hasEngineLimits())
+			addDispatchLayer(
+					dispatchStack,
+					URI.create("http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/Governor"),
+					layer++, json == null ? null : json.get("governor"));
+		if (json != null && json.has("hedge"))
+			addDispatchLayer(
+					dispatchStack,
+					URI.create("http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/Hedge"),
+					layer++, json.get("hedge"));
+		if (json != null && json.has("timeout"))
+			addDispatchLayer(
+					dispatchStack,
+					URI.create("http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/Timeout"),
+					layer++, json.get("timeout"));
+		if (json != null && json.has("batch"))
+			addDispatchLayer(
+					dispatchStack,
+					URI.create("http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/Batch"),
+					layer++, json.get("batch"));
+		else
+			addDispatchLayer(
+					dispatchStack,
+					URI.create("http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/Invoke"),
+					layer++, null);
+
+		if (json != null && json.has("queue"))
+			setQueueWatermarks(dispatchStack, json.get("queue"));
+	}
 
+	/**
+	 * Return true if the engine wide invocation limits are set, in which case
+	 * every processor needs a Governor layer to keep to them.
+	 */
+	private static boolean hasEngineLimits() {
+		ConcurrencyGovernor governor = ConcurrencyGovernor.getInstance();
+		return governor.getMaxInvocations() > 0
+				|| governor.getMaxInvocationsPerRun() > 0;
+	}
+
+	private void setQueueWatermarks(DispatchStack dispatchStack, JsonNode json)
+			throws DispatchLayerConfigurationException {
+		int highWatermark = json.path("highWatermark").asInt(0);
+		int lowWatermark = json.path("lowWatermark").asInt(highWatermark / 2);
+		try {
+			dispatchStack.setQueueWatermarks(highWatermark, lowWatermark);
+		} catch (IllegalArgumentException e) {
+			throw new DispatchLayerConfigurationException(
+					"Invalid dispatch queue watermarks " + json, e);
+		}
 	}
 
 	private void addDispatchLayer(DispatchStack dispatchStack,
@@ -354,11 +581,11 @@ public class WorkflowToDataflowMapper {
 				.setParent(dataflowIterationStrategyNode);
 	}
 
-	private void addActivity(ProcessorBinding processorBinding)
-			throws EditException, ActivityNotFoundException,
-			ActivityConfigurationException, InvalidWorkflowException {
-		org.apache.taverna.workflowmodel.Processor processor = workflowToDataflowProcessors
-				.get(processorBinding.getBoundProcessor());
+	private void addActivity(ProcessorBinding processorBinding,
+			org.apache.taverna.workflowmodel.Processor processor,
+			Inlining inlining) throws EditException,
+			ActivityNotFoundException, ActivityConfigurationException,
+			InvalidWorkflowException {
 		Activity scufl2Activity = processorBinding.getBoundActivity();
 		URI activityType = scufl2Activity.getType();
 		if (!activityService.activityExists(activityType))
@@ -366,6 +593,20 @@ public class WorkflowToDataflowMapper {
 					+ activityType);
 		Configuration configuration = scufl2Activity.getConfiguration();
 
+		// reuse an activity configured for another processor
+		String ports = null;
+		if (activityPool != null && !activityType.equals(NESTED_WORKFLOW_URI)) {
+			ports = portSignature(processorBinding);
+			org.apache.taverna.workflowmodel.processor.activity.Activity<?> pooled = activityPool
+					.get(activityType, configuration.getJson(), ports);
+			if (pooled != null
+					&& !processor.getActivityList().contains(pooled)) {
+				edits.getAddActivityEdit(processor, pooled).doEdit();
+				mapActivity(processor, scufl2Activity, pooled, inlining);
+				return;
+			}
+		}
+
 		// create the activity
 		org.apache.taverna.workflowmodel.processor.activity.Activity<?> activity = activityService
 				.createActivity(activityType, configuration.getJson());
@@ -427,8 +668,55 @@ public class WorkflowToDataflowMapper {
 			edits.getAddActivityOutputPortMappingEdit(activity,
 					processorPort.getName(), activityPort.getName()).doEdit();
 		}
-		workflowToDataflowActivities.put(scufl2Activity, activity);
-		dataflowToWorkflowActivities.put(activity, scufl2Activity);
+		mapActivity(processor, scufl2Activity, activity, inlining);
+		if (ports != null)
+			activityPool.putIfAbsent(activityType, configuration.getJson(),
+					ports, activity);
+	}
+
+	private void mapActivity(
+			org.apache.taverna.workflowmodel.Processor processor,
+			Activity scufl2Activity,
+			org.apache.taverna.workflowmodel.processor.activity.Activity<?> activity,
+			Inlining inlining) {
+		if (inlining == null)
+			workflowToDataflowActivities.put(scufl2Activity, activity);
+		else
+			inlining.activities.put(scufl2Activity, activity);
+		// A pooled activity is mapped to the first activity it was made for
+		if (!dataflowToWorkflowActivities.containsKey(activity))
+			dataflowToWorkflowActivities.put(activity, scufl2Activity);
+		Map<org.apache.taverna.workflowmodel.processor.activity.Activity<?>, Activity> activities = processorActivities
+				.get(processor);
+		if (activities == null) {
+			activities = new IdentityHashMap<>();
+			processorActivities.put(processor, activities);
+		}
+		activities.put(activity, scufl2Activity);
+	}
+
+	/**
+	 * Describe the ports of the bound activity and their mapping to the ports
+	 * of the processor, which are held by the activity and so must match for
+	 * the activity to be shared.
+	 */
+	private String portSignature(ProcessorBinding processorBinding) {
+		Set<String> ports = new TreeSet<>();
+		Activity scufl2Activity = processorBinding.getBoundActivity();
+		for (InputActivityPort port : scufl2Activity.getInputPorts())
+			ports.add("in " + port.getName() + " " + port.getDepth());
+		for (OutputActivityPort port : scufl2Activity.getOutputPorts())
+			ports.add("out " + port.getName() + " " + port.getDepth() + " "
+					+ port.getGranularDepth());
+		for (ProcessorInputPortBinding binding : processorBinding
+				.getInputPortBindings())
+			ports.add("map in " + binding.getBoundProcessorPort().getName()
+					+ " " + binding.getBoundActivityPort().getName());
+		for (ProcessorOutputPortBinding binding : processorBinding
+				.getOutputPortBindings())
+			ports.add("map out " + binding.getBoundProcessorPort().getName()
+					+ " " + binding.getBoundActivityPort().getName());
+		return ports.toString();
 	}
 
 	private void addDataLinks(Workflow workflow, Dataflow dataflow)
@@ -483,18 +771,240 @@ public class WorkflowToDataflowMapper {
 		}
 	}
 
-	private void addControlLinks(Workflow workflow) throws EditException {
+	private void addControlLinks(
+			Workflow workflow,
+			Map<Processor, org.apache.taverna.workflowmodel.Processor> processors)
+			throws EditException {
 		for (ControlLink controlLink : workflow.getControlLinks()) {
 			if (controlLink instanceof BlockingControlLink) {
 				BlockingControlLink blockingControlLink = (BlockingControlLink) controlLink;
 				Processor untilFinished = blockingControlLink
 						.getUntilFinished();
 				Processor block = blockingControlLink.getBlock();
-				edits.getCreateConditionEdit(
-						workflowToDataflowProcessors.get(untilFinished),
-						workflowToDataflowProcessors.get(block)).doEdit();
+				edits.getCreateConditionEdit(processors.get(untilFinished),
+						processors.get(block)).doEdit();
+			}
+		}
+	}
+
+	/**
+	 * Replace the processors running a nested workflow by the processors of
+	 * the nested workflow, until there are none left which can be inlined.
+	 * The processors of a nested workflow which run nested workflows
+	 * themselves are inlined in turn.
+	 */
+	private void inlineNestedWorkflows(Dataflow dataflow) throws EditException,
+			ActivityNotFoundException, ActivityConfigurationException,
+			InvalidWorkflowException, DispatchLayerNotFoundException,
+			DispatchLayerConfigurationException {
+		while (true) {
+			// Resolves the depth of the data on the datalinks
+			if (!dataflow.checkValidity().isValid())
+				return;
+			org.apache.taverna.workflowmodel.Processor inlinable = null;
+			for (org.apache.taverna.workflowmodel.Processor processor : dataflow
+					.getProcessors())
+				if (canInline(processor)) {
+					inlinable = processor;
+					break;
+				}
+			if (inlinable == null)
+				return;
+			inline(dataflow, inlinable);
+		}
+	}
+
+	/**
+	 * Return true if the processor runs a nested workflow which can be
+	 * replaced by its processors. The processor must run the nested workflow
+	 * once, without iterating over its inputs, must not have other behaviour
+	 * configured, such as retries, and must not be part of a control link. All
+	 * the ports of the nested workflow must be connected without merges, and
+	 * it must have processors to take over the reports of the processor. The
+	 * processors must all have inputs, as the ones without are fired when the
+	 * workflow they are in starts rather than when the processor is invoked,
+	 * and every output must depend on every input, so that an error on any
+	 * input ends up on all the outputs.
+	 */
+	private boolean canInline(
+			org.apache.taverna.workflowmodel.Processor processor) {
+		Processor workflowProcessor = dataflowToWorkflowProcessors
+				.get(processor);
+		if (workflowProcessor == null
+				|| processor.getActivityList().size() != 1
+				|| !(processor.getActivityList().get(0) instanceof NestedDataflow)
+				|| !processor.getPreconditionList().isEmpty()
+				|| !processor.getControlledPreconditionList().isEmpty()
+				|| !hasDefaultBehaviour(workflowProcessor))
+			return false;
+		Workflow nestedWorkflow = scufl2Tools.nestedWorkflowForProcessor(
+				workflowProcessor, profile);
+		if (nestedWorkflow == null || nestedWorkflow.getProcessors().isEmpty())
+			return false;
+		for (Processor nestedProcessor : nestedWorkflow.getProcessors())
+			if (nestedProcessor.getInputPorts().isEmpty())
+				return false;
+		Map<String, String> inputMapping = processor.getActivityList().get(0)
+				.getInputPortMapping();
+		Set<String> connectedInputs = new HashSet<>();
+		for (ProcessorInputPort inputPort : processor.getInputPorts()) {
+			Datalink datalink = inputPort.getIncomingLink();
+			if (datalink == null
+					|| datalink.getResolvedDepth() != inputPort.getDepth()
+					|| datalink.getSource() instanceof MergeOutputPort)
+				return false;
+			String portName = inputMapping.get(inputPort.getName());
+			InputWorkflowPort workflowPort = portName == null ? null
+					: nestedWorkflow.getInputPorts().getByName(portName);
+			if (workflowPort == null
+					|| workflowPort.getDepth() != inputPort.getDepth())
+				return false;
+			connectedInputs.add(portName);
+		}
+		if (connectedInputs.size() != nestedWorkflow.getInputPorts().size())
+			return false;
+		Set<String> connectedOutputs = new HashSet<>();
+		for (DataLink dataLink : nestedWorkflow.getDataLinks()) {
+			if (dataLink.getMergePosition() != null)
+				return false;
+			if (dataLink.getSendsTo() instanceof OutputWorkflowPort)
+				connectedOutputs.add(dataLink.getSendsTo().getName());
+		}
+		if (connectedOutputs.size() != nestedWorkflow.getOutputPorts().size())
+			return false;
+		for (InputWorkflowPort inputPort : nestedWorkflow.getInputPorts())
+			if (!dependsOn(nestedWorkflow.getOutputPorts(), inputPort,
+					nestedWorkflow))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Return true if the data of the input port reaches all the output ports
+	 * through the data links and processors of the workflow.
+	 */
+	private boolean dependsOn(Set<OutputWorkflowPort> outputPorts,
+			InputWorkflowPort inputPort, Workflow workflow) {
+		Set<Object> reached = Collections
+				.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		reached.add(inputPort);
+		for (boolean added = true; added;) {
+			added = false;
+			for (DataLink dataLink : workflow.getDataLinks()) {
+				Object from = dataLink.getReceivesFrom();
+				if (from instanceof OutputProcessorPort)
+					from = ((OutputProcessorPort) from).getParent();
+				Object to = dataLink.getSendsTo();
+				if (to instanceof InputProcessorPort)
+					to = ((InputProcessorPort) to).getParent();
+				if (reached.contains(from) && reached.add(to))
+					added = true;
 			}
 		}
+		return reached.containsAll(outputPorts);
+	}
+
+	/**
+	 * Return true if the processor is only configured with behaviour which
+	 * has no effect on a processor invoked once.
+	 */
+	private boolean hasDefaultBehaviour(Processor processor) {
+		JsonNode json = null;
+		try {
+			json = processor.getConfiguration(profile).getJson();
+		} catch (IndexOutOfBoundsException e) {
+			// no configuration for processor
+		}
+		if (json == null)
+			return true;
+		for (Iterator<String> names = json.fieldNames(); names.hasNext();) {
+			String name = names.next();
+			if (!name.equals("parallelize") && !name.equals("queue")
+					&& !name.equals("governor"))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Replace the processor by the processors of its nested workflow,
+	 * connecting them directly to the ports the processor was connected to.
+	 */
+	private void inline(Dataflow dataflow,
+			org.apache.taverna.workflowmodel.Processor processor)
+			throws EditException, ActivityNotFoundException,
+			ActivityConfigurationException, InvalidWorkflowException,
+			DispatchLayerNotFoundException, DispatchLayerConfigurationException {
+		Workflow nestedWorkflow = scufl2Tools.nestedWorkflowForProcessor(
+				dataflowToWorkflowProcessors.get(processor), profile);
+		org.apache.taverna.workflowmodel.processor.activity.Activity<?> activity = processor
+				.getActivityList().get(0);
+
+		// where the nested workflow inputs come from
+		Map<String, EventForwardingOutputPort> sources = new HashMap<>();
+		for (ProcessorInputPort inputPort : processor.getInputPorts()) {
+			Datalink datalink = inputPort.getIncomingLink();
+			sources.put(activity.getInputPortMapping().get(inputPort.getName()),
+					datalink.getSource());
+			edits.getDisconnectDatalinkEdit(datalink).doEdit();
+		}
+		// where the nested workflow outputs go to
+		Map<String, List<EventHandlingInputPort>> sinks = new HashMap<>();
+		for (Entry<String, String> mapping : activity.getOutputPortMapping()
+				.entrySet()) {
+			ProcessorOutputPort outputPort = null;
+			for (ProcessorOutputPort port : processor.getOutputPorts())
+				if (port.getName().equals(mapping.getValue()))
+					outputPort = port;
+			if (outputPort == null)
+				continue;
+			List<EventHandlingInputPort> portSinks = new ArrayList<>();
+			for (Datalink datalink : new ArrayList<>(
+					outputPort.getOutgoingLinks())) {
+				portSinks.add(datalink.getSink());
+				edits.getDisconnectDatalinkEdit(datalink).doEdit();
+			}
+			sinks.put(mapping.getKey(), portSinks);
+		}
+		edits.getRemoveProcessorEdit(dataflow, processor).doEdit();
+
+		Inlining inlining = new Inlining();
+		inlinings.put(processor, inlining);
+		for (Processor nestedProcessor : nestedWorkflow.getProcessors())
+			addProcessor(nestedProcessor, inlinedProcessorName(dataflow,
+					processor.getLocalName() + "_" + nestedProcessor.getName()),
+					dataflow, inlining);
+		for (DataLink dataLink : nestedWorkflow.getDataLinks()) {
+			SenderPort senderPort = dataLink.getReceivesFrom();
+			ReceiverPort receiverPort = dataLink.getSendsTo();
+			EventForwardingOutputPort source;
+			if (senderPort instanceof InputWorkflowPort)
+				source = sources.get(senderPort.getName());
+			else
+				source = outputPorts.get(senderPort);
+			List<EventHandlingInputPort> linkSinks;
+			if (receiverPort instanceof OutputWorkflowPort)
+				linkSinks = sinks.get(receiverPort.getName());
+			else
+				linkSinks = Collections.singletonList(inputPorts
+						.get(receiverPort));
+			if (linkSinks != null)
+				for (EventHandlingInputPort sink : linkSinks)
+					edits.getConnectDatalinkEdit(
+							edits.createDatalink(source, sink)).doEdit();
+		}
+		addControlLinks(nestedWorkflow, inlining.processors);
+	}
+
+	private String inlinedProcessorName(Dataflow dataflow, String name) {
+		Set<String> names = new HashSet<>();
+		for (org.apache.taverna.workflowmodel.Processor processor : dataflow
+				.getProcessors())
+			names.add(processor.getLocalName());
+		String uniqueName = name;
+		for (int i = 2; names.contains(uniqueName); i++)
+			uniqueName = name + "_" + i;
+		return uniqueName;
 	}
 
 	private void addOutputPorts(Workflow workflow, Dataflow dataflow)
@@ -523,4 +1033,13 @@ public class WorkflowToDataflowMapper {
 					dataflowInputPort.getInternalOutputPort());
 		}
 	}
+
+	/**
+	 * The processors and activities replacing the nested workflow of an
+	 * inlined processor.
+	 */
+	private static class Inlining {
+		private final Map<Processor, org.apache.taverna.workflowmodel.Processor> processors = new IdentityHashMap<>();
+		private final Map<Activity, org.apache.taverna.workflowmodel.processor.activity.Activity<?>> activities = new IdentityHashMap<>();
+	}
 }
@@ -0,0 +1,118 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.platform.execution.impl.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.net.URI;
+import java.util.Map;
+
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.workflowmodel.processor.activity.AbstractAsynchronousActivity;
+import org.apache.taverna.workflowmodel.processor.activity.AsynchronousActivityCallback;
+import org.apache.taverna.workflowmodel.processor.activity.ShareableActivity;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class ActivityPoolTest {
+	private URI type = URI.create("http://example.com/activity");
+	private String ports = "[in a 0, out b 0 0]";
+
+	private ObjectNode configuration(String value) {
+		ObjectNode configuration = JsonNodeFactory.instance.objectNode();
+		configuration.put("value", value);
+		return configuration;
+	}
+
+	@Test
+	public void sharedForEqualConfiguration() {
+		ActivityPool pool = new ActivityPool(4);
+		SharedActivity activity = new SharedActivity();
+		ObjectNode configuration = configuration("x");
+		assertNull(pool.putIfAbsent(type, configuration, ports, activity));
+		configuration.put("value", "changed");
+		assertSame(activity, pool.get(type, configuration("x"), ports));
+		assertSame(activity,
+				pool.putIfAbsent(type, configuration("x"), ports,
+						new SharedActivity()));
+		assertNull(pool.get(type, configuration("y"), ports));
+		assertNull(pool.get(type, configuration("x"), "[]"));
+		assertNull(pool.get(URI.create("http://example.com/other"),
+				configuration("x"), ports));
+	}
+
+	@Test
+	public void onlyShareableActivitiesPooled() {
+		ActivityPool pool = new ActivityPool(4);
+		assertNull(pool.putIfAbsent(type, configuration("x"), ports,
+				new UnsharedActivity()));
+		assertNull(pool.get(type, configuration("x"), ports));
+		assertEquals(0, pool.size());
+	}
+
+	@Test
+	public void leastRecentlyUsedDropped() {
+		ActivityPool pool = new ActivityPool(2);
+		SharedActivity activity = new SharedActivity();
+		pool.putIfAbsent(type, configuration("1"), ports, activity);
+		pool.putIfAbsent(type, configuration("2"), ports, new SharedActivity());
+		pool.get(type, configuration("1"), ports);
+		pool.putIfAbsent(type, configuration("3"), ports, new SharedActivity());
+		assertEquals(2, pool.size());
+		assertSame(activity, pool.get(type, configuration("1"), ports));
+		assertNull(pool.get(type, configuration("2"), ports));
+		pool.clear();
+		assertEquals(0, pool.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void emptyPool() {
+		new ActivityPool(0);
+	}
+
+	private static class UnsharedActivity extends
+			AbstractAsynchronousActivity<JsonNode> {
+		private JsonNode configuration;
+
+		@Override
+		public void configure(JsonNode configuration) {
+			this.configuration = configuration;
+		}
+
+		@Override
+		public JsonNode getConfiguration() {
+			return configuration;
+		}
+
+		@Override
+		public void executeAsynch(Map<String, T2Reference> data,
+				AsynchronousActivityCallback callback) {
+		}
+	}
+
+	private static class SharedActivity extends UnsharedActivity implements
+			ShareableActivity<JsonNode> {
+	}
+}
@@ -19,12 +19,29 @@
 
 package org.apache.taverna.platform.execution.impl.local;
 
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import org.junit.Ignore;
 import org.junit.Test;
 
+import org.apache.taverna.activities.testutils.ActivityInvoker;
+import org.apache.taverna.databundle.DataBundles;
+import org.apache.taverna.platform.report.State;
 import org.apache.taverna.platform.report.WorkflowReport;
+import org.apache.taverna.reference.ReferenceService;
+import org.apache.taverna.robundle.Bundle;
+import org.apache.taverna.scufl2.api.container.WorkflowBundle;
+import org.apache.taverna.scufl2.api.core.DataLink;
+import org.apache.taverna.scufl2.api.core.Workflow;
+import org.apache.taverna.scufl2.api.port.InputWorkflowPort;
+import org.apache.taverna.scufl2.api.port.OutputWorkflowPort;
+import org.apache.taverna.scufl2.api.profiles.Profile;
+import org.apache.taverna.workflowmodel.impl.EditsImpl;
 
 /**
  * 
@@ -142,6 +159,77 @@ public class LocalExecutionTest {
 	// System.out.println(report);
 	// }
 
+	/**
+	 * Runs of the same workflow share its dataflow, each run must only get
+	 * its own outputs.
+	 */
+	@Test
+	public void concurrentRunsOfSharedDataflow() throws Exception {
+		WorkflowBundle workflowBundle = new WorkflowBundle();
+		Workflow workflow = new Workflow("passThrough");
+		workflow.setParent(workflowBundle);
+		workflowBundle.setMainWorkflow(workflow);
+		Profile profile = new Profile("profile");
+		profile.setParent(workflowBundle);
+		workflowBundle.setMainProfile(profile);
+		InputWorkflowPort in = new InputWorkflowPort(workflow, "in");
+		in.setDepth(1);
+		OutputWorkflowPort out = new OutputWorkflowPort(workflow, "out");
+		new DataLink(workflow, in, out);
+
+		WorkflowToDataflowMapper mapping = new WorkflowToDataflowMapper(
+				workflowBundle, profile, new EditsImpl(), null, null);
+		ReferenceService referenceService = ActivityInvoker
+				.createReferenceService();
+		LocalExecution first = new LocalExecution(workflowBundle, workflow,
+				profile, dataBundle("a1", "a2"), referenceService,
+				new EditsImpl(), mapping);
+		LocalExecution second = new LocalExecution(workflowBundle, workflow,
+				profile, dataBundle("b1", "b2", "b3"), referenceService,
+				new EditsImpl(), mapping);
+		first.start();
+		second.start();
+		waitForCompletion(first.getWorkflowReport());
+		waitForCompletion(second.getWorkflowReport());
+
+		// A later run doesn't add to the outputs of a finished one
+		LocalExecution third = new LocalExecution(workflowBundle, workflow,
+				profile, dataBundle("c1"), referenceService, new EditsImpl(),
+				mapping);
+		third.start();
+		waitForCompletion(third.getWorkflowReport());
+
+		assertEquals("[a1, a2]", outputs(first).toString());
+		assertEquals("[b1, b2, b3]", outputs(second).toString());
+		assertEquals("[c1]", outputs(third).toString());
+	}
+
+	private Bundle dataBundle(String... values) throws Exception {
+		Bundle dataBundle = DataBundles.createBundle();
+		Path port = DataBundles.getPort(DataBundles.getInputs(dataBundle),
+				"in");
+		DataBundles.createList(port);
+		for (String value : values)
+			DataBundles.setStringValue(DataBundles.newListItem(port), value);
+		return dataBundle;
+	}
+
+	private List<String> outputs(LocalExecution execution) throws Exception {
+		List<String> values = new ArrayList<>();
+		for (Path item : DataBundles.getList(DataBundles.getPort(
+				DataBundles.getOutputs(execution.getDataBundle()), "out")))
+			values.add(DataBundles.getStringValue(item));
+		return values;
+	}
+
+	private void waitForCompletion(WorkflowReport report)
+			throws InterruptedException {
+		for (int wait = 0; report.getState() != State.COMPLETED
+				&& wait < 100; wait++)
+			Thread.sleep(100);
+		assertEquals(State.COMPLETED, report.getState());
+	}
+
 	@SuppressWarnings("unused")
 	private void waitForResult(Map<String, Object> results, String port, WorkflowReport report)
 			throws InterruptedException {
@@ -0,0 +1,120 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.platform.execution.impl.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.apache.taverna.scufl2.api.container.WorkflowBundle;
+import org.apache.taverna.scufl2.api.core.Workflow;
+import org.apache.taverna.scufl2.api.profiles.Profile;
+import org.junit.Test;
+
+public class WorkflowPlanCacheTest {
+	private WorkflowBundle bundle = new WorkflowBundle();
+	private Profile profile = new Profile("profile");
+
+	private WorkflowToDataflowMapper plan(WorkflowBundle bundle,
+			Profile profile) {
+		return new WorkflowToDataflowMapper(bundle, profile, null, null, null);
+	}
+
+	@Test
+	public void reusedForSameBundleAndProfile() {
+		WorkflowPlanCache cache = new WorkflowPlanCache(4);
+		assertNull(cache.get(bundle, profile));
+		WorkflowToDataflowMapper plan = plan(bundle, profile);
+		cache.put(plan);
+		assertSame(plan, cache.get(bundle, profile));
+		assertNull(cache.get(bundle, new Profile("other")));
+		assertNull(cache.get(new WorkflowBundle(), profile));
+	}
+
+	@Test
+	public void leastRecentlyUsedDropped() {
+		WorkflowPlanCache cache = new WorkflowPlanCache(2);
+		Profile second = new Profile("second");
+		Profile third = new Profile("third");
+		WorkflowToDataflowMapper plan = plan(bundle, profile);
+		cache.put(plan);
+		cache.put(plan(bundle, second));
+		cache.get(bundle, profile);
+		cache.put(plan(bundle, third));
+		assertSame(plan, cache.get(bundle, profile));
+		assertNull(cache.get(bundle, second));
+	}
+
+	@Test
+	public void notReusedWhenInliningChanged() {
+		WorkflowPlanCache cache = new WorkflowPlanCache(4);
+		WorkflowToDataflowMapper plan = plan(bundle, profile);
+		cache.put(plan);
+		System.setProperty(WorkflowToDataflowMapper.INLINE_PROPERTY, "true");
+		try {
+			assertNull(cache.get(bundle, profile));
+			WorkflowToDataflowMapper inlining = plan(bundle, profile);
+			cache.put(inlining);
+			assertSame(inlining, cache.get(bundle, profile));
+		} finally {
+			System.clearProperty(WorkflowToDataflowMapper.INLINE_PROPERTY);
+		}
+		assertSame(plan, cache.get(bundle, profile));
+	}
+
+	@Test
+	public void inliningAskedFor() {
+		WorkflowPlanCache cache = new WorkflowPlanCache(4);
+		WorkflowToDataflowMapper plan = plan(bundle, profile);
+		cache.put(plan);
+		assertSame(plan, cache.get(bundle, profile, false));
+		assertNull(cache.get(bundle, profile, true));
+	}
+
+	@Test
+	public void notReusedAfterNewRevision() {
+		Workflow workflow = new Workflow();
+		workflow.setParent(bundle);
+		WorkflowPlanCache cache = new WorkflowPlanCache(4);
+		cache.put(plan(bundle, profile));
+		workflow.newRevision();
+		assertNull(cache.get(bundle, profile));
+		WorkflowToDataflowMapper plan = plan(bundle, profile);
+		cache.put(plan);
+		assertSame(plan, cache.get(bundle, profile));
+	}
+
+	@Test
+	public void nothingKeptByDefault() {
+		assertEquals(0, new WorkflowPlanCache().getSize());
+	}
+
+	@Test
+	public void nothingKeptWithSizeZero() {
+		WorkflowPlanCache cache = new WorkflowPlanCache(0);
+		cache.put(plan(bundle, profile));
+		assertNull(cache.get(bundle, profile));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeSize() {
+		new WorkflowPlanCache(-1);
+	}
+}
@@ -0,0 +1,704 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.platform.execution.impl.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.taverna.activities.dataflow.DataflowActivity;
+import org.apache.taverna.activities.testutils.ActivityInvoker;
+import org.apache.taverna.databundle.DataBundles;
+import org.apache.taverna.platform.capability.api.ActivityService;
+import org.apache.taverna.platform.capability.api.DispatchLayerConfigurationException;
+import org.apache.taverna.platform.capability.api.DispatchLayerNotFoundException;
+import org.apache.taverna.platform.capability.api.DispatchLayerService;
+import org.apache.taverna.platform.report.State;
+import org.apache.taverna.platform.report.WorkflowReport;
+import org.apache.taverna.reference.ReferenceService;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.robundle.Bundle;
+import org.apache.taverna.scufl2.api.activity.Activity;
+import org.apache.taverna.scufl2.api.common.Configurable;
+import org.apache.taverna.scufl2.api.configurations.Configuration;
+import org.apache.taverna.scufl2.api.container.WorkflowBundle;
+import org.apache.taverna.scufl2.api.core.BlockingControlLink;
+import org.apache.taverna.scufl2.api.core.DataLink;
+import org.apache.taverna.scufl2.api.core.Processor;
+import org.apache.taverna.scufl2.api.core.Workflow;
+import org.apache.taverna.scufl2.api.iterationstrategy.CrossProduct;
+import org.apache.taverna.scufl2.api.iterationstrategy.PortNode;
+import org.apache.taverna.scufl2.api.port.InputActivityPort;
+import org.apache.taverna.scufl2.api.port.InputProcessorPort;
+import org.apache.taverna.scufl2.api.port.InputWorkflowPort;
+import org.apache.taverna.scufl2.api.port.OutputActivityPort;
+import org.apache.taverna.scufl2.api.port.OutputProcessorPort;
+import org.apache.taverna.scufl2.api.port.OutputWorkflowPort;
+import org.apache.taverna.scufl2.api.profiles.ProcessorBinding;
+import org.apache.taverna.scufl2.api.profiles.ProcessorInputPortBinding;
+import org.apache.taverna.scufl2.api.profiles.ProcessorOutputPortBinding;
+import org.apache.taverna.scufl2.api.profiles.Profile;
+import org.apache.taverna.workflowmodel.ConfigurationException;
+import org.apache.taverna.workflowmodel.Dataflow;
+import org.apache.taverna.workflowmodel.DataflowOutputPort;
+import org.apache.taverna.workflowmodel.Edits;
+import org.apache.taverna.workflowmodel.impl.EditsImpl;
+import org.apache.taverna.workflowmodel.processor.activity.AbstractAsynchronousActivity;
+import org.apache.taverna.workflowmodel.processor.activity.ActivityConfigurationException;
+import org.apache.taverna.workflowmodel.processor.activity.AsynchronousActivityCallback;
+import org.apache.taverna.workflowmodel.processor.dispatch.DispatchLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.layers.CoreDispatchLayerFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Tests the inlining of nested workflows by the
+ * {@link WorkflowToDataflowMapper}.
+ */
+public class WorkflowToDataflowMapperTest {
+	private static final URI APPEND_URI = URI
+			.create("http://ns.taverna.org.uk/2010/activity/test/append");
+	private static final URI NESTED_WORKFLOW_URI = URI
+			.create(DataflowActivity.URI);
+
+	private WorkflowBundle workflowBundle;
+	private Profile profile;
+
+	@Before
+	public void setUp() {
+		workflowBundle = new WorkflowBundle();
+		profile = new Profile("profile");
+		profile.setParent(workflowBundle);
+		workflowBundle.setMainProfile(profile);
+	}
+
+	@Test
+	public void nestedWorkflowInlined() throws Exception {
+		Workflow inner = inner();
+		Workflow main = workflow("main", 1);
+		Processor processor = nested(main, "nested", inner);
+		connect(main, processor);
+
+		WorkflowToDataflowMapper mapper = mapper(true);
+		Dataflow dataflow = mapper.getDataflow(main);
+		org.apache.taverna.workflowmodel.Processor dataflowProcessor = mapper
+				.getDataflowProcessor(processor);
+		assertTrue(mapper.isInlined(dataflowProcessor));
+		assertEquals(1, dataflow.getProcessors().size());
+		org.apache.taverna.workflowmodel.Processor inlined = mapper
+				.getInlinedProcessor(dataflowProcessor, inner.getProcessors()
+						.getByName("append"));
+		assertNotNull(inlined);
+		assertEquals("nested_append", inlined.getLocalName());
+		assertEquals(inlined, dataflow.getProcessors().get(0));
+	}
+
+	@Test
+	public void notInlinedWithoutProperty() throws Exception {
+		Workflow main = workflow("main", 1);
+		Processor processor = nested(main, "nested", inner());
+		connect(main, processor);
+
+		WorkflowToDataflowMapper mapper = mapper(false);
+		Dataflow dataflow = mapper.getDataflow(main);
+		assertFalse(mapper.isInlined(mapper.getDataflowProcessor(processor)));
+		assertEquals("nested", dataflow.getProcessors().get(0).getLocalName());
+	}
+
+	@Test
+	public void notInlinedWhenCreatedNotTo() throws Exception {
+		Workflow main = workflow("main", 1);
+		Processor processor = nested(main, "nested", inner());
+		connect(main, processor);
+
+		System.setProperty(WorkflowToDataflowMapper.INLINE_PROPERTY, "true");
+		WorkflowToDataflowMapper mapper;
+		try {
+			Edits edits = new EditsImpl();
+			mapper = new WorkflowToDataflowMapper(workflowBundle, profile,
+					edits, new TestActivityService(edits),
+					new TestDispatchLayerService(), null, false);
+		} finally {
+			System.clearProperty(WorkflowToDataflowMapper.INLINE_PROPERTY);
+		}
+		mapper.getDataflow(main);
+		assertFalse(mapper.isInliningNestedWorkflows());
+		assertFalse(mapper.isInlined(mapper.getDataflowProcessor(processor)));
+	}
+
+	@Test
+	public void iteratingProcessorNotInlined() throws Exception {
+		// lists of lists make the processor iterate
+		Workflow main = workflow("main", 2);
+		Processor processor = nested(main, "nested", inner());
+		connect(main, processor);
+
+		WorkflowToDataflowMapper mapper = mapper(true);
+		mapper.getDataflow(main);
+		assertFalse(mapper.isInlined(mapper.getDataflowProcessor(processor)));
+	}
+
+	@Test
+	public void mergedInputNotInlined() throws Exception {
+		Workflow main = workflow("main", 0);
+		InputWorkflowPort second = new InputWorkflowPort(main, "second");
+		second.setDepth(0);
+		Processor processor = nested(main, "nested", inner());
+		InputProcessorPort in = processor.getInputPorts().getByName("in");
+		new DataLink(main, main.getInputPorts().getByName("in"), in)
+				.setMergePosition(0);
+		new DataLink(main, second, in).setMergePosition(1);
+		connectOutputs(main, processor);
+
+		WorkflowToDataflowMapper mapper = mapper(true);
+		mapper.getDataflow(main);
+		assertFalse(mapper.isInlined(mapper.getDataflowProcessor(processor)));
+	}
+
+	@Test
+	public void configuredProcessorNotInlined() throws Exception {
+		Workflow main = workflow("main", 1);
+		Processor processor = nested(main, "nested", inner());
+		connect(main, processor);
+		configure(processor, URI.create(
+				"http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer#Config"),
+				"nestedConfig").putObject("retry").put("maxRetries", 2);
+
+		WorkflowToDataflowMapper mapper = mapper(true);
+		mapper.getDataflow(main);
+		assertFalse(mapper.isInlined(mapper.getDataflowProcessor(processor)));
+	}
+
+	@Test
+	public void controlledProcessorNotInlined() throws Exception {
+		Workflow main = workflow("main", 1);
+		Processor processor = nested(main, "nested", inner());
+		connect(main, processor);
+		Processor first = append(main, "first", "?");
+		new DataLink(main, main.getInputPorts().getByName("in"), first
+				.getInputPorts().getByName("in"));
+		new BlockingControlLink(processor, first);
+
+		WorkflowToDataflowMapper mapper = mapper(true);
+		mapper.getDataflow(main);
+		assertFalse(mapper.isInlined(mapper.getDataflowProcessor(processor)));
+	}
+
+	@Test
+	public void nestedWorkflowWithoutProcessorsNotInlined() throws Exception {
+		Workflow empty = workflow("empty", 1);
+		connect(empty, null);
+		Workflow main = workflow("main", 1);
+		Processor processor = nested(main, "nested", empty);
+		connect(main, processor);
+
+		WorkflowToDataflowMapper mapper = mapper(true);
+		mapper.getDataflow(main);
+		assertFalse(mapper.isInlined(mapper.getDataflowProcessor(processor)));
+	}
+
+	@Test
+	public void processorWithoutInputsNotInlined() throws Exception {
+		Workflow inner = inner();
+		Processor constant = new Processor(inner, "constant");
+		new OutputProcessorPort(constant, "out").setDepth(0);
+		configure(bind(constant, APPEND_URI), APPEND_URI, "constant").put(
+				"suffix", "!");
+		Workflow main = workflow("main", 1);
+		Processor processor = nested(main, "nested", inner);
+		connect(main, processor);
+
+		WorkflowToDataflowMapper mapper = mapper(true);
+		mapper.getDataflow(main);
+		assertFalse(mapper.isInlined(mapper.getDataflowProcessor(processor)));
+	}
+
+	@Test
+	public void outputNotDependingOnInputNotInlined() throws Exception {
+		// copy only depends on the second input
+		Workflow inner = workflow("inner", 1);
+		new InputWorkflowPort(inner, "second").setDepth(1);
+		Processor append = append(inner, "append", "!");
+		new DataLink(inner, inner.getInputPorts().getByName("in"), append
+				.getInputPorts().getByName("in"));
+		new DataLink(inner, append.getOutputPorts().getByName("out"), inner
+				.getOutputPorts().getByName("out"));
+		new DataLink(inner, inner.getInputPorts().getByName("second"), inner
+				.getOutputPorts().getByName("copy"));
+		Workflow main = workflow("main", 1);
+		new InputWorkflowPort(main, "second").setDepth(1);
+		Processor processor = nested(main, "nested", inner, "second");
+		connect(main, processor);
+		new DataLink(main, main.getInputPorts().getByName("second"), processor
+				.getInputPorts().getByName("second"));
+
+		WorkflowToDataflowMapper mapper = mapper(true);
+		mapper.getDataflow(main);
+		assertFalse(mapper.isInlined(mapper.getDataflowProcessor(processor)));
+	}
+
+	@Test
+	public void twoLevelsInlined() throws Exception {
+		Workflow inner = inner();
+		Workflow middle = workflow("middle", 1);
+		Processor innerProcessor = nested(middle, "inner", inner);
+		connect(middle, innerProcessor);
+		Workflow main = workflow("main", 1);
+		Processor middleProcessor = nested(main, "middle", middle);
+		connect(main, middleProcessor);
+
+		WorkflowToDataflowMapper mapper = mapper(true);
+		Dataflow dataflow = mapper.getDataflow(main);
+		org.apache.taverna.workflowmodel.Processor dataflowProcessor = mapper
+				.getDataflowProcessor(middleProcessor);
+		assertTrue(mapper.isInlined(dataflowProcessor));
+		org.apache.taverna.workflowmodel.Processor inlinedInner = mapper
+				.getInlinedProcessor(dataflowProcessor, innerProcessor);
+		assertTrue(mapper.isInlined(inlinedInner));
+		org.apache.taverna.workflowmodel.Processor inlinedAppend = mapper
+				.getInlinedProcessor(inlinedInner, inner.getProcessors()
+						.getByName("append"));
+		assertEquals("middle_inner_append", inlinedAppend.getLocalName());
+		assertEquals(1, dataflow.getProcessors().size());
+		assertEquals(inlinedAppend, dataflow.getProcessors().get(0));
+	}
+
+	@Test
+	public void nestedInputPassedToOutput() throws Exception {
+		Workflow main = workflow("main", 1);
+		Processor processor = nested(main, "nested", inner());
+		connect(main, processor);
+
+		WorkflowToDataflowMapper mapper = mapper(true);
+		Dataflow dataflow = mapper.getDataflow(main);
+		assertTrue(mapper.isInlined(mapper.getDataflowProcessor(processor)));
+		// copy is fed by the workflow input the nested input was linked to
+		for (DataflowOutputPort outputPort : dataflow.getOutputPorts())
+			if (outputPort.getName().equals("copy"))
+				assertEquals(dataflow.getInputPorts().get(0)
+						.getInternalOutputPort(), outputPort
+						.getInternalInputPort().getIncomingLink().getSource());
+	}
+
+	@Test
+	public void sameOutputsWhenInlined() throws Exception {
+		Workflow inner = inner();
+		Workflow middle = workflow("middle", 1);
+		connect(middle, nested(middle, "inner", inner));
+		Workflow main = workflow("main", 1);
+		connect(main, nested(main, "middle", middle));
+		workflowBundle.setMainWorkflow(main);
+
+		for (boolean inline : new boolean[] { false, true }) {
+			LocalExecution execution = new LocalExecution(workflowBundle,
+					main, profile, dataBundle("a", "b"),
+					ActivityInvoker.createReferenceService(), new EditsImpl(),
+					mapper(inline));
+			execution.start();
+			waitForCompletion(execution.getWorkflowReport());
+			assertEquals("[a!, b!]", outputs(execution, "out").toString());
+			assertEquals("[a, b]", outputs(execution, "copy").toString());
+		}
+	}
+
+	@Test
+	public void sameErrorsWhenInlined() throws Exception {
+		Workflow inner = inner();
+		Workflow middle = workflow("middle", 1);
+		connect(middle, nested(middle, "inner", inner));
+		Workflow main = workflow("main", 1);
+		// the nested workflow gets an error instead of its input list
+		Processor fail = processor(main, "fail", 1);
+		OutputProcessorPort failed = new OutputProcessorPort(fail, "out");
+		failed.setDepth(1);
+		failed.setGranularDepth(1);
+		configure(bind(fail, APPEND_URI), APPEND_URI, "fail").put("fail",
+				true);
+		new DataLink(main, main.getInputPorts().getByName("in"), fail
+				.getInputPorts().getByName("in"));
+		Processor processor = nested(main, "middle", middle);
+		new DataLink(main, failed, processor.getInputPorts().getByName("in"));
+		connectOutputs(main, processor);
+		workflowBundle.setMainWorkflow(main);
+
+		for (boolean inline : new boolean[] { false, true }) {
+			WorkflowToDataflowMapper mapper = mapper(inline);
+			LocalExecution execution = new LocalExecution(workflowBundle,
+					main, profile, dataBundle("a", "b"),
+					ActivityInvoker.createReferenceService(), new EditsImpl(),
+					mapper);
+			assertEquals(inline, mapper.isInlined(mapper
+					.getDataflowProcessor(processor)));
+			execution.start();
+			waitForCompletion(execution.getWorkflowReport());
+			assertTrue(isError(execution, "out"));
+			assertTrue(isError(execution, "copy"));
+		}
+	}
+
+	private WorkflowToDataflowMapper mapper(boolean inline) {
+		if (inline)
+			System.setProperty(WorkflowToDataflowMapper.INLINE_PROPERTY, "true");
+		try {
+			Edits edits = new EditsImpl();
+			return new WorkflowToDataflowMapper(workflowBundle, profile, edits,
+					new TestActivityService(edits),
+					new TestDispatchLayerService());
+		} finally {
+			System.clearProperty(WorkflowToDataflowMapper.INLINE_PROPERTY);
+		}
+	}
+
+	/**
+	 * A workflow appending "!" to each value of its input list, which also
+	 * passes the input list straight to the <em>copy</em> output.
+	 */
+	private Workflow inner() {
+		Workflow inner = workflow("inner", 1);
+		Processor append = append(inner, "append", "!");
+		new DataLink(inner, inner.getInputPorts().getByName("in"), append
+				.getInputPorts().getByName("in"));
+		new DataLink(inner, append.getOutputPorts().getByName("out"), inner
+				.getOutputPorts().getByName("out"));
+		new DataLink(inner, inner.getInputPorts().getByName("in"), inner
+				.getOutputPorts().getByName("copy"));
+		return inner;
+	}
+
+	/**
+	 * A workflow with an input <em>in</em> and the outputs <em>out</em> and
+	 * <em>copy</em>.
+	 */
+	private Workflow workflow(String name, int depth) {
+		Workflow workflow = new Workflow(name);
+		workflow.setParent(workflowBundle);
+		InputWorkflowPort in = new InputWorkflowPort(workflow, "in");
+		in.setDepth(depth);
+		new OutputWorkflowPort(workflow, "out");
+		new OutputWorkflowPort(workflow, "copy");
+		return workflow;
+	}
+
+	/**
+	 * Link the workflow ports to the ports of the processor, or to each other
+	 * if there is no processor.
+	 */
+	private void connect(Workflow workflow, Processor processor) {
+		InputWorkflowPort in = workflow.getInputPorts().getByName("in");
+		if (processor == null) {
+			new DataLink(workflow, in, workflow.getOutputPorts()
+					.getByName("out"));
+			new DataLink(workflow, in, workflow.getOutputPorts().getByName(
+					"copy"));
+			return;
+		}
+		new DataLink(workflow, in, processor.getInputPorts().getByName("in"));
+		connectOutputs(workflow, processor);
+	}
+
+	private void connectOutputs(Workflow workflow, Processor processor) {
+		for (OutputProcessorPort port : processor.getOutputPorts())
+			new DataLink(workflow, port, workflow.getOutputPorts().getByName(
+					port.getName()));
+	}
+
+	private Processor append(Workflow workflow, String name, String suffix) {
+		Processor processor = processor(workflow, name, 0);
+		new OutputProcessorPort(processor, "out").setDepth(0);
+		processor.getOutputPorts().getByName("out").setGranularDepth(0);
+		Activity activity = bind(processor, APPEND_URI);
+		configure(activity, APPEND_URI, activity.getName()).put("suffix",
+				suffix);
+		return processor;
+	}
+
+	/**
+	 * A processor running the nested workflow, with the input <em>in</em>
+	 * and any other inputs given.
+	 */
+	private Processor nested(Workflow workflow, String name,
+			Workflow nestedWorkflow, String... inputs) {
+		Processor processor = processor(workflow, name, 1, inputs);
+		for (String output : new String[] { "out", "copy" }) {
+			OutputProcessorPort port = new OutputProcessorPort(processor,
+					output);
+			port.setDepth(1);
+			port.setGranularDepth(1);
+		}
+		Activity activity = bind(processor, NESTED_WORKFLOW_URI);
+		configure(activity, NESTED_WORKFLOW_URI, activity.getName()).put(
+				"nestedWorkflow", nestedWorkflow.getName());
+		return processor;
+	}
+
+	private Processor processor(Workflow workflow, String name, int depth,
+			String... inputs) {
+		Processor processor = new Processor(workflow, name);
+		CrossProduct crossProduct = new CrossProduct();
+		crossProduct.setParent(processor.getIterationStrategyStack());
+		List<String> names = new ArrayList<>();
+		names.add("in");
+		names.addAll(Arrays.asList(inputs));
+		for (String input : names) {
+			InputProcessorPort port = new InputProcessorPort(processor, input);
+			port.setDepth(depth);
+			new PortNode(crossProduct, port);
+		}
+		return processor;
+	}
+
+	/**
+	 * Bind the processor to an activity with the same ports.
+	 */
+	private Activity bind(Processor processor, URI type) {
+		Activity activity = new Activity(processor.getParent().getName() + "_"
+				+ processor.getName());
+		activity.setType(type);
+		activity.setParent(profile);
+		ProcessorBinding binding = new ProcessorBinding();
+		binding.setName(activity.getName());
+		binding.setParent(profile);
+		binding.setBoundProcessor(processor);
+		binding.setBoundActivity(activity);
+		for (InputProcessorPort port : processor.getInputPorts()) {
+			InputActivityPort activityPort = new InputActivityPort(activity,
+					port.getName());
+			activityPort.setDepth(port.getDepth());
+			new ProcessorInputPortBinding(binding, port, activityPort);
+		}
+		for (OutputProcessorPort port : processor.getOutputPorts()) {
+			OutputActivityPort activityPort = new OutputActivityPort(activity,
+					port.getName());
+			activityPort.setDepth(port.getDepth());
+			activityPort.setGranularDepth(port.getGranularDepth());
+			new ProcessorOutputPortBinding(binding, activityPort, port);
+		}
+		return activity;
+	}
+
+	private ObjectNode configure(Configurable configurable, URI type,
+			String name) {
+		Configuration configuration = new Configuration(name);
+		configuration.setType(type);
+		configuration.setConfigures(configurable);
+		configuration.setParent(profile);
+		return configuration.getJsonAsObjectNode();
+	}
+
+	private Bundle dataBundle(String... values) throws Exception {
+		Bundle dataBundle = DataBundles.createBundle();
+		Path port = DataBundles.getPort(DataBundles.getInputs(dataBundle),
+				"in");
+		DataBundles.createList(port);
+		for (String value : values)
+			DataBundles.setStringValue(DataBundles.newListItem(port), value);
+		return dataBundle;
+	}
+
+	private List<String> outputs(LocalExecution execution, String name)
+			throws Exception {
+		List<String> values = new ArrayList<>();
+		for (Path item : DataBundles.getList(DataBundles.getPort(
+				DataBundles.getOutputs(execution.getDataBundle()), name)))
+			values.add(DataBundles.getStringValue(item));
+		return values;
+	}
+
+	/**
+	 * Return true if the output is an error or a list holding only errors.
+	 */
+	private boolean isError(LocalExecution execution, String name)
+			throws Exception {
+		return isError(DataBundles.getPort(
+				DataBundles.getOutputs(execution.getDataBundle()), name));
+	}
+
+	private boolean isError(Path path) throws Exception {
+		if (DataBundles.isError(path))
+			return true;
+		if (!DataBundles.isList(path))
+			return false;
+		for (Path item : DataBundles.getList(path))
+			if (!isError(item))
+				return false;
+		return true;
+	}
+
+	private void waitForCompletion(WorkflowReport report)
+			throws InterruptedException {
+		for (int wait = 0; report.getState() != State.COMPLETED
+				&& wait < 100; wait++)
+			Thread.sleep(100);
+		assertEquals(State.COMPLETED, report.getState());
+	}
+
+	/**
+	 * Appends the configured suffix to the value of its input, or fails if
+	 * configured to.
+	 */
+	public static class AppendActivity extends
+			AbstractAsynchronousActivity<JsonNode> {
+		private JsonNode json;
+
+		@Override
+		public void configure(JsonNode json)
+				throws ActivityConfigurationException {
+			this.json = json;
+		}
+
+		@Override
+		public JsonNode getConfiguration() {
+			return json;
+		}
+
+		@Override
+		public void executeAsynch(final Map<String, T2Reference> data,
+				final AsynchronousActivityCallback callback) {
+			callback.requestRun(new Runnable() {
+				@Override
+				public void run() {
+					if (json.has("fail")) {
+						callback.fail("Failed as configured");
+						return;
+					}
+					ReferenceService referenceService = callback.getContext()
+							.getReferenceService();
+					String value = (String) referenceService.renderIdentifier(
+							data.get("in"), String.class,
+							callback.getContext());
+					Map<String, T2Reference> outputs = new HashMap<>();
+					outputs.put("out", referenceService.register(value
+							+ json.get("suffix").asText(), 0, true,
+							callback.getContext()));
+					callback.receiveResult(outputs, new int[0]);
+				}
+			});
+		}
+	}
+
+	private static class TestActivityService implements ActivityService {
+		private final Edits edits;
+
+		public TestActivityService(Edits edits) {
+			this.edits = edits;
+		}
+
+		@Override
+		public Set<URI> getActivityTypes() {
+			return null;
+		}
+
+		@Override
+		public boolean activityExists(URI activityType) {
+			return activityType.equals(APPEND_URI)
+					|| activityType.equals(NESTED_WORKFLOW_URI);
+		}
+
+		@Override
+		public JsonNode getActivityConfigurationSchema(URI activityType) {
+			return null;
+		}
+
+		@Override
+		public Set<InputActivityPort> getActivityInputPorts(URI activityType,
+				JsonNode configuration) {
+			return null;
+		}
+
+		@Override
+		public Set<OutputActivityPort> getActivityOutputPorts(
+				URI activityType, JsonNode configuration) {
+			return null;
+		}
+
+		@Override
+		public org.apache.taverna.workflowmodel.processor.activity.Activity<?> createActivity(
+				URI activityType, JsonNode configuration)
+				throws org.apache.taverna.platform.capability.api.ActivityConfigurationException {
+			AbstractAsynchronousActivity<JsonNode> activity;
+			if (activityType.equals(NESTED_WORKFLOW_URI)) {
+				DataflowActivity dataflowActivity = new DataflowActivity();
+				dataflowActivity.setEdits(edits);
+				activity = dataflowActivity;
+			} else
+				activity = new AppendActivity();
+			try {
+				activity.configure(configuration);
+			} catch (ActivityConfigurationException e) {
+				throw new org.apache.taverna.platform.capability.api.ActivityConfigurationException(
+						e);
+			}
+			return activity;
+		}
+	}
+
+	private static class TestDispatchLayerService implements
+			DispatchLayerService {
+		private final CoreDispatchLayerFactory factory = new CoreDispatchLayerFactory();
+
+		@Override
+		public Set<URI> getDispatchLayerTypes() {
+			return factory.getDispatchLayerTypes();
+		}
+
+		@Override
+		public boolean dispatchLayerExists(URI dispatchLayerType) {
+			return getDispatchLayerTypes().contains(dispatchLayerType);
+		}
+
+		@Override
+		public JsonNode getDispatchLayerConfigurationSchema(
+				URI dispatchLayerType) {
+			return null;
+		}
+
+		@Override
+		public DispatchLayer<?> createDispatchLayer(URI uri,
+				JsonNode configuration) throws DispatchLayerNotFoundException,
+				DispatchLayerConfigurationException {
+			@SuppressWarnings("unchecked")
+			DispatchLayer<JsonNode> dispatchLayer = (DispatchLayer<JsonNode>) factory
+					.createDispatchLayer(uri);
+			if (dispatchLayer == null)
+				throw new DispatchLayerNotFoundException(
+						"No dispatch layer for " + uri);
+			try {
+				if (configuration != null)
+					dispatchLayer.configure(configuration);
+			} catch (ConfigurationException e) {
+				throw new DispatchLayerConfigurationException(e);
+			}
+			return dispatchLayer;
+		}
+	}
+}
@@ -67,6 +67,27 @@ public interface ListService {
 	IdentifiedList<T2Reference> registerList(List<T2Reference> items,
 			ReferenceContext context) throws ListServiceException;
 
+	/**
+	 * Register several lists of T2References at once, as if by calling
+	 * {@link #registerList(List, ReferenceContext) registerList} for each of
+	 * them in turn but within a single transaction, so that collections with
+	 * many sub-lists can be registered without a round trip to the backing
+	 * store per list.
+	 * 
+	 * @param lists
+	 *            the lists of T2Reference instances to store, none of which
+	 *            may be empty
+	 * @return the new IdentifiedLists, in the same order as the lists given
+	 * @throws ListServiceException
+	 *             if there is a problem with any of the specified lists or
+	 *             with the storage subsystem, in which case none of the lists
+	 *             are registered.
+	 */
+	@Transactional(propagation = REQUIRED, readOnly = false)
+	List<IdentifiedList<T2Reference>> registerLists(
+			List<List<T2Reference>> lists, ReferenceContext context)
+			throws ListServiceException;
+
 	/**
 	 * Register a new empty list with the specified depth. This is needed
 	 * because in the case of empty lists we can't calculate the depth from the
@@ -30,14 +30,44 @@ import org.apache.taverna.reference.T2Reference;
 public class ContextualizedT2ReferenceImpl implements ContextualizedT2Reference {
 	private T2Reference reference;
 	private int[] index;
+	/** Enclosing list item, until the index has been built */
+	private ContextualizedT2ReferenceImpl parent;
+	private int position;
+	private int indexLength;
 
 	public ContextualizedT2ReferenceImpl(T2Reference ref, int[] context) {
 		this.reference = ref;
 		this.index = context;
+		this.indexLength = context.length;
+	}
+
+	/**
+	 * Reference to the item at the given position in the list referenced by
+	 * the parent. The index is only built when asked for, so that traversing
+	 * nested lists doesn't copy the index of every intermediate list.
+	 */
+	ContextualizedT2ReferenceImpl(T2Reference ref,
+			ContextualizedT2ReferenceImpl parent, int position) {
+		this.reference = ref;
+		this.parent = parent;
+		this.position = position;
+		this.indexLength = parent.indexLength + 1;
 	}
 
 	@Override
-	public int[] getIndex() {
+	public synchronized int[] getIndex() {
+		if (index == null) {
+			int[] newIndex = new int[indexLength];
+			ContextualizedT2ReferenceImpl item = this;
+			int i = indexLength;
+			while (item.index == null) {
+				newIndex[--i] = item.position;
+				item = item.parent;
+			}
+			System.arraycopy(item.index, 0, newIndex, 0, i);
+			index = newIndex;
+			parent = null;
+		}
 		return this.index;
 	}
 
@@ -50,7 +80,7 @@ public class ContextualizedT2ReferenceImpl implements ContextualizedT2Reference
 	public String toString() {
 		StringBuilder sb = new StringBuilder("[");
 		String sep = "";
-		for (int idx : index) {
+		for (int idx : getIndex()) {
 			sb.append(sep).append(idx);
 			sep = ",";
 		}
@@ -21,6 +21,7 @@ package org.apache.taverna.reference.impl;
 
 import static org.apache.taverna.reference.impl.T2ReferenceImpl.getAsImpl;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.taverna.reference.DaoException;
@@ -75,6 +76,41 @@ public class ListServiceImpl extends AbstractListServiceImpl implements
 			ReferenceContext context) throws ListServiceException {
 		checkDao();
 		checkGenerator();
+		T2ReferenceListImpl newList = newList(items, context);
+		try {
+			listDao.store(newList);
+			return newList;
+		} catch (Throwable t) {
+			throw new ListServiceException(t);
+		}
+	}
+
+	@Override
+	public List<IdentifiedList<T2Reference>> registerLists(
+			List<List<T2Reference>> lists, ReferenceContext context)
+			throws ListServiceException {
+		checkDao();
+		checkGenerator();
+		// Check all the lists before storing any of them
+		List<IdentifiedList<T2Reference>> newLists = new ArrayList<>(
+				lists.size());
+		for (List<T2Reference> items : lists)
+			newLists.add(newList(items, context));
+		try {
+			for (IdentifiedList<T2Reference> newList : newLists)
+				listDao.store(newList);
+			return newLists;
+		} catch (Throwable t) {
+			throw new ListServiceException(t);
+		}
+	}
+
+	/**
+	 * Check the items and create a named list holding them, without storing
+	 * it.
+	 */
+	private T2ReferenceListImpl newList(List<T2Reference> items,
+			ReferenceContext context) throws ListServiceException {
 		if (items.isEmpty())
 			throw new ListServiceException(
 					"Can't register an empty list with this method,"
@@ -109,7 +145,6 @@ public class ListServiceImpl extends AbstractListServiceImpl implements
 			T2ReferenceImpl newReference = getAsImpl(t2ReferenceGenerator
 					.nextListReference(containsErrors, depth + 1, context));
 			newList.setTypedId(newReference);
-			listDao.store(newList);
 			return newList;
 		} catch (Throwable t) {
 			throw new ListServiceException(t);
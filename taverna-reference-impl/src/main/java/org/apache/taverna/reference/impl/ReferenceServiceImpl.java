@@ -565,7 +565,8 @@ public class ReferenceServiceImpl extends AbstractReferenceServiceImpl
 		int currentDepth = source.getDepth();
 		while (currentDepth > desiredDepth) {
 			List<ContextualizedT2Reference> newSet = new ArrayList<>();
-			for (ContextualizedT2Reference ci : workingSet) {
+			for (ContextualizedT2Reference item : workingSet) {
+				ContextualizedT2ReferenceImpl ci = (ContextualizedT2ReferenceImpl) item;
 				T2ReferenceImpl ref = (T2ReferenceImpl) ci.getReference();
 				switch (ref.getReferenceType()) {
 				case IdentifiedList:
@@ -573,7 +574,7 @@ public class ReferenceServiceImpl extends AbstractReferenceServiceImpl
 						int position = 0;
 						for (T2Reference child : getListService().getList(ref))
 							newSet.add(new ContextualizedT2ReferenceImpl(child,
-									addIndex(ci.getIndex(), position++)));
+									ci, position++));
 					} catch (ListServiceException lse) {
 						throw new ReferenceServiceException(lse);
 					}
@@ -583,8 +584,7 @@ public class ReferenceServiceImpl extends AbstractReferenceServiceImpl
 							"Should never be trying to drill inside a data document identifier");
 				case ErrorDocument:
 					newSet.add(new ContextualizedT2ReferenceImpl(ref
-							.getDeeperErrorReference(), addIndex(ci.getIndex(),
-							0)));
+							.getDeeperErrorReference(), ci, 0));
 					break;
 				default:
 					throw new ReferenceServiceException(
@@ -597,22 +597,6 @@ public class ReferenceServiceImpl extends AbstractReferenceServiceImpl
 		return workingSet.iterator();
 	}
 
-	/**
-	 * Append to an int[]
-	 * 
-	 * @param current
-	 *            current int[]
-	 * @param head
-	 *            new int item to append to the current array
-	 * @return new array of int with the head added
-	 */
-	private static int[] addIndex(int[] current, int head) {
-		int[] result = new int[current.length + 1];
-		System.arraycopy(current, 0, result, 0, current.length);
-		result[current.length] = head;
-		return result;
-	}
-
 	/**
 	 * Parse the reference contained in the string and return a
 	 * {@link T2Reference} with the correct properties
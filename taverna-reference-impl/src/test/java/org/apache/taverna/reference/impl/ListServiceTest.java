@@ -19,16 +19,19 @@
 
 package org.apache.taverna.reference.impl;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.taverna.reference.IdentifiedList;
 import org.apache.taverna.reference.ListDao;
+import org.apache.taverna.reference.ListServiceException;
 import org.apache.taverna.reference.T2Reference;
 import org.apache.taverna.reference.WorkflowRunIdEntity;
 
@@ -69,6 +72,36 @@ public class ListServiceTest {
 		}
 	}
 	
+	@Test
+	public void testRegisterLists() throws Exception {
+		ReferenceContextImpl invocationContext = new ReferenceContextImpl();
+		invocationContext.addEntity(new WorkflowRunIdEntity("wfRunListsTest"));
+		for (ListServiceImpl service : serviceList){
+			T2Reference item1 = service.registerEmptyList(1, invocationContext).getId();
+			T2Reference item2 = service.registerEmptyList(1, invocationContext).getId();
+			List<List<T2Reference>> lists = new ArrayList<List<T2Reference>>();
+			lists.add(Arrays.asList(item1, item2));
+			lists.add(Arrays.asList(item2));
+			List<IdentifiedList<T2Reference>> registered = service.registerLists(lists, invocationContext);
+			assertEquals(2, registered.size());
+			for (int i = 0; i < lists.size(); i++) {
+				IdentifiedList<T2Reference> list = service.getList(registered.get(i).getId());
+				assertNotNull(list);
+				assertEquals(2, list.getId().getDepth());
+				assertEquals(lists.get(i), new ArrayList<T2Reference>(list));
+			}
+		}
+	}
+
+	@Test(expected = ListServiceException.class)
+	public void testRegisterListsRejectsEmptyList() throws Exception {
+		ReferenceContextImpl invocationContext = new ReferenceContextImpl();
+		invocationContext.addEntity(new WorkflowRunIdEntity("wfRunListsTest"));
+		List<List<T2Reference>> lists = new ArrayList<List<T2Reference>>();
+		lists.add(new ArrayList<T2Reference>());
+		serviceList.get(0).registerLists(lists, invocationContext);
+	}
+
 	@Test
 	public void testDeleteIdentifiedListsForWFRun() throws Exception {
 
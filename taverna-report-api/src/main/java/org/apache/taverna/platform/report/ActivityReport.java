@@ -28,6 +28,8 @@ import org.apache.taverna.scufl2.api.activity.Activity;
  */
 public class ActivityReport extends StatusReport<Activity, ProcessorReport> {
 	private WorkflowReport nestedWorkflowReport;
+	private int cacheHits;
+	private int cacheMisses;
 
 	/**
 	 * Constructs a new <code>ActivityReport</code>.
@@ -45,4 +47,32 @@ public class ActivityReport extends StatusReport<Activity, ProcessorReport> {
 	public void setNestedWorkflowReport(WorkflowReport nestedWorkflowReport) {
 		this.nestedWorkflowReport = nestedWorkflowReport;
 	}
+
+	/**
+	 * Returns the number of invocations answered from the result cache
+	 * instead of invoking the activity.
+	 *
+	 * @return the number of invocations answered from the result cache
+	 */
+	public int getCacheHits() {
+		return cacheHits;
+	}
+
+	public void setCacheHits(int cacheHits) {
+		this.cacheHits = cacheHits;
+	}
+
+	/**
+	 * Returns the number of invocations looked up in the result cache but not
+	 * found there.
+	 *
+	 * @return the number of invocations not found in the result cache
+	 */
+	public int getCacheMisses() {
+		return cacheMisses;
+	}
+
+	public void setCacheMisses(int cacheMisses) {
+		this.cacheMisses = cacheMisses;
+	}
 }
@@ -199,6 +199,8 @@ public class WorkflowReportJSON {
 		actReport.setParentReport(procReport);
 
 		parseDates(actJson, actReport);
+		actReport.setCacheHits(actJson.path("cacheHits").asInt());
+		actReport.setCacheMisses(actJson.path("cacheMisses").asInt());
 
 		for (JsonNode invocJson : actJson.path("invocations"))
 			parseInvocation(invocJson, workflowReportJson, actReport);
@@ -96,6 +96,17 @@ public interface WorkflowInstanceFacade {
 	 * Push a data token into the specified port. If the token is part of a
 	 * stream the index contains the index of this particular token. If not the
 	 * index should be the empty integer array.
+	 * <p>
+	 * This method doesn't block on a processor fed by the port with a bounded
+	 * dispatch queue, see
+	 * {@link org.apache.taverna.workflowmodel.processor.dispatch.DispatchStack#setQueueWatermarks(int, int)
+	 * DispatchStack.setQueueWatermarks()}. The items of a list are held back
+	 * by the input port of the processor while its queue is full. A client
+	 * streaming items into the workflow checks {@link #hasRoom(String)} before
+	 * pushing each and otherwise registers with
+	 * {@link #resumeWhenRoom(String, Runnable)}, items pushed regardless are
+	 * held back by the input ports of the processors, up to a limit past
+	 * which this method fails.
 	 * 
 	 * @param token
 	 *            A WorkflowDataToken containing the data to be pushed to the
@@ -110,6 +121,30 @@ public interface WorkflowInstanceFacade {
 	void pushData(WorkflowDataToken token, String portName)
 			throws TokenOrderException;
 
+	/**
+	 * Return true if the processors fed by the named input port have room for
+	 * more data, that is their bounded dispatch queues are below the high
+	 * watermark and no items are held back for them. Always true where the
+	 * queues are unbounded.
+	 * 
+	 * @param portName
+	 *            name of the workflow input port
+	 */
+	boolean hasRoom(String portName);
+
+	/**
+	 * Run <code>resume</code> once the processors fed by the named input port
+	 * have room for more data, straight away if they have room already. It is
+	 * run once, by the {@link org.apache.taverna.invocation.InvocationExecutor
+	 * InvocationExecutor} rather than by the calling thread, and is dropped if
+	 * the run is cancelled first. The client should check
+	 * {@link #hasRoom(String)} again when resumed.
+	 * 
+	 * @param portName
+	 *            name of the workflow input port
+	 */
+	void resumeWhenRoom(String portName, Runnable resume);
+
 	/**
 	 * Where a workflow has no inputs this method will cause it to start
 	 * processing. Any processors within the workflow with no inputs are fired.
@@ -46,6 +46,15 @@ public class Completion extends IterationInternalEvent<Completion> {
 		super(owningProcess, completionIndex, context);
 	}
 
+	/**
+	 * As above, with the owning process and index given as a
+	 * {@link ProcessIdentifier} and an {@link IterationIndex}
+	 */
+	public Completion(ProcessIdentifier owningProcess,
+			IterationIndex completionIndex, InvocationContext context) {
+		super(owningProcess, completionIndex, context);
+	}
+
 	/**
 	 * Construct a new final completion event, equivalent to calling new
 	 * Completion(owningProcess, new int[0]);
@@ -59,12 +68,12 @@ public class Completion extends IterationInternalEvent<Completion> {
 	@Override
 	public String toString() {
 		StringBuffer sb = new StringBuffer();
-		sb.append("Cmp(" + owner + ")[");
-		for (int i = 0; i < index.length; i++) {
+		sb.append("Cmp(" + getOwningProcess() + ")[");
+		for (int i = 0; i < index.length(); i++) {
 			if (i > 0) {
 				sb.append(",");
 			}
-			sb.append(index[i] + "");
+			sb.append(index.get(i) + "");
 		}
 		sb.append("]");
 		return sb.toString();
@@ -79,7 +88,8 @@ public class Completion extends IterationInternalEvent<Completion> {
 	 */
 	@Override
 	public Completion pushIndex() {
-		return new Completion(getPushedOwningProcess(), new int[] {}, context);
+		return new Completion(getPushedOwningProcessIdentifier(), IterationIndex.EMPTY,
+				context);
 	}
 
 	/**
@@ -88,19 +98,19 @@ public class Completion extends IterationInternalEvent<Completion> {
 	 */
 	@Override
 	public Completion popIndex() {
-		return new Completion(owner.substring(0, owner.lastIndexOf(':')),
-				getPoppedIndex(), context);
+		return new Completion(getPoppedOwningProcessIdentifier(), getPoppedIndex(),
+				context);
 	}
 
 	@Override
 	public Completion popOwningProcess() throws ProcessIdentifierException {
-		return new Completion(popOwner(), index, context);
+		return new Completion(popOwnerIdentifier(), index, context);
 	}
 
 	@Override
 	public Completion pushOwningProcess(String localProcessName)
 			throws ProcessIdentifierException {
-		return new Completion(pushOwner(localProcessName), index, context);
+		return new Completion(pushOwnerIdentifier(localProcessName), index, context);
 	}
 
 }
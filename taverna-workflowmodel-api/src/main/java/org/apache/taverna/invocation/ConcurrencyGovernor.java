@@ -0,0 +1,347 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.invocation;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Engine wide limit on the number of activity invocations in flight, across
+ * all the processors of a workflow run and across the workflow runs sharing
+ * the JVM.
+ * <p>
+ * Every invocation needs a permit, which counts against:
+ * <ul>
+ * <li>the total number of invocations, at most
+ * <code>taverna.governor.maxInvocations</code></li>
+ * <li>the invocations of its workflow run, at most
+ * <code>taverna.governor.maxInvocationsPerRun</code></li>
+ * <li>optionally the invocations of its activity type, at most the limit given
+ * when asking for the permit</li>
+ * </ul>
+ * A limit of 0 means no limit, which is the default for all of them.
+ * <p>
+ * Permits are handed out without blocking: a request that can't be granted
+ * straight away is queued and its callback is handed to the
+ * {@link InvocationExecutor} once it can be, rather than run on the thread
+ * releasing a permit. Queued requests are granted in turn between the
+ * workflow runs waiting, oldest first within a run, so that a run with a large
+ * backlog does not starve smaller runs.
+ */
+public class ConcurrencyGovernor {
+	public static final String MAX_INVOCATIONS_PROPERTY = "taverna.governor.maxInvocations";
+	public static final String MAX_INVOCATIONS_PER_RUN_PROPERTY = "taverna.governor.maxInvocationsPerRun";
+
+	private static Logger logger = Logger.getLogger(ConcurrencyGovernor.class);
+	private static ConcurrencyGovernor instance;
+	private static final UncaughtExceptionHandler grantFailureHandler = new UncaughtExceptionHandler() {
+		@Override
+		public void uncaughtException(Thread t, Throwable e) {
+			logger.error("Could not start invocation after permit was granted", e);
+		}
+	};
+
+	/**
+	 * Get the ConcurrencyGovernor singleton instance, creating it from the
+	 * system properties on first access.
+	 *
+	 * @return The ConcurrencyGovernor singleton
+	 */
+	public synchronized static ConcurrencyGovernor getInstance() {
+		if (instance == null)
+			setInstance(new ConcurrencyGovernor(Integer.getInteger(
+					MAX_INVOCATIONS_PROPERTY, 0), Integer.getInteger(
+					MAX_INVOCATIONS_PER_RUN_PROPERTY, 0)));
+		return instance;
+	}
+
+	/**
+	 * Set the ConcurrencyGovernor singleton instance. Only to be used by the
+	 * platform at initialisation time.
+	 *
+	 * @param instance
+	 *            ConcurrencyGovernor singleton to be returned by
+	 *            {@link #getInstance()}.
+	 */
+	public synchronized static void setInstance(ConcurrencyGovernor instance) {
+		ConcurrencyGovernor.instance = instance;
+	}
+
+	private final Map<String, RunPermits> runs = new HashMap<>();
+	private final Map<String, ActivityPermits> activities = new HashMap<>();
+	/** Runs with queued requests, in the order they get their next turn */
+	private final ArrayDeque<RunPermits> waitingRuns = new ArrayDeque<>();
+	private int maxInvocations;
+	private int maxInvocationsPerRun;
+	private int inFlight = 0;
+	private int waiting = 0;
+	private final Executor grantExecutor;
+
+	/**
+	 * @param maxInvocations
+	 *            maximum number of invocations in flight, or 0 for no limit
+	 * @param maxInvocationsPerRun
+	 *            maximum number of invocations in flight in any one workflow
+	 *            run, or 0 for no limit
+	 */
+	public ConcurrencyGovernor(int maxInvocations, int maxInvocationsPerRun) {
+		this(maxInvocations, maxInvocationsPerRun, null);
+	}
+
+	/**
+	 * @param maxInvocations
+	 *            maximum number of invocations in flight, or 0 for no limit
+	 * @param maxInvocationsPerRun
+	 *            maximum number of invocations in flight in any one workflow
+	 *            run, or 0 for no limit
+	 * @param grantExecutor
+	 *            runs the callbacks of queued requests once granted, or
+	 *            <code>null</code> for the {@link InvocationExecutor}
+	 */
+	public ConcurrencyGovernor(int maxInvocations, int maxInvocationsPerRun,
+			Executor grantExecutor) {
+		this.grantExecutor = grantExecutor;
+		setLimits(maxInvocations, maxInvocationsPerRun);
+	}
+
+	/**
+	 * Change the limits, requests queued under the previous limits are granted
+	 * if the new limits allow.
+	 */
+	public void setLimits(int maxInvocations, int maxInvocationsPerRun) {
+		if (maxInvocations < 0 || maxInvocationsPerRun < 0)
+			throw new IllegalArgumentException("Negative invocation limit");
+		List<Runnable> granted;
+		synchronized (this) {
+			this.maxInvocations = maxInvocations;
+			this.maxInvocationsPerRun = maxInvocationsPerRun;
+			granted = grantWaiting();
+		}
+		run(granted);
+	}
+
+	public synchronized int getMaxInvocations() {
+		return maxInvocations;
+	}
+
+	public synchronized int getMaxInvocationsPerRun() {
+		return maxInvocationsPerRun;
+	}
+
+	/**
+	 * Ask for a permit to invoke an activity.
+	 *
+	 * @param workflowRunId
+	 *            the workflow run the invocation is part of
+	 * @param activityType
+	 *            the type of the activity, or <code>null</code> if the
+	 *            invocation is not limited per activity type
+	 * @param activityLimit
+	 *            maximum number of invocations in flight for the activity
+	 *            type, or 0 for no limit. The limit of an activity type is
+	 *            the one given when it was first asked for; asking with
+	 *            another limit logs a warning and keeps it.
+	 * @param granted
+	 *            called once the permit has been granted, either on the
+	 *            calling thread before this method returns or later by the
+	 *            {@link InvocationExecutor}
+	 */
+	public void acquire(String workflowRunId, String activityType,
+			int activityLimit, Runnable granted) {
+		boolean grantNow;
+		synchronized (this) {
+			RunPermits run = runs.get(workflowRunId);
+			if (run == null) {
+				run = new RunPermits();
+				runs.put(workflowRunId, run);
+			}
+			ActivityPermits activity = null;
+			if (activityType != null) {
+				activity = activities.get(activityType);
+				if (activity == null) {
+					activity = new ActivityPermits(activityLimit);
+					activities.put(activityType, activity);
+				} else if (activity.limit != activityLimit)
+					logger.warn("Activity type " + activityType
+							+ " keeps its limit " + activity.limit
+							+ " rather than " + activityLimit);
+			}
+			Request request = new Request(run, activity, granted);
+			grantNow = run.queue.isEmpty() && canGrant(request);
+			if (grantNow)
+				take(request);
+			else {
+				if (run.queue.isEmpty())
+					waitingRuns.add(run);
+				run.queue.add(request);
+				waiting++;
+			}
+		}
+		if (grantNow)
+			granted.run();
+	}
+
+	/**
+	 * Give back a permit granted by {@link #acquire(String, String, int, Runnable)
+	 * acquire()} with the same workflow run and activity type, granting queued
+	 * requests if possible.
+	 */
+	public void release(String workflowRunId, String activityType) {
+		List<Runnable> granted;
+		synchronized (this) {
+			RunPermits run = runs.get(workflowRunId);
+			if (run == null || run.inFlight == 0) {
+				logger.warn("No permit to release for workflow run "
+						+ workflowRunId);
+				return;
+			}
+			run.inFlight--;
+			inFlight--;
+			if (activityType != null) {
+				ActivityPermits activity = activities.get(activityType);
+				if (activity != null)
+					activity.inFlight--;
+			}
+			if (run.inFlight == 0 && run.queue.isEmpty())
+				runs.remove(workflowRunId);
+			granted = grantWaiting();
+		}
+		run(granted);
+	}
+
+	/**
+	 * Return the number of permits currently granted.
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Return the number of permits currently granted to a workflow run.
+	 */
+	public synchronized int getInFlight(String workflowRunId) {
+		RunPermits run = runs.get(workflowRunId);
+		return run == null ? 0 : run.inFlight;
+	}
+
+	/**
+	 * Return the number of requests waiting for a permit.
+	 */
+	public synchronized int getWaiting() {
+		return waiting;
+	}
+
+	private boolean canGrant(Request request) {
+		if (maxInvocations > 0 && inFlight >= maxInvocations)
+			return false;
+		if (maxInvocationsPerRun > 0
+				&& request.run.inFlight >= maxInvocationsPerRun)
+			return false;
+		ActivityPermits activity = request.activity;
+		return activity == null || activity.limit <= 0
+				|| activity.inFlight < activity.limit;
+	}
+
+	private void take(Request request) {
+		inFlight++;
+		request.run.inFlight++;
+		if (request.activity != null)
+			request.activity.inFlight++;
+	}
+
+	/**
+	 * Grant queued requests in turn between the waiting runs, until a full
+	 * round grants nothing. Must be called holding the lock, the returned
+	 * callbacks must be run after releasing it.
+	 */
+	private List<Runnable> grantWaiting() {
+		List<Runnable> granted = new ArrayList<>();
+		int unsuccessful = 0;
+		while (!waitingRuns.isEmpty() && unsuccessful < waitingRuns.size()) {
+			if (maxInvocations > 0 && inFlight >= maxInvocations)
+				break;
+			RunPermits run = waitingRuns.poll();
+			Request request = run.queue.peek();
+			if (canGrant(request)) {
+				run.queue.poll();
+				waiting--;
+				take(request);
+				granted.add(request.granted);
+				unsuccessful = 0;
+			} else
+				unsuccessful++;
+			if (!run.queue.isEmpty())
+				waitingRuns.add(run);
+		}
+		return granted;
+	}
+
+	/**
+	 * Hand the callbacks of granted requests to the executor, so that they
+	 * neither run on nor recurse through the thread releasing a permit
+	 */
+	private void run(List<Runnable> granted) {
+		for (Runnable runnable : granted)
+			try {
+				if (grantExecutor != null)
+					grantExecutor.execute(runnable);
+				else
+					InvocationExecutor.getInstance().execute(runnable, null,
+							grantFailureHandler);
+			} catch (RuntimeException e) {
+				logger.error("Could not start invocation after permit was granted", e);
+			}
+	}
+
+
+	private static class RunPermits {
+		private final ArrayDeque<Request> queue = new ArrayDeque<>();
+		private int inFlight = 0;
+	}
+
+	private static class ActivityPermits {
+		private final int limit;
+		private int inFlight = 0;
+
+		private ActivityPermits(int limit) {
+			this.limit = limit;
+		}
+	}
+
+	private static class Request {
+		private final RunPermits run;
+		private final ActivityPermits activity;
+		private final Runnable granted;
+
+		private Request(RunPermits run, ActivityPermits activity,
+				Runnable granted) {
+			this.run = run;
+			this.activity = activity;
+			this.granted = granted;
+		}
+	}
+}
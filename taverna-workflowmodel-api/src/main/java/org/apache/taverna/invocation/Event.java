@@ -30,12 +30,33 @@ package org.apache.taverna.invocation;
  * @author Tom Oinn
  */
 public abstract class Event<EventType extends Event<?>> {
+	/**
+	 * The String form of the owning process.
+	 * 
+	 * @deprecated read it with {@link #getOwningProcess()}, or use
+	 *             {@link #getOwningProcessIdentifier()} to push onto or pop
+	 *             the owning process
+	 */
+	@Deprecated
 	protected String owner;
+	private final ProcessIdentifier owningProcess;
 	protected InvocationContext context;
-	protected int[] index;
+	protected IterationIndex index;
 
 	protected Event(String owner, int[] index, InvocationContext context) {
+		this(owner, owner == null ? null : ProcessIdentifier.valueOf(owner),
+				index == null ? null : IterationIndex.valueOf(index), context);
+	}
+
+	protected Event(ProcessIdentifier owner, IterationIndex index,
+			InvocationContext context) {
+		this(owner == null ? null : owner.toString(), owner, index, context);
+	}
+
+	private Event(String owner, ProcessIdentifier owningProcess,
+			IterationIndex index, InvocationContext context) {
 		this.owner = owner;
+		this.owningProcess = owningProcess;
 		this.index = index;
 		this.context = context;
 		if (index == null)
@@ -52,7 +73,7 @@ public abstract class Event<EventType extends Event<?>> {
 	 * @return true if indexarray.length==0
 	 */
 	public final boolean isFinal() {
-		return (index.length == 0);
+		return (index.length() == 0);
 	}
 
 	/**
@@ -67,6 +88,16 @@ public abstract class Event<EventType extends Event<?>> {
 		return this.owner;
 	}
 
+	/**
+	 * The owning process as a {@link ProcessIdentifier}, which can be pushed
+	 * onto and popped without parsing the String form.
+	 * 
+	 * @return identifier of the process owning this event
+	 */
+	public final ProcessIdentifier getOwningProcessIdentifier() {
+		return this.owningProcess;
+	}
+
 	public final InvocationContext getContext() {
 		return this.context;
 	}
@@ -104,6 +135,14 @@ public abstract class Event<EventType extends Event<?>> {
 	 * iteration and ensure that separate jobs are kept that way
 	 */
 	public final int[] getIndex() {
+		return this.index.toArray();
+	}
+
+	/**
+	 * The index as an {@link IterationIndex}, which can be appended to without
+	 * copying.
+	 */
+	public final IterationIndex getIterationIndex() {
 		return this.index;
 	}
 
@@ -115,16 +154,20 @@ public abstract class Event<EventType extends Event<?>> {
 	 * 
 	 * @return
 	 * @throws ProcessIdentifierException
+	 * @deprecated use {@link #popOwnerIdentifier()}
 	 */
+	@Deprecated
 	protected final String popOwner() throws ProcessIdentifierException {
-		// Empty string already, can't pop from here, throw exception
-		if (owner.isEmpty())
-			throw new ProcessIdentifierException(
-					"Attempt to pop a null owning process (empty string)");
-		// A single ID with no colon in, return the empty string
-		if (owner.lastIndexOf(':') < 0)
-			return "";
-		return owner.substring(0, owner.lastIndexOf(':'));
+		return owningProcess.pop().toString();
+	}
+
+	/**
+	 * As {@link #popOwner()}, returning the parent process identifier without
+	 * going through its String form.
+	 */
+	protected final ProcessIdentifier popOwnerIdentifier()
+			throws ProcessIdentifierException {
+		return owningProcess.pop();
 	}
 
 	/**
@@ -137,17 +180,21 @@ public abstract class Event<EventType extends Event<?>> {
 	 * @param newLocalProcess
 	 * @return
 	 * @throws ProcessIdentifierException
+	 * @deprecated use {@link #pushOwnerIdentifier(String)}
 	 */
+	@Deprecated
 	protected final String pushOwner(String newLocalProcess)
 			throws ProcessIdentifierException {
-		if (newLocalProcess.contains(":"))
-			throw new ProcessIdentifierException("Can't push '"
-					+ newLocalProcess + "' as it contains a ':' character");
-		if (owner.isEmpty())
-			// If the owner was the empty string we don't need to append the
-			// colon
-			return newLocalProcess;
-		return owner + ":" + newLocalProcess;
+		return owningProcess.push(newLocalProcess).toString();
+	}
+
+	/**
+	 * As {@link #pushOwner(String)}, returning the new process identifier
+	 * without going through its String form.
+	 */
+	protected final ProcessIdentifier pushOwnerIdentifier(
+			String newLocalProcess) throws ProcessIdentifierException {
+		return owningProcess.push(newLocalProcess);
 	}
 
 	@Override
@@ -157,7 +204,7 @@ public abstract class Event<EventType extends Event<?>> {
 		sb.append(' ');
 		sb.append(owner);
 		sb.append('[');
-		for (int i : index) {
+		for (int i : getIndex()) {
 			sb.append(i);
 			sb.append(" ");
 		}
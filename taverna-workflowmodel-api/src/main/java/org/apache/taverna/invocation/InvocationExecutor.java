@@ -0,0 +1,292 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.invocation;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Engine wide executor used to run the work requested by activities through
+ * {@link org.apache.taverna.workflowmodel.processor.activity.AsynchronousActivityCallback#requestRun(Runnable)
+ * AsynchronousActivityCallback.requestRun()}.
+ * <p>
+ * On a Java runtime supporting virtual threads (Java 21 or later) each
+ * invocation runs on its own virtual thread, otherwise invocations are run by
+ * a bounded pool of platform threads, queueing when all threads are busy. The
+ * choice can be forced by setting the system property
+ * <code>taverna.invocation.executor</code> to <code>virtual</code> or
+ * <code>platform</code>, the size of the platform pool is taken from
+ * <code>taverna.invocation.maxThreads</code>.
+ * <p>
+ * Counters for submitted, active, completed and failed invocations are
+ * maintained for monitoring purposes.
+ */
+public class InvocationExecutor {
+	public static final String EXECUTOR_PROPERTY = "taverna.invocation.executor";
+	public static final String MAX_THREADS_PROPERTY = "taverna.invocation.maxThreads";
+	public static final String VIRTUAL = "virtual";
+	public static final String PLATFORM = "platform";
+	public static final int DEFAULT_MAX_THREADS = 256;
+
+	private static Logger logger = Logger.getLogger(InvocationExecutor.class);
+	private static InvocationExecutor instance;
+
+	/**
+	 * Get the InvocationExecutor singleton instance, creating it from the
+	 * system properties on first access.
+	 *
+	 * @return The InvocationExecutor singleton
+	 */
+	public synchronized static InvocationExecutor getInstance() {
+		if (instance == null)
+			setInstance(createDefault());
+		return instance;
+	}
+
+	/**
+	 * Set the InvocationExecutor singleton instance. Only to be used by the
+	 * platform at initialisation time, invocations already submitted to a
+	 * previous instance continue to run there.
+	 *
+	 * @param instance
+	 *            InvocationExecutor singleton to be returned by
+	 *            {@link #getInstance()}.
+	 */
+	public synchronized static void setInstance(InvocationExecutor instance) {
+		InvocationExecutor.instance = instance;
+	}
+
+	/**
+	 * Create an executor as configured by the {@value #EXECUTOR_PROPERTY} and
+	 * {@value #MAX_THREADS_PROPERTY} system properties.
+	 */
+	public static InvocationExecutor createDefault() {
+		String type = System.getProperty(EXECUTOR_PROPERTY, VIRTUAL);
+		if (!PLATFORM.equals(type)) {
+			ExecutorService virtualExecutor = createVirtualThreadExecutor();
+			if (virtualExecutor != null)
+				return new InvocationExecutor(virtualExecutor, true, -1);
+			logger.info("Virtual threads not available, using platform threads for invocations");
+		}
+		int maxThreads = Integer.getInteger(MAX_THREADS_PROPERTY,
+				DEFAULT_MAX_THREADS);
+		return new InvocationExecutor(createPlatformThreadExecutor(maxThreads),
+				false, maxThreads);
+	}
+
+	/**
+	 * Create an executor starting a new virtual thread for every task, or
+	 * return <code>null</code> if the Java runtime does not support virtual
+	 * threads.
+	 */
+	protected static ExecutorService createVirtualThreadExecutor() {
+		try {
+			Method factory = java.util.concurrent.Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException | UnsupportedOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Create a pool of at most <code>maxThreads</code> daemon threads, idle
+	 * threads are released after a minute.
+	 */
+	protected static ExecutorService createPlatformThreadExecutor(int maxThreads) {
+		if (maxThreads < 1)
+			throw new IllegalArgumentException("maxThreads < 1");
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads,
+				maxThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger threadCount = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Invocation thread "
+								+ threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	private final ExecutorService executor;
+	private final boolean virtualThreads;
+	private final int maxThreads;
+	private final AtomicLong submittedCount = new AtomicLong();
+	private final AtomicLong completedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicInteger activeCount = new AtomicInteger();
+
+	/**
+	 * Wrap the given executor service.
+	 *
+	 * @param executor
+	 *            the executor to run invocations on
+	 * @param virtualThreads
+	 *            true if the executor runs tasks on virtual threads
+	 * @param maxThreads
+	 *            the maximum number of threads used by the executor, or -1 if
+	 *            unbounded
+	 */
+	public InvocationExecutor(ExecutorService executor,
+			boolean virtualThreads, int maxThreads) {
+		this.executor = executor;
+		this.virtualThreads = virtualThreads;
+		this.maxThreads = maxThreads;
+	}
+
+	/**
+	 * Run the given activity logic asynchronously.
+	 *
+	 * @param runMe
+	 *            the activity logic to run
+	 * @param contextClassLoader
+	 *            the context class loader to set while running, typically the
+	 *            class loader of the activity, or <code>null</code> to leave
+	 *            it unchanged
+	 * @param exceptionHandler
+	 *            handler to be notified if <code>runMe</code> throws an
+	 *            exception, or if the invocation could not be scheduled
+	 * @return the invocation, which can be cancelled, interrupting its thread
+	 *         if it is running
+	 */
+	public Future<?> execute(final Runnable runMe,
+			final ClassLoader contextClassLoader,
+			final UncaughtExceptionHandler exceptionHandler) {
+		submittedCount.incrementAndGet();
+		// Either the task runs or its cancellation counts it as completed
+		final AtomicBoolean claimed = new AtomicBoolean();
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				if (!claimed.compareAndSet(false, true))
+					return;
+				Thread thread = Thread.currentThread();
+				ClassLoader previousClassLoader = thread
+						.getContextClassLoader();
+				if (contextClassLoader != null)
+					thread.setContextClassLoader(contextClassLoader);
+				activeCount.incrementAndGet();
+				try {
+					runMe.run();
+				} catch (Throwable t) {
+					failedCount.incrementAndGet();
+					exceptionHandler.uncaughtException(thread, t);
+				} finally {
+					activeCount.decrementAndGet();
+					completedCount.incrementAndGet();
+					thread.setContextClassLoader(previousClassLoader);
+				}
+			}
+		};
+		FutureTask<Void> invocation = new FutureTask<Void>(task, null) {
+			@Override
+			protected void done() {
+				if (isCancelled() && claimed.compareAndSet(false, true))
+					completedCount.incrementAndGet();
+			}
+		};
+		try {
+			executor.execute(invocation);
+		} catch (RejectedExecutionException e) {
+			invocation.cancel(false);
+			failedCount.incrementAndGet();
+			exceptionHandler.uncaughtException(Thread.currentThread(), e);
+		}
+		return invocation;
+	}
+
+	/**
+	 * Stop accepting new invocations, invocations already running are allowed
+	 * to finish.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Return true if invocations are run on virtual threads.
+	 */
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Return the maximum number of threads running invocations, or -1 if the
+	 * number of threads is unbounded.
+	 */
+	public int getMaxThreads() {
+		return maxThreads;
+	}
+
+	/**
+	 * Return the number of invocations submitted since creation.
+	 */
+	public long getSubmittedCount() {
+		return submittedCount.get();
+	}
+
+	/**
+	 * Return the number of invocations currently running.
+	 */
+	public int getActiveCount() {
+		return activeCount.get();
+	}
+
+	/**
+	 * Return the number of invocations submitted but not yet started.
+	 */
+	public long getQueuedCount() {
+		return submittedCount.get() - completedCount.get() - activeCount.get();
+	}
+
+	/**
+	 * Return the number of invocations which have finished, successfully or
+	 * not.
+	 */
+	public long getCompletedCount() {
+		return completedCount.get();
+	}
+
+	/**
+	 * Return the number of invocations which finished with an uncaught
+	 * exception or could not be scheduled.
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+}
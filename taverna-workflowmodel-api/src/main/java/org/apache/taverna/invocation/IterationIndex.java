@@ -0,0 +1,220 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.invocation;
+
+import java.util.Arrays;
+
+/**
+ * Iteration index of an {@link Event}, the position of its data within the
+ * nested lists being iterated over, as an immutable sequence of ints.
+ * <p>
+ * Indices are appended to each other without copying: the result links to
+ * both parts, so that the prefix shared by all the results streamed by an
+ * invocation, or by all the jobs of a cross product, is held only once. The
+ * flat <code>int[]</code> form needed by the existing APIs is built on first
+ * use and kept. The hash code, the same as {@link Arrays#hashCode(int[])} of
+ * the flat form, is computed on creation from the hash codes of the parts.
+ */
+public final class IterationIndex {
+	/** The zero length index of final events */
+	public static final IterationIndex EMPTY = new IterationIndex(new int[0]);
+
+	/**
+	 * Return the index holding the given array. The array is not copied and
+	 * must not be modified afterwards.
+	 */
+	public static IterationIndex valueOf(int... index) {
+		if (index.length == 0)
+			return EMPTY;
+		return new IterationIndex(index);
+	}
+
+	/** The two parts of an appended index, null for a flat one */
+	private final IterationIndex head;
+	private final IterationIndex tail;
+	private final int length;
+	private final int hash;
+	/** 31 to the power of length, to append without rehashing */
+	private final int power;
+	/** Flat form, given or built on first use */
+	private volatile int[] array;
+
+	private IterationIndex(int[] index) {
+		head = null;
+		tail = null;
+		length = index.length;
+		array = index;
+		hash = Arrays.hashCode(index);
+		int p = 1;
+		for (int i = 0; i < length; i++)
+			p *= 31;
+		power = p;
+	}
+
+	private IterationIndex(IterationIndex head, IterationIndex tail) {
+		this.head = head;
+		this.tail = tail;
+		length = head.length + tail.length;
+		/*
+		 * Arrays.hashCode() starts from 1 and multiplies by 31 for each
+		 * element, so appending shifts the head's hash by the tail length
+		 */
+		hash = head.hash * tail.power + tail.hash - tail.power;
+		power = head.power * tail.power;
+	}
+
+	/**
+	 * Return this index followed by the given one.
+	 */
+	public IterationIndex append(IterationIndex suffix) {
+		if (suffix.length == 0)
+			return this;
+		if (length == 0)
+			return suffix;
+		return new IterationIndex(this, suffix);
+	}
+
+	/**
+	 * Return this index followed by the given ints. The array is not copied
+	 * and must not be modified afterwards.
+	 */
+	public IterationIndex append(int... suffix) {
+		return append(valueOf(suffix));
+	}
+
+	/**
+	 * Return the number of ints in the index.
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Return the int at the given position.
+	 *
+	 * @throws IndexOutOfBoundsException
+	 *             if the position is negative or not less than the length
+	 */
+	public int get(int position) {
+		if (position < 0 || position >= length)
+			throw new IndexOutOfBoundsException("Position " + position
+					+ " of index of length " + length);
+		IterationIndex node = this;
+		while (true) {
+			int[] flat = node.array;
+			if (flat != null)
+				return flat[position];
+			if (position < node.head.length)
+				node = node.head;
+			else {
+				position -= node.head.length;
+				node = node.tail;
+			}
+		}
+	}
+
+	/**
+	 * Return the first <code>prefixLength</code> ints of the index, sharing
+	 * them with this index where possible.
+	 */
+	public IterationIndex prefix(int prefixLength) {
+		if (prefixLength < 0 || prefixLength > length)
+			throw new IndexOutOfBoundsException("Prefix of length "
+					+ prefixLength + " of index of length " + length);
+		if (prefixLength == 0)
+			return EMPTY;
+		IterationIndex node = this;
+		while (node.length > prefixLength && node.head != null
+				&& node.head.length >= prefixLength)
+			node = node.head;
+		if (node.length == prefixLength)
+			return node;
+		return new IterationIndex(Arrays.copyOf(node.toArray(), prefixLength));
+	}
+
+	/**
+	 * Return true if this index starts with the given one.
+	 */
+	public boolean startsWith(IterationIndex prefix) {
+		if (prefix.length > length)
+			return false;
+		if (prefix.length == 0)
+			return true;
+		IterationIndex node = this;
+		while (node.length > prefix.length && node.head != null
+				&& node.head.length >= prefix.length)
+			node = node.head;
+		if (node == prefix)
+			return true;
+		if (node.length == prefix.length)
+			return node.equals(prefix);
+		int[] flat = node.toArray();
+		int[] prefixFlat = prefix.toArray();
+		for (int i = 0; i < prefixFlat.length; i++)
+			if (flat[i] != prefixFlat[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Return the index as an <code>int[]</code>, which is shared and must not
+	 * be modified.
+	 */
+	public int[] toArray() {
+		int[] flat = array;
+		if (flat == null) {
+			flat = new int[length];
+			copyTo(flat, 0);
+			array = flat;
+		}
+		return flat;
+	}
+
+	private void copyTo(int[] dest, int offset) {
+		int[] flat = array;
+		if (flat != null)
+			System.arraycopy(flat, 0, dest, offset, length);
+		else {
+			head.copyTo(dest, offset);
+			tail.copyTo(dest, offset + head.length);
+		}
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof IterationIndex))
+			return false;
+		IterationIndex other = (IterationIndex) obj;
+		return hash == other.hash && length == other.length
+				&& Arrays.equals(toArray(), other.toArray());
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+}
@@ -47,6 +47,11 @@ public abstract class IterationInternalEvent<EventType extends IterationInternal
 		super(owner, index, context);
 	}
 
+	protected IterationInternalEvent(ProcessIdentifier owner,
+			IterationIndex index, InvocationContext context) {
+		super(owner, index, context);
+	}
+
 	/**
 	 * Pop a previously pushed index array off the process name and append the
 	 * current index array to create the new index array. This is applied to a
@@ -68,35 +73,43 @@ public abstract class IterationInternalEvent<EventType extends IterationInternal
 	 * Helper method for the pushIndex operation
 	 * 
 	 * @return
+	 * @deprecated use {@link #getPushedOwningProcessIdentifier()}
 	 */
+	@Deprecated
 	protected final String getPushedOwningProcess() {
-		StringBuilder sb = new StringBuilder(owner).append(":");
-		String sep = "";
-		for (int idx : index) {
-			sb.append(sep).append(idx);
-			sep = ",";
-		}
-		return sb.toString();
+		return getPushedOwningProcessIdentifier().toString();
+	}
+
+	/**
+	 * Helper method for the pushIndex operation, returns the owning process
+	 * with the index pushed onto it.
+	 * 
+	 * @return
+	 */
+	protected final ProcessIdentifier getPushedOwningProcessIdentifier() {
+		return getOwningProcessIdentifier().pushIndex(index);
+	}
+
+	/**
+	 * Helper method for the popIndex operation, returns the owning process
+	 * with the previously pushed index array removed.
+	 * 
+	 * @return
+	 */
+	protected final ProcessIdentifier getPoppedOwningProcessIdentifier() {
+		return getOwningProcessIdentifier().pop();
 	}
 
 	/**
-	 * Helper method for the popIndex operation, returns the modified index
-	 * array. Subclasses must still implement logic to get the modified owning
-	 * process but that's relatively easy : <code>
-	 * return new &lt;Event subclass&gt;(owner.substring(0, owner.lastIndexOf(':')),getPoppedIndex(), dataMap);
+	 * Helper method for the popIndex operation, returns the previously pushed
+	 * index followed by the current one. Subclasses must still implement logic
+	 * to get the modified owning process but that's relatively easy : <code>
+	 * return new &lt;Event subclass&gt;(getPoppedOwningProcessIdentifier(),getPoppedIndex(), dataMap);
 	 * </code>
 	 * 
 	 * @return
 	 */
-	protected final int[] getPoppedIndex() {
-		int lastLocation = owner.lastIndexOf(':');
-		String indexArrayAsString = owner.substring(lastLocation + 1);
-		String[] parts = indexArrayAsString.split(",");
-		int[] newIndexArray = new int[index.length + parts.length];
-		int pos = 0;
-		for (String part : parts)
-			newIndexArray[pos++] = Integer.parseInt(part);
-		System.arraycopy(index, 0, newIndexArray, pos, index.length);
-		return newIndexArray;
+	protected final IterationIndex getPoppedIndex() {
+		return getOwningProcessIdentifier().getPushedIndex().append(index);
 	}
 }
@@ -0,0 +1,275 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.invocation;
+
+/**
+ * Owning process identifier of an {@link Event}, the hierarchical path of
+ * process names written as a colon separated String such as
+ * <code>facade0:dataflow:proc:invocation123</code>.
+ * <p>
+ * Identifiers are immutable and linked to their parent, so that pushing a
+ * local name or popping the last one does not copy or split the rest of the
+ * path. The hash code is computed once on creation and the String form is
+ * built on first use and then kept, so an identifier can be used cheaply as a
+ * map key and converted as often as needed to the String used by the existing
+ * APIs.
+ * <p>
+ * Identifiers parsed with {@link #valueOf(String)} keep the String and only
+ * parse their parent when it is first asked for, parsing the same String twice
+ * gives two equal identifiers. Code holding an identifier should push onto it
+ * rather than going through the String form.
+ */
+public final class ProcessIdentifier {
+	private static final char SEPARATOR = ':';
+
+	/** The empty identifier, which has no parent */
+	public static final ProcessIdentifier ROOT = new ProcessIdentifier();
+
+	/**
+	 * Return the identifier for the colon separated process identifier.
+	 *
+	 * @param owningProcess
+	 *            the process identifier as a String, the empty String for
+	 *            {@link #ROOT}
+	 */
+	public static ProcessIdentifier valueOf(String owningProcess) {
+		if (owningProcess == null)
+			throw new NullPointerException("Owning process cannot be null");
+		if (owningProcess.isEmpty())
+			return ROOT;
+		return new ProcessIdentifier(owningProcess);
+	}
+
+	/** Parent, parsed on first use for the identifiers parsed from a String */
+	private ProcessIdentifier parent;
+	private final String localName;
+	/** Index pushed as the local name, if created by pushIndex() */
+	private final IterationIndex pushedIndex;
+	private final int depth;
+	private final int hash;
+	/** String form, built on first use */
+	private String string;
+
+	private ProcessIdentifier() {
+		parent = null;
+		localName = "";
+		pushedIndex = null;
+		depth = 0;
+		hash = 0;
+		string = "";
+	}
+
+	private ProcessIdentifier(ProcessIdentifier parent, String localName,
+			IterationIndex pushedIndex, String string) {
+		this.parent = parent;
+		this.localName = localName;
+		this.pushedIndex = pushedIndex;
+		this.depth = parent.depth + 1;
+		this.hash = 31 * parent.hash + localName.hashCode();
+		this.string = string;
+	}
+
+	/**
+	 * Parse the identifier, computing the depth and the hash code of the path
+	 * in one pass over the String.
+	 */
+	private ProcessIdentifier(String string) {
+		int depth = 1;
+		int hash = 0;
+		int nameHash = 0;
+		for (int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+			if (c == SEPARATOR) {
+				hash = 31 * hash + nameHash;
+				nameHash = 0;
+				depth++;
+			} else
+				// As String.hashCode() of the process name
+				nameHash = 31 * nameHash + c;
+		}
+		this.localName = string.substring(string.lastIndexOf(SEPARATOR) + 1);
+		this.pushedIndex = null;
+		this.depth = depth;
+		this.hash = 31 * hash + nameHash;
+		this.string = string;
+	}
+
+	/**
+	 * Return the identifier with the local process name appended.
+	 *
+	 * @throws ProcessIdentifierException
+	 *             if the local process name contains the ':' character
+	 */
+	public ProcessIdentifier push(String localProcessName)
+			throws ProcessIdentifierException {
+		if (localProcessName.indexOf(SEPARATOR) >= 0)
+			throw new ProcessIdentifierException("Can't push '"
+					+ localProcessName + "' as it contains a ':' character");
+		if (this == ROOT && localProcessName.isEmpty())
+			// Pushing nothing onto the empty identifier leaves it empty
+			return ROOT;
+		return new ProcessIdentifier(this, localProcessName, null, null);
+	}
+
+	/**
+	 * Return the identifier with the index appended as a comma separated
+	 * local name, as done when an iteration index is pushed onto the owning
+	 * process.
+	 */
+	public ProcessIdentifier pushIndex(IterationIndex index) {
+		StringBuilder sb = new StringBuilder();
+		String sep = "";
+		for (int idx : index.toArray()) {
+			sb.append(sep).append(idx);
+			sep = ",";
+		}
+		return new ProcessIdentifier(this, sb.toString(), index, null);
+	}
+
+	/**
+	 * Return the parent identifier, with the last local process name removed.
+	 *
+	 * @throws ProcessIdentifierException
+	 *             if this is the empty identifier
+	 */
+	public ProcessIdentifier pop() throws ProcessIdentifierException {
+		if (depth == 0)
+			throw new ProcessIdentifierException(
+					"Attempt to pop a null owning process (empty string)");
+		return getParent();
+	}
+
+	/**
+	 * Return the parent identifier, or <code>null</code> if this is the empty
+	 * identifier.
+	 */
+	public ProcessIdentifier getParent() {
+		if (depth == 0)
+			return null;
+		ProcessIdentifier p = parent;
+		if (p == null) {
+			// Identifiers are immutable, publishing without a lock is safe
+			p = parseParent();
+			parent = p;
+		}
+		return p;
+	}
+
+	private ProcessIdentifier parseParent() {
+		int separator = string.lastIndexOf(SEPARATOR);
+		if (separator < 0)
+			return ROOT;
+		if (separator == 0)
+			// Leading empty process name, as in ":foo"
+			return new ProcessIdentifier(ROOT, "", null, "");
+		return new ProcessIdentifier(string.substring(0, separator));
+	}
+
+	/**
+	 * Return the last process name of the path, the empty String for the
+	 * empty identifier.
+	 */
+	public String getLocalName() {
+		return localName;
+	}
+
+	/**
+	 * Return the index previously pushed by
+	 * {@link #pushIndex(IterationIndex)}, parsing it from the local name if
+	 * the identifier was parsed from a String.
+	 *
+	 * @throws NumberFormatException
+	 *             if the local name is not a comma separated list of integers
+	 */
+	IterationIndex getPushedIndex() {
+		if (pushedIndex != null)
+			return pushedIndex;
+		String[] parts = localName.split(",");
+		int[] index = new int[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			index[i] = Integer.parseInt(parts[i]);
+		return IterationIndex.valueOf(index);
+	}
+
+	/**
+	 * Return the number of process names in the path, 0 for the empty
+	 * identifier.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Return the process names of the path from the outermost one, as used by
+	 * the {@link org.apache.taverna.monitor.MonitorManager MonitorManager}.
+	 */
+	public String[] toArray() {
+		if (depth == 0)
+			// As "".split(":")
+			return new String[] { "" };
+		String[] names = new String[depth];
+		for (ProcessIdentifier id = this; id.depth > 0; id = id.getParent())
+			names[id.depth - 1] = id.localName;
+		return names;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof ProcessIdentifier))
+			return false;
+		ProcessIdentifier a = this;
+		ProcessIdentifier b = (ProcessIdentifier) obj;
+		if (a.hash != b.hash || a.depth != b.depth)
+			return false;
+		while (a != b) {
+			if (a.string != null && b.string != null)
+				return a.string.equals(b.string);
+			if (!a.localName.equals(b.localName))
+				return false;
+			a = a.getParent();
+			b = b.getParent();
+		}
+		return true;
+	}
+
+	/**
+	 * Return the colon separated String form of the identifier
+	 */
+	@Override
+	public String toString() {
+		String s = string;
+		if (s == null) {
+			if (getParent() == ROOT)
+				s = localName;
+			else
+				s = getParent().toString() + SEPARATOR + localName;
+			// Strings are immutable, publishing without a lock is safe
+			string = s;
+		}
+		return s;
+	}
+}
@@ -0,0 +1,236 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.invocation;
+
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.taverna.facade.WorkflowInstanceFacade;
+import org.apache.taverna.facade.WorkflowInstanceFacade.State;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Holds the state kept by the components of the engine for one workflow run,
+ * so that it can all be released in one step when the run finishes or is
+ * cancelled.
+ * <p>
+ * A run is named by the first part of the owning process identifiers of its
+ * events, the local name of the top level
+ * {@link org.apache.taverna.facade.WorkflowInstanceFacade
+ * WorkflowInstanceFacade}, so nested workflow runs share the scope of their
+ * top level run. Components keep their state per owning process in a
+ * {@link RunScopedMap} rather than in a map of their own, the entries are
+ * held by the scope of the run and dropped with it.
+ * <p>
+ * Scopes are created on demand and released by the facade of the run.
+ * Events still arriving for a run which has been released, such as results of
+ * invocations which were running when the run was cancelled, find the
+ * released scope for a while after, which keeps working but is not held on to
+ * by the registry of scopes. Later still, while the facade of the run is
+ * around to tell that the run has completed or been cancelled, they get a
+ * released scope of their own which is not registered, so that the state they
+ * create is dropped with them rather than held for a run which is never
+ * released again.
+ */
+public final class RunScope {
+	/** Number of released scopes kept for late events */
+	private static final int RECENTLY_RELEASED = 256;
+
+	private static Logger logger = Logger.getLogger(RunScope.class);
+	private static final ConcurrentMap<String, RunScope> scopes = new ConcurrentHashMap<>();
+	@SuppressWarnings("serial")
+	private static final Map<String, RunScope> recentlyReleased = new LinkedHashMap<String, RunScope>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, RunScope> eldest) {
+			return size() > RECENTLY_RELEASED;
+		}
+	};
+
+	/**
+	 * A value held by a run scope which needs to do more than being forgotten
+	 * when the run is released, such as giving back resources.
+	 */
+	public interface Releasable {
+		/**
+		 * Called once when the scope holding the value is released.
+		 */
+		void release();
+	}
+
+	/**
+	 * Return the scope of the run the owning process belongs to, creating it
+	 * if needed.
+	 */
+	public static RunScope forProcess(String owningProcess) {
+		return forRun(runName(owningProcess));
+	}
+
+	/**
+	 * Return the scope of the named run, creating it if needed.
+	 */
+	public static RunScope forRun(String runName) {
+		RunScope scope = find(runName);
+		if (scope != null)
+			return scope;
+		if (isFinished(runName))
+			return new RunScope(runName, true);
+		RunScope newScope = new RunScope(runName);
+		scope = scopes.putIfAbsent(runName, newScope);
+		if (scope == null)
+			scope = newScope;
+		return scope;
+	}
+
+	/**
+	 * Return the scope of the named run, or <code>null</code> if it has none.
+	 */
+	public static RunScope find(String runName) {
+		RunScope scope = scopes.get(runName);
+		if (scope == null)
+			synchronized (recentlyReleased) {
+				scope = recentlyReleased.get(runName);
+			}
+		return scope;
+	}
+
+	/**
+	 * Release the scope of the named run, dropping all the state held for it.
+	 * 
+	 * @return true if there was a scope to release
+	 */
+	public static boolean release(String runName) {
+		RunScope scope = scopes.remove(runName);
+		if (scope == null)
+			return false;
+		synchronized (recentlyReleased) {
+			recentlyReleased.put(runName, scope);
+		}
+		scope.release();
+		return true;
+	}
+
+	/**
+	 * Return true if the named run is the run of a workflow facade which has
+	 * completed or been cancelled.
+	 */
+	private static boolean isFinished(String runName) {
+		WeakReference<WorkflowInstanceFacade> reference;
+		synchronized (WorkflowInstanceFacade.workflowRunFacades) {
+			reference = WorkflowInstanceFacade.workflowRunFacades.get(runName);
+		}
+		WorkflowInstanceFacade facade = reference == null ? null : reference
+				.get();
+		if (facade == null)
+			return false;
+		State state = facade.getState();
+		return state == State.completed || state == State.cancelled;
+	}
+
+	/**
+	 * Return the number of runs with a scope which hasn't been released.
+	 */
+	public static int getOpenCount() {
+		return scopes.size();
+	}
+
+	/**
+	 * Return the name of the run an owning process belongs to.
+	 */
+	public static String runName(String owningProcess) {
+		int colon = owningProcess.indexOf(':');
+		if (colon < 0)
+			return owningProcess;
+		return owningProcess.substring(0, colon);
+	}
+
+	private final String name;
+	private final ConcurrentMap<RunScopedMap<?>, ConcurrentMap<String, Object>> state = new ConcurrentHashMap<>();
+	private volatile boolean released;
+
+	private RunScope(String name) {
+		this(name, false);
+	}
+
+	private RunScope(String name, boolean released) {
+		this.name = name;
+		this.released = released;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public boolean isReleased() {
+		return released;
+	}
+
+	/**
+	 * Return the number of entries held for the run by all the maps, mainly
+	 * for tests.
+	 */
+	public int size() {
+		int size = 0;
+		for (Map<String, Object> entries : state.values())
+			size += entries.size();
+		return size;
+	}
+
+	/**
+	 * Return the entries held for a map, or <code>null</code> if there are
+	 * none and <code>create</code> is false.
+	 */
+	ConcurrentMap<String, Object> entries(RunScopedMap<?> map, boolean create) {
+		ConcurrentMap<String, Object> entries = state.get(map);
+		if (entries == null && create) {
+			ConcurrentMap<String, Object> newEntries = new ConcurrentHashMap<>();
+			entries = state.putIfAbsent(map, newEntries);
+			if (entries == null)
+				entries = newEntries;
+		}
+		return entries;
+	}
+
+	private void release() {
+		released = true;
+		for (Map<String, Object> entries : state.values())
+			release(entries.values());
+		state.clear();
+	}
+
+	private void release(Collection<Object> values) {
+		for (Object value : values)
+			if (value instanceof Releasable)
+				try {
+					((Releasable) value).release();
+				} catch (RuntimeException e) {
+					logger.warn("Could not release state of run " + name, e);
+				}
+	}
+
+	@Override
+	public String toString() {
+		return "RunScope " + name + (released ? " (released)" : "");
+	}
+}
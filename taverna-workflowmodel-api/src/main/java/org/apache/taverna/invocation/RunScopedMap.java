@@ -0,0 +1,97 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.invocation;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Map from owning process identifiers to the state a component keeps for
+ * them, with the entries held by the {@link RunScope} of the run each owning
+ * process belongs to, so that they are dropped when the run is released
+ * without the component having to clean up after every run.
+ * <p>
+ * Entries can still be removed one at a time, when the component is finished
+ * with an owning process before the end of the run. Values implementing
+ * {@link RunScope.Releasable} are told when they are dropped with their run.
+ * 
+ * @param <V>
+ *            type of the state kept per owning process
+ */
+public class RunScopedMap<V> {
+	public V get(String owningProcess) {
+		ConcurrentMap<String, Object> entries = entries(owningProcess, false);
+		return entries == null ? null : cast(entries.get(owningProcess));
+	}
+
+	public boolean containsKey(String owningProcess) {
+		return get(owningProcess) != null;
+	}
+
+	public V put(String owningProcess, V value) {
+		return cast(entries(owningProcess, true).put(owningProcess, value));
+	}
+
+	/**
+	 * Associate the value with the owning process unless there is a value
+	 * already, as {@link ConcurrentMap#putIfAbsent(Object, Object)}
+	 */
+	public V putIfAbsent(String owningProcess, V value) {
+		return cast(entries(owningProcess, true).putIfAbsent(owningProcess,
+				value));
+	}
+
+	public V remove(String owningProcess) {
+		ConcurrentMap<String, Object> entries = entries(owningProcess, false);
+		return entries == null ? null : cast(entries.remove(owningProcess));
+	}
+
+	/**
+	 * Remove the entry for the owning process only if it is the value, as
+	 * {@link ConcurrentMap#remove(Object, Object)}
+	 */
+	public boolean remove(String owningProcess, V value) {
+		ConcurrentMap<String, Object> entries = entries(owningProcess, false);
+		return entries != null && entries.remove(owningProcess, value);
+	}
+
+	/**
+	 * Return the number of entries held for a run, mainly for tests.
+	 */
+	public int size(String runName) {
+		RunScope scope = RunScope.find(runName);
+		if (scope == null)
+			return 0;
+		ConcurrentMap<String, Object> entries = scope.entries(this, false);
+		return entries == null ? 0 : entries.size();
+	}
+
+	private ConcurrentMap<String, Object> entries(String owningProcess,
+			boolean create) {
+		if (create)
+			return RunScope.forProcess(owningProcess).entries(this, true);
+		RunScope scope = RunScope.find(RunScope.runName(owningProcess));
+		return scope == null ? null : scope.entries(this, false);
+	}
+
+	@SuppressWarnings("unchecked")
+	private V cast(Object value) {
+		return (V) value;
+	}
+}
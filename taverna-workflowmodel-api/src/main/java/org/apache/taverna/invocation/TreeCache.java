@@ -61,15 +61,19 @@ public class TreeCache {
 		public List<NamedNode> children = new ArrayList<>();
 
 		public void insertJob(Job j) {
-			insertJobAt(j, j.getIndex());
+			insertJobAt(j, j.getIndex(), 0);
 		}
 
-		private void insertJobAt(Job j, int[] position) {
-			if (position.length == 0) {
+		/**
+		 * Insert the job at the position given by the index array from the
+		 * offset on, without copying the rest of the array at each level
+		 */
+		private void insertJobAt(Job j, int[] position, int offset) {
+			if (offset == position.length) {
 				this.contents = j;
 				return;
 			}
-			int firstIndex = position[0];
+			int firstIndex = position[offset];
 			if (firstIndex >= children.size())
 				// Pad with blank NamedNode objects
 				for (int i = children.size(); i <= firstIndex; i++)
@@ -79,11 +83,7 @@ public class TreeCache {
 				child = new NamedNode();
 				children.set(firstIndex, child);
 			}
-
-			int[] newTarget = new int[position.length - 1];
-			for (int i = 1; i < position.length; i++)
-				newTarget[i - 1] = position[i];
-			child.insertJobAt(j, newTarget);
+			child.insertJobAt(j, position, offset + 1);
 		}
 
 		public NamedNode childAt(int i) {
@@ -119,11 +119,19 @@ public class TreeCache {
 	}
 
 	protected synchronized NamedNode nodeAt(int[] position) {
+		return nodeAt(position, position.length);
+	}
+
+	/**
+	 * Get the node at the position given by the first <code>length</code>
+	 * elements of the index array
+	 */
+	private NamedNode nodeAt(int[] position, int length) {
 		if (root == null)
 			return null;
 		NamedNode result = root;
 		int index = 0;
-		while (index < position.length && result != null)
+		while (index < length && result != null)
 			result = result.childAt(position[index++]);
 		return result;
 	}
@@ -135,8 +143,7 @@ public class TreeCache {
 	 */
 	public synchronized void cut(int[] indexArray) {
 		if (indexArray.length > 0) {
-			int[] newIndex = tail(indexArray);
-			NamedNode node = nodeAt(newIndex);
+			NamedNode node = nodeAt(indexArray, indexArray.length - 1);
 			if (node != null
 					&& node.children.size() >= indexArray[indexArray.length - 1])
 				node.children.set(indexArray[indexArray.length - 1], null);
@@ -185,15 +192,16 @@ public class TreeCache {
 	}
 
 	/**
-	 * Chop the last index off an int[]
+	 * Get the job object at the specified index, without flattening it to an
+	 * array
 	 * 
-	 * @param arg
-	 * @return
+	 * @param location
+	 * @return Job at the specified location or null if no such job was found
 	 */
-	private static int[] tail(int[] arg) {
-		int result[] = new int[arg.length - 1];
-		for (int i = 0; i < arg.length - 1; i++)
-			result[i] = arg[i];
-		return result;
+	public synchronized Job get(IterationIndex location) {
+		NamedNode n = root;
+		for (int i = 0; i < location.length() && n != null; i++)
+			n = n.childAt(location.get(i));
+		return (n == null ? null : n.contents);
 	}
 }
@@ -45,16 +45,27 @@ public class WorkflowDataToken extends Event<WorkflowDataToken> {
 		this.dataRef = dataRef;
 	}
 
+	/**
+	 * As above, with the owning process and index given as a
+	 * {@link ProcessIdentifier} and an {@link IterationIndex}
+	 */
+	public WorkflowDataToken(ProcessIdentifier owningProcess,
+			IterationIndex index,
+			T2Reference dataRef, InvocationContext context) {
+		super(owningProcess, index, context);
+		this.dataRef = dataRef;
+	}
+
 	@Override
 	public WorkflowDataToken popOwningProcess()
 			throws ProcessIdentifierException {
-		return new WorkflowDataToken(popOwner(), index, dataRef, context);
+		return new WorkflowDataToken(popOwnerIdentifier(), index, dataRef, context);
 	}
 
 	@Override
 	public WorkflowDataToken pushOwningProcess(String localProcessName)
 			throws ProcessIdentifierException {
-		return new WorkflowDataToken(pushOwner(localProcessName), index,
+		return new WorkflowDataToken(pushOwnerIdentifier(localProcessName), index,
 				dataRef, context);
 	}
 
@@ -78,9 +89,9 @@ public class WorkflowDataToken extends Event<WorkflowDataToken> {
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
-		sb.append("Token(").append(owner).append(")[");
+		sb.append("Token(").append(getOwningProcess()).append(")[");
 		String sep = "";
-		for (int idx : index) {
+		for (int idx : getIndex()) {
 			sb.append(sep).append(idx);
 			sep = ",";
 		}
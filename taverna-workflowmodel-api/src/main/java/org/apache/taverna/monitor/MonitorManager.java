@@ -23,6 +23,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import org.apache.taverna.invocation.ProcessIdentifier;
 import org.apache.taverna.lang.observer.MultiCaster;
 import org.apache.taverna.lang.observer.Observable;
 import org.apache.taverna.lang.observer.Observer;
@@ -125,7 +126,8 @@ public class MonitorManager implements Observable<MonitorMessage> {
 	 *            the identifier of the node to remove as a :-separated string
 	 */
 	public void deregisterNode(String owningProcessIdentifier) {
-		deregisterNode(owningProcessIdentifier.split(":"));
+		deregisterNode(ProcessIdentifier.valueOf(owningProcessIdentifier)
+				.toArray());
 	}
 
 	/**
@@ -183,7 +185,8 @@ public class MonitorManager implements Observable<MonitorMessage> {
 	 */
 	public void registerNode(Object workflowObject,
 			String owningProcessIdentifier) {
-		registerNode(workflowObject, owningProcessIdentifier.split(":"), null);
+		registerNode(workflowObject,
+				ProcessIdentifier.valueOf(owningProcessIdentifier).toArray(), null);
 	}
 
 	/**
@@ -220,7 +223,8 @@ public class MonitorManager implements Observable<MonitorMessage> {
 	public void registerNode(Object workflowObject,
 			String owningProcessIdentifier,
 			Set<MonitorableProperty<?>> properties) {
-		registerNode(workflowObject, owningProcessIdentifier.split(":"),
+		registerNode(workflowObject,
+				ProcessIdentifier.valueOf(owningProcessIdentifier).toArray(),
 				properties);
 	}
 
@@ -0,0 +1,55 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel;
+
+/**
+ * An input port which can tell whoever sends it events that the processors it
+ * feeds have no room for more. Producers which can hold their events back,
+ * such as an upstream processor with jobs left in its dispatch queue, check
+ * {@link #hasRoomFor(String)} before producing more and otherwise register
+ * with {@link #resumeWhenRoomFor(String, Runnable)} rather than waiting, so
+ * that the bounded dispatch queues of the processors downstream (see
+ * {@link org.apache.taverna.workflowmodel.processor.dispatch.DispatchStack#setQueueWatermarks(int, int)
+ * DispatchStack.setQueueWatermarks()}) pace the whole workflow.
+ * <p>
+ * The signal is advisory, events sent to a port without room are still
+ * accepted, and ports which don't implement this interface always have room.
+ */
+public interface FlowControlledInputPort extends EventHandlingInputPort {
+	/**
+	 * Return true if the port has room for more events of the owning process.
+	 *
+	 * @param owningProcess
+	 *            the owning process of the events, as sent to the port
+	 */
+	boolean hasRoomFor(String owningProcess);
+
+	/**
+	 * Run <code>resume</code> once the port has room again for events of the
+	 * owning process, straight away if it has room already. It is run once,
+	 * by the {@link org.apache.taverna.invocation.InvocationExecutor
+	 * InvocationExecutor} rather than by the calling thread, and is dropped if
+	 * the run of the owning process is released first.
+	 *
+	 * @param owningProcess
+	 *            the owning process of the events, as sent to the port
+	 */
+	void resumeWhenRoomFor(String owningProcess, Runnable resume);
+}
@@ -48,6 +48,10 @@ public interface AsynchronousActivityCallback {
 	 * activity proxy is capable of managing thread usage across all instances
 	 * of that activity type and therefore more efficiently (fewer threads) than
 	 * if it let the workflow manager perform this function.
+	 * <p>
+	 * The invocation layer runs these on the engine wide
+	 * {@link org.apache.taverna.invocation.InvocationExecutor
+	 * InvocationExecutor} rather than starting a new thread per call.
 	 * 
 	 * @param runMe
 	 *            a Runnable to implement the activity proxy logic.
@@ -0,0 +1,62 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.activity;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.taverna.reference.T2Reference;
+
+/**
+ * An AsynchronousActivity which can also be invoked with the inputs of several
+ * jobs at once, typically because the service it proxies has a bulk endpoint.
+ * When the processor has a {@code Batch} dispatch layer in place of the
+ * {@code Invoke} layer, jobs are collected and passed to
+ * {@link #executeAsynchBatch(List, BatchAsynchronousActivityCallback)}
+ * together, otherwise the activity is invoked once per job through
+ * {@link #executeAsynch(Map, AsynchronousActivityCallback) executeAsynch()}
+ * as usual, so implementations must support both.
+ *
+ * @param <ConfigurationType>
+ *            the ConfigurationType associated with the Activity.
+ */
+public interface BatchAsynchronousActivity<ConfigurationType> extends
+		AsynchronousActivity<ConfigurationType> {
+	/**
+	 * Invoke the activity in an asynchronous manner for a batch of jobs. The
+	 * results, completions and failures of each job are pushed to the callback
+	 * returned by {@link BatchAsynchronousActivityCallback#getCallback(int)}
+	 * for its position in the batch, with the same semantics as for
+	 * {@link #executeAsynch(Map, AsynchronousActivityCallback) executeAsynch()}.
+	 *
+	 * @param data
+	 *            the input data of each job, in the order of the batch
+	 * @param callback
+	 *            the callback for the batch
+	 */
+	void executeAsynchBatch(List<Map<String, T2Reference>> data,
+			BatchAsynchronousActivityCallback callback);
+
+	/**
+	 * Return the largest number of jobs the activity accepts in one batch, or
+	 * 0 if the batch size is only limited by the dispatch layer configuration.
+	 */
+	int getMaxBatchSize();
+}
@@ -0,0 +1,71 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.activity;
+
+import org.apache.taverna.invocation.InvocationContext;
+
+/**
+ * The callback interface used by instances of {@link BatchAsynchronousActivity}
+ * invoked with a batch of jobs. Results are pushed through the callback of
+ * each job in the batch, this interface only covers what the batch has in
+ * common.
+ */
+public interface BatchAsynchronousActivityCallback {
+	/**
+	 * The invocation context shared by all the jobs of the batch.
+	 */
+	InvocationContext getContext();
+
+	/**
+	 * Run the activity logic for the batch, see
+	 * {@link AsynchronousActivityCallback#requestRun(Runnable)}. If
+	 * <code>runMe</code> throws an exception, all the jobs of the batch which
+	 * have not finished yet fail.
+	 *
+	 * @param runMe
+	 *            a Runnable to implement the activity proxy logic.
+	 */
+	void requestRun(Runnable runMe);
+
+	/**
+	 * Return the number of jobs in the batch.
+	 */
+	int getBatchSize();
+
+	/**
+	 * Return the callback for the job at the given position in the batch, to
+	 * push its results, completions or failure.
+	 *
+	 * @param job
+	 *            position of the job in the batch, from 0
+	 */
+	AsynchronousActivityCallback getCallback(int job);
+
+	/**
+	 * Fail all the jobs of the batch which have not finished yet, for instance
+	 * when the bulk call as a whole failed.
+	 *
+	 * @param message
+	 *            a free text string describing the failure
+	 * @param t
+	 *            the cause of the failure, or <code>null</code>
+	 */
+	void fail(String message, Throwable t);
+}
@@ -0,0 +1,49 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.activity;
+
+/**
+ * An extension of AsynchronousActivityCallback for invocations which can be
+ * cancelled by the workflow engine, for instance when they take longer than
+ * allowed.
+ * <p>
+ * On cancellation the threads started through {@link #requestRun(Runnable)}
+ * are interrupted, and results or failures pushed afterwards are ignored.
+ * Activities waiting on something which does not respond to interruption,
+ * such as a socket read, should register a listener to close it.
+ */
+public interface CancellableActivityCallback extends
+		AsynchronousActivityCallback {
+	/**
+	 * Return true if the invocation has been cancelled and the activity
+	 * should stop as soon as possible.
+	 */
+	boolean isCancelled();
+
+	/**
+	 * Register a listener to be run when the invocation is cancelled, straight
+	 * away if it already has been. The listener should release the resources
+	 * of the invocation and return quickly.
+	 *
+	 * @param listener
+	 *            run once on cancellation
+	 */
+	void addCancellationListener(Runnable listener);
+}
@@ -22,7 +22,9 @@ package org.apache.taverna.workflowmodel.processor.activity;
 import java.util.Map;
 
 import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.IterationIndex;
 import org.apache.taverna.invocation.IterationInternalEvent;
+import org.apache.taverna.invocation.ProcessIdentifier;
 import org.apache.taverna.invocation.ProcessIdentifierException;
 import org.apache.taverna.reference.T2Reference;
 
@@ -49,7 +51,8 @@ public class Job extends IterationInternalEvent<Job> {
 	 */
 	@Override
 	public Job pushIndex() {
-		return new Job(getPushedOwningProcess(), new int[] {}, dataMap, context);
+		return new Job(getPushedOwningProcessIdentifier(), IterationIndex.EMPTY, dataMap,
+				context);
 	}
 
 	/**
@@ -58,8 +61,8 @@ public class Job extends IterationInternalEvent<Job> {
 	 */
 	@Override
 	public Job popIndex() {
-		return new Job(owner.substring(0, owner.lastIndexOf(':')),
-				getPoppedIndex(), dataMap, context);
+		return new Job(getPoppedOwningProcessIdentifier(), getPoppedIndex(), dataMap,
+				context);
 	}
 
 	/**
@@ -89,6 +92,16 @@ public class Job extends IterationInternalEvent<Job> {
 		this.dataMap = data;
 	}
 
+	/**
+	 * As above, with the owning process and index given as a
+	 * {@link ProcessIdentifier} and an {@link IterationIndex}
+	 */
+	public Job(ProcessIdentifier owner, IterationIndex index,
+			Map<String, T2Reference> data, InvocationContext context) {
+		super(owner, index, context);
+		this.dataMap = data;
+	}
+
 	/**
 	 * Show the owner, index array and data map in textual form for debugging
 	 * and any other purpose. Jobs appear in the form :
@@ -100,9 +113,9 @@ public class Job extends IterationInternalEvent<Job> {
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
-		sb.append("Job(").append(owner).append(")[");
+		sb.append("Job(").append(getOwningProcess()).append(")[");
 		String sep = "";
-		for (int i : index) {
+		for (int i : getIndex()) {
 			sb.append(sep).append(i);
 			sep = ",";
 		}
@@ -118,12 +131,12 @@ public class Job extends IterationInternalEvent<Job> {
 
 	@Override
 	public Job popOwningProcess() throws ProcessIdentifierException {
-		return new Job(popOwner(), index, dataMap, context);
+		return new Job(popOwnerIdentifier(), index, dataMap, context);
 	}
 
 	@Override
 	public Job pushOwningProcess(String localProcessName)
 			throws ProcessIdentifierException {
-		return new Job(pushOwner(localProcessName), index, dataMap, context);
+		return new Job(pushOwnerIdentifier(localProcessName), index, dataMap, context);
 	}
 }
@@ -0,0 +1,34 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.activity;
+
+/**
+ * Marks an {@link Activity} which keeps no state of its invocations, so that
+ * once configured a single instance can be invoked concurrently and shared by
+ * all the processors binding an activity of its type with the same
+ * configuration and ports. Whether shared instances are used at all is up to
+ * the platform creating the dataflows.
+ * 
+ * @param <ConfigurationType>
+ *            the ConfigurationType associated with the Activity.
+ */
+public interface ShareableActivity<ConfigurationType> extends
+		Activity<ConfigurationType> {
+}
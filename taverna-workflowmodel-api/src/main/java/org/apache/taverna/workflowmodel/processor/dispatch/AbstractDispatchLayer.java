@@ -20,6 +20,9 @@
 package org.apache.taverna.workflowmodel.processor.dispatch;
 
 import java.util.Timer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.taverna.workflowmodel.Processor;
 import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchCompletionEvent;
@@ -38,6 +41,29 @@ public abstract class AbstractDispatchLayer<ConfigurationType> implements
 	protected static Timer cleanupTimer = new Timer(
 			"Dispatch stack state cleanup", true);
 	protected static final int CLEANUP_DELAY_MS = 1000;
+	/**
+	 * Single daemon thread shared by all dispatch layers to run delayed work,
+	 * such as retries or flushing batches. Tasks must be short, anything which
+	 * may block should be handed over to the
+	 * {@link org.apache.taverna.invocation.InvocationExecutor
+	 * InvocationExecutor}.
+	 */
+	protected static final ScheduledExecutorService scheduler = createScheduler();
+
+	private static ScheduledExecutorService createScheduler() {
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+				1, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r,
+								"Dispatch layer scheduler");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		scheduler.setRemoveOnCancelPolicy(true);
+		return scheduler;
+	}
 
 	@Override
 	public void setDispatchStack(DispatchStack parentStack) {
@@ -96,4 +96,78 @@ public interface DispatchStack extends Annotated<DispatchStack>, WorkflowItem {
 	 */
 	void receiveMonitorableProperty(MonitorableProperty<?> prop,
 			String processID);
+
+	/**
+	 * Bound the number of events waiting in the dispatch queue of each owning
+	 * process. Once a queue holds <code>highWatermark</code> events it has no
+	 * room, see {@link #hasQueueRoom(String)}, and producers which can hold
+	 * their events back, such as the input ports of the processor shredding a
+	 * list or a cross product of its inputs, stop pushing events into the
+	 * processor until the dispatch stack has taken the queue down to
+	 * <code>lowWatermark</code> events. No thread is paused. The lack of room
+	 * travels back through the datalinks, see
+	 * {@link org.apache.taverna.workflowmodel.FlowControlledInputPort
+	 * FlowControlledInputPort}: upstream processors hold the jobs left in
+	 * their own queues, and clients check
+	 * {@link org.apache.taverna.facade.WorkflowInstanceFacade#hasRoom(String)
+	 * WorkflowInstanceFacade.hasRoom()} before pushing data.
+	 * <p>
+	 * Not yet held back are the results of jobs already running upstream, of
+	 * which there are no more than the jobs a processor runs at a time, the
+	 * results streamed by an activity while it runs, and the outputs of a
+	 * nested workflow, which the processor running it doesn't hold back.
+	 * <p>
+	 * A high watermark of 0, the default, leaves the queues unbounded.
+	 * 
+	 * @param highWatermark
+	 *            number of queued events at which the queue has no room, or 0
+	 *            for no bound
+	 * @param lowWatermark
+	 *            number of queued events at which held back producers resume,
+	 *            must be less than <code>highWatermark</code>
+	 * @throws IllegalArgumentException
+	 *             if the watermarks are negative or the low watermark is not
+	 *             below a non zero high watermark
+	 */
+	void setQueueWatermarks(int highWatermark, int lowWatermark);
+
+	/**
+	 * Return the number of queued events at which a queue has no room, or 0
+	 * if the queues are unbounded.
+	 */
+	int getQueueHighWatermark();
+
+	/**
+	 * Return the number of queued events at which held back producers resume.
+	 */
+	int getQueueLowWatermark();
+
+	/**
+	 * Return true if the dispatch queue of the owning process holds fewer
+	 * events than the high watermark, or the queues are unbounded.
+	 * 
+	 * @param owningProcess
+	 *            the owning process of the events in the queue, as pushed into
+	 *            the dispatch stack
+	 */
+	boolean hasQueueRoom(String owningProcess);
+
+	/**
+	 * Run <code>resume</code> once the dispatch queue of the owning process
+	 * has been taken down to the low watermark, or the queues are made
+	 * unbounded. A producer holding its events back registers here rather than
+	 * waiting, so that it doesn't hold a thread while the queue is full. If the
+	 * queue has room already <code>resume</code> is run straight away.
+	 * <p>
+	 * <code>resume</code> is run once, by the
+	 * {@link org.apache.taverna.invocation.InvocationExecutor
+	 * InvocationExecutor} rather than by the thread taking from the queue, and
+	 * must not block.
+	 * 
+	 * @param owningProcess
+	 *            the owning process of the events in the queue
+	 * @param resume
+	 *            resumes pushing the held back events
+	 */
+	void resumeWhenQueueHasRoom(String owningProcess, Runnable resume);
 }
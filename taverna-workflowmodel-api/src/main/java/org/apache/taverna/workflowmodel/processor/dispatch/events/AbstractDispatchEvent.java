@@ -21,6 +21,8 @@ package org.apache.taverna.workflowmodel.processor.dispatch.events;
 
 import org.apache.taverna.invocation.Event;
 import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.IterationIndex;
+import org.apache.taverna.invocation.ProcessIdentifier;
 import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchMessageType;
 
 /**
@@ -35,6 +37,15 @@ public abstract class AbstractDispatchEvent<EventType extends AbstractDispatchEv
 		super(owner, index, context);
 	}
 
+	/**
+	 * As above, with the owning process and index given as a
+	 * {@link ProcessIdentifier} and an {@link IterationIndex}
+	 */
+	protected AbstractDispatchEvent(ProcessIdentifier owner,
+			IterationIndex index, InvocationContext context) {
+		super(owner, index, context);
+	}
+
 	/**
 	 * Return the DispatchMessageType for this event object
 	 * 
@@ -21,6 +21,8 @@ package org.apache.taverna.workflowmodel.processor.dispatch.events;
 
 import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchMessageType.RESULT_COMPLETION;
 import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.IterationIndex;
+import org.apache.taverna.invocation.ProcessIdentifier;
 import org.apache.taverna.invocation.ProcessIdentifierException;
 import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchMessageType;
 
@@ -46,16 +48,25 @@ public class DispatchCompletionEvent extends
 		super(owner, index, context);
 	}
 
+	/**
+	 * As above, with the owning process and index given as a
+	 * {@link ProcessIdentifier} and an {@link IterationIndex}
+	 */
+	public DispatchCompletionEvent(ProcessIdentifier owner,
+			IterationIndex index, InvocationContext context) {
+		super(owner, index, context);
+	}
+
 	@Override
 	public DispatchCompletionEvent popOwningProcess()
 			throws ProcessIdentifierException {
-		return new DispatchCompletionEvent(popOwner(), index, context);
+		return new DispatchCompletionEvent(popOwnerIdentifier(), index, context);
 	}
 
 	@Override
 	public DispatchCompletionEvent pushOwningProcess(String localProcessName)
 			throws ProcessIdentifierException {
-		return new DispatchCompletionEvent(pushOwner(localProcessName), index,
+		return new DispatchCompletionEvent(pushOwnerIdentifier(localProcessName), index,
 				context);
 	}
 
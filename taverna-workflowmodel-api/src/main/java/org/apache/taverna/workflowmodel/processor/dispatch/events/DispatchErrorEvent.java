@@ -21,6 +21,8 @@ package org.apache.taverna.workflowmodel.processor.dispatch.events;
 
 import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchMessageType.ERROR;
 import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.IterationIndex;
+import org.apache.taverna.invocation.ProcessIdentifier;
 import org.apache.taverna.invocation.ProcessIdentifierException;
 import org.apache.taverna.workflowmodel.processor.activity.Activity;
 import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchMessageType;
@@ -60,6 +62,21 @@ public class DispatchErrorEvent extends
 		this.failedActivity = failedActivity;
 	}
 
+	/**
+	 * As above, with the owning process and index given as a
+	 * {@link ProcessIdentifier} and an {@link IterationIndex}
+	 */
+	public DispatchErrorEvent(ProcessIdentifier owningProcess,
+			IterationIndex index,
+			InvocationContext context, String errorMessage, Throwable t,
+			DispatchErrorType failureType, Activity<?> failedActivity) {
+		super(owningProcess, index, context);
+		this.message = errorMessage;
+		this.cause = t;
+		this.failureType = failureType;
+		this.failedActivity = failedActivity;
+	}
+
 	/**
 	 * Return the type of failure, this is used by upstream dispatch layers to
 	 * determine whether they can reasonably handle the error message
@@ -97,14 +114,14 @@ public class DispatchErrorEvent extends
 	@Override
 	public DispatchErrorEvent popOwningProcess()
 			throws ProcessIdentifierException {
-		return new DispatchErrorEvent(popOwner(), index, context, message,
+		return new DispatchErrorEvent(popOwnerIdentifier(), index, context, message,
 				cause, failureType, failedActivity);
 	}
 
 	@Override
 	public DispatchErrorEvent pushOwningProcess(String localProcessName)
 			throws ProcessIdentifierException {
-		return new DispatchErrorEvent(pushOwner(localProcessName), index,
+		return new DispatchErrorEvent(pushOwnerIdentifier(localProcessName), index,
 				context, message, cause, failureType, failedActivity);
 	}
 
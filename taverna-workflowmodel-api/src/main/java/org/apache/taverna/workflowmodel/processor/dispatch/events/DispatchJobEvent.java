@@ -25,6 +25,8 @@ import java.util.List;
 import java.util.Map;
 
 import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.IterationIndex;
+import org.apache.taverna.invocation.ProcessIdentifier;
 import org.apache.taverna.invocation.ProcessIdentifierException;
 import org.apache.taverna.reference.T2Reference;
 import org.apache.taverna.workflowmodel.processor.activity.Activity;
@@ -58,6 +60,19 @@ public class DispatchJobEvent extends AbstractDispatchEvent<DispatchJobEvent> {
 		this.activities = activities;
 	}
 
+	/**
+	 * As above, with the owning process and index given as a
+	 * {@link ProcessIdentifier} and an {@link IterationIndex}
+	 */
+	public DispatchJobEvent(ProcessIdentifier owningProcess,
+			IterationIndex index,
+			InvocationContext context, Map<String, T2Reference> data,
+			List<? extends Activity<?>> activities) {
+		super(owningProcess, index, context);
+		this.dataMap = data;
+		this.activities = activities;
+	}
+
 	/**
 	 * The actual data carried by this dispatch job event object is in the form
 	 * of a map, where the keys of the map are Strings identifying the named
@@ -84,14 +99,14 @@ public class DispatchJobEvent extends AbstractDispatchEvent<DispatchJobEvent> {
 	@Override
 	public DispatchJobEvent popOwningProcess()
 			throws ProcessIdentifierException {
-		return new DispatchJobEvent(popOwner(), index, context, dataMap,
+		return new DispatchJobEvent(popOwnerIdentifier(), index, context, dataMap,
 				activities);
 	}
 
 	@Override
 	public DispatchJobEvent pushOwningProcess(String localProcessName)
 			throws ProcessIdentifierException {
-		return new DispatchJobEvent(pushOwner(localProcessName), index,
+		return new DispatchJobEvent(pushOwnerIdentifier(localProcessName), index,
 				context, dataMap, activities);
 	}
 
@@ -25,7 +25,9 @@ import java.util.List;
 import java.util.concurrent.BlockingQueue;
 
 import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.IterationIndex;
 import org.apache.taverna.invocation.IterationInternalEvent;
+import org.apache.taverna.invocation.ProcessIdentifier;
 import org.apache.taverna.invocation.ProcessIdentifierException;
 import org.apache.taverna.workflowmodel.processor.activity.Activity;
 import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchMessageType;
@@ -62,6 +64,19 @@ public class DispatchJobQueueEvent extends
 		this.activities = activities;
 	}
 
+	/**
+	 * As above, with the owning process given as a {@link ProcessIdentifier}
+	 */
+	public DispatchJobQueueEvent(
+			ProcessIdentifier owner,
+			InvocationContext context,
+			BlockingQueue<IterationInternalEvent<? extends IterationInternalEvent<?>>> queue,
+			List<? extends Activity<?>> activities) {
+		super(owner, IterationIndex.EMPTY, context);
+		this.queue = queue;
+		this.activities = activities;
+	}
+
 	public BlockingQueue<IterationInternalEvent<? extends IterationInternalEvent<?>>> getQueue() {
 		return this.queue;
 	}
@@ -73,13 +88,13 @@ public class DispatchJobQueueEvent extends
 	@Override
 	public DispatchJobQueueEvent popOwningProcess()
 			throws ProcessIdentifierException {
-		return new DispatchJobQueueEvent(popOwner(), context, queue, activities);
+		return new DispatchJobQueueEvent(popOwnerIdentifier(), context, queue, activities);
 	}
 
 	@Override
 	public DispatchJobQueueEvent pushOwningProcess(String localProcessName)
 			throws ProcessIdentifierException {
-		return new DispatchJobQueueEvent(pushOwner(localProcessName), context,
+		return new DispatchJobQueueEvent(pushOwnerIdentifier(localProcessName), context,
 				queue, activities);
 	}
 
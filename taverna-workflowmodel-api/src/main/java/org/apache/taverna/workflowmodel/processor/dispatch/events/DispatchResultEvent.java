@@ -24,6 +24,8 @@ import static org.apache.taverna.workflowmodel.processor.dispatch.description.Di
 import java.util.Map;
 
 import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.IterationIndex;
+import org.apache.taverna.invocation.ProcessIdentifier;
 import org.apache.taverna.invocation.ProcessIdentifierException;
 import org.apache.taverna.reference.T2Reference;
 import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchMessageType;
@@ -62,6 +64,18 @@ public class DispatchResultEvent extends
 		this.streaming = streaming;
 	}
 
+	/**
+	 * As above, with the owning process and index given as a
+	 * {@link ProcessIdentifier} and an {@link IterationIndex}
+	 */
+	public DispatchResultEvent(ProcessIdentifier owner, IterationIndex index,
+			InvocationContext context, Map<String, T2Reference> data,
+			boolean streaming) {
+		super(owner, index, context);
+		this.dataMap = data;
+		this.streaming = streaming;
+	}
+
 	/**
 	 * If this result is part of a stream, that is to say multiple result events
 	 * from a single job event, then return true otherwise return false.
@@ -85,14 +99,14 @@ public class DispatchResultEvent extends
 	@Override
 	public DispatchResultEvent popOwningProcess()
 			throws ProcessIdentifierException {
-		return new DispatchResultEvent(popOwner(), index, context, dataMap,
+		return new DispatchResultEvent(popOwnerIdentifier(), index, context, dataMap,
 				streaming);
 	}
 
 	@Override
 	public DispatchResultEvent pushOwningProcess(String localProcessName)
 			throws ProcessIdentifierException {
-		return new DispatchResultEvent(pushOwner(localProcessName), index,
+		return new DispatchResultEvent(pushOwnerIdentifier(localProcessName), index,
 				context, dataMap, streaming);
 	}
 
@@ -201,6 +201,33 @@ public abstract class AbstractIterationStrategyNode extends
 		throw new UnsupportedOperationException("Can't set user object");
 	}
 
+	/**
+	 * Return true if the consumer of the jobs of this node has room for more
+	 * jobs of the owning process, as told by the parent node, or always if
+	 * there is no parent. Nodes forming many jobs from one, such as the
+	 * {@link CrossProduct}, hold the rest back while there is no room.
+	 */
+	protected boolean hasRoom(String owningProcess) {
+		if (parent instanceof AbstractIterationStrategyNode)
+			return ((AbstractIterationStrategyNode) parent)
+					.hasRoom(owningProcess);
+		return true;
+	}
+
+	/**
+	 * Run <code>resume</code> once the consumer of the jobs of this node has
+	 * room again for jobs of the owning process, as told by the parent node,
+	 * without holding the calling thread until then. Without a parent there is
+	 * always room and <code>resume</code> is run straight away.
+	 */
+	protected void resumeWhenRoom(String owningProcess, Runnable resume) {
+		if (parent instanceof AbstractIterationStrategyNode)
+			((AbstractIterationStrategyNode) parent).resumeWhenRoom(
+					owningProcess, resume);
+		else
+			resume.run();
+	}
+
 	/**
 	 * Push the specified completion event to the parent node
 	 */
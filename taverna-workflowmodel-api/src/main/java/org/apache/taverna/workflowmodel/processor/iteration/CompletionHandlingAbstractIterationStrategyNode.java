@@ -19,13 +19,9 @@
 
 package org.apache.taverna.workflowmodel.processor.iteration;
 
-import static java.util.Collections.synchronizedMap;
-
-import java.util.HashMap;
-import java.util.Map;
-
 import org.apache.taverna.invocation.Completion;
 import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.RunScopedMap;
 import org.apache.taverna.workflowmodel.processor.activity.Job;
 
 /**
@@ -78,12 +74,12 @@ public abstract class CompletionHandlingAbstractIterationStrategyNode extends
 		}
 	}
 
-	private Map<String, CompletionState> ownerToCompletion = synchronizedMap(new HashMap<String, CompletionState>());
+	private RunScopedMap<CompletionState> ownerToCompletion = new RunScopedMap<>();
 
 	@Override
 	public final void receiveCompletion(int inputIndex, Completion completion) {
 		innerReceiveCompletion(inputIndex, completion);
-		if (completion.getIndex().length == 0)
+		if (completion.getIterationIndex().length() == 0)
 			pingCompletionState(inputIndex, completion.getOwningProcess(),
 					true, completion.getContext());
 	}
@@ -91,7 +87,7 @@ public abstract class CompletionHandlingAbstractIterationStrategyNode extends
 	@Override
 	public final void receiveJob(int inputIndex, Job newJob) {
 		innerReceiveJob(inputIndex, newJob);
-		if (newJob.getIndex().length == 0)
+		if (newJob.getIterationIndex().length() == 0)
 			pingCompletionState(inputIndex, newJob.getOwningProcess(), false,
 					newJob.getContext());
 	}
@@ -107,25 +103,44 @@ public abstract class CompletionHandlingAbstractIterationStrategyNode extends
 
 	private void pingCompletionState(int inputIndex, String owningProcess,
 			boolean isCompletion, InvocationContext context) {
-		CompletionState cs = getCompletionState(owningProcess);
-		cs.inputComplete[inputIndex] = true;
-		if (isCompletion)
-			cs.receivedCompletion = true;
-		if (cs.isComplete()) {
-			cleanUp(owningProcess);
-			ownerToCompletion.remove(owningProcess);
-			if (cs.receivedCompletion)
-				pushCompletion(new Completion(owningProcess, new int[0],
-						context));
+		CompletionState cs;
+		boolean complete;
+		// Inputs may complete concurrently now that joins are not synchronized
+		synchronized (ownerToCompletion) {
+			cs = getCompletionState(owningProcess);
+			cs.inputComplete[inputIndex] = true;
+			if (isCompletion)
+				cs.receivedCompletion = true;
+			complete = cs.isComplete();
+			if (complete)
+				ownerToCompletion.remove(owningProcess);
 		}
+		if (complete)
+			completed(owningProcess, cs.receivedCompletion, context);
+	}
+
+	/**
+	 * Called once all inputs of the owning process have completed, cleans up
+	 * and emits the final completion event if a final completion was received.
+	 * Subclasses still holding back jobs of the owning process can delay this
+	 * until they have pushed them.
+	 */
+	protected void completed(String owningProcess, boolean receivedCompletion,
+			InvocationContext context) {
+		cleanUp(owningProcess);
+		if (receivedCompletion)
+			pushCompletion(new Completion(owningProcess, new int[0], context));
 	}
 
 	protected CompletionState getCompletionState(String owningProcess) {
-		if (ownerToCompletion.containsKey(owningProcess))
-			return ownerToCompletion.get(owningProcess);
-		CompletionState cs = new CompletionState(getChildCount());
-		ownerToCompletion.put(owningProcess, cs);
-		return cs;
+		synchronized (ownerToCompletion) {
+			CompletionState cs = ownerToCompletion.get(owningProcess);
+			if (cs == null) {
+				cs = new CompletionState(getChildCount());
+				ownerToCompletion.put(owningProcess, cs);
+			}
+			return cs;
+		}
 	}
 
 	protected abstract void innerReceiveCompletion(int inputIndex,
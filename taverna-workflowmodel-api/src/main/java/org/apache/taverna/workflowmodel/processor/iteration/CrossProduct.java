@@ -19,16 +19,15 @@
 
 package org.apache.taverna.workflowmodel.processor.iteration;
 
-import static java.util.Collections.synchronizedMap;
-
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Map;
-import java.util.Set;
 
 import org.apache.taverna.invocation.Completion;
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.IterationIndex;
+import org.apache.taverna.invocation.RunScope;
+import org.apache.taverna.invocation.RunScopedMap;
 import org.apache.taverna.reference.T2Reference;
 import org.apache.taverna.workflowmodel.processor.activity.Job;
 
@@ -37,6 +36,16 @@ import org.apache.taverna.workflowmodel.processor.activity.Job;
  * a new job is received on index 'n' a set of jobs is emited corresponding to
  * the combination of the new job with all other jobs on input indices other
  * than 'n'.
+ * <p>
+ * The combinations are formed and emitted one at a time, outside the lock of
+ * the node, for as long as the consumer has room for them (see
+ * {@link #hasRoom(String)}). Once it has none the rest of the combinations,
+ * and those of any jobs received for the owning process after them, are held
+ * back until the consumer resumes them, and the final completion event waits
+ * for them to be emitted. The jobs received on each input are kept, per owning
+ * process, in a list which is written to disk once longer than the spill
+ * threshold, taken from the system property
+ * <code>{@value #SPILL_THRESHOLD_PROPERTY}</code>.
  * 
  * @author Tom Oinn
  * @author David Withers
@@ -44,14 +53,33 @@ import org.apache.taverna.workflowmodel.processor.activity.Job;
 @SuppressWarnings("serial")
 public class CrossProduct extends
 		CompletionHandlingAbstractIterationStrategyNode {
-	private Map<String, List<Set<Job>>> ownerToCache = synchronizedMap(new HashMap<String, List<Set<Job>>>());
+	public static final String SPILL_THRESHOLD_PROPERTY = "taverna.iteration.crossProduct.spillThreshold";
+	public static final int DEFAULT_SPILL_THRESHOLD = 10000;
+
+	private RunScopedMap<InputCaches> ownerToCache = new RunScopedMap<>();
+	private int spillThreshold = Integer.getInteger(SPILL_THRESHOLD_PROPERTY,
+			DEFAULT_SPILL_THRESHOLD);
+
+	/**
+	 * Set the number of jobs kept in memory for each input and owning process
+	 * before they are written to disk, or 0 to keep them all in memory.
+	 */
+	public void setSpillThreshold(int spillThreshold) {
+		if (spillThreshold < 0)
+			throw new IllegalArgumentException("spillThreshold < 0");
+		this.spillThreshold = spillThreshold;
+	}
+
+	public int getSpillThreshold() {
+		return spillThreshold;
+	}
 
 	/**
 	 * Receive a job, emit jobs corresponding to the orthogonal join of the new
 	 * job with all jobs in all other input lists.
 	 */
 	@Override
-	public synchronized void innerReceiveJob(int inputIndex, Job newJob) {
+	public void innerReceiveJob(int inputIndex, Job newJob) {
 		if (getChildCount() == 1) {
 			/*
 			 * there's only one input and there's nothing to do here so push the
@@ -60,67 +88,87 @@ public class CrossProduct extends
 			pushJob(newJob);
 			return;
 		}
-		if (!ownerToCache.containsKey(newJob.getOwningProcess())) {
-			List<Set<Job>> perInputCache = new ArrayList<>();
-			for (int i = 0; i < getChildCount(); i++)
-				perInputCache.add(new HashSet<Job>());
-			ownerToCache.put(newJob.getOwningProcess(), perInputCache);
-		}
-		// Store the new job
-		List<Set<Job>> perInputCache = ownerToCache.get(newJob
-				.getOwningProcess());
-		perInputCache.get(inputIndex).add(newJob);
-		/*
-		 * Find all combinations of the new job with all permutations of jobs in
-		 * the other caches. We could make this a lot easier by restricting it
-		 * to a single pair of inputs, this might be a more sane way to go in
-		 * the future...
-		 */
-		Set<Job> workingSet = perInputCache.get(0);
-		if (inputIndex == 0) {
-			workingSet = new HashSet<>();
-			workingSet.add(newJob);
-		}
-		for (int i = 1; i < getChildCount(); i++) {
-			Set<Job> thisSet = perInputCache.get(i);
-			if (i == inputIndex) {
+		String owningProcess = newJob.getOwningProcess();
+		InputCaches caches;
+		synchronized (this) {
+			caches = ownerToCache.get(owningProcess);
+			if (caches == null) {
+				caches = new InputCaches(getChildCount());
+				ownerToCache.put(owningProcess, caches);
+			}
+			SpillingJobList[] perInputCache = caches.perInputCache;
+			if (canClearCache(inputIndex, owningProcess)) {
 				/*
-				 * This is the cache for the new job, so we rewrite the set to a
-				 * single element one containing only the newly submitted job
+				 * If we've seen completions for all the other indexes we don't
+				 * need to cache jobs for this index, but the combinations held
+				 * back may still be reading them
 				 */
-				thisSet = new HashSet<>();
-				thisSet.add(newJob);
+				if (caches.waiting.isEmpty())
+					perInputCache[inputIndex].clear();
+			} else
+				perInputCache[inputIndex].add(newJob);
+			Combinations combinations = new Combinations(inputIndex, newJob,
+					perInputCache);
+			if (combinations.isEmpty())
+				// Nothing to combine with yet
+				return;
+			caches.waiting.add(combinations);
+			if (caches.waiting.size() > 1)
+				// Pushed after the ones before
+				return;
+		}
+		pushWaiting(owningProcess, caches);
+	}
+
+	/**
+	 * Push the waiting combinations of the owning process until there are none
+	 * left, then emit the final completion event if it was delayed. Only one
+	 * thread at a time pushes the combinations of an owning process, the one
+	 * which queued the first of them or the one resuming them.
+	 */
+	private void pushWaiting(final String owningProcess,
+			final InputCaches caches) {
+		while (true) {
+			Combinations combinations;
+			synchronized (this) {
+				combinations = caches.waiting.peek();
+			}
+			if (!combinations.push(owningProcess)) {
+				resumeWhenRoom(owningProcess, new Runnable() {
+					@Override
+					public void run() {
+						pushWaiting(owningProcess, caches);
+					}
+				});
+				return;
 			}
-			workingSet = merge(workingSet, thisSet);
+			synchronized (this) {
+				caches.waiting.poll();
+				if (!caches.waiting.isEmpty())
+					continue;
+				if (!caches.completed)
+					return;
+			}
+			super.completed(owningProcess, caches.receivedCompletion,
+					caches.context);
+			return;
 		}
-		for (Job outputJob : workingSet)
-			pushJob(outputJob);
-		if (canClearCache(inputIndex, newJob.getOwningProcess()))
-			/*
-			 * If we've seen completions for all the other indexes we don't need
-			 * to cache jobs for this index
-			 */
-			perInputCache.get(inputIndex).clear();
 	}
 
-	private Set<Job> merge(Set<Job> set1, Set<Job> set2) {
-		Set<Job> newSet = new HashSet<>();
-		for (Job job1 : set1)
-			for (Job job2 : set2) {
-				int[] newIndex = new int[job1.getIndex().length
-						+ job2.getIndex().length];
-				int j = 0;
-				for (int i = 0; i < job1.getIndex().length; i++)
-					newIndex[j++] = job1.getIndex()[i];
-				for (int i = 0; i < job2.getIndex().length; i++)
-					newIndex[j++] = job2.getIndex()[i];
-				Map<String, T2Reference> newDataMap = new HashMap<>();
-				newDataMap.putAll(job1.getData());
-				newDataMap.putAll(job2.getData());
-				newSet.add(new Job(job1.getOwningProcess(), newIndex,
-						newDataMap, job1.getContext()));
+	@Override
+	protected void completed(String owningProcess, boolean receivedCompletion,
+			InvocationContext context) {
+		synchronized (this) {
+			InputCaches caches = ownerToCache.get(owningProcess);
+			if (caches != null && !caches.waiting.isEmpty()) {
+				// Completed once the combinations held back are pushed
+				caches.completed = true;
+				caches.receivedCompletion = receivedCompletion;
+				caches.context = context;
+				return;
 			}
-		return newSet;
+		}
+		super.completed(owningProcess, receivedCompletion, context);
 	}
 
 	@Override
@@ -129,8 +177,10 @@ public class CrossProduct extends
 	}
 
 	@Override
-	protected final void cleanUp(String owningProcess) {
-		ownerToCache.remove(owningProcess);
+	protected final synchronized void cleanUp(String owningProcess) {
+		InputCaches caches = ownerToCache.remove(owningProcess);
+		if (caches != null)
+			caches.clear();
 	}
 
 	/**
@@ -160,4 +210,171 @@ public class CrossProduct extends
 			temp += child.getIterationDepth(inputDepths);
 		return temp;
 	}
+
+	/**
+	 * The combinations of a job with the jobs cached for the other inputs when
+	 * it was received, stepped through like an odometer with the last input
+	 * turning fastest. The index and data of the combination of the first
+	 * inputs are kept and shared by the combinations differing only in the
+	 * later inputs.
+	 */
+	private class Combinations {
+		private final int inputIndex;
+		private final Job newJob;
+		private final SpillingJobList[] perInputCache;
+		private final int[] sizes;
+		private final SpillingJobList.Cursor[] cursors;
+		private final Job[] combination;
+		private final IterationIndex[] indices;
+		private final Map<String, T2Reference>[] data;
+		/** The first input changed since the last combination pushed */
+		private int changed = -1;
+
+		@SuppressWarnings("unchecked")
+		private Combinations(int inputIndex, Job newJob,
+				SpillingJobList[] perInputCache) {
+			int inputs = perInputCache.length;
+			this.inputIndex = inputIndex;
+			this.newJob = newJob;
+			this.perInputCache = perInputCache;
+			sizes = new int[inputs];
+			for (int i = 0; i < inputs; i++)
+				if (i != inputIndex)
+					sizes[i] = perInputCache[i].size();
+			cursors = new SpillingJobList.Cursor[inputs];
+			combination = new Job[inputs];
+			indices = new IterationIndex[inputs];
+			data = new Map[inputs];
+		}
+
+		private boolean isEmpty() {
+			for (int i = 0; i < sizes.length; i++)
+				if (i != inputIndex && sizes[i] == 0)
+					return true;
+			return false;
+		}
+
+		/**
+		 * Push the combinations left, return false if the consumer ran out of
+		 * room before all were pushed.
+		 */
+		private boolean push(String owningProcess) {
+			boolean heldBack = false;
+			try {
+				if (changed < 0)
+					changed = start();
+				while (changed >= 0) {
+					if (!hasRoom(owningProcess)) {
+						heldBack = true;
+						return false;
+					}
+					for (int i = changed; i < combination.length; i++)
+						combine(i);
+					pushJob(new Job(newJob.getOwningProcessIdentifier(),
+							indices[indices.length - 1],
+							data[data.length - 1], newJob.getContext()));
+					changed = advance();
+				}
+				return true;
+			} finally {
+				if (!heldBack)
+					close();
+			}
+		}
+
+		/**
+		 * Open the cursors on the first combination, returning 0 or -1 if the
+		 * jobs were cleared since.
+		 */
+		private int start() {
+			for (int i = 0; i < combination.length; i++)
+				if (i == inputIndex)
+					combination[i] = newJob;
+				else if (!rewind(i))
+					return -1;
+			return 0;
+		}
+
+		/**
+		 * Step to the next combination, returning the first input which
+		 * changed or -1 if all combinations have been visited.
+		 */
+		private int advance() {
+			int input = combination.length - 1;
+			while (input >= 0
+					&& (input == inputIndex || !cursors[input].hasNext()))
+				input--;
+			if (input < 0)
+				return -1;
+			combination[input] = cursors[input].next();
+			// Wind the later inputs back to their first job
+			for (int i = input + 1; i < combination.length; i++)
+				if (i != inputIndex && !rewind(i))
+					return -1;
+			return input;
+		}
+
+		private boolean rewind(int i) {
+			if (cursors[i] != null)
+				cursors[i].close();
+			cursors[i] = perInputCache[i].cursor(sizes[i]);
+			if (!cursors[i].hasNext())
+				return false;
+			combination[i] = cursors[i].next();
+			return true;
+		}
+
+		private void combine(int i) {
+			Job job = combination[i];
+			if (i == 0) {
+				indices[0] = job.getIterationIndex();
+				data[0] = job.getData();
+			} else {
+				indices[i] = indices[i - 1].append(job.getIterationIndex());
+				data[i] = new MergedDataMap(data[i - 1], job.getData());
+			}
+		}
+
+		private void close() {
+			for (SpillingJobList.Cursor cursor : cursors)
+				if (cursor != null)
+					cursor.close();
+		}
+	}
+
+	/**
+	 * The jobs received on each input for an owning process and the
+	 * combinations waiting to be pushed, deleting any jobs spilled to disk if
+	 * the run is released before the owning process completes.
+	 */
+	private class InputCaches implements RunScope.Releasable {
+		private final SpillingJobList[] perInputCache;
+		/**
+		 * The combinations waiting to be pushed, in the order the jobs were
+		 * received, the first of them being pushed or held back
+		 */
+		private final Deque<Combinations> waiting = new ArrayDeque<>();
+		/** All inputs completed while combinations were waiting */
+		private boolean completed;
+		private boolean receivedCompletion;
+		private InvocationContext context;
+
+		private InputCaches(int inputs) {
+			perInputCache = new SpillingJobList[inputs];
+			for (int i = 0; i < inputs; i++)
+				perInputCache[i] = new SpillingJobList(spillThreshold);
+		}
+
+		private void clear() {
+			for (SpillingJobList cache : perInputCache)
+				cache.clear();
+		}
+
+		@Override
+		public void release() {
+			synchronized (CrossProduct.this) {
+				clear();
+			}
+		}
+	}
 }
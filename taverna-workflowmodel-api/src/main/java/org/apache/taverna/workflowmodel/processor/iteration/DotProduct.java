@@ -19,13 +19,14 @@
 
 package org.apache.taverna.workflowmodel.processor.iteration;
 
-import static java.util.Collections.synchronizedMap;
-
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.taverna.invocation.Completion;
-import org.apache.taverna.invocation.TreeCache;
+import org.apache.taverna.invocation.IterationIndex;
+import org.apache.taverna.invocation.RunScopedMap;
 import org.apache.taverna.reference.T2Reference;
 import org.apache.taverna.workflowmodel.processor.activity.Job;
 
@@ -33,15 +34,19 @@ import org.apache.taverna.workflowmodel.processor.activity.Job;
  * The dot product matches jobs by index array, when a job is received a job is
  * emited if and only if the index array of the new job is matched exactly by
  * index arrays of one job in each other input index.
+ * <p>
+ * Jobs waiting for their match are held in a concurrent hash map per owning
+ * process, keyed by their full index, so that jobs arriving on different
+ * threads only contend when they have the same index.
  * 
  * @author Tom Oinn
  */
 @SuppressWarnings("serial")
 public class DotProduct extends CompletionHandlingAbstractIterationStrategyNode {
-	Map<String, TreeCache[]> ownerToCache = synchronizedMap(new HashMap<String, TreeCache[]>());
+	private final RunScopedMap<ConcurrentMap<IterationIndex, Match>> ownerToMatches = new RunScopedMap<>();
 
 	@Override
-	public synchronized void innerReceiveJob(int inputIndex, Job newJob) {
+	public void innerReceiveJob(int inputIndex, Job newJob) {
 		if (getChildCount() == 1) {
 			/*
 			 * if there's only one input there's nothing to do here so push the
@@ -50,39 +55,54 @@ public class DotProduct extends CompletionHandlingAbstractIterationStrategyNode
 			pushJob(newJob);
 			return;
 		}
-		String owningProcess = newJob.getOwningProcess();
-		if (!ownerToCache.containsKey(owningProcess)) {
-			TreeCache[] caches = new TreeCache[getChildCount()];
-			for (int i = 0; i < getChildCount(); i++)
-				caches[i] = new TreeCache();
-			ownerToCache.put(owningProcess, caches);
-		}
-		/*
-		 * Firstly store the new job in the cache, this isn't optimal but is
-		 * safe for now - we can make this more efficient by doing the
-		 * comparison first and only storing the job if required
-		 */
-		TreeCache[] caches = ownerToCache.get(owningProcess);
-		caches[inputIndex].insertJob(newJob);
-		int[] indexArray = newJob.getIndex();
-		boolean foundMatch = true;
-		Map<String, T2Reference> newDataMap = new HashMap<>();
-		for (TreeCache cache : caches)
-			if (cache.containsLocation(indexArray))
-				newDataMap.putAll(cache.get(indexArray).getData());
-			else
-				foundMatch = false;
-		if (foundMatch) {
-			Job j = new Job(owningProcess, indexArray, newDataMap, newJob
-					.getContext());
+		ConcurrentMap<IterationIndex, Match> matches = matchesFor(newJob
+				.getOwningProcess());
+		IterationIndex index = newJob.getIterationIndex();
+		Job[] matched;
+		while (true) {
+			Match match = matches.get(index);
+			if (match == null) {
+				Match newMatch = new Match(getChildCount());
+				match = matches.putIfAbsent(index, newMatch);
+				if (match == null)
+					match = newMatch;
+			}
+			synchronized (match) {
+				// Unless completed and removed meanwhile
+				if (match.missing == 0)
+					continue;
+				if (match.jobs[inputIndex] == null)
+					match.missing--;
+				match.jobs[inputIndex] = newJob;
+				if (match.missing > 0)
+					return;
+				matched = match.jobs;
+			}
 			/*
-			 * Remove all copies of the job with this index from the cache,
-			 * we'll never use it again and it pays to be tidy
+			 * Remove the matched jobs, we'll never use them again and it pays
+			 * to be tidy
 			 */
-			for (TreeCache cache : caches)
-				cache.cut(indexArray);
-			pushJob(j);
+			matches.remove(index, match);
+			break;
 		}
+		Map<String, T2Reference> newDataMap = new HashMap<>();
+		for (Job job : matched)
+			newDataMap.putAll(job.getData());
+		pushJob(new Job(newJob.getOwningProcessIdentifier(), index,
+				newDataMap, newJob.getContext()));
+	}
+
+	private ConcurrentMap<IterationIndex, Match> matchesFor(
+			String owningProcess) {
+		ConcurrentMap<IterationIndex, Match> matches = ownerToMatches
+				.get(owningProcess);
+		if (matches == null) {
+			ConcurrentMap<IterationIndex, Match> newMatches = new ConcurrentHashMap<>();
+			matches = ownerToMatches.putIfAbsent(owningProcess, newMatches);
+			if (matches == null)
+				matches = newMatches;
+		}
+		return matches;
 	}
 
 	/**
@@ -101,8 +121,8 @@ public class DotProduct extends CompletionHandlingAbstractIterationStrategyNode
 	}
 
 	@Override
-	protected  void cleanUp(String owningProcess) {
-		ownerToCache.remove(owningProcess);
+	protected void cleanUp(String owningProcess) {
+		ownerToMatches.remove(owningProcess);
 	}
 
 	@Override
@@ -119,4 +139,17 @@ public class DotProduct extends CompletionHandlingAbstractIterationStrategyNode
 						"Mismatched input types for dot product node");
 		return depth;
 	}
+
+	/**
+	 * The jobs received so far for one index, one slot per input
+	 */
+	private static final class Match {
+		private final Job[] jobs;
+		private int missing;
+
+		private Match(int inputs) {
+			jobs = new Job[inputs];
+			missing = inputs;
+		}
+	}
 }
@@ -0,0 +1,74 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.iteration;
+
+import static java.util.Collections.unmodifiableMap;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.taverna.reference.T2Reference;
+
+/**
+ * Read only view of the data of two jobs combined by a {@link CrossProduct},
+ * the second taking precedence where both have a value for the same name.
+ * <p>
+ * Lookups go to the two maps, the combined map is only built if the entries
+ * are asked for, so the jobs emitted by a cross product don't each carry a
+ * copy of the data of all their inputs until they are invoked.
+ */
+final class MergedDataMap extends AbstractMap<String, T2Reference> {
+	private final Map<String, T2Reference> first;
+	private final Map<String, T2Reference> second;
+	private volatile Map<String, T2Reference> merged;
+
+	MergedDataMap(Map<String, T2Reference> first,
+			Map<String, T2Reference> second) {
+		this.first = first;
+		this.second = second;
+	}
+
+	@Override
+	public T2Reference get(Object key) {
+		T2Reference value = second.get(key);
+		if (value == null)
+			value = first.get(key);
+		return value;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return second.containsKey(key) || first.containsKey(key);
+	}
+
+	@Override
+	public Set<Entry<String, T2Reference>> entrySet() {
+		Map<String, T2Reference> result = merged;
+		if (result == null) {
+			Map<String, T2Reference> copy = new HashMap<>(first);
+			copy.putAll(second);
+			result = unmodifiableMap(copy);
+			merged = result;
+		}
+		return result.entrySet();
+	}
+}
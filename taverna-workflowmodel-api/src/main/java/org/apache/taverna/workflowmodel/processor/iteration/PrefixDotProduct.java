@@ -19,11 +19,14 @@
 
 package org.apache.taverna.workflowmodel.processor.iteration;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.taverna.invocation.TreeCache;
+import org.apache.taverna.invocation.IterationIndex;
+import org.apache.taverna.invocation.RunScopedMap;
 import org.apache.taverna.reference.T2Reference;
 import org.apache.taverna.workflowmodel.processor.activity.Job;
 
@@ -31,80 +34,126 @@ import org.apache.taverna.workflowmodel.processor.activity.Job;
  * Matches jobs where the index array of the job on index 0 is the prefix of the
  * index array of the job on index 1. This node can only ever have exactly two
  * child nodes!
+ * <p>
+ * Jobs are matched through hash maps keyed by the index of the job on index 0,
+ * guarded by a lock per owning process which is only held while looking up and
+ * storing jobs, not while pushing the matched jobs.
  * 
  * @author Tom Oinn
  */
 @SuppressWarnings("serial")
 public class PrefixDotProduct extends DotProduct {
+	private final RunScopedMap<PrefixMatches> ownerToMatches = new RunScopedMap<>();
+
 	@Override
-	protected synchronized final void cleanUp(String owningProcess) {
-		ownerToCache.remove(owningProcess);
+	protected final void cleanUp(String owningProcess) {
+		ownerToMatches.remove(owningProcess);
 	}
 
 	@Override
 	public void innerReceiveJob(int inputIndex, Job newJob) {
-		String owningProcess = newJob.getOwningProcess();
-		TreeCache[] caches;
-		synchronized (ownerToCache) {
-			caches = ownerToCache.get(owningProcess);
-			// Create the caches if not already initialized
-			if (caches == null) {
-				caches = new TreeCache[getChildCount()];
-				for (int i = 0; i < getChildCount(); i++)
-					caches[i] = new TreeCache();
-				ownerToCache.put(owningProcess, caches);
-			}
-		}
-
-		// Store the job
-		caches[inputIndex].insertJob(newJob);
+		PrefixMatches matches = matchesFor(newJob.getOwningProcess());
 
 		/*
-		 * If this job came in on index 0 we have to find all jobs in the cache
-		 * for index 1 which have the index array as a prefix. Fortunately this
-		 * is quite easy due to the tree structure of the cache, we can just ask
-		 * for all nodes in the cache with that index.
+		 * If this job came in on index 0 we have to find all jobs received on
+		 * index 1 which have the index array as a prefix, they are removed so
+		 * that they can't be matched twice.
 		 */
-		if (inputIndex == 0) {
-			int[] prefixIndexArray = newJob.getIndex();
-			List<Job> matchingJobs;
-			synchronized (caches[1]) {
-				// Match all jobs and remove them so other calls can't produce
-				// duplicates
-				matchingJobs = caches[1].jobsWithPrefix(prefixIndexArray);
-				caches[1].cut(prefixIndexArray);
-			}
-			for (Job job : matchingJobs) {
-				Map<String, T2Reference> newDataMap = new HashMap<>();
-				newDataMap.putAll(newJob.getData());
-				newDataMap.putAll(job.getData());
-				Job mergedJob = new Job(owningProcess, job.getIndex(),
-						newDataMap, newJob.getContext());
-				pushJob(mergedJob);
-			}
-		}
+		if (inputIndex == 0)
+			for (Job job : matches.addPrefixJob(newJob))
+				pushJob(merge(newJob, job));
 
 		/*
 		 * If the job came in on index 1 we have to find the job on index 0 that
 		 * matches the first 'n' indices, where 'n' is determined by the depth
-		 * of jobs on the cache for index 0.
+		 * of jobs on index 0, or keep it until that job arrives.
 		 */
 		else if (inputIndex == 1) {
-			// Only act if we've received jobs on the cache at index 0
-			if (caches[0].getIndexLength() > 0) {
-				int[] prefix = new int[caches[0].getIndexLength()];
-				for (int i = 0; i < prefix.length; i++)
-					prefix[i] = newJob.getIndex()[i];
-				Job j = caches[0].get(prefix);
-				if (j != null) {
-					Map<String, T2Reference> newDataMap = new HashMap<>();
-					newDataMap.putAll(j.getData());
-					newDataMap.putAll(newJob.getData());
-					Job mergedJob = new Job(owningProcess, newJob.getIndex(),
-							newDataMap, newJob.getContext());
-					pushJob(mergedJob);
-				}
+			Job prefixJob = matches.addJob(newJob);
+			if (prefixJob != null)
+				pushJob(merge(prefixJob, newJob));
+		}
+	}
+
+	private Job merge(Job prefixJob, Job job) {
+		Map<String, T2Reference> newDataMap = new HashMap<>();
+		newDataMap.putAll(prefixJob.getData());
+		newDataMap.putAll(job.getData());
+		return new Job(job.getOwningProcessIdentifier(),
+				job.getIterationIndex(), newDataMap, job.getContext());
+	}
+
+	private PrefixMatches matchesFor(String owningProcess) {
+		PrefixMatches matches = ownerToMatches.get(owningProcess);
+		if (matches == null) {
+			PrefixMatches newMatches = new PrefixMatches();
+			matches = ownerToMatches.putIfAbsent(owningProcess, newMatches);
+			if (matches == null)
+				matches = newMatches;
+		}
+		return matches;
+	}
+
+	/**
+	 * The jobs received for one owning process
+	 */
+	private static final class PrefixMatches {
+		/** Length of the index of the jobs on index 0, -1 until one arrives */
+		private int prefixLength = -1;
+		private final Map<IterationIndex, Job> prefixJobs = new HashMap<>();
+		/** Jobs on index 1 waiting for their prefix job, by prefix */
+		private final Map<IterationIndex, List<Job>> waiting = new HashMap<>();
+		/** Jobs on index 1 received before the prefix length was known */
+		private List<Job> unsorted = new ArrayList<>();
+
+		/**
+		 * Store a job received on index 0, returning the jobs waiting for it.
+		 */
+		private synchronized List<Job> addPrefixJob(Job job) {
+			IterationIndex index = job.getIterationIndex();
+			if (prefixLength < 0) {
+				prefixLength = index.length();
+				for (Job waitingJob : unsorted)
+					addWaiting(waitingJob);
+				unsorted = null;
+			}
+			prefixJobs.put(index, job);
+			List<Job> matched = waiting.remove(index);
+			if (matched == null)
+				return Collections.emptyList();
+			return matched;
+		}
+
+		/**
+		 * Return the job on index 0 matching a job received on index 1, or
+		 * store the job until it arrives.
+		 */
+		private synchronized Job addJob(Job job) {
+			if (prefixLength < 0) {
+				unsorted.add(job);
+				return null;
+			}
+			IterationIndex index = job.getIterationIndex();
+			if (index.length() < prefixLength)
+				return null;
+			Job prefixJob = prefixJobs.get(index.prefix(prefixLength));
+			if (prefixJob == null)
+				addWaiting(job);
+			return prefixJob;
+		}
+
+		private void addWaiting(Job job) {
+			IterationIndex index = job.getIterationIndex();
+			if (index.length() < prefixLength)
+				// Can never be matched
+				return;
+			IterationIndex prefix = index.prefix(prefixLength);
+			List<Job> jobs = waiting.get(prefix);
+			if (jobs == null) {
+				jobs = new ArrayList<>();
+				waiting.put(prefix, jobs);
 			}
+			jobs.add(job);
 		}
 	}
 }
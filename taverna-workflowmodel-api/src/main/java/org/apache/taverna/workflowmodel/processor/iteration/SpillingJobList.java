@@ -0,0 +1,265 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.iteration;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.IterationIndex;
+import org.apache.taverna.invocation.ProcessIdentifier;
+import org.apache.taverna.reference.ReferenceService;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.workflowmodel.processor.activity.Job;
+
+/**
+ * Append only list of the jobs received on one input of a
+ * {@link CrossProduct} for one owning process.
+ * <p>
+ * Once more than <code>spillThreshold</code> jobs are held in memory they are
+ * written to a temporary file, keeping only the index and the string form of
+ * the references of each job. The jobs are read back, with the references
+ * parsed by the {@link ReferenceService} of the invocation context, every time
+ * the list is iterated over. Jobs without a reference service in their context
+ * are never spilled.
+ * <p>
+ * Jobs may be added while cursors over the list are open, the cursors reading
+ * the jobs under the lock of the list.
+ */
+final class SpillingJobList {
+	private static Logger logger = Logger.getLogger(SpillingJobList.class);
+
+	private final int spillThreshold;
+	private final List<Job> jobs = new ArrayList<>();
+	private ProcessIdentifier owner;
+	private InvocationContext context;
+	private File spillFile;
+	private DataOutputStream spillOut;
+	private int spilled = 0;
+	private int cleared = 0;
+	private boolean canSpill;
+
+	/**
+	 * @param spillThreshold
+	 *            number of jobs to hold in memory before writing them to disk,
+	 *            or 0 to never write to disk
+	 */
+	SpillingJobList(int spillThreshold) {
+		this.spillThreshold = spillThreshold;
+		canSpill = spillThreshold > 0;
+	}
+
+	synchronized void add(Job job) {
+		if (owner == null) {
+			owner = job.getOwningProcessIdentifier();
+			context = job.getContext();
+			canSpill &= context != null
+					&& context.getReferenceService() != null;
+		}
+		if (canSpill && jobs.size() >= spillThreshold)
+			spill();
+		jobs.add(job);
+	}
+
+	synchronized int size() {
+		return spilled + jobs.size();
+	}
+
+	/**
+	 * Return the number of jobs written to disk.
+	 */
+	synchronized int getSpilled() {
+		return spilled;
+	}
+
+	/**
+	 * Forget all the jobs, deleting the file they were spilled to. Open
+	 * cursors have no more jobs.
+	 */
+	synchronized void clear() {
+		jobs.clear();
+		spilled = 0;
+		cleared++;
+		if (spillFile != null) {
+			closeQuietly(spillOut);
+			if (!spillFile.delete())
+				logger.warn("Could not delete " + spillFile);
+			spillOut = null;
+			spillFile = null;
+		}
+	}
+
+	/**
+	 * Return a cursor over the jobs added so far. The cursor must be closed
+	 * once done with.
+	 */
+	synchronized Cursor cursor() {
+		return new Cursor(size());
+	}
+
+	/**
+	 * Return a cursor over the first <code>size</code> jobs added, which may
+	 * be stepped through while more jobs are added. The cursor must be closed
+	 * once done with.
+	 */
+	synchronized Cursor cursor(int size) {
+		return new Cursor(size);
+	}
+
+	private void spill() {
+		try {
+			if (spillFile == null) {
+				spillFile = File.createTempFile("taverna-crossproduct", ".jobs");
+				spillOut = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(spillFile)));
+				logger.debug("Spilling jobs of " + owner + " to " + spillFile);
+			}
+			for (Job job : jobs)
+				write(job);
+			// Open cursors read the spilled jobs from the file
+			spillOut.flush();
+			spilled += jobs.size();
+			jobs.clear();
+		} catch (IOException e) {
+			logger.warn("Could not spill jobs of " + owner
+					+ " to disk, keeping them in memory", e);
+			canSpill = false;
+		}
+	}
+
+	private void write(Job job) throws IOException {
+		IterationIndex index = job.getIterationIndex();
+		spillOut.writeInt(index.length());
+		for (int i = 0; i < index.length(); i++)
+			spillOut.writeInt(index.get(i));
+		Map<String, T2Reference> data = job.getData();
+		spillOut.writeInt(data.size());
+		for (Entry<String, T2Reference> entry : data.entrySet()) {
+			spillOut.writeUTF(entry.getKey());
+			spillOut.writeUTF(entry.getValue().toString());
+		}
+	}
+
+	private Job read(DataInputStream in) throws IOException {
+		int[] index = new int[in.readInt()];
+		for (int i = 0; i < index.length; i++)
+			index[i] = in.readInt();
+		int size = in.readInt();
+		Map<String, T2Reference> data = new HashMap<>();
+		ReferenceService referenceService = context.getReferenceService();
+		for (int i = 0; i < size; i++) {
+			String name = in.readUTF();
+			data.put(name, referenceService.referenceFromString(in.readUTF()));
+		}
+		return new Job(owner, IterationIndex.valueOf(index), data, context);
+	}
+
+	private static void skip(DataInputStream in) throws IOException {
+		in.skipBytes(4 * in.readInt());
+		for (int size = in.readInt(); size > 0; size--) {
+			in.readUTF();
+			in.readUTF();
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			logger.warn("Could not close " + closeable, e);
+		}
+	}
+
+	/**
+	 * Iterator over the first jobs of the list, reading the spilled jobs from
+	 * disk as it goes. Jobs spilled after the cursor stepped over them are
+	 * skipped in the file.
+	 */
+	final class Cursor implements Iterator<Job>, Closeable {
+		private final int size;
+		private final int clearedWhenCreated = cleared;
+		private DataInputStream in;
+		private int read = 0;
+		private int position = 0;
+
+		private Cursor(int size) {
+			this.size = size;
+		}
+
+		@Override
+		public boolean hasNext() {
+			synchronized (SpillingJobList.this) {
+				return position < size && cleared == clearedWhenCreated;
+			}
+		}
+
+		@Override
+		public Job next() {
+			synchronized (SpillingJobList.this) {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				if (position >= spilled)
+					return jobs.get(position++ - spilled);
+				try {
+					if (in == null)
+						in = new DataInputStream(new BufferedInputStream(
+								new FileInputStream(spillFile)));
+					for (; read < position; read++)
+						skip(in);
+					Job job = read(in);
+					read++;
+					position++;
+					return job;
+				} catch (IOException e) {
+					throw new IllegalStateException(
+							"Could not read jobs spilled to " + spillFile, e);
+				}
+			}
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {
+			if (in != null) {
+				closeQuietly(in);
+				in = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.invocation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+
+public class TestConcurrencyGovernor {
+	private final List<String> started = new ArrayList<>();
+	/** Runs granted requests straight away, to keep the tests sequential */
+	private final Executor direct = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private Runnable start(final String name) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				started.add(name);
+			}
+		};
+	}
+
+	@Test
+	public void unlimitedGrantsStraightAway() {
+		ConcurrencyGovernor governor = new ConcurrencyGovernor(0, 0, direct);
+		for (int i = 0; i < 100; i++)
+			governor.acquire("run", null, 0, start("job" + i));
+		assertEquals(100, started.size());
+		assertEquals(100, governor.getInFlight());
+		assertEquals(0, governor.getWaiting());
+	}
+
+	@Test
+	public void limitPerRun() {
+		ConcurrencyGovernor governor = new ConcurrencyGovernor(0, 2, direct);
+		governor.acquire("a", null, 0, start("a1"));
+		governor.acquire("a", null, 0, start("a2"));
+		governor.acquire("a", null, 0, start("a3"));
+		governor.acquire("b", null, 0, start("b1"));
+		assertEquals(3, started.size());
+		assertEquals(1, governor.getWaiting());
+		assertEquals(2, governor.getInFlight("a"));
+
+		governor.release("a", null);
+		assertEquals(4, started.size());
+		assertEquals("a3", started.get(3));
+		assertEquals(2, governor.getInFlight("a"));
+	}
+
+	@Test
+	public void fairBetweenRuns() {
+		ConcurrencyGovernor governor = new ConcurrencyGovernor(1, 0, direct);
+		governor.acquire("big", null, 0, start("big0"));
+		for (int i = 1; i <= 5; i++)
+			governor.acquire("big", null, 0, start("big" + i));
+		governor.acquire("small", null, 0, start("small1"));
+		governor.acquire("small", null, 0, start("small2"));
+		assertEquals(1, started.size());
+
+		// each release hands the single permit to the other run in turn,
+		// despite the backlog of "big"
+		governor.release("big", null);
+		assertEquals("big1", started.get(1));
+		governor.release("big", null);
+		assertEquals("small1", started.get(2));
+		governor.release("small", null);
+		assertEquals("big2", started.get(3));
+		governor.release("big", null);
+		assertEquals("small2", started.get(4));
+	}
+
+	@Test
+	public void limitPerActivityType() {
+		ConcurrencyGovernor governor = new ConcurrencyGovernor(0, 0, direct);
+		governor.acquire("a", "wsdl", 1, start("a1"));
+		governor.acquire("b", "wsdl", 1, start("b1"));
+		governor.acquire("b", "beanshell", 1, start("b2"));
+		assertEquals(1, started.size());
+		assertEquals(2, governor.getWaiting());
+
+		governor.release("a", "wsdl");
+		assertEquals(3, started.size());
+		assertEquals("b1", started.get(1));
+		assertEquals("b2", started.get(2));
+	}
+
+	@Test
+	public void activityLimitKeptFromFirstRequest() {
+		ConcurrencyGovernor governor = new ConcurrencyGovernor(0, 0, direct);
+		governor.acquire("a", "wsdl", 1, start("a1"));
+		// A processor asking with another limit doesn't replace it
+		governor.acquire("b", "wsdl", 3, start("b1"));
+		assertEquals(1, started.size());
+		governor.acquire("c", "wsdl", 0, start("c1"));
+		assertEquals(1, started.size());
+		assertEquals(2, governor.getWaiting());
+	}
+
+	@Test
+	public void raisingLimitsGrantsWaiting() {
+		ConcurrencyGovernor governor = new ConcurrencyGovernor(1, 0, direct);
+		governor.acquire("a", null, 0, start("a1"));
+		governor.acquire("a", null, 0, start("a2"));
+		assertEquals(1, started.size());
+		governor.setLimits(0, 0);
+		assertEquals(2, started.size());
+	}
+
+	@Test
+	public void grantedOnExecutorNotReleasingThread() {
+		final List<Runnable> handedOver = new ArrayList<>();
+		ConcurrencyGovernor governor = new ConcurrencyGovernor(1, 0,
+				new Executor() {
+					@Override
+					public void execute(Runnable command) {
+						handedOver.add(command);
+					}
+				});
+		governor.acquire("a", null, 0, start("a1"));
+		governor.acquire("a", null, 0, start("a2"));
+		governor.release("a", null);
+		assertEquals(1, started.size());
+		assertEquals(1, handedOver.size());
+		handedOver.get(0).run();
+		assertEquals("a2", started.get(1));
+	}
+}
@@ -0,0 +1,195 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.invocation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test {@link InvocationExecutor}.
+ */
+public class TestInvocationExecutor {
+	private InvocationExecutor executor;
+
+	@Before
+	public void createExecutor() {
+		executor = new InvocationExecutor(
+				InvocationExecutor.createPlatformThreadExecutor(2), false, 2);
+	}
+
+	@After
+	public void shutdownExecutor() {
+		executor.shutdown();
+	}
+
+	@Test
+	public void setsContextClassLoader() throws Exception {
+		final ClassLoader classLoader = new URLClassLoader(new URL[0]);
+		final AtomicReference<ClassLoader> seen = new AtomicReference<>();
+		final CountDownLatch done = new CountDownLatch(1);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				seen.set(Thread.currentThread().getContextClassLoader());
+				done.countDown();
+			}
+		}, classLoader, new FailingHandler());
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertSame(classLoader, seen.get());
+	}
+
+	@Test
+	public void uncaughtExceptionIsReported() throws Exception {
+		final RuntimeException failure = new RuntimeException("Expected");
+		final AtomicReference<Throwable> seen = new AtomicReference<>();
+		final CountDownLatch done = new CountDownLatch(1);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				throw failure;
+			}
+		}, null, new UncaughtExceptionHandler() {
+			@Override
+			public void uncaughtException(Thread t, Throwable e) {
+				seen.set(e);
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertSame(failure, seen.get());
+		assertEquals(1, executor.getFailedCount());
+	}
+
+	@Test
+	public void countsInvocations() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(2);
+		for (int i = 0; i < 3; i++)
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					started.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, null, new FailingHandler());
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		assertEquals(3, executor.getSubmittedCount());
+		assertEquals(2, executor.getActiveCount());
+		assertEquals(1, executor.getQueuedCount());
+		release.countDown();
+		for (int i = 0; i < 50 && executor.getCompletedCount() < 3; i++)
+			Thread.sleep(100);
+		assertEquals(3, executor.getCompletedCount());
+		assertEquals(0, executor.getActiveCount());
+		assertEquals(0, executor.getFailedCount());
+	}
+
+	@Test
+	public void cancelInterruptsInvocation() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch interrupted = new CountDownLatch(1);
+		Future<?> invocation = executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					Thread.sleep(10000);
+				} catch (InterruptedException e) {
+					interrupted.countDown();
+				}
+			}
+		}, null, new FailingHandler());
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		assertTrue(invocation.cancel(true));
+		assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void cancelledBeforeStartingCountsAsCompleted() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(2);
+		Runnable blocking = new Runnable() {
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		executor.execute(blocking, null, new FailingHandler());
+		executor.execute(blocking, null, new FailingHandler());
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		Future<?> queued = executor.execute(blocking, null,
+				new FailingHandler());
+		assertEquals(1, executor.getQueuedCount());
+		queued.cancel(false);
+		assertEquals(0, executor.getQueuedCount());
+		assertEquals(1, executor.getCompletedCount());
+		release.countDown();
+	}
+
+	@Test
+	public void platformExecutorIfRequested() throws Exception {
+		String previous = System.getProperty(InvocationExecutor.EXECUTOR_PROPERTY);
+		System.setProperty(InvocationExecutor.EXECUTOR_PROPERTY,
+				InvocationExecutor.PLATFORM);
+		try {
+			InvocationExecutor platform = InvocationExecutor.createDefault();
+			assertFalse(platform.isVirtualThreads());
+			assertEquals(InvocationExecutor.DEFAULT_MAX_THREADS,
+					platform.getMaxThreads());
+			platform.shutdown();
+		} finally {
+			if (previous == null)
+				System.clearProperty(InvocationExecutor.EXECUTOR_PROPERTY);
+			else
+				System.setProperty(InvocationExecutor.EXECUTOR_PROPERTY,
+						previous);
+		}
+	}
+
+	private static class FailingHandler implements UncaughtExceptionHandler {
+		@Override
+		public void uncaughtException(Thread t, Throwable e) {
+			throw new AssertionError(e);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.invocation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TestIterationIndex {
+	private static IterationIndex appended() {
+		return IterationIndex.valueOf(1, 2).append(IterationIndex.valueOf(3))
+				.append(4, 5);
+	}
+
+	@Test
+	public void appendedAsArray() {
+		IterationIndex index = appended();
+		assertEquals(5, index.length());
+		assertArrayEquals(new int[] { 1, 2, 3, 4, 5 }, index.toArray());
+		for (int i = 0; i < 5; i++)
+			assertEquals(i + 1, index.get(i));
+		assertEquals("[1, 2, 3, 4, 5]", index.toString());
+	}
+
+	@Test
+	public void hashAsArrays() {
+		int[] flat = new int[] { 1, 2, 3, 4, 5 };
+		assertEquals(Arrays.hashCode(flat), appended().hashCode());
+		assertEquals(IterationIndex.valueOf(flat), appended());
+		assertEquals(Arrays.hashCode(new int[0]),
+				IterationIndex.EMPTY.hashCode());
+		assertFalse(appended().equals(IterationIndex.valueOf(1, 2, 3, 5, 4)));
+	}
+
+	@Test
+	public void emptyAppendsShareIndex() {
+		IterationIndex index = IterationIndex.valueOf(7, 8);
+		assertSame(index, index.append(IterationIndex.EMPTY));
+		assertSame(index, IterationIndex.EMPTY.append(index));
+		assertSame(IterationIndex.EMPTY, IterationIndex.valueOf());
+	}
+
+	@Test
+	public void prefixShared() {
+		IterationIndex head = IterationIndex.valueOf(1, 2);
+		IterationIndex index = head.append(3).append(4);
+		assertSame(head, index.prefix(2));
+		assertEquals(IterationIndex.valueOf(1), index.prefix(1));
+		assertEquals(IterationIndex.valueOf(1, 2, 3), index.prefix(3));
+		assertSame(index, index.prefix(4));
+		assertSame(IterationIndex.EMPTY, index.prefix(0));
+	}
+
+	@Test
+	public void startsWith() {
+		IterationIndex head = IterationIndex.valueOf(1, 2);
+		IterationIndex index = head.append(3, 4);
+		assertTrue(index.startsWith(head));
+		assertTrue(index.startsWith(IterationIndex.valueOf(1, 2)));
+		assertTrue(index.startsWith(IterationIndex.valueOf(1)));
+		assertTrue(index.startsWith(IterationIndex.valueOf(1, 2, 3)));
+		assertTrue(index.startsWith(IterationIndex.EMPTY));
+		assertTrue(index.startsWith(index));
+		assertFalse(index.startsWith(IterationIndex.valueOf(1, 3)));
+		assertFalse(head.startsWith(index));
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void getOutOfBounds() {
+		appended().get(5);
+	}
+}
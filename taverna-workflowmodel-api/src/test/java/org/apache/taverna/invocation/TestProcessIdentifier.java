@@ -0,0 +1,110 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.invocation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class TestProcessIdentifier {
+	@Test
+	public void roundTripsStrings() {
+		for (String s : new String[] { "", "facade0", "facade0:dataflow",
+				"facade0:dataflow:proc:0,1", "a::b", ":a", "a:" })
+			assertEquals(s, ProcessIdentifier.valueOf(s).toString());
+	}
+
+	@Test
+	public void parentsParsedWhenNeeded() {
+		ProcessIdentifier id = ProcessIdentifier.valueOf("facade0:dataflow:proc");
+		assertEquals(id,
+				ProcessIdentifier.valueOf(new String("facade0:dataflow:proc")));
+		assertEquals(3, id.getDepth());
+		assertEquals("proc", id.getLocalName());
+		assertEquals(ProcessIdentifier.valueOf("facade0:dataflow"),
+				id.getParent());
+		assertSame(id.getParent(), id.pop());
+		assertEquals("facade0", id.pop().pop().toString());
+		assertSame(ProcessIdentifier.ROOT, id.pop().pop().pop());
+		assertSame(ProcessIdentifier.ROOT, ProcessIdentifier.valueOf(""));
+		assertEquals(1, ProcessIdentifier.valueOf(":a").pop().getDepth());
+	}
+
+	@Test
+	public void pushAndPop() {
+		ProcessIdentifier parent = ProcessIdentifier.valueOf("facade0:dataflow");
+		ProcessIdentifier pushed = parent.push("proc");
+		assertEquals("facade0:dataflow:proc", pushed.toString());
+		assertEquals("proc", pushed.getLocalName());
+		assertEquals(3, pushed.getDepth());
+		assertSame(parent, pushed.pop());
+		assertEquals("facade0", ProcessIdentifier.ROOT.push("facade0")
+				.toString());
+		assertSame(ProcessIdentifier.ROOT, ProcessIdentifier.ROOT.push(""));
+		assertNull(ProcessIdentifier.ROOT.getParent());
+	}
+
+	@Test(expected = ProcessIdentifierException.class)
+	public void popRoot() {
+		ProcessIdentifier.ROOT.pop();
+	}
+
+	@Test(expected = ProcessIdentifierException.class)
+	public void pushColon() {
+		ProcessIdentifier.valueOf("facade0").push("a:b");
+	}
+
+	@Test
+	public void pushedEqualsParsed() {
+		ProcessIdentifier pushed = ProcessIdentifier.valueOf("facade0")
+				.push("dataflow").push("proc");
+		ProcessIdentifier parsed = ProcessIdentifier
+				.valueOf("facade0:dataflow:proc");
+		assertEquals(parsed, pushed);
+		assertEquals(parsed.hashCode(), pushed.hashCode());
+		assertFalse(parsed.equals(ProcessIdentifier
+				.valueOf("facade0:dataflow:proc2")));
+		assertFalse(parsed.equals(ProcessIdentifier.valueOf("facade0:dataflow")));
+	}
+
+	@Test
+	public void pushedIndex() {
+		IterationIndex index = IterationIndex.valueOf(2, 0, 5);
+		ProcessIdentifier pushed = ProcessIdentifier.valueOf("facade0:proc")
+				.pushIndex(index);
+		assertEquals("facade0:proc:2,0,5", pushed.toString());
+		assertSame(index, pushed.getPushedIndex());
+		assertEquals(index, ProcessIdentifier.valueOf("facade0:proc:2,0,5")
+				.getPushedIndex());
+		assertEquals(ProcessIdentifier.valueOf("facade0:proc:2,0,5"), pushed);
+	}
+
+	@Test
+	public void toArrayAsSplit() {
+		for (String s : new String[] { "", "facade0", "facade0:dataflow:proc",
+				"a::b" })
+			assertArrayEquals(s.split(":"), ProcessIdentifier.valueOf(s)
+					.toArray());
+	}
+}
@@ -0,0 +1,108 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.invocation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TestRunScope {
+	private RunScopedMap<String> map = new RunScopedMap<>();
+
+	@Test
+	public void runName() {
+		assertEquals("facade0", RunScope.runName("facade0"));
+		assertEquals("facade0", RunScope.runName("facade0:dataflow:proc"));
+	}
+
+	@Test
+	public void entriesHeldPerRun() {
+		map.put("scopeA:dataflow:proc", "a");
+		map.put("scopeA:dataflow:proc:facade1:nested:proc", "nested");
+		map.put("scopeB:dataflow:proc", "b");
+		assertEquals("a", map.get("scopeA:dataflow:proc"));
+		assertEquals(2, map.size("scopeA"));
+		assertEquals(1, map.size("scopeB"));
+		assertSame(RunScope.forRun("scopeA"),
+				RunScope.forProcess("scopeA:dataflow:proc"));
+
+		assertTrue(RunScope.release("scopeA"));
+		assertNull(map.get("scopeA:dataflow:proc"));
+		assertEquals(0, map.size("scopeA"));
+		assertEquals("b", map.get("scopeB:dataflow:proc"));
+		assertTrue(RunScope.release("scopeB"));
+		assertFalse(RunScope.release("scopeB"));
+	}
+
+	@Test
+	public void readsDoNotCreateScopes() {
+		int open = RunScope.getOpenCount();
+		assertNull(map.get("scopeC:dataflow:proc"));
+		assertNull(map.remove("scopeC:dataflow:proc"));
+		assertFalse(map.containsKey("scopeC:dataflow:proc"));
+		assertNull(RunScope.find("scopeC"));
+		assertEquals(open, RunScope.getOpenCount());
+	}
+
+	@Test
+	public void removeBeforeRelease() {
+		map.put("scopeD:dataflow:proc", "d");
+		assertFalse(map.remove("scopeD:dataflow:proc", "other"));
+		assertTrue(map.remove("scopeD:dataflow:proc", "d"));
+		assertNull(map.putIfAbsent("scopeD:dataflow:proc", "e"));
+		assertEquals("e", map.putIfAbsent("scopeD:dataflow:proc", "f"));
+		RunScope.release("scopeD");
+	}
+
+	@Test
+	public void releasableValuesReleasedOnce() {
+		final AtomicInteger released = new AtomicInteger();
+		RunScopedMap<RunScope.Releasable> releasables = new RunScopedMap<>();
+		releasables.put("scopeE:dataflow:proc", new RunScope.Releasable() {
+			@Override
+			public void release() {
+				released.incrementAndGet();
+			}
+		});
+		RunScope.release("scopeE");
+		RunScope.release("scopeE");
+		assertEquals(1, released.get());
+	}
+
+	@Test
+	public void lateEventsDoNotReopenScope() {
+		map.put("scopeF:dataflow:proc", "f");
+		RunScope scope = RunScope.forRun("scopeF");
+		int open = RunScope.getOpenCount();
+		RunScope.release("scopeF");
+		assertTrue(scope.isReleased());
+		assertEquals(open - 1, RunScope.getOpenCount());
+
+		map.put("scopeF:dataflow:proc", "late");
+		assertSame(scope, RunScope.forRun("scopeF"));
+		assertEquals(open - 1, RunScope.getOpenCount());
+	}
+}
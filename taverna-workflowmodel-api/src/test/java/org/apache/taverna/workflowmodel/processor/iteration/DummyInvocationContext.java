@@ -0,0 +1,58 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.iteration;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.provenance.reporter.ProvenanceReporter;
+import org.apache.taverna.reference.ReferenceService;
+
+/**
+ * Invocation context for the iteration strategy node tests, with no entities
+ * and no provenance reporter.
+ */
+class DummyInvocationContext implements InvocationContext {
+	private final ReferenceService referenceService;
+
+	DummyInvocationContext(ReferenceService referenceService) {
+		this.referenceService = referenceService;
+	}
+
+	@Override
+	public <T> List<T> getEntities(Class<T> entityType) {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public void addEntity(Object entity) {
+	}
+
+	@Override
+	public ReferenceService getReferenceService() {
+		return referenceService;
+	}
+
+	@Override
+	public ProvenanceReporter getProvenanceReporter() {
+		return null;
+	}
+}
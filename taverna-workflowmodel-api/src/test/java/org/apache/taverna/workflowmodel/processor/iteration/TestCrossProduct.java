@@ -0,0 +1,376 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.iteration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.taverna.invocation.Completion;
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.reference.ReferenceService;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.reference.T2ReferenceType;
+import org.apache.taverna.workflowmodel.processor.activity.Job;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCrossProduct {
+	private static final String OWNER = "facade0:dataflow:proc";
+
+	private CrossProduct crossProduct;
+	private CollectingTerminalNode terminal;
+	private InvocationContext context = new DummyInvocationContext(
+			parsingReferenceService());
+
+	@Before
+	public void makeNodes() {
+		terminal = new CollectingTerminalNode();
+		crossProduct = new CrossProduct();
+		terminal.insert(crossProduct);
+		crossProduct.insert(new NamedInputPortNode("a", 0));
+		crossProduct.insert(new NamedInputPortNode("b", 0));
+	}
+
+	private Job job(String name, int... index) {
+		return new Job(OWNER, index, Collections.<String, T2Reference> singletonMap(
+				name, new DummyReference(name + Arrays.toString(index))), context);
+	}
+
+	@Test
+	public void combinesAllAgainstAll() {
+		crossProduct.receiveJob(0, job("a", 0));
+		assertEquals(0, terminal.jobs.size());
+		crossProduct.receiveJob(1, job("b", 0));
+		crossProduct.receiveJob(1, job("b", 1));
+		crossProduct.receiveJob(0, job("a", 1));
+		assertEquals(4, terminal.jobs.size());
+		Set<String> indices = new HashSet<>();
+		for (Job job : terminal.jobs) {
+			indices.add(Arrays.toString(job.getIndex()));
+			assertEquals(2, job.getData().size());
+			assertEquals(new DummyReference("a[" + job.getIndex()[0] + "]"),
+					job.getData().get("a"));
+			assertEquals(new DummyReference("b[" + job.getIndex()[1] + "]"),
+					job.getData().get("b"));
+		}
+		assertEquals(new HashSet<>(Arrays.asList("[0, 0]", "[0, 1]", "[1, 0]",
+				"[1, 1]")), indices);
+	}
+
+	@Test
+	public void threeInputsInInputOrder() {
+		crossProduct.insert(new NamedInputPortNode("c", 0));
+		crossProduct.receiveJob(2, job("c", 0));
+		crossProduct.receiveJob(2, job("c", 1));
+		crossProduct.receiveJob(0, job("a", 0));
+		crossProduct.receiveJob(0, job("a", 1));
+		crossProduct.receiveJob(0, job("a", 2));
+		assertEquals(0, terminal.jobs.size());
+		crossProduct.receiveJob(1, job("b", 7));
+		assertEquals(6, terminal.jobs.size());
+		List<String> indices = new ArrayList<>();
+		for (Job job : terminal.jobs)
+			indices.add(Arrays.toString(job.getIndex()));
+		assertEquals(Arrays.asList("[0, 7, 0]", "[0, 7, 1]", "[1, 7, 0]",
+				"[1, 7, 1]", "[2, 7, 0]", "[2, 7, 1]"), indices);
+	}
+
+	@Test
+	public void completionAfterAllInputsComplete() {
+		crossProduct.receiveJob(0, job("a", 0));
+		crossProduct.receiveJob(1, job("b", 0));
+		crossProduct.receiveCompletion(0, new Completion(OWNER, new int[0],
+				context));
+		assertEquals(0, terminal.completions.size());
+		crossProduct.receiveJob(1, job("b", 1));
+		crossProduct.receiveCompletion(1, new Completion(OWNER, new int[0],
+				context));
+		assertEquals(2, terminal.jobs.size());
+		assertEquals(1, terminal.completions.size());
+	}
+
+	@Test
+	public void spilledJobsCombinedAsInMemory() {
+		crossProduct.setSpillThreshold(2);
+		for (int i = 0; i < 5; i++)
+			crossProduct.receiveJob(0, job("a", i));
+		for (int i = 0; i < 3; i++)
+			crossProduct.receiveJob(1, job("b", i));
+		assertEquals(15, terminal.jobs.size());
+		Set<Map<String, T2Reference>> data = new HashSet<>();
+		for (Job job : terminal.jobs) {
+			assertEquals(new DummyReference("a[" + job.getIndex()[0] + "]"),
+					job.getData().get("a"));
+			data.add(new HashMap<>(job.getData()));
+		}
+		assertEquals(15, data.size());
+		// Deletes the spilled jobs
+		crossProduct.receiveCompletion(0, new Completion(OWNER, new int[0],
+				context));
+		crossProduct.receiveCompletion(1, new Completion(OWNER, new int[0],
+				context));
+		assertEquals(1, terminal.completions.size());
+	}
+
+	@Test
+	public void combinationsHeldBackWithoutRoom() {
+		terminal.room = 2;
+		crossProduct.receiveJob(0, job("a", 0));
+		crossProduct.receiveJob(0, job("a", 1));
+		crossProduct.receiveJob(0, job("a", 2));
+		crossProduct.receiveJob(1, job("b", 0));
+		assertEquals(Arrays.asList("[0, 0]", "[1, 0]"), terminal.indices());
+		assertNotNull(terminal.resume);
+
+		// Later combinations and the final completion wait for them
+		crossProduct.receiveJob(1, job("b", 1));
+		crossProduct.receiveCompletion(0, new Completion(OWNER, new int[0],
+				context));
+		crossProduct.receiveCompletion(1, new Completion(OWNER, new int[0],
+				context));
+		assertEquals(2, terminal.jobs.size());
+		assertEquals(0, terminal.completions.size());
+
+		terminal.room = Integer.MAX_VALUE;
+		terminal.resume();
+		assertEquals(Arrays.asList("[0, 0]", "[1, 0]", "[2, 0]", "[0, 1]",
+				"[1, 1]", "[2, 1]"), terminal.indices());
+		assertEquals(1, terminal.completions.size());
+		assertNull(terminal.resume);
+	}
+
+	@Test
+	public void jobsSpilledWhileHeldBack() {
+		crossProduct.setSpillThreshold(2);
+		terminal.room = 1;
+		for (int i = 0; i < 3; i++)
+			crossProduct.receiveJob(0, job("a", i));
+		crossProduct.receiveJob(1, job("b", 0));
+		assertEquals(1, terminal.jobs.size());
+
+		// Spills the jobs the held back combinations are still to read
+		for (int i = 3; i < 5; i++)
+			crossProduct.receiveJob(0, job("a", i));
+		assertEquals(1, terminal.jobs.size());
+
+		terminal.room = Integer.MAX_VALUE;
+		terminal.resume();
+		crossProduct.receiveJob(1, job("b", 1));
+		assertEquals(Arrays.asList("[0, 0]", "[1, 0]", "[2, 0]", "[3, 0]",
+				"[4, 0]", "[0, 1]", "[1, 1]", "[2, 1]", "[3, 1]", "[4, 1]"),
+				terminal.indices());
+		for (Job job : terminal.jobs)
+			assertEquals(new DummyReference("a[" + job.getIndex()[0] + "]"),
+					job.getData().get("a"));
+	}
+
+	@Test
+	public void spillingJobListKeepsOrder() {
+		SpillingJobList list = new SpillingJobList(3);
+		for (int i = 0; i < 10; i++)
+			list.add(job("a", i, 1));
+		assertEquals(10, list.size());
+		assertEquals(9, list.getSpilled());
+		SpillingJobList.Cursor cursor = list.cursor();
+		try {
+			for (int i = 0; i < 10; i++) {
+				Job job = cursor.next();
+				assertEquals(Arrays.toString(new int[] { i, 1 }),
+						Arrays.toString(job.getIndex()));
+				assertEquals(new DummyReference("a[" + i + ", 1]"), job
+						.getData().get("a"));
+			}
+			assertTrue(!cursor.hasNext());
+		} finally {
+			cursor.close();
+		}
+		list.clear();
+		assertEquals(0, list.size());
+	}
+
+	@Test
+	public void cursorReadsJobsSpilledAfterIt() {
+		SpillingJobList list = new SpillingJobList(2);
+		list.add(job("a", 0));
+		list.add(job("a", 1));
+		SpillingJobList.Cursor cursor = list.cursor(2);
+		try {
+			assertEquals(new DummyReference("a[0]"), cursor.next().getData()
+					.get("a"));
+			// Spills the jobs the cursor is on
+			list.add(job("a", 2));
+			list.add(job("a", 3));
+			list.add(job("a", 4));
+			assertEquals(4, list.getSpilled());
+			assertEquals(new DummyReference("a[1]"), cursor.next().getData()
+					.get("a"));
+			assertTrue(!cursor.hasNext());
+		} finally {
+			cursor.close();
+		}
+		list.clear();
+	}
+
+	@Test
+	public void notSpilledWithoutReferenceService() {
+		context = new DummyInvocationContext(null);
+		SpillingJobList list = new SpillingJobList(1);
+		for (int i = 0; i < 4; i++)
+			list.add(job("a", i));
+		assertEquals(4, list.size());
+		assertEquals(0, list.getSpilled());
+	}
+
+	@SuppressWarnings("serial")
+	private static class CollectingTerminalNode extends TerminalNode {
+		final List<Job> jobs = new ArrayList<>();
+		final List<Completion> completions = new ArrayList<>();
+		int room = Integer.MAX_VALUE;
+		Runnable resume;
+
+		List<String> indices() {
+			List<String> indices = new ArrayList<>();
+			for (Job job : jobs)
+				indices.add(Arrays.toString(job.getIndex()));
+			return indices;
+		}
+
+		void resume() {
+			Runnable resume = this.resume;
+			this.resume = null;
+			resume.run();
+		}
+
+		@Override
+		protected boolean hasRoom(String owningProcess) {
+			return room > 0;
+		}
+
+		@Override
+		protected void resumeWhenRoom(String owningProcess, Runnable resume) {
+			this.resume = resume;
+		}
+
+		@Override
+		public int getIterationDepth(Map<String, Integer> inputDepths)
+				throws IterationTypeMismatchException {
+			return 0;
+		}
+
+		@Override
+		public void receiveCompletion(int inputIndex, Completion completion) {
+			completions.add(completion);
+		}
+
+		@Override
+		public void receiveJob(int inputIndex, Job newJob) {
+			room--;
+			jobs.add(newJob);
+		}
+	}
+
+	private static class DummyReference implements T2Reference {
+		private final String localPart;
+
+		DummyReference(String localPart) {
+			this.localPart = localPart;
+		}
+
+		@Override
+		public T2ReferenceType getReferenceType() {
+			return T2ReferenceType.ReferenceSet;
+		}
+
+		@Override
+		public int getDepth() {
+			return 0;
+		}
+
+		@Override
+		public boolean containsErrors() {
+			return false;
+		}
+
+		@Override
+		public String getNamespacePart() {
+			return "test";
+		}
+
+		@Override
+		public String getLocalPart() {
+			return localPart;
+		}
+
+		@Override
+		public URI toUri() {
+			return URI.create("t2:ref//test?" + localPart);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof DummyReference
+					&& localPart.equals(((DummyReference) other).localPart);
+		}
+
+		@Override
+		public int hashCode() {
+			return localPart.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return localPart;
+		}
+	}
+
+	/**
+	 * Reference service only able to parse references from their string form
+	 */
+	private static ReferenceService parsingReferenceService() {
+		return (ReferenceService) Proxy.newProxyInstance(
+				ReferenceService.class.getClassLoader(),
+				new Class<?>[] { ReferenceService.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("referenceFromString"))
+							return new DummyReference((String) args[0]);
+						throw new UnsupportedOperationException(method
+								.getName());
+					}
+				});
+	}
+}
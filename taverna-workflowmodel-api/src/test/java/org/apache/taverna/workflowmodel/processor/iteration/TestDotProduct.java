@@ -0,0 +1,162 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.iteration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.taverna.invocation.Completion;
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.workflowmodel.processor.activity.Job;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDotProduct {
+	private static final String OWNER = "facade0:dataflow:proc";
+
+	private CollectingTerminalNode terminal;
+	private InvocationContext context = new DummyInvocationContext(null);
+
+	@Before
+	public void makeTerminal() {
+		terminal = new CollectingTerminalNode();
+	}
+
+	private Job job(int... index) {
+		return new Job(OWNER, index,
+				Collections.<String, T2Reference> emptyMap(), context);
+	}
+
+	private DotProduct dotProduct(DotProduct node, int inputs) {
+		terminal.insert(node);
+		for (int i = 0; i < inputs; i++)
+			node.insert(new NamedInputPortNode("in" + i, 0));
+		return node;
+	}
+
+	private List<String> emittedIndices() {
+		List<String> indices = new ArrayList<>();
+		for (Job job : terminal.jobs)
+			indices.add(Arrays.toString(job.getIndex()));
+		return indices;
+	}
+
+	@Test
+	public void matchesSparseOutOfOrderIndices() {
+		DotProduct dot = dotProduct(new DotProduct(), 3);
+		dot.receiveJob(0, job(1000, 3));
+		dot.receiveJob(2, job(5));
+		dot.receiveJob(1, job(1000, 3));
+		assertEquals(0, terminal.jobs.size());
+		dot.receiveJob(2, job(1000, 3));
+		dot.receiveJob(1, job(5));
+		dot.receiveJob(0, job(5));
+		assertEquals(Arrays.asList("[1000, 3]", "[5]"), emittedIndices());
+	}
+
+	@Test
+	public void matchedOnceWhenFedConcurrently() throws Exception {
+		final DotProduct dot = dotProduct(new DotProduct(), 2);
+		final int jobs = 2000;
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			final int input = t % 2;
+			final int offset = t / 2;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = offset; i < jobs; i += 2)
+						dot.receiveJob(input, job(i));
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(jobs, terminal.jobs.size());
+		assertEquals(jobs, new HashSet<>(emittedIndices()).size());
+	}
+
+	@Test
+	public void prefixMatchesEitherOrder() {
+		DotProduct dot = dotProduct(new PrefixDotProduct(), 2);
+		dot.receiveJob(1, job(1, 0));
+		dot.receiveJob(1, job(1, 1));
+		dot.receiveJob(1, job(2, 0));
+		assertEquals(0, terminal.jobs.size());
+		dot.receiveJob(0, job(1));
+		assertEquals(Arrays.asList("[1, 0]", "[1, 1]"), emittedIndices());
+		dot.receiveJob(1, job(1, 2));
+		dot.receiveJob(0, job(2));
+		Set<String> indices = new HashSet<>(emittedIndices());
+		assertEquals(new HashSet<>(Arrays.asList("[1, 0]", "[1, 1]",
+				"[1, 2]", "[2, 0]")), indices);
+		assertEquals(4, terminal.jobs.size());
+	}
+
+	@Test
+	public void completionAfterAllInputsComplete() {
+		DotProduct dot = dotProduct(new DotProduct(), 2);
+		dot.receiveCompletion(0, new Completion(OWNER, new int[0], context));
+		assertNull(terminal.completion);
+		dot.receiveCompletion(1, new Completion(OWNER, new int[0], context));
+		assertEquals(OWNER, terminal.completion.getOwningProcess());
+	}
+
+	@SuppressWarnings("serial")
+	private static class CollectingTerminalNode extends TerminalNode {
+		final List<Job> jobs = Collections.synchronizedList(new ArrayList<Job>());
+		volatile Completion completion;
+
+		@Override
+		public int getIterationDepth(Map<String, Integer> inputDepths)
+				throws IterationTypeMismatchException {
+			return 0;
+		}
+
+		@Override
+		public void receiveCompletion(int inputIndex, Completion completion) {
+			this.completion = completion;
+		}
+
+		@Override
+		public void receiveJob(int inputIndex, Job newJob) {
+			jobs.add(newJob);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.taverna.workflowmodel.processor.activity.Activity;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Identifies the type of an activity by the <code>URI</code> constant of its
+ * class, and the endpoint it calls from its configuration, for the layers
+ * keeping state per activity type or endpoint.
+ */
+final class ActivityTypes {
+	private static final ConcurrentMap<Class<?>, String> activityTypes = new ConcurrentHashMap<>();
+
+	private ActivityTypes() {
+	}
+
+	/**
+	 * Return the value of the public static <code>URI</code> field of the
+	 * activity class, or the class name if there is no such field.
+	 */
+	static String typeOf(Activity<?> activity) {
+		Class<?> activityClass = activity.getClass();
+		String type = activityTypes.get(activityClass);
+		if (type == null) {
+			type = activityClass.getName();
+			try {
+				Field uri = activityClass.getField("URI");
+				if (Modifier.isStatic(uri.getModifiers())
+						&& uri.getType().equals(String.class))
+					type = (String) uri.get(null);
+			} catch (NoSuchFieldException | IllegalAccessException e) {
+				// use the class name
+			}
+			activityTypes.put(activityClass, type);
+		}
+		return type;
+	}
+
+	/**
+	 * Return the value of the first of the fields found in the activity
+	 * configuration, reduced to the scheme, host and port if it is a URL, or
+	 * <code>null</code> if none is found.
+	 */
+	static String endpointOf(Activity<?> activity, List<String> fields) {
+		Object configuration = activity.getConfiguration();
+		if (!(configuration instanceof JsonNode))
+			return null;
+		for (String field : fields) {
+			JsonNode value = ((JsonNode) configuration).findValue(field);
+			if (value != null && value.isTextual())
+				return hostOf(value.textValue());
+		}
+		return null;
+	}
+
+	/**
+	 * Return the activity type followed by its endpoint, if any.
+	 */
+	static String endpointKeyOf(Activity<?> activity, List<String> fields) {
+		String endpoint = endpointOf(activity, fields);
+		if (endpoint == null)
+			return typeOf(activity);
+		return typeOf(activity) + " " + endpoint;
+	}
+
+	/**
+	 * URI templates are not valid URIs, so the string is cut by hand.
+	 */
+	private static String hostOf(String endpoint) {
+		int scheme = endpoint.indexOf("://");
+		if (scheme < 0)
+			return endpoint;
+		int path = endpoint.indexOf('/', scheme + 3);
+		return path < 0 ? endpoint : endpoint.substring(0, path);
+	}
+}
@@ -0,0 +1,147 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+/**
+ * Concurrency limit adjusted from the outcome and latency of the invocations,
+ * used by the {@link Parallelize} layer in adaptive mode.
+ * <p>
+ * The limit grows by one for every success until the first sign of
+ * congestion, then by one for every <i>limit</i> successes (additive
+ * increase). It is multiplied by the backoff ratio (multiplicative decrease)
+ * when an invocation fails, or when the smoothed latency exceeds the baseline
+ * latency by more than the latency tolerance, the baseline being the lowest
+ * latency seen over the previous window of samples. After a decrease, a
+ * further decrease waits until <i>limit</i> more samples have been seen, so
+ * that one burst of failures from the jobs already in flight backs off once.
+ * <p>
+ * The limit only grows while at least half of it is in use, so that a
+ * processor which is not using its window does not inflate it.
+ */
+class AdaptiveLimit {
+	/** Number of samples over which the baseline latency is measured */
+	static final int BASELINE_WINDOW = 100;
+	/** Weight of a new sample in the smoothed latency */
+	private static final double SMOOTHING = 0.2;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final double latencyTolerance;
+	private final double backoffRatio;
+
+	private double limit;
+	private boolean congested = false;
+	private long samples = 0;
+	private long lastDecrease;
+	private long baselineLatency = 0;
+	private long windowMinLatency = Long.MAX_VALUE;
+	private int windowSamples = 0;
+	private double smoothedLatency = 0;
+
+	/**
+	 * @param initialLimit
+	 *            the limit to start from
+	 * @param minLimit
+	 *            the limit never goes below this, at least 1
+	 * @param maxLimit
+	 *            the limit never goes above this
+	 * @param latencyTolerance
+	 *            how many times the baseline latency the smoothed latency may
+	 *            reach before the limit is decreased, greater than 1
+	 * @param backoffRatio
+	 *            the factor applied to the limit when it is decreased, between
+	 *            0 and 1
+	 */
+	AdaptiveLimit(int initialLimit, int minLimit, int maxLimit,
+			double latencyTolerance, double backoffRatio) {
+		if (minLimit < 1)
+			throw new IllegalArgumentException("minJobs < 1");
+		if (maxLimit < minLimit)
+			throw new IllegalArgumentException("adaptiveMaxJobs < minJobs");
+		if (latencyTolerance <= 1)
+			throw new IllegalArgumentException("latencyTolerance <= 1");
+		if (backoffRatio <= 0 || backoffRatio >= 1)
+			throw new IllegalArgumentException(
+					"backoffRatio not between 0 and 1");
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.latencyTolerance = latencyTolerance;
+		this.backoffRatio = backoffRatio;
+		this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+		this.lastDecrease = -maxLimit;
+	}
+
+	/**
+	 * Return the current number of jobs allowed in flight.
+	 */
+	synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * Record a successful invocation.
+	 *
+	 * @param latency
+	 *            time taken by the invocation, in nanoseconds
+	 * @param inFlight
+	 *            number of jobs which were in flight, including this one
+	 */
+	synchronized void succeeded(long latency, int inFlight) {
+		samples++;
+		updateBaseline(latency);
+		if (smoothedLatency == 0)
+			smoothedLatency = latency;
+		else
+			smoothedLatency += SMOOTHING * (latency - smoothedLatency);
+
+		if (smoothedLatency > latencyTolerance * baselineLatency)
+			decrease();
+		else if (inFlight * 2 >= (int) limit)
+			limit = Math.min(maxLimit, limit + (congested ? 1 / limit : 1));
+	}
+
+	/**
+	 * Record a failed invocation.
+	 */
+	synchronized void failed() {
+		samples++;
+		decrease();
+	}
+
+	private void updateBaseline(long latency) {
+		if (baselineLatency == 0 || latency < baselineLatency)
+			baselineLatency = latency;
+		if (latency < windowMinLatency)
+			windowMinLatency = latency;
+		if (++windowSamples >= BASELINE_WINDOW) {
+			baselineLatency = windowMinLatency;
+			windowMinLatency = Long.MAX_VALUE;
+			windowSamples = 0;
+		}
+	}
+
+	private void decrease() {
+		congested = true;
+		if (samples - lastDecrease < limit)
+			return;
+		limit = Math.max(minLimit, limit * backoffRatio);
+		lastDecrease = samples;
+	}
+}
@@ -0,0 +1,424 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchMessageType.ERROR;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchMessageType.RESULT;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchMessageType.RESULT_COMPLETION;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.InvocationExecutor;
+import org.apache.taverna.reference.ReferenceService;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.workflowmodel.ControlBoundary;
+import org.apache.taverna.workflowmodel.processor.activity.Activity;
+import org.apache.taverna.workflowmodel.processor.activity.AsynchronousActivity;
+import org.apache.taverna.workflowmodel.processor.activity.AsynchronousActivityCallback;
+import org.apache.taverna.workflowmodel.processor.activity.BatchAsynchronousActivity;
+import org.apache.taverna.workflowmodel.processor.activity.BatchAsynchronousActivityCallback;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerJobReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorType;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchJobEvent;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Invoker layer which collects the jobs for a {@link BatchAsynchronousActivity}
+ * and invokes the activity once for each batch, used in place of the
+ * {@link Invoke} layer at the bottom of the stack. Other activities are
+ * invoked once per job as by the Invoke layer.
+ * <p>
+ * A batch is invoked when it holds <code>maxBatchSize</code> jobs (or the
+ * maximum batch size of the activity if lower), or <code>maxWait</code>
+ * milliseconds after its first job arrived. Jobs are only batched together if
+ * they share the activity and the invocation context. The results, completions
+ * and errors of each job are sent up the stack with the index of that job, as
+ * if it had been invoked on its own. An activity throwing when invoked fails
+ * every job of the batch. The invocation of each job can be
+ * {@link #cancel(String, int[], Activity) cancelled} like the Invoke layer's
+ * once its batch has been invoked. The threads of a batch are interrupted once
+ * all its jobs are cancelled or finished.
+ * <p>
+ * The layer only sees the jobs let through by the layers above, so the
+ * <code>maxJobs</code> of the {@link Parallelize} layer should be at least
+ * <code>maxBatchSize</code>, otherwise every batch waits for
+ * <code>maxWait</code>.
+ */
+@DispatchLayerJobReaction(emits = { ERROR, RESULT_COMPLETION, RESULT }, relaysUnmodified = false, stateEffects = {})
+@ControlBoundary
+public class Batch extends Invoke {
+	public static final String URI = "http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/Batch";
+	private static final String MAX_BATCH_SIZE = "maxBatchSize";
+	private static final String MAX_WAIT = "maxWait";
+	private static final int DEFAULT_MAX_BATCH_SIZE = 20;
+	private static final int DEFAULT_MAX_WAIT = 100;
+	private static Logger logger = Logger.getLogger(Batch.class);
+
+	private ObjectNode config;
+	private int maxBatchSize;
+	private int maxWait;
+
+	/** Batches still collecting jobs, guarded by itself */
+	private final Map<BatchKey, PendingBatch> pendingBatches = new HashMap<>();
+	private final AtomicLong batchCount = new AtomicLong();
+	private final AtomicLong batchedJobCount = new AtomicLong();
+
+	public Batch() {
+		super();
+		configure(JsonNodeFactory.instance.objectNode());
+	}
+
+	public Batch(int maxBatchSize, int maxWait) {
+		super();
+		ObjectNode conf = JsonNodeFactory.instance.objectNode();
+		conf.put(MAX_BATCH_SIZE, maxBatchSize);
+		conf.put(MAX_WAIT, maxWait);
+		configure(conf);
+	}
+
+	@Override
+	public void receiveJob(DispatchJobEvent jobEvent) {
+		for (Activity<?> activity : jobEvent.getActivities())
+			if (activity instanceof BatchAsynchronousActivity) {
+				addToBatch(jobEvent, (BatchAsynchronousActivity<?>) activity);
+				break;
+			} else if (activity instanceof AsynchronousActivity) {
+				invoke(jobEvent, (AsynchronousActivity<?>) activity);
+				break;
+			}
+	}
+
+	private void addToBatch(DispatchJobEvent jobEvent,
+			BatchAsynchronousActivity<?> activity) {
+		int batchSize = maxBatchSize;
+		if (activity.getMaxBatchSize() > 0)
+			batchSize = Math.min(batchSize, activity.getMaxBatchSize());
+		BatchKey key = new BatchKey(activity, jobEvent.getContext());
+		PendingBatch full = null;
+		synchronized (pendingBatches) {
+			PendingBatch batch = pendingBatches.get(key);
+			if (batch == null) {
+				batch = new PendingBatch(key);
+				pendingBatches.put(key, batch);
+				if (batchSize > 1)
+					batch.flushTask = scheduler.schedule(batch, maxWait,
+							TimeUnit.MILLISECONDS);
+			}
+			batch.jobs.add(jobEvent);
+			if (batch.jobs.size() >= batchSize) {
+				pendingBatches.remove(key);
+				if (batch.flushTask != null)
+					batch.flushTask.cancel(false);
+				full = batch;
+			}
+		}
+		if (full != null)
+			invokeBatch(full.jobs, activity);
+	}
+
+	/**
+	 * Invoke the activity for the jobs, registering each job with the monitor
+	 * and the provenance reporter, and keeping its callback until it finishes,
+	 * as the Invoke layer would.
+	 */
+	protected void invokeBatch(List<DispatchJobEvent> jobs,
+			BatchAsynchronousActivity<?> activity) {
+		List<Map<String, T2Reference>> inputData = new ArrayList<>(jobs.size());
+		List<BatchItemCallBack> callbacks = new ArrayList<>(jobs.size());
+		for (DispatchJobEvent jobEvent : jobs) {
+			String invocationProcessIdentifier = startInvocation(jobEvent,
+					activity, getNextProcessID());
+			inputData.add(activityInputs(jobEvent, activity));
+			BatchItemCallBack callback = new BatchItemCallBack(jobEvent,
+					jobEvent.getContext().getReferenceService(),
+					invocationProcessIdentifier, activity);
+			callbacks.add(callback);
+			running(callback);
+		}
+		batchCount.incrementAndGet();
+		batchedJobCount.addAndGet(jobs.size());
+		BatchCallBack batchCallBack = new BatchCallBack(jobs.get(0)
+				.getContext(), activity, callbacks);
+		try {
+			activity.executeAsynchBatch(inputData, batchCallBack);
+		} catch (RuntimeException e) {
+			batchCallBack.fail("Could not invoke batch of " + jobs.size()
+					+ " jobs for " + activity, e);
+		}
+	}
+
+	/**
+	 * Fail the jobs of a batch which could not be invoked at all.
+	 */
+	private void failJobs(List<DispatchJobEvent> jobs, Activity<?> activity,
+			String message, Throwable t) {
+		logger.error(message, t);
+		for (DispatchJobEvent jobEvent : jobs)
+			getAbove().receiveError(
+					new DispatchErrorEvent(jobEvent
+							.getOwningProcessIdentifier(), jobEvent
+							.getIterationIndex(), jobEvent.getContext(),
+							message, t, DispatchErrorType.INVOCATION,
+							activity));
+	}
+
+	/**
+	 * Return the number of batches invoked since creation.
+	 */
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+
+	/**
+	 * Return the number of jobs invoked as part of a batch since creation.
+	 */
+	public long getBatchedJobCount() {
+		return batchedJobCount.get();
+	}
+
+	@Override
+	public void configure(JsonNode config) {
+		ObjectNode conf = (ObjectNode) config;
+		if (!conf.has(MAX_BATCH_SIZE) || conf.get(MAX_BATCH_SIZE).isNull())
+			conf.put(MAX_BATCH_SIZE, DEFAULT_MAX_BATCH_SIZE);
+		if (!conf.has(MAX_WAIT) || conf.get(MAX_WAIT).isNull())
+			conf.put(MAX_WAIT, DEFAULT_MAX_WAIT);
+		if (conf.get(MAX_BATCH_SIZE).intValue() < 1)
+			throw new IllegalArgumentException("maxBatchSize < 1");
+		if (conf.get(MAX_WAIT).intValue() < 0)
+			throw new IllegalArgumentException("maxWait < 0");
+		this.config = conf;
+		maxBatchSize = conf.get(MAX_BATCH_SIZE).intValue();
+		maxWait = conf.get(MAX_WAIT).intValue();
+	}
+
+	@Override
+	public JsonNode getConfiguration() {
+		return config;
+	}
+
+	/**
+	 * Jobs are batched together per activity instance and invocation context
+	 */
+	private static final class BatchKey {
+		private final Activity<?> activity;
+		private final InvocationContext context;
+
+		private BatchKey(Activity<?> activity, InvocationContext context) {
+			this.activity = activity;
+			this.context = context;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof BatchKey))
+				return false;
+			BatchKey other = (BatchKey) obj;
+			return activity == other.activity && context == other.context;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(activity)
+					+ System.identityHashCode(context);
+		}
+	}
+
+	/**
+	 * Jobs collected for a batch, runs as the task invoking the batch once
+	 * <code>maxWait</code> has passed.
+	 */
+	private class PendingBatch implements Runnable {
+		private final BatchKey key;
+		private final List<DispatchJobEvent> jobs = new ArrayList<>();
+		private ScheduledFuture<?> flushTask;
+
+		private PendingBatch(BatchKey key) {
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			synchronized (pendingBatches) {
+				if (pendingBatches.get(key) != this)
+					// Already invoked as a full batch
+					return;
+				pendingBatches.remove(key);
+			}
+			final BatchAsynchronousActivity<?> activity = (BatchAsynchronousActivity<?>) key.activity;
+			final AtomicBoolean started = new AtomicBoolean();
+			// Not on the scheduler thread, the activity may block
+			InvocationExecutor.getInstance().execute(new Runnable() {
+				@Override
+				public void run() {
+					started.set(true);
+					invokeBatch(jobs, activity);
+				}
+			}, null, new UncaughtExceptionHandler() {
+				@Override
+				public void uncaughtException(Thread t, Throwable e) {
+					String message = "Could not invoke batch of "
+							+ jobs.size() + " jobs for " + activity;
+					if (started.get())
+						logger.error(message, e);
+					else
+						// Not scheduled, nothing else fails the jobs
+						failJobs(jobs, activity, message, e);
+				}
+			});
+		}
+	}
+
+	protected class BatchCallBack implements BatchAsynchronousActivityCallback {
+		private final InvocationContext context;
+		private final BatchAsynchronousActivity<?> activity;
+		private final List<BatchItemCallBack> callbacks;
+		private final List<Future<?>> runs = new ArrayList<>();
+		private boolean cancelled = false;
+
+		protected BatchCallBack(InvocationContext context,
+				BatchAsynchronousActivity<?> activity,
+				List<BatchItemCallBack> callbacks) {
+			this.context = context;
+			this.activity = activity;
+			this.callbacks = callbacks;
+			Runnable itemCancelled = new Runnable() {
+				@Override
+				public void run() {
+					itemCancelled();
+				}
+			};
+			for (BatchItemCallBack callback : callbacks)
+				callback.addCancellationListener(itemCancelled);
+		}
+
+		/**
+		 * Interrupt the threads of the batch once none of its jobs are waiting
+		 * for it any more.
+		 */
+		private void itemCancelled() {
+			for (BatchItemCallBack callback : callbacks)
+				if (!callback.isCancelled() && !callback.finished.get())
+					return;
+			List<Future<?>> cancelledRuns;
+			synchronized (this) {
+				cancelled = true;
+				cancelledRuns = new ArrayList<>(runs);
+				runs.clear();
+			}
+			for (Future<?> run : cancelledRuns)
+				run.cancel(true);
+		}
+
+		@Override
+		public InvocationContext getContext() {
+			return context;
+		}
+
+		@Override
+		public void requestRun(Runnable runMe) {
+			Future<?> run = InvocationExecutor.getInstance().execute(runMe,
+					activity.getClass().getClassLoader(),
+					new UncaughtExceptionHandler() {
+						@Override
+						public void uncaughtException(Thread t, Throwable e) {
+							fail("Uncaught exception while invoking "
+									+ activity, e);
+						}
+					});
+			synchronized (this) {
+				if (!cancelled) {
+					runs.add(run);
+					return;
+				}
+			}
+			run.cancel(true);
+		}
+
+		@Override
+		public int getBatchSize() {
+			return callbacks.size();
+		}
+
+		@Override
+		public AsynchronousActivityCallback getCallback(int job) {
+			return callbacks.get(job);
+		}
+
+		@Override
+		public void fail(String message, Throwable t) {
+			for (BatchItemCallBack callback : callbacks)
+				callback.fail(message, t);
+		}
+	}
+
+	/**
+	 * Callback for one job of a batch, remembers whether the job has finished
+	 * so that failing the whole batch only fails the jobs still running.
+	 */
+	protected class BatchItemCallBack extends InvokeCallBack {
+		private final AtomicBoolean finished = new AtomicBoolean();
+
+		protected BatchItemCallBack(DispatchJobEvent jobEvent,
+				ReferenceService refService,
+				String invocationProcessIdentifier,
+				AsynchronousActivity<?> asyncActivity) {
+			super(jobEvent, refService, invocationProcessIdentifier,
+					asyncActivity);
+		}
+
+		@Override
+		public void fail(String message, Throwable t,
+				DispatchErrorType errorType) {
+			if (finished.compareAndSet(false, true))
+				super.fail(message, t, errorType);
+		}
+
+		@Override
+		public void receiveResult(Map<String, T2Reference> data, int[] index) {
+			if (index.length == 0)
+				finished.set(true);
+			super.receiveResult(data, index);
+		}
+
+		@Override
+		public void receiveCompletion(int[] completionIndex) {
+			if (completionIndex.length == 0)
+				finished.set(true);
+			super.receiveCompletion(completionIndex);
+		}
+	}
+}
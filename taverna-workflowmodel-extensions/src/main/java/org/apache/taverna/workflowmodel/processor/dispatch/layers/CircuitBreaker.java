@@ -0,0 +1,430 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.CREATE_PROCESS_STATE;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.NO_EFFECT;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.REMOVE_PROCESS_STATE;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchMessageType.ERROR;
+import static org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorType.INVOCATION;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.taverna.monitor.MonitorableProperty;
+import org.apache.taverna.monitor.NoSuchPropertyException;
+import org.apache.taverna.workflowmodel.Processor;
+import org.apache.taverna.workflowmodel.processor.activity.Activity;
+import org.apache.taverna.workflowmodel.processor.activity.NestedDataflow;
+import org.apache.taverna.workflowmodel.processor.dispatch.AbstractDispatchLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.PropertyContributingDispatchLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerErrorReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerJobReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerResultCompletionReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerResultReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchCompletionEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchJobEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchResultEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.layers.CircuitBreakers.Circuit;
+import org.apache.taverna.workflowmodel.processor.dispatch.layers.CircuitBreakers.CircuitOpenException;
+import org.apache.taverna.workflowmodel.processor.dispatch.layers.CircuitBreakers.ParkedJob;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Stops sending jobs to an endpoint which keeps failing, rather than have
+ * every job wait for its own timeout.
+ * <p>
+ * Jobs go through the {@link CircuitBreakers circuit} of the activity they
+ * would invoke, identified by the activity type and the endpoint found in the
+ * activity configuration under one of the <code>endpointFields</code>
+ * (reduced to the scheme, host and port if it is a URL). The circuits are
+ * shared by all processors and workflow runs in the JVM, so that they all
+ * learn at once that an endpoint is down.
+ * <p>
+ * An <code>INVOCATION</code> error counts as a
+ * failure of the endpoint, results and other errors show the endpoint is
+ * working. After <code>failureThreshold</code> failures in a row the circuit
+ * opens for <code>openDelay</code> milliseconds. While open, a job either
+ * fails straight away with an invocation error, which layers above such as
+ * {@link Failover} and {@link Retry} handle as usual, or with
+ * <code>park</code> set is held until the circuit closes again. Parked jobs
+ * go through one at a time as probes once the circuit has been open long
+ * enough, those of cancelled workflow runs are dropped.
+ * <p>
+ * Put above the {@link Governor} so that refused jobs don't take a permit.
+ * Nested workflows are not affected.
+ * <p>
+ * The state of the circuit of the first activity of the processor and the
+ * number of refused jobs are published as the
+ * <code>dispatch.circuitbreaker.state</code> and
+ * <code>dispatch.circuitbreaker.refused</code> properties.
+ */
+@DispatchLayerJobReaction(emits = { ERROR }, relaysUnmodified = true, stateEffects = { CREATE_PROCESS_STATE })
+@DispatchLayerResultReaction(emits = {}, relaysUnmodified = true, stateEffects = {
+		REMOVE_PROCESS_STATE, NO_EFFECT })
+@DispatchLayerResultCompletionReaction(emits = {}, relaysUnmodified = true, stateEffects = { REMOVE_PROCESS_STATE })
+@DispatchLayerErrorReaction(emits = {}, relaysUnmodified = true, stateEffects = { REMOVE_PROCESS_STATE })
+public class CircuitBreaker extends AbstractDispatchLayer<JsonNode> implements
+		PropertyContributingDispatchLayer<JsonNode> {
+	public static final String URI = "http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/CircuitBreaker";
+	private static final String FAILURE_THRESHOLD = "failureThreshold";
+	private static final String OPEN_DELAY = "openDelay";
+	private static final String PARK = "park";
+	private static final String ENDPOINT_FIELDS = "endpointFields";
+	private static final String[] DEFAULT_ENDPOINT_FIELDS = { "endpoint",
+			"url", "wsdl", "absoluteURITemplate" };
+
+	private ObjectNode config;
+	private int failureThreshold;
+	private long openDelay;
+	private boolean park;
+	private final List<String> endpointFields = new ArrayList<>();
+	private CircuitBreakers circuitBreakers;
+	/**
+	 * Circuits of the activities seen, so that the endpoint of an activity is
+	 * only looked up in its configuration once
+	 */
+	private final ConcurrentMap<Activity<?>, Circuit> activityCircuits = new ConcurrentHashMap<>();
+
+	/**
+	 * Circuits of the jobs sent down, per owning process and job index. A job
+	 * raced between alternate activities goes through several circuits.
+	 */
+	private final ConcurrentMap<String, ConcurrentMap<IndexKey, List<Circuit>>> sent = new ConcurrentHashMap<>();
+	private final AtomicLong refusedCount = new AtomicLong();
+
+	public CircuitBreaker() {
+		super();
+		configure(JsonNodeFactory.instance.objectNode());
+	}
+
+	public CircuitBreaker(int failureThreshold, long openDelay, boolean park) {
+		super();
+		ObjectNode conf = JsonNodeFactory.instance.objectNode();
+		conf.put(FAILURE_THRESHOLD, failureThreshold);
+		conf.put(OPEN_DELAY, openDelay);
+		conf.put(PARK, park);
+		configure(conf);
+	}
+
+	/**
+	 * Use the specified circuits rather than the engine wide ones.
+	 */
+	public void setCircuitBreakers(CircuitBreakers circuitBreakers) {
+		this.circuitBreakers = circuitBreakers;
+		activityCircuits.clear();
+	}
+
+	private CircuitBreakers getCircuitBreakers() {
+		if (circuitBreakers == null)
+			return CircuitBreakers.getInstance();
+		return circuitBreakers;
+	}
+
+	@Override
+	public void receiveJob(final DispatchJobEvent jobEvent) {
+		List<? extends Activity<?>> activities = jobEvent.getActivities();
+		if (activities.isEmpty() || activities.get(0) instanceof NestedDataflow) {
+			getBelow().receiveJob(jobEvent);
+			return;
+		}
+		final Circuit circuit = circuitOf(activities.get(0));
+		if (circuit.tryAcquire()) {
+			send(jobEvent, circuit);
+			return;
+		}
+		refusedCount.incrementAndGet();
+		if (!park) {
+			getAbove().receiveError(
+					new DispatchErrorEvent(jobEvent.getOwningProcess(),
+							jobEvent.getIndex(), jobEvent.getContext(),
+							"Circuit open for " + circuit.getKey(),
+							new CircuitOpenException("Circuit open for "
+									+ circuit.getKey()), INVOCATION,
+							activities.get(0)));
+			return;
+		}
+		ParkedJob parked = new ParkedJob() {
+			@Override
+			public void run() {
+				send(jobEvent, circuit);
+			}
+
+			@Override
+			public boolean isCancelled() {
+				return Stop.isCancelled(jobEvent);
+			}
+		};
+		if (circuit.park(parked))
+			scheduleProbe(circuit);
+		else
+			parked.run();
+	}
+
+	private void send(DispatchJobEvent jobEvent, Circuit circuit) {
+		hold(jobEvent.getOwningProcess(), jobEvent.getIndex(), circuit);
+		getBelow().receiveJob(jobEvent);
+	}
+
+	/**
+	 * Send a parked job as a probe once the circuit has been open long
+	 * enough.
+	 */
+	private void scheduleProbe(final Circuit circuit) {
+		if (!circuit.needsProbe())
+			return;
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				Runnable probe = circuit.probeParked();
+				if (probe != null)
+					probe.run();
+				else
+					scheduleProbe(circuit);
+			}
+		}, circuit.getRemainingOpenMillis(), MILLISECONDS);
+	}
+
+	@Override
+	public void receiveResult(DispatchResultEvent resultEvent) {
+		Circuit circuit = null;
+		if (!resultEvent.isStreamingEvent())
+			circuit = release(resultEvent.getOwningProcess(),
+					resultEvent.getIndex(), null);
+		getAbove().receiveResult(resultEvent);
+		if (circuit != null)
+			succeeded(circuit);
+	}
+
+	@Override
+	public void receiveResultCompletion(DispatchCompletionEvent completionEvent) {
+		Circuit circuit = release(completionEvent.getOwningProcess(),
+				completionEvent.getIndex(), null);
+		getAbove().receiveResultCompletion(completionEvent);
+		if (circuit != null)
+			succeeded(circuit);
+	}
+
+	@Override
+	public void receiveError(DispatchErrorEvent errorEvent) {
+		Activity<?> failedActivity = errorEvent.getFailedActivity();
+		Circuit circuit = release(errorEvent.getOwningProcess(),
+				errorEvent.getIndex(), failedActivity == null ? null
+						: circuitOf(failedActivity));
+		if (circuit != null && errorEvent.getFailureType() == INVOCATION) {
+			circuit.failed();
+			scheduleProbe(circuit);
+		}
+		getAbove().receiveError(errorEvent);
+		if (circuit != null && errorEvent.getFailureType() != INVOCATION)
+			succeeded(circuit);
+	}
+
+	/**
+	 * The endpoint works, send the jobs parked while it did not
+	 */
+	private void succeeded(Circuit circuit) {
+		for (Runnable parked : circuit.succeeded())
+			parked.run();
+	}
+
+	@Override
+	public void finishedWith(final String owningProcess) {
+		cleanupTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				sent.remove(owningProcess);
+			}
+		}, CLEANUP_DELAY_MS);
+	}
+
+	/**
+	 * Return the circuit of the activity type and endpoint of the activity.
+	 */
+	Circuit circuitOf(Activity<?> activity) {
+		Circuit circuit = activityCircuits.get(activity);
+		if (circuit == null) {
+			circuit = getCircuitBreakers().getCircuit(
+					ActivityTypes.endpointKeyOf(activity, endpointFields),
+					failureThreshold, openDelay);
+			activityCircuits.put(activity, circuit);
+		}
+		return circuit;
+	}
+
+	private void hold(String owningProcess, int[] index, Circuit circuit) {
+		ConcurrentMap<IndexKey, List<Circuit>> held = sent.get(owningProcess);
+		if (held == null) {
+			ConcurrentMap<IndexKey, List<Circuit>> newHeld = new ConcurrentHashMap<>();
+			held = sent.putIfAbsent(owningProcess, newHeld);
+			if (held == null)
+				held = newHeld;
+		}
+		IndexKey key = new IndexKey(index);
+		while (true) {
+			List<Circuit> indexCircuits = held.get(key);
+			if (indexCircuits == null) {
+				indexCircuits = new ArrayList<>();
+				indexCircuits.add(circuit);
+				if (held.putIfAbsent(key, indexCircuits) == null)
+					return;
+				continue;
+			}
+			synchronized (indexCircuits) {
+				// Unless emptied and removed meanwhile
+				if (!indexCircuits.isEmpty()) {
+					indexCircuits.add(circuit);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forget the circuit a job with the index was sent through, the given one
+	 * if known, and return it.
+	 */
+	private Circuit release(String owningProcess, int[] index, Circuit circuit) {
+		Map<IndexKey, List<Circuit>> held = sent.get(owningProcess);
+		if (held == null)
+			return null;
+		IndexKey key = new IndexKey(index);
+		List<Circuit> indexCircuits = held.get(key);
+		if (indexCircuits == null)
+			return null;
+		synchronized (indexCircuits) {
+			Circuit released = null;
+			if (indexCircuits.remove(circuit))
+				released = circuit;
+			else if (!indexCircuits.isEmpty())
+				released = indexCircuits.remove(0);
+			if (indexCircuits.isEmpty())
+				held.remove(key, indexCircuits);
+			return released;
+		}
+	}
+
+	/**
+	 * Return the number of jobs refused or parked since creation.
+	 */
+	public long getRefusedCount() {
+		return refusedCount.get();
+	}
+
+	@Override
+	public void configure(JsonNode config) {
+		ObjectNode conf = (ObjectNode) config;
+		if (!conf.has(FAILURE_THRESHOLD) || conf.get(FAILURE_THRESHOLD).isNull())
+			conf.put(FAILURE_THRESHOLD, 5);
+		if (!conf.has(OPEN_DELAY) || conf.get(OPEN_DELAY).isNull())
+			conf.put(OPEN_DELAY, 30000);
+		if (!conf.has(PARK) || conf.get(PARK).isNull())
+			conf.put(PARK, false);
+		if (!conf.has(ENDPOINT_FIELDS) || conf.get(ENDPOINT_FIELDS).isNull()) {
+			ArrayNode fields = conf.putArray(ENDPOINT_FIELDS);
+			for (String field : DEFAULT_ENDPOINT_FIELDS)
+				fields.add(field);
+		}
+		if (conf.get(FAILURE_THRESHOLD).intValue() < 1)
+			throw new IllegalArgumentException("failureThreshold < 1");
+		if (conf.get(OPEN_DELAY).longValue() < 0)
+			throw new IllegalArgumentException("openDelay < 0");
+		if (!conf.get(ENDPOINT_FIELDS).isArray())
+			throw new IllegalArgumentException("endpointFields not an array");
+		this.config = conf;
+		failureThreshold = conf.get(FAILURE_THRESHOLD).intValue();
+		openDelay = conf.get(OPEN_DELAY).longValue();
+		park = conf.get(PARK).booleanValue();
+		endpointFields.clear();
+		for (JsonNode field : conf.get(ENDPOINT_FIELDS))
+			endpointFields.add(field.asText());
+		activityCircuits.clear();
+	}
+
+	@Override
+	public JsonNode getConfiguration() {
+		return config;
+	}
+
+	/**
+	 * Injects the following properties into its parent processor's property
+	 * set:
+	 * <ul>
+	 * <li><code>dispatch.circuitbreaker.state [String]</code><br/>
+	 * The state of the circuit of the first activity of the processor,
+	 * <code>CLOSED</code>, <code>OPEN</code> or <code>HALF_OPEN</code>.</li>
+	 * <li><code>dispatch.circuitbreaker.refused [Long]</code><br/>
+	 * The number of jobs refused or parked as their circuit was open.</li>
+	 * </ul>
+	 */
+	@Override
+	public void injectPropertiesFor(String owningProcess) {
+		dispatchStack.receiveMonitorableProperty(
+				new CircuitBreakerProperty<String>("state") {
+					@Override
+					public String getValue() throws NoSuchPropertyException {
+						Processor processor = getProcessor();
+						if (processor == null
+								|| processor.getActivityList().isEmpty())
+							throw new NoSuchPropertyException();
+						return circuitOf(processor.getActivityList().get(0))
+								.getState().name();
+					}
+				}, owningProcess);
+		dispatchStack.receiveMonitorableProperty(
+				new CircuitBreakerProperty<Long>("refused") {
+					@Override
+					public Long getValue() throws NoSuchPropertyException {
+						return refusedCount.get();
+					}
+				}, owningProcess);
+	}
+
+	private abstract static class CircuitBreakerProperty<T> implements
+			MonitorableProperty<T> {
+		private final String name;
+
+		private CircuitBreakerProperty(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Date getLastModified() {
+			return new Date();
+		}
+
+		@Override
+		public String[] getName() {
+			return new String[] { "dispatch", "circuitbreaker", name };
+		}
+	}
+}
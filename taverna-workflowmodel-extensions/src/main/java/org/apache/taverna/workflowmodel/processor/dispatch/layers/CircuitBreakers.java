@@ -0,0 +1,279 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The circuits of the {@link CircuitBreaker} layers, one per activity type and
+ * endpoint, shared by all processors and workflow runs in the JVM.
+ * <p>
+ * A circuit is <em>closed</em> while the endpoint works, jobs go through. After
+ * <code>failureThreshold</code> consecutive invocation failures it
+ * <em>opens</em> and jobs are refused. Once <code>openDelay</code> has passed
+ * the circuit is <em>half open</em>: a single probe job is let through, if it
+ * succeeds the circuit closes again, if it fails the circuit opens for another
+ * <code>openDelay</code>.
+ */
+public class CircuitBreakers {
+	private static Logger logger = Logger.getLogger(CircuitBreakers.class);
+	private static CircuitBreakers instance;
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * Get the CircuitBreakers singleton instance, creating it on first access.
+	 *
+	 * @return The CircuitBreakers singleton
+	 */
+	public synchronized static CircuitBreakers getInstance() {
+		if (instance == null)
+			setInstance(new CircuitBreakers());
+		return instance;
+	}
+
+	/**
+	 * Set the CircuitBreakers singleton instance. Only to be used by the
+	 * platform at initialisation time.
+	 *
+	 * @param instance
+	 *            CircuitBreakers singleton to be returned by
+	 *            {@link #getInstance()}.
+	 */
+	public synchronized static void setInstance(CircuitBreakers instance) {
+		CircuitBreakers.instance = instance;
+	}
+
+	/**
+	 * Cause of the error sent up for a job refused by an open circuit
+	 */
+	public static class CircuitOpenException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		public CircuitOpenException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * A job held by an open circuit
+	 */
+	public interface ParkedJob extends Runnable {
+		/**
+		 * Return true if the workflow run of the job has been cancelled, in
+		 * which case the job is dropped rather than sent.
+		 */
+		boolean isCancelled();
+	}
+
+	private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+	/**
+	 * Get the circuit of the key, creating it with the given limits if
+	 * needed. The limits of a circuit are those it was created with; asking
+	 * for it with other limits logs a warning and keeps them.
+	 */
+	public Circuit getCircuit(String key, int failureThreshold,
+			long openDelayMillis) {
+		Circuit circuit = circuits.get(key);
+		if (circuit == null) {
+			Circuit newCircuit = new Circuit(key, failureThreshold,
+					openDelayMillis);
+			circuit = circuits.putIfAbsent(key, newCircuit);
+			if (circuit == null)
+				return newCircuit;
+		}
+		if (!circuit.hasLimits(failureThreshold, openDelayMillis))
+			logger.warn("Circuit " + key + " keeps its failureThreshold "
+					+ circuit.failureThreshold + " and openDelay "
+					+ NANOSECONDS.toMillis(circuit.openDelay)
+					+ " rather than " + failureThreshold + " and "
+					+ openDelayMillis);
+		return circuit;
+	}
+
+	/**
+	 * Return the state of every circuit by key.
+	 */
+	public Map<String, State> getStates() {
+		Map<String, State> states = new HashMap<>();
+		for (Circuit circuit : circuits.values())
+			states.put(circuit.getKey(), circuit.getState());
+		return states;
+	}
+
+	/**
+	 * The circuit of one activity type and endpoint
+	 */
+	public static class Circuit {
+		private final String key;
+		private State state = State.CLOSED;
+		private int failures = 0;
+		private final int failureThreshold;
+		private final long openDelay;
+		/** When the circuit opened or the probe was let through */
+		private long since;
+		private boolean probeScheduled = false;
+		private final ArrayDeque<ParkedJob> parked = new ArrayDeque<>();
+
+		private Circuit(String key, int failureThreshold, long openDelayMillis) {
+			this.key = key;
+			this.failureThreshold = failureThreshold;
+			this.openDelay = MILLISECONDS.toNanos(openDelayMillis);
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public synchronized State getState() {
+			return state;
+		}
+
+		private boolean hasLimits(int failureThreshold, long openDelayMillis) {
+			return this.failureThreshold == failureThreshold
+					&& openDelay == MILLISECONDS.toNanos(openDelayMillis);
+		}
+
+		/**
+		 * Return true if a job may go through, as the circuit is closed or as
+		 * the probe of a circuit which has been open long enough.
+		 */
+		public synchronized boolean tryAcquire() {
+			if (state == State.CLOSED)
+				return true;
+			// Also covers a probe whose outcome never came back
+			if (System.nanoTime() - since < openDelay)
+				return false;
+			probe();
+			return true;
+		}
+
+		private void probe() {
+			if (state == State.OPEN)
+				logger.info("Probing circuit " + key);
+			state = State.HALF_OPEN;
+			since = System.nanoTime();
+		}
+
+		/**
+		 * Keep a job until the circuit closes or the job is let through as a
+		 * probe. Return false if the circuit has closed meanwhile and the job
+		 * is to be sent straight away.
+		 */
+		public synchronized boolean park(ParkedJob job) {
+			if (state == State.CLOSED)
+				return false;
+			parked.add(job);
+			return true;
+		}
+
+		/**
+		 * Return true if there are parked jobs and no probe has been
+		 * scheduled for them yet, in which case the caller is to call
+		 * {@link #probeParked()} after {@link #getRemainingOpenMillis()}.
+		 */
+		public synchronized boolean needsProbe() {
+			dropCancelled();
+			if (parked.isEmpty() || probeScheduled || state == State.CLOSED)
+				return false;
+			probeScheduled = true;
+			return true;
+		}
+
+		/**
+		 * Return a parked job to be sent as a probe if the circuit has been
+		 * open long enough, or <code>null</code> if not.
+		 */
+		public synchronized Runnable probeParked() {
+			probeScheduled = false;
+			dropCancelled();
+			if (parked.isEmpty() || state == State.CLOSED
+					|| System.nanoTime() - since < openDelay)
+				return null;
+			probe();
+			return parked.poll();
+		}
+
+		/**
+		 * Return the time left until a probe may go through, in milliseconds.
+		 */
+		public synchronized long getRemainingOpenMillis() {
+			if (state == State.CLOSED)
+				return 0;
+			return Math.max(0,
+					NANOSECONDS.toMillis(openDelay - (System.nanoTime() - since)));
+		}
+
+		/**
+		 * An invocation succeeded, close the circuit and return the parked
+		 * jobs to be sent.
+		 */
+		public synchronized List<Runnable> succeeded() {
+			failures = 0;
+			if (state != State.CLOSED)
+				logger.info("Closing circuit " + key);
+			state = State.CLOSED;
+			dropCancelled();
+			List<Runnable> released = new ArrayList<Runnable>(parked);
+			parked.clear();
+			return released;
+		}
+
+		/**
+		 * Forget the parked jobs of cancelled workflow runs
+		 */
+		private void dropCancelled() {
+			for (Iterator<ParkedJob> jobs = parked.iterator(); jobs.hasNext();)
+				if (jobs.next().isCancelled())
+					jobs.remove();
+		}
+
+		/**
+		 * An invocation failed, open the circuit if the probe failed or if
+		 * there have been too many failures in a row.
+		 */
+		public synchronized void failed() {
+			failures++;
+			if (state == State.HALF_OPEN
+					|| (state == State.CLOSED && failures >= failureThreshold)) {
+				if (state == State.CLOSED)
+					logger.warn("Opening circuit " + key + " after "
+							+ failures + " failures");
+				state = State.OPEN;
+				since = System.nanoTime();
+			}
+		}
+	}
+}
@@ -0,0 +1,516 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.CREATE_PROCESS_STATE;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.NO_EFFECT;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.REMOVE_PROCESS_STATE;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchMessageType.ERROR;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchMessageType.RESULT;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchMessageType.RESULT_COMPLETION;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.monitor.MonitorableProperty;
+import org.apache.taverna.monitor.NoSuchPropertyException;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.reference.WorkflowRunIdEntity;
+import org.apache.taverna.workflowmodel.processor.activity.Activity;
+import org.apache.taverna.workflowmodel.processor.activity.NestedDataflow;
+import org.apache.taverna.workflowmodel.processor.dispatch.AbstractDispatchLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.PropertyContributingDispatchLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerErrorReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerJobReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerResultCompletionReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerResultReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchCompletionEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchJobEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchResultEvent;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Collapses jobs with the same inputs for the same activity into a single
+ * invocation while one is in flight in the workflow run.
+ * <p>
+ * The first job is sent down as usual. Jobs arriving with the same input
+ * references before it has finished are held back and given a copy of every
+ * result, result completion and error coming back for the first job, with
+ * their own owning process and index. Once the first job has streamed a
+ * result or finished, the next job with the same inputs is sent down again,
+ * as it would miss the results sent before it arrived; results are not kept
+ * beyond the invocation, use {@link Memoize} for that.
+ * <p>
+ * Only the invocation of the first job is reported to the monitor and to
+ * provenance. Nested workflows are never collapsed, and activities whose
+ * results are not reproducible can be excluded by listing their type URIs in
+ * <code>excludedActivities</code>.
+ * <p>
+ * The number of jobs held back is published as the
+ * <code>dispatch.collapse.collapsed</code> property.
+ */
+@DispatchLayerJobReaction(emits = {}, relaysUnmodified = true, stateEffects = {
+		CREATE_PROCESS_STATE, NO_EFFECT })
+@DispatchLayerResultReaction(emits = { RESULT }, relaysUnmodified = true, stateEffects = {
+		REMOVE_PROCESS_STATE, NO_EFFECT })
+@DispatchLayerResultCompletionReaction(emits = { RESULT_COMPLETION }, relaysUnmodified = true, stateEffects = {
+		REMOVE_PROCESS_STATE, NO_EFFECT })
+@DispatchLayerErrorReaction(emits = { ERROR }, relaysUnmodified = true, stateEffects = {
+		REMOVE_PROCESS_STATE, NO_EFFECT })
+public class Collapse extends AbstractDispatchLayer<JsonNode> implements
+		PropertyContributingDispatchLayer<JsonNode> {
+	public static final String URI = "http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/Collapse";
+	private static final String EXCLUDED_ACTIVITIES = "excludedActivities";
+
+	private ObjectNode config;
+	private final Set<String> excludedActivities = new HashSet<>();
+
+	/** Invocations in flight by activity and inputs */
+	private final ConcurrentMap<InvocationKey, InFlight> inFlight = new ConcurrentHashMap<>();
+	/**
+	 * Invocations in flight by owning process and index of the job sent down.
+	 * A job raced between alternate activities has several invocations for
+	 * the same index.
+	 */
+	private final ConcurrentMap<String, ConcurrentMap<IndexKey, List<InFlight>>> sentJobs = new ConcurrentHashMap<>();
+	private final AtomicLong collapsedCount = new AtomicLong();
+
+	public Collapse() {
+		super();
+		configure(JsonNodeFactory.instance.objectNode());
+	}
+
+	@Override
+	public void receiveJob(DispatchJobEvent jobEvent) {
+		Activity<?> activity = collapsibleActivity(jobEvent);
+		if (activity == null) {
+			getBelow().receiveJob(jobEvent);
+			return;
+		}
+		InvocationKey key = new InvocationKey(runScope(jobEvent.getContext()),
+				activity, jobEvent.getData());
+		Waiting waiting = new Waiting(jobEvent.getOwningProcess(),
+				jobEvent.getIndex(), jobEvent.getContext());
+		while (true) {
+			InFlight existing = inFlight.get(key);
+			if (existing == null) {
+				InFlight sent = new InFlight(key);
+				if (inFlight.putIfAbsent(key, sent) != null)
+					continue;
+				addSent(jobEvent.getOwningProcess(), jobEvent.getIndex(), sent);
+				getBelow().receiveJob(jobEvent);
+				return;
+			}
+			if (existing.attach(waiting)) {
+				collapsedCount.incrementAndGet();
+				return;
+			}
+			// Streaming or finished meanwhile, send the job down itself
+			inFlight.remove(key, existing);
+		}
+	}
+
+	/**
+	 * Return the activity the job would invoke if it may be collapsed, or
+	 * <code>null</code> if not.
+	 */
+	private Activity<?> collapsibleActivity(DispatchJobEvent jobEvent) {
+		List<? extends Activity<?>> activities = jobEvent.getActivities();
+		if (activities.isEmpty())
+			return null;
+		Activity<?> activity = activities.get(0);
+		if (activity instanceof NestedDataflow
+				|| excludedActivities.contains(ActivityTypes.typeOf(activity)))
+			return null;
+		return activity;
+	}
+
+	@Override
+	public void receiveResult(DispatchResultEvent resultEvent) {
+		int[] index = resultEvent.getIndex();
+		List<Waiting> waiting;
+		int jobIndexLength;
+		if (resultEvent.isStreamingEvent()) {
+			Match match = findSent(resultEvent.getOwningProcess(), index);
+			if (match == null) {
+				getAbove().receiveResult(resultEvent);
+				return;
+			}
+			waiting = new ArrayList<>();
+			for (InFlight invocation : match.inFlight)
+				waiting.addAll(invocation.startStreaming());
+			jobIndexLength = match.jobIndexLength;
+		} else {
+			List<InFlight> sent = finish(resultEvent.getOwningProcess(),
+					index, null);
+			if (sent.isEmpty()) {
+				getAbove().receiveResult(resultEvent);
+				return;
+			}
+			waiting = getWaiting(sent);
+			jobIndexLength = index.length;
+		}
+		getAbove().receiveResult(resultEvent);
+		for (Waiting job : waiting)
+			getAbove().receiveResult(
+					new DispatchResultEvent(job.owningProcess, job.index(index,
+							jobIndexLength), job.context, resultEvent.getData(),
+							resultEvent.isStreamingEvent()));
+	}
+
+	@Override
+	public void receiveResultCompletion(DispatchCompletionEvent completionEvent) {
+		List<InFlight> sent = finish(completionEvent.getOwningProcess(),
+				completionEvent.getIndex(), null);
+		getAbove().receiveResultCompletion(completionEvent);
+		for (Waiting job : getWaiting(sent))
+			getAbove().receiveResultCompletion(
+					new DispatchCompletionEvent(job.owningProcess, job.index,
+							job.context));
+	}
+
+	@Override
+	public void receiveError(DispatchErrorEvent errorEvent) {
+		List<InFlight> sent = finish(errorEvent.getOwningProcess(),
+				errorEvent.getIndex(), errorEvent.getFailedActivity());
+		getAbove().receiveError(errorEvent);
+		for (Waiting job : getWaiting(sent))
+			getAbove().receiveError(
+					new DispatchErrorEvent(job.owningProcess, job.index,
+							job.context, errorEvent.getMessage(), errorEvent
+									.getCause(), errorEvent.getFailureType(),
+							errorEvent.getFailedActivity()));
+	}
+
+	/**
+	 * Forget the invocations of the job sent down with the owning process and
+	 * index, returning them with no more jobs attaching to them. Given the
+	 * activity which failed, only the invocation of that activity is
+	 * forgotten if it can be told apart.
+	 */
+	private List<InFlight> finish(String owningProcess, int[] index,
+			Activity<?> failedActivity) {
+		List<InFlight> finished = new ArrayList<>();
+		Map<IndexKey, List<InFlight>> sent = sentJobs.get(owningProcess);
+		if (sent == null)
+			return finished;
+		IndexKey key = new IndexKey(index);
+		List<InFlight> indexSent = sent.get(key);
+		if (indexSent == null)
+			return finished;
+		synchronized (indexSent) {
+			for (InFlight candidate : indexSent)
+				if (candidate.key.activity == failedActivity)
+					finished.add(candidate);
+			if (finished.isEmpty())
+				finished.addAll(indexSent);
+			indexSent.removeAll(finished);
+			if (indexSent.isEmpty())
+				sent.remove(key, indexSent);
+		}
+		for (InFlight invocation : finished) {
+			invocation.finish();
+			inFlight.remove(invocation.key, invocation);
+		}
+		return finished;
+	}
+
+	/**
+	 * Find the invocations whose job index is a prefix of the index of a
+	 * streamed result.
+	 */
+	private Match findSent(String owningProcess, int[] index) {
+		Map<IndexKey, List<InFlight>> sent = sentJobs.get(owningProcess);
+		if (sent == null)
+			return null;
+		for (int length = index.length - 1; length >= 0; length--) {
+			List<InFlight> match = sent.get(new IndexKey(Arrays.copyOf(index,
+					length)));
+			if (match != null)
+				synchronized (match) {
+					return new Match(new ArrayList<>(match), length);
+				}
+		}
+		return null;
+	}
+
+	private static List<Waiting> getWaiting(List<InFlight> invocations) {
+		List<Waiting> waiting = new ArrayList<>();
+		for (InFlight invocation : invocations)
+			waiting.addAll(invocation.getWaiting());
+		return waiting;
+	}
+
+	@Override
+	public void finishedWith(final String owningProcess) {
+		cleanupTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				Map<IndexKey, List<InFlight>> sent = sentJobs
+						.remove(owningProcess);
+				if (sent != null)
+					for (List<InFlight> indexSent : sent.values())
+						synchronized (indexSent) {
+							for (InFlight finished : indexSent) {
+								finished.finish();
+								inFlight.remove(finished.key, finished);
+							}
+							indexSent.clear();
+						}
+			}
+		}, CLEANUP_DELAY_MS);
+	}
+
+	private void addSent(String owningProcess, int[] index, InFlight invocation) {
+		ConcurrentMap<IndexKey, List<InFlight>> sent = sentJobs
+				.get(owningProcess);
+		if (sent == null) {
+			ConcurrentMap<IndexKey, List<InFlight>> newSent = new ConcurrentHashMap<>();
+			sent = sentJobs.putIfAbsent(owningProcess, newSent);
+			if (sent == null)
+				sent = newSent;
+		}
+		IndexKey key = new IndexKey(index);
+		while (true) {
+			List<InFlight> indexSent = sent.get(key);
+			if (indexSent == null) {
+				indexSent = new ArrayList<>();
+				indexSent.add(invocation);
+				if (sent.putIfAbsent(key, indexSent) == null)
+					return;
+				continue;
+			}
+			synchronized (indexSent) {
+				// Unless emptied and removed meanwhile
+				if (!indexSent.isEmpty()) {
+					indexSent.add(invocation);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Jobs are only collapsed within a workflow run, or within the same
+	 * context outside of one.
+	 */
+	private static Object runScope(InvocationContext context) {
+		List<WorkflowRunIdEntity> entities = context
+				.getEntities(WorkflowRunIdEntity.class);
+		if (entities == null || entities.isEmpty())
+			return context;
+		return entities.get(0).getWorkflowRunId();
+	}
+
+	/**
+	 * Return the number of jobs answered by the invocation of another job
+	 * since creation.
+	 */
+	public long getCollapsedCount() {
+		return collapsedCount.get();
+	}
+
+	/**
+	 * Return the number of invocations other jobs may currently attach to.
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+
+	@Override
+	public void configure(JsonNode config) {
+		ObjectNode conf = (ObjectNode) config;
+		if (!conf.has(EXCLUDED_ACTIVITIES)
+				|| conf.get(EXCLUDED_ACTIVITIES).isNull())
+			conf.putArray(EXCLUDED_ACTIVITIES);
+		if (!conf.get(EXCLUDED_ACTIVITIES).isArray())
+			throw new IllegalArgumentException(
+					"excludedActivities is not an array");
+		Set<String> excluded = new HashSet<>();
+		for (JsonNode type : (ArrayNode) conf.get(EXCLUDED_ACTIVITIES))
+			excluded.add(type.textValue());
+		synchronized (excludedActivities) {
+			excludedActivities.clear();
+			excludedActivities.addAll(excluded);
+		}
+		this.config = conf;
+	}
+
+	@Override
+	public JsonNode getConfiguration() {
+		return config;
+	}
+
+	/**
+	 * Injects the following properties into its parent processor's property
+	 * set:
+	 * <ul>
+	 * <li><code>dispatch.collapse.collapsed [Long]</code><br/>
+	 * The number of jobs answered by the invocation of another job.</li>
+	 * </ul>
+	 */
+	@Override
+	public void injectPropertiesFor(String owningProcess) {
+		dispatchStack.receiveMonitorableProperty(
+				new MonitorableProperty<Long>() {
+					@Override
+					public Date getLastModified() {
+						return new Date();
+					}
+
+					@Override
+					public String[] getName() {
+						return new String[] { "dispatch", "collapse",
+								"collapsed" };
+					}
+
+					@Override
+					public Long getValue() throws NoSuchPropertyException {
+						return collapsedCount.get();
+					}
+				}, owningProcess);
+	}
+
+	private static class InvocationKey {
+		private final Object runScope;
+		private final Activity<?> activity;
+		private final Map<String, T2Reference> inputs;
+		private final int hashCode;
+
+		private InvocationKey(Object runScope, Activity<?> activity,
+				Map<String, T2Reference> inputs) {
+			this.runScope = runScope;
+			this.activity = activity;
+			this.inputs = new HashMap<>(inputs);
+			hashCode = 31 * (31 * runScope.hashCode() + System
+					.identityHashCode(activity)) + this.inputs.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof InvocationKey))
+				return false;
+			InvocationKey other = (InvocationKey) obj;
+			return activity == other.activity
+					&& runScope.equals(other.runScope)
+					&& inputs.equals(other.inputs);
+		}
+	}
+
+	/**
+	 * An invocation in flight and the jobs waiting for its outcome
+	 */
+	private static class InFlight {
+		private final InvocationKey key;
+		private final List<Waiting> waiting = new ArrayList<>();
+		private boolean finished = false;
+		private boolean streaming = false;
+
+		private InFlight(InvocationKey key) {
+			this.key = key;
+		}
+
+		/**
+		 * Add a job waiting for the outcome, unless the invocation has
+		 * streamed a result or finished.
+		 */
+		private synchronized boolean attach(Waiting job) {
+			if (finished || streaming)
+				return false;
+			waiting.add(job);
+			return true;
+		}
+
+		private synchronized void finish() {
+			finished = true;
+		}
+
+		/**
+		 * A result has been streamed, return the jobs which are to get it; no
+		 * more jobs may attach as they would miss it.
+		 */
+		private synchronized List<Waiting> startStreaming() {
+			streaming = true;
+			return new ArrayList<>(waiting);
+		}
+
+		private synchronized List<Waiting> getWaiting() {
+			return new ArrayList<>(waiting);
+		}
+	}
+
+	private static class Waiting {
+		private final String owningProcess;
+		private final int[] index;
+		private final InvocationContext context;
+
+		private Waiting(String owningProcess, int[] index,
+				InvocationContext context) {
+			this.owningProcess = owningProcess;
+			this.index = index;
+			this.context = context;
+		}
+
+		/**
+		 * Replace the first <code>length</code> positions of the index of a
+		 * result with the index of this job.
+		 */
+		private int[] index(int[] resultIndex, int length) {
+			int[] jobIndex = new int[index.length + resultIndex.length - length];
+			System.arraycopy(index, 0, jobIndex, 0, index.length);
+			System.arraycopy(resultIndex, length, jobIndex, index.length,
+					resultIndex.length - length);
+			return jobIndex;
+		}
+	}
+
+	private static class Match {
+		private final List<InFlight> inFlight;
+		private final int jobIndexLength;
+
+		private Match(List<InFlight> inFlight, int jobIndexLength) {
+			this.inFlight = inFlight;
+			this.jobIndexLength = jobIndexLength;
+		}
+	}
+}
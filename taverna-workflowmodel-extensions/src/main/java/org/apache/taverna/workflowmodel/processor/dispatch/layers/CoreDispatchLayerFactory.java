@@ -38,7 +38,15 @@ import com.fasterxml.jackson.databind.JsonNode;
  * <li>Failover</li>
  * <li>Retry</li>
  * <li>Stop</li>
+ * <li>Governor</li>
  * <li>Invoke</li>
+ * <li>Batch</li>
+ * <li>Memoize</li>
+ * <li>Collapse</li>
+ * <li>Hedge</li>
+ * <li>CircuitBreaker</li>
+ * <li>RateLimit</li>
+ * <li>Timeout</li>
  * <li>Loop</li>
  * <li>IntermediateProvenance</li>
  * </ul>
@@ -54,6 +62,14 @@ public class CoreDispatchLayerFactory implements DispatchLayerFactory {
 	private static final URI loopLayer = URI.create(Loop.URI);
 	private static final URI intermediateProvenanceLayer = URI.create(IntermediateProvenance.URI);
 	private static final URI stopLayer = URI.create(Stop.URI);
+	private static final URI governorLayer = URI.create(Governor.URI);
+	private static final URI batchLayer = URI.create(Batch.URI);
+	private static final URI memoizeLayer = URI.create(Memoize.URI);
+	private static final URI collapseLayer = URI.create(Collapse.URI);
+	private static final URI hedgeLayer = URI.create(Hedge.URI);
+	private static final URI circuitBreakerLayer = URI.create(CircuitBreaker.URI);
+	private static final URI rateLimitLayer = URI.create(RateLimit.URI);
+	private static final URI timeoutLayer = URI.create(Timeout.URI);
 
 	private final static Set<URI> dispatchLayerURIs = new HashSet<URI>();
 
@@ -66,6 +82,14 @@ public class CoreDispatchLayerFactory implements DispatchLayerFactory {
 		dispatchLayerURIs.add(loopLayer);
 		dispatchLayerURIs.add(intermediateProvenanceLayer);
 		dispatchLayerURIs.add(stopLayer);
+		dispatchLayerURIs.add(governorLayer);
+		dispatchLayerURIs.add(batchLayer);
+		dispatchLayerURIs.add(memoizeLayer);
+		dispatchLayerURIs.add(collapseLayer);
+		dispatchLayerURIs.add(hedgeLayer);
+		dispatchLayerURIs.add(circuitBreakerLayer);
+		dispatchLayerURIs.add(rateLimitLayer);
+		dispatchLayerURIs.add(timeoutLayer);
 	}
 
 	@Override
@@ -86,6 +110,22 @@ public class CoreDispatchLayerFactory implements DispatchLayerFactory {
 			return new IntermediateProvenance();
 		else if (stopLayer.equals(uri))
 			return new Stop();
+		else if (governorLayer.equals(uri))
+			return new Governor();
+		else if (batchLayer.equals(uri))
+			return new Batch();
+		else if (memoizeLayer.equals(uri))
+			return new Memoize();
+		else if (collapseLayer.equals(uri))
+			return new Collapse();
+		else if (hedgeLayer.equals(uri))
+			return new Hedge();
+		else if (circuitBreakerLayer.equals(uri))
+			return new CircuitBreaker();
+		else if (rateLimitLayer.equals(uri))
+			return new RateLimit();
+		else if (timeoutLayer.equals(uri))
+			return new Timeout();
 		return null;
 	}
 
@@ -30,11 +30,11 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
 
 import com.fasterxml.jackson.databind.JsonNode;
 
 import org.apache.taverna.invocation.Event;
+import org.apache.taverna.invocation.RunScopedMap;
 import org.apache.taverna.monitor.MonitorableProperty;
 import org.apache.taverna.monitor.NoSuchPropertyException;
 import org.apache.taverna.reference.ErrorDocument;
@@ -83,16 +83,19 @@ public class ErrorBounce extends AbstractDispatchLayer<JsonNode> implements
 	 * Track the number of reflected and translated errors handled by this error
 	 * bounce instance
 	 */
-	private Map<String, ErrorBounceState> state = new ConcurrentHashMap<>();
+	private RunScopedMap<ErrorBounceState> state = new RunScopedMap<>();
 
 	private int totalTranslatedErrors = 0;
 	private int totalReflectedErrors = 0;
 
-	private synchronized ErrorBounceState getState(String owningProcess) {
-		if (state.containsKey(owningProcess))
-			return state.get(owningProcess);
-		ErrorBounceState ebs = new ErrorBounceState();
-		state.put(owningProcess, ebs);
+	private ErrorBounceState getState(String owningProcess) {
+		ErrorBounceState ebs = state.get(owningProcess);
+		if (ebs == null) {
+			ErrorBounceState newState = new ErrorBounceState();
+			ebs = state.putIfAbsent(owningProcess, newState);
+			if (ebs == null)
+				ebs = newState;
+		}
 		return ebs;
 	}
 
@@ -141,8 +144,7 @@ public class ErrorBounce extends AbstractDispatchLayer<JsonNode> implements
 
 		Processor p = dispatchStack.getProcessor();
 		Map<String, T2Reference> outputDataMap = new HashMap<>();
-		String[] owningProcessArray = event.getOwningProcess().split(":");
-		String processor = owningProcessArray[owningProcessArray.length - 1];
+		String processor = event.getOwningProcessIdentifier().getLocalName();
 		for (OutputPort op : p.getOutputPorts()) {
 			String message = "Processor '" + processor + "' - Port '"
 					+ op.getName() + "'";
@@ -158,8 +160,8 @@ public class ErrorBounce extends AbstractDispatchLayer<JsonNode> implements
 			outputDataMap.put(op.getName(), ed.getId());
 		}
 		DispatchResultEvent dre = new DispatchResultEvent(
-				event.getOwningProcess(), event.getIndex(), event.getContext(),
-				outputDataMap, false);
+				event.getOwningProcessIdentifier(), event.getIterationIndex(),
+				event.getContext(), outputDataMap, false);
 		getAbove().receiveResult(dre);
 	}
 
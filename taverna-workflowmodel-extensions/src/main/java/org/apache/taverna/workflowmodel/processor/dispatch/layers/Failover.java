@@ -25,34 +25,77 @@ import static org.apache.taverna.workflowmodel.processor.dispatch.description.Di
 import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchMessageType.JOB;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.taverna.workflowmodel.processor.activity.Activity;
 import org.apache.taverna.workflowmodel.processor.dispatch.AbstractErrorHandlerLayer;
 import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerErrorReaction;
 import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerJobReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerResultCompletionReaction;
 import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerResultReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchCompletionEvent;
 import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchJobEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchResultEvent;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
  * Failure handling dispatch layer, consumes job events with multiple activities
- * and emits the same job but with only the first activity. On failures the job
- * is resent to the layer below with a new activity list containing the second
- * in the original list and so on. If a failure is received and there are no
- * further activities to use the job fails and the failure is sent back up to
- * the layer above.
+ * and emits the same job with the first activity at the head of the list. On
+ * failures the job is resent to the layer below with a new activity list
+ * starting with the second in the original list and so on. If a failure is
+ * received and there are no further activities to use the job fails and the
+ * failure is sent back up to the layer above.
+ * <p>
+ * The activities not yet tried are left in the list after the one to invoke,
+ * so that layers below such as {@link Hedge} know about the alternates. The
+ * {@link Invoke} layer only invokes the first activity of the list.
+ * <p>
+ * With <code>race</code> set to more than 1 the job is sent to that many
+ * activities at once. The first result or result completion is sent up and
+ * those of the other activities are dropped; a failed activity is replaced by
+ * the next one not yet tried, and the error is only sent up once every
+ * activity has failed. The invocations racing for a job share its owning
+ * process and index, so race mode is meant for activities returning a single
+ * result: results streamed by the racing activities are all sent up.
  * 
  * @author Tom Oinn
  * @author Stian Soiland-Reyes
  */
 @DispatchLayerErrorReaction(emits = { JOB }, relaysUnmodified = true, stateEffects = {
 		UPDATE_LOCAL_STATE, REMOVE_LOCAL_STATE })
-@DispatchLayerJobReaction(emits = {}, relaysUnmodified = true, stateEffects = { CREATE_LOCAL_STATE })
-@DispatchLayerResultReaction(emits = {}, relaysUnmodified = true, stateEffects = { REMOVE_LOCAL_STATE })
+@DispatchLayerJobReaction(emits = { JOB }, relaysUnmodified = true, stateEffects = { CREATE_LOCAL_STATE })
+@DispatchLayerResultReaction(emits = {}, relaysUnmodified = true, stateEffects = {
+		UPDATE_LOCAL_STATE, REMOVE_LOCAL_STATE })
+@DispatchLayerResultCompletionReaction(emits = {}, relaysUnmodified = true, stateEffects = {
+		UPDATE_LOCAL_STATE, REMOVE_LOCAL_STATE })
 public class Failover extends AbstractErrorHandlerLayer<JsonNode> {
 	public static final String URI = "http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/Failover";
+	private static final String RACE = "race";
+
+	private ObjectNode config;
+	private int race;
+	/**
+	 * Jobs raced between activities, by owning process and index. All access
+	 * must be synchronized on the map.
+	 */
+	private final Map<String, Map<IndexKey, FailoverState>> racingStates = new HashMap<>();
+
+	public Failover() {
+		super();
+		configure(JsonNodeFactory.instance.objectNode());
+	}
+
+	public Failover(int race) {
+		super();
+		ObjectNode conf = JsonNodeFactory.instance.objectNode();
+		conf.put(RACE, race);
+		configure(conf);
+	}
 
 	@Override
 	protected JobState getStateObject(DispatchJobEvent jobEvent) {
@@ -61,50 +104,220 @@ public class Failover extends AbstractErrorHandlerLayer<JsonNode> {
 
 	/**
 	 * Receive a job from the layer above, store it in the state map then relay
-	 * it to the layer below with a modified activity list containing only the
-	 * activity at index 0
+	 * it to the layer below with a modified activity list starting with the
+	 * activity at index 0, or in race mode with modified activity lists
+	 * starting with each of the first activities
 	 */
 	@Override
 	public void receiveJob(DispatchJobEvent jobEvent) {
-		addJobToStateList(jobEvent);
-		List<Activity<?>> newActivityList = new ArrayList<>();
-		newActivityList.add(jobEvent.getActivities().get(0));
-		getBelow().receiveJob(
-				new DispatchJobEvent(jobEvent.getOwningProcess(), jobEvent
-						.getIndex(), jobEvent.getContext(), jobEvent.getData(),
-						newActivityList));
+		int racers = Math.min(race, jobEvent.getActivities().size());
+		if (racers <= 1) {
+			addJobToStateList(jobEvent);
+			getBelow().receiveJob(
+					new DispatchJobEvent(jobEvent.getOwningProcess(), jobEvent
+							.getIndex(), jobEvent.getContext(), jobEvent
+							.getData(), activitiesFrom(jobEvent, 0)));
+			return;
+		}
+		FailoverState state = new FailoverState(jobEvent);
+		state.race(racers);
+		List<JobState> states = getJobsDefault(jobEvent.getOwningProcess());
+		synchronized (states) {
+			states.add(state);
+		}
+		synchronized (racingStates) {
+			Map<IndexKey, FailoverState> raced = racingStates.get(jobEvent
+					.getOwningProcess());
+			if (raced == null) {
+				raced = new HashMap<>();
+				racingStates.put(jobEvent.getOwningProcess(), raced);
+			}
+			raced.put(new IndexKey(jobEvent.getIndex()), state);
+		}
+		for (int i = 0; i < racers; i++)
+			getBelow().receiveJob(
+					new DispatchJobEvent(jobEvent.getOwningProcess(), jobEvent
+							.getIndex(), jobEvent.getContext(), jobEvent
+							.getData(), activitiesFrom(jobEvent, i)));
+	}
+
+	@Override
+	public void receiveResult(DispatchResultEvent resultEvent) {
+		FailoverState state = racingState(resultEvent.getOwningProcess(),
+				resultEvent.getIndex());
+		if (state == null)
+			super.receiveResult(resultEvent);
+		else if (resultEvent.isStreamingEvent() || state.won())
+			getAbove().receiveResult(resultEvent);
+	}
+
+	@Override
+	public void receiveResultCompletion(DispatchCompletionEvent completionEvent) {
+		FailoverState state = racingState(completionEvent.getOwningProcess(),
+				completionEvent.getIndex());
+		if (state == null)
+			super.receiveResultCompletion(completionEvent);
+		else if (state.won())
+			getAbove().receiveResultCompletion(completionEvent);
+	}
+
+	/**
+	 * Return the state of the job with the index if it is raced between
+	 * activities, or <code>null</code> if not.
+	 */
+	private FailoverState racingState(String owningProcess, int[] index) {
+		if (race <= 1)
+			return null;
+		synchronized (racingStates) {
+			Map<IndexKey, FailoverState> raced = racingStates
+					.get(owningProcess);
+			return raced == null ? null : raced.get(new IndexKey(index));
+		}
+	}
+
+	@Override
+	protected void removeJob(String owningProcess, JobState jobState) {
+		super.removeJob(owningProcess, jobState);
+		FailoverState state = (FailoverState) jobState;
+		if (!state.racing)
+			return;
+		synchronized (racingStates) {
+			Map<IndexKey, FailoverState> raced = racingStates
+					.get(owningProcess);
+			if (raced == null)
+				return;
+			raced.remove(new IndexKey(state.getIndex()));
+			if (raced.isEmpty())
+				racingStates.remove(owningProcess);
+		}
+	}
+
+	@Override
+	public void finishedWith(String owningProcess) {
+		super.finishedWith(owningProcess);
+		synchronized (racingStates) {
+			racingStates.remove(owningProcess);
+		}
+	}
+
+	/**
+	 * Return the activities of the job not yet tried, starting with the
+	 * activity at the given index
+	 */
+	private static List<Activity<?>> activitiesFrom(DispatchJobEvent jobEvent,
+			int activityIndex) {
+		List<? extends Activity<?>> activities = jobEvent.getActivities();
+		return new ArrayList<Activity<?>>(activities.subList(activityIndex,
+				activities.size()));
 	}
 
 	class FailoverState extends JobState {
 		int currentActivityIndex = 0;
+		boolean racing = false;
+		/** Number of racing invocations which have not come back yet */
+		int outstanding = 0;
+		boolean finished = false;
 
 		public FailoverState(DispatchJobEvent jobEvent) {
 			super(jobEvent);
 		}
 
+		int[] getIndex() {
+			return jobEvent.getIndex();
+		}
+
+		/**
+		 * Race the first activities, those before currentActivityIndex have
+		 * been sent
+		 */
+		synchronized void race(int racers) {
+			racing = true;
+			outstanding = racers;
+			currentActivityIndex = racers - 1;
+		}
+
 		@Override
 		public boolean handleError() {
+			if (racing)
+				return handleRaceError();
 			currentActivityIndex++;
 			if (currentActivityIndex == jobEvent.getActivities().size())
 				return false;
-			List<Activity<?>> newActivityList = new ArrayList<>();
-			newActivityList.add(jobEvent.getActivities().get(
-					currentActivityIndex));
 			getBelow().receiveJob(
 					new DispatchJobEvent(jobEvent.getOwningProcess(), jobEvent
 							.getIndex(), jobEvent.getContext(), jobEvent
-							.getData(), newActivityList));
+							.getData(), activitiesFrom(jobEvent,
+							currentActivityIndex)));
+			return true;
+		}
+
+		/**
+		 * One of the racing activities failed, replace it with the next
+		 * activity if there is one. The error is only sent up when no racing
+		 * activity is left.
+		 */
+		private boolean handleRaceError() {
+			int next = -1;
+			boolean done;
+			synchronized (this) {
+				outstanding--;
+				if (finished) {
+					done = outstanding == 0;
+				} else if (currentActivityIndex + 1 < jobEvent.getActivities()
+						.size()) {
+					next = ++currentActivityIndex;
+					outstanding++;
+					done = false;
+				} else if (outstanding == 0) {
+					finished = true;
+					// not handled, the error is sent up and the state removed
+					return false;
+				} else
+					done = false;
+			}
+			if (done)
+				removeJob(jobEvent.getOwningProcess(), this);
+			if (next >= 0)
+				getBelow().receiveJob(
+						new DispatchJobEvent(jobEvent.getOwningProcess(),
+								jobEvent.getIndex(), jobEvent.getContext(),
+								jobEvent.getData(), activitiesFrom(jobEvent,
+										next)));
 			return true;
 		}
+
+		/**
+		 * One of the racing activities succeeded, return true if it is the
+		 * first to do so and its outcome is to be sent up.
+		 */
+		private boolean won() {
+			boolean first;
+			boolean done;
+			synchronized (this) {
+				outstanding--;
+				first = !finished;
+				finished = true;
+				done = outstanding <= 0;
+			}
+			if (done)
+				removeJob(jobEvent.getOwningProcess(), this);
+			return first;
+		}
 	}
 
 	@Override
 	public void configure(JsonNode config) {
-		// Do nothing - there is no configuration to do
+		ObjectNode conf = (ObjectNode) config;
+		if (!conf.has(RACE) || conf.get(RACE).isNull())
+			conf.put(RACE, 1);
+		if (conf.get(RACE).intValue() < 1)
+			throw new IllegalArgumentException("race < 1");
+		this.config = conf;
+		race = conf.get(RACE).intValue();
 	}
 
 	@Override
 	public JsonNode getConfiguration() {
-		return null;
+		return config;
 	}
 }
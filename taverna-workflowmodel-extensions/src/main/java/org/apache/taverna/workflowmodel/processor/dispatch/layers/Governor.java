@@ -0,0 +1,291 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.CREATE_PROCESS_STATE;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.REMOVE_PROCESS_STATE;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.taverna.invocation.ConcurrencyGovernor;
+import org.apache.taverna.reference.WorkflowRunIdEntity;
+import org.apache.taverna.workflowmodel.processor.activity.Activity;
+import org.apache.taverna.workflowmodel.processor.activity.NestedDataflow;
+import org.apache.taverna.workflowmodel.processor.dispatch.AbstractDispatchLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerErrorReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerJobReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerResultCompletionReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerResultReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchCompletionEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchJobEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchResultEvent;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Holds jobs back until the {@link ConcurrencyGovernor} grants them a permit,
+ * limiting the number of invocations in flight in the workflow run and in the
+ * JVM. Put directly above the {@link Invoke} layer, the permit is given back
+ * when the final result, result completion or error for the job comes back
+ * up.
+ * <p>
+ * With a positive <code>activityLimit</code> the job also needs a permit for
+ * its activity type, identified by the <code>URI</code> constant of the
+ * activity class (or by the class name if there is none). The limit is shared
+ * by all processors invoking that activity type. Nested workflows are not
+ * governed, as they would hold a permit while their own processors wait for
+ * one.
+ * <p>
+ * The platform only adds this layer to processors configured with a
+ * <code>governor</code> section, or to all processors when the engine wide
+ * limits of the {@link ConcurrencyGovernor} are set.
+ */
+@DispatchLayerJobReaction(emits = {}, relaysUnmodified = true, stateEffects = { CREATE_PROCESS_STATE })
+@DispatchLayerResultReaction(emits = {}, relaysUnmodified = true, stateEffects = { REMOVE_PROCESS_STATE })
+@DispatchLayerResultCompletionReaction(emits = {}, relaysUnmodified = true, stateEffects = { REMOVE_PROCESS_STATE })
+@DispatchLayerErrorReaction(emits = {}, relaysUnmodified = true, stateEffects = { REMOVE_PROCESS_STATE })
+public class Governor extends AbstractDispatchLayer<JsonNode> {
+	public static final String URI = "http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/Governor";
+	private static final String ACTIVITY_LIMIT = "activityLimit";
+	/** Run id used for jobs outside a workflow run */
+	private static final String NO_RUN = "";
+
+	private ObjectNode config;
+	private int activityLimit;
+	private ConcurrencyGovernor governor;
+
+	/**
+	 * Permits held, per owning process and job index. A job raced between
+	 * alternate activities holds several permits for the same index.
+	 */
+	private final ConcurrentMap<String, ConcurrentMap<IndexKey, List<Permit>>> permits = new ConcurrentHashMap<>();
+
+	public Governor() {
+		super();
+		configure(JsonNodeFactory.instance.objectNode());
+	}
+
+	public Governor(int activityLimit) {
+		super();
+		ObjectNode conf = JsonNodeFactory.instance.objectNode();
+		conf.put(ACTIVITY_LIMIT, activityLimit);
+		configure(conf);
+	}
+
+	/**
+	 * Use the specified governor rather than the engine wide one.
+	 */
+	public void setConcurrencyGovernor(ConcurrencyGovernor governor) {
+		this.governor = governor;
+	}
+
+	private ConcurrencyGovernor getConcurrencyGovernor() {
+		if (governor == null)
+			return ConcurrencyGovernor.getInstance();
+		return governor;
+	}
+
+	@Override
+	public void receiveJob(final DispatchJobEvent jobEvent) {
+		List<? extends Activity<?>> activities = jobEvent.getActivities();
+		if (!activities.isEmpty()
+				&& activities.get(0) instanceof NestedDataflow) {
+			getBelow().receiveJob(jobEvent);
+			return;
+		}
+		final String workflowRunId = workflowRunId(jobEvent);
+		final String activityType;
+		if (activityLimit > 0 && !activities.isEmpty())
+			activityType = ActivityTypes.typeOf(activities.get(0));
+		else
+			activityType = null;
+		getConcurrencyGovernor().acquire(workflowRunId, activityType,
+				activityLimit, new Runnable() {
+					@Override
+					public void run() {
+						if (!NO_RUN.equals(workflowRunId)
+								&& Stop.isCancelled(workflowRunId)) {
+							// Drop the job like the Stop layer would
+							getConcurrencyGovernor().release(workflowRunId,
+									activityType);
+							return;
+						}
+						hold(jobEvent.getOwningProcess(), jobEvent.getIndex(),
+								new Permit(workflowRunId, activityType));
+						getBelow().receiveJob(jobEvent);
+					}
+				});
+	}
+
+	@Override
+	public void receiveResult(DispatchResultEvent resultEvent) {
+		if (!resultEvent.isStreamingEvent())
+			release(resultEvent.getOwningProcess(), resultEvent.getIndex(),
+					null);
+		getAbove().receiveResult(resultEvent);
+	}
+
+	@Override
+	public void receiveResultCompletion(DispatchCompletionEvent completionEvent) {
+		release(completionEvent.getOwningProcess(),
+				completionEvent.getIndex(), null);
+		getAbove().receiveResultCompletion(completionEvent);
+	}
+
+	@Override
+	public void receiveError(DispatchErrorEvent errorEvent) {
+		release(errorEvent.getOwningProcess(), errorEvent.getIndex(),
+				errorEvent.getFailedActivity() == null || activityLimit <= 0 ? null
+						: ActivityTypes.typeOf(errorEvent.getFailedActivity()));
+		getAbove().receiveError(errorEvent);
+	}
+
+	/**
+	 * Give back any permits still held for the owning process
+	 */
+	@Override
+	public void finishedWith(final String owningProcess) {
+		cleanupTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				Map<IndexKey, List<Permit>> held = permits
+						.remove(owningProcess);
+				if (held != null)
+					for (List<Permit> indexPermits : held.values())
+						synchronized (indexPermits) {
+							for (Permit permit : indexPermits)
+								permit.release();
+							indexPermits.clear();
+						}
+			}
+		}, CLEANUP_DELAY_MS);
+	}
+
+	private ConcurrentMap<IndexKey, List<Permit>> permitsFor(
+			String owningProcess) {
+		ConcurrentMap<IndexKey, List<Permit>> held = permits.get(owningProcess);
+		if (held == null) {
+			ConcurrentMap<IndexKey, List<Permit>> newHeld = new ConcurrentHashMap<>();
+			held = permits.putIfAbsent(owningProcess, newHeld);
+			if (held == null)
+				held = newHeld;
+		}
+		return held;
+	}
+
+	private void hold(String owningProcess, int[] index, Permit permit) {
+		ConcurrentMap<IndexKey, List<Permit>> held = permitsFor(owningProcess);
+		IndexKey key = new IndexKey(index);
+		while (true) {
+			List<Permit> indexPermits = held.get(key);
+			if (indexPermits == null) {
+				indexPermits = new ArrayList<>();
+				indexPermits.add(permit);
+				if (held.putIfAbsent(key, indexPermits) == null)
+					return;
+				continue;
+			}
+			synchronized (indexPermits) {
+				// Unless emptied and removed meanwhile
+				if (!indexPermits.isEmpty()) {
+					indexPermits.add(permit);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Give back a permit held for the job with the index, the one for the
+	 * activity type if known.
+	 */
+	private void release(String owningProcess, int[] index, String activityType) {
+		Map<IndexKey, List<Permit>> held = permits.get(owningProcess);
+		if (held == null)
+			return;
+		IndexKey key = new IndexKey(index);
+		List<Permit> indexPermits = held.get(key);
+		if (indexPermits == null)
+			return;
+		Permit permit = null;
+		synchronized (indexPermits) {
+			for (Permit candidate : indexPermits)
+				if (activityType == null
+						|| activityType.equals(candidate.activityType)) {
+					permit = candidate;
+					break;
+				}
+			if (permit == null && !indexPermits.isEmpty())
+				permit = indexPermits.get(0);
+			if (permit != null)
+				indexPermits.remove(permit);
+			if (indexPermits.isEmpty())
+				held.remove(key, indexPermits);
+		}
+		if (permit != null)
+			permit.release();
+	}
+
+	private static String workflowRunId(DispatchJobEvent jobEvent) {
+		List<WorkflowRunIdEntity> entities = jobEvent.getContext().getEntities(
+				WorkflowRunIdEntity.class);
+		if (entities == null || entities.isEmpty())
+			return NO_RUN;
+		return entities.get(0).getWorkflowRunId();
+	}
+
+	@Override
+	public void configure(JsonNode config) {
+		ObjectNode conf = (ObjectNode) config;
+		if (!conf.has(ACTIVITY_LIMIT) || conf.get(ACTIVITY_LIMIT).isNull())
+			conf.put(ACTIVITY_LIMIT, 0);
+		if (conf.get(ACTIVITY_LIMIT).intValue() < 0)
+			throw new IllegalArgumentException("activityLimit < 0");
+		this.config = conf;
+		activityLimit = conf.get(ACTIVITY_LIMIT).intValue();
+	}
+
+	@Override
+	public JsonNode getConfiguration() {
+		return config;
+	}
+
+	private class Permit {
+		private final String workflowRunId;
+		private final String activityType;
+
+		private Permit(String workflowRunId, String activityType) {
+			this.workflowRunId = workflowRunId;
+			this.activityType = activityType;
+		}
+
+		private void release() {
+			getConcurrencyGovernor().release(workflowRunId, activityType);
+		}
+	}
+}
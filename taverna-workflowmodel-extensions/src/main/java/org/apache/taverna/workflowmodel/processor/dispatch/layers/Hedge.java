@@ -0,0 +1,472 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.CREATE_PROCESS_STATE;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.NO_EFFECT;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.REMOVE_PROCESS_STATE;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.UPDATE_PROCESS_STATE;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchMessageType.JOB;
+import static org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorType.INVOCATION;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.taverna.invocation.InvocationExecutor;
+import org.apache.taverna.monitor.MonitorableProperty;
+import org.apache.taverna.monitor.NoSuchPropertyException;
+import org.apache.taverna.workflowmodel.processor.activity.Activity;
+import org.apache.taverna.workflowmodel.processor.dispatch.AbstractDispatchLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.PropertyContributingDispatchLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerErrorReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerJobReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerResultCompletionReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerResultReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchCompletionEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchJobEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchResultEvent;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Sends a duplicate of a job down again when it has taken longer than most
+ * jobs of the processor, taking whichever outcome comes back first.
+ * <p>
+ * The latency of the recent jobs is tracked, and once <code>minSamples</code>
+ * jobs have finished a job still running after the <code>percentile</code> of
+ * their latencies gets a hedged invocation, up to <code>maxHedges</code>
+ * times. With <code>alternates</code> set, the hedged invocation goes to the
+ * next activity in the list left by the {@link Failover} layer, if there is
+ * one.
+ * <p>
+ * The first result or result completion is sent up, those of the other
+ * invocations of the job are dropped. An error is only sent up once all the
+ * invocations of the job have failed, so the layers above see a single
+ * outcome for every job and {@link Parallelize} counts it once. Invocations
+ * which lose are not cancelled, their outcome is ignored.
+ * <p>
+ * Results streamed by different invocations of a job can't be told apart, so
+ * once the processor has streamed a result no more jobs are hedged. Put
+ * directly above the {@link Invoke} layer, hedged invocations share the
+ * {@link Governor} permit of their job.
+ * <p>
+ * The number of hedged invocations and the current hedging delay are
+ * published as the <code>dispatch.hedge.hedged</code> and
+ * <code>dispatch.hedge.delay</code> properties.
+ */
+@DispatchLayerJobReaction(emits = { JOB }, relaysUnmodified = true, stateEffects = {
+		CREATE_PROCESS_STATE, UPDATE_PROCESS_STATE })
+@DispatchLayerResultReaction(emits = {}, relaysUnmodified = true, stateEffects = {
+		REMOVE_PROCESS_STATE, NO_EFFECT })
+@DispatchLayerResultCompletionReaction(emits = {}, relaysUnmodified = true, stateEffects = {
+		REMOVE_PROCESS_STATE, NO_EFFECT })
+@DispatchLayerErrorReaction(emits = {}, relaysUnmodified = true, stateEffects = {
+		UPDATE_PROCESS_STATE, REMOVE_PROCESS_STATE })
+public class Hedge extends AbstractDispatchLayer<JsonNode> implements
+		PropertyContributingDispatchLayer<JsonNode> {
+	public static final String URI = "http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/Hedge";
+	private static final String PERCENTILE = "percentile";
+	private static final String MIN_SAMPLES = "minSamples";
+	private static final String MAX_HEDGES = "maxHedges";
+	private static final String ALTERNATES = "alternates";
+	/** Number of recent latencies the percentile is taken from */
+	private static final int WINDOW = 1000;
+	/** Number of new latencies after which the percentile is recomputed */
+	private static final int RECOMPUTE_EVERY = 16;
+
+	private static Logger logger = Logger.getLogger(Hedge.class);
+
+	private ObjectNode config;
+	private double percentile;
+	private int minSamples;
+	private int maxHedges;
+	private boolean alternates;
+
+	private final ConcurrentMap<String, ConcurrentMap<IndexKey, HedgedJob>> jobs = new ConcurrentHashMap<>();
+	private final long[] latencies = new long[WINDOW];
+	private int sampleCount = 0;
+	private volatile long delay = -1;
+	private volatile boolean streaming = false;
+	private final AtomicLong hedgedCount = new AtomicLong();
+
+	public Hedge() {
+		super();
+		configure(JsonNodeFactory.instance.objectNode());
+	}
+
+	public Hedge(double percentile, int minSamples, int maxHedges) {
+		super();
+		ObjectNode conf = JsonNodeFactory.instance.objectNode();
+		conf.put(PERCENTILE, percentile);
+		conf.put(MIN_SAMPLES, minSamples);
+		conf.put(MAX_HEDGES, maxHedges);
+		configure(conf);
+	}
+
+	@Override
+	public void receiveJob(DispatchJobEvent jobEvent) {
+		ConcurrentMap<IndexKey, HedgedJob> owned = jobsFor(jobEvent
+				.getOwningProcess());
+		IndexKey index = new IndexKey(jobEvent.getIndex());
+		HedgedJob existing = owned.get(index);
+		if (existing != null && existing.join()) {
+			// Raced by a layer above, one more invocation of the same job
+			getBelow().receiveJob(jobEvent);
+			return;
+		}
+		HedgedJob job = new HedgedJob(jobEvent);
+		owned.put(index, job);
+		// Hedge only once the job itself has been sent down
+		getBelow().receiveJob(jobEvent);
+		job.scheduleHedge();
+	}
+
+	@Override
+	public void receiveResult(DispatchResultEvent resultEvent) {
+		if (resultEvent.isStreamingEvent()) {
+			streaming = true;
+			getAbove().receiveResult(resultEvent);
+			return;
+		}
+		HedgedJob job = get(resultEvent.getOwningProcess(),
+				resultEvent.getIndex());
+		if (job == null || job.succeeded())
+			getAbove().receiveResult(resultEvent);
+	}
+
+	@Override
+	public void receiveResultCompletion(DispatchCompletionEvent completionEvent) {
+		HedgedJob job = get(completionEvent.getOwningProcess(),
+				completionEvent.getIndex());
+		if (job == null || job.succeeded())
+			getAbove().receiveResultCompletion(completionEvent);
+	}
+
+	@Override
+	public void receiveError(DispatchErrorEvent errorEvent) {
+		HedgedJob job = get(errorEvent.getOwningProcess(),
+				errorEvent.getIndex());
+		if (job == null || job.failed())
+			getAbove().receiveError(errorEvent);
+	}
+
+	@Override
+	public void finishedWith(final String owningProcess) {
+		cleanupTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				Map<IndexKey, HedgedJob> finished = jobs.remove(owningProcess);
+				if (finished != null)
+					for (HedgedJob job : finished.values())
+						job.cancelHedge();
+			}
+		}, CLEANUP_DELAY_MS);
+	}
+
+	private ConcurrentMap<IndexKey, HedgedJob> jobsFor(String owningProcess) {
+		ConcurrentMap<IndexKey, HedgedJob> owned = jobs.get(owningProcess);
+		if (owned == null) {
+			ConcurrentMap<IndexKey, HedgedJob> newOwned = new ConcurrentHashMap<>();
+			owned = jobs.putIfAbsent(owningProcess, newOwned);
+			if (owned == null)
+				owned = newOwned;
+		}
+		return owned;
+	}
+
+	private HedgedJob get(String owningProcess, int[] index) {
+		Map<IndexKey, HedgedJob> owned = jobs.get(owningProcess);
+		return owned == null ? null : owned.get(new IndexKey(index));
+	}
+
+	private void remove(HedgedJob job) {
+		Map<IndexKey, HedgedJob> owned = jobs.get(job.jobEvent
+				.getOwningProcess());
+		if (owned != null)
+			owned.remove(new IndexKey(job.jobEvent.getIndex()), job);
+	}
+
+	/**
+	 * Record the latency of a job and recompute the hedging delay every so
+	 * often.
+	 */
+	private void sample(long latencyNanos) {
+		long[] window = null;
+		synchronized (latencies) {
+			latencies[sampleCount % WINDOW] = latencyNanos;
+			sampleCount++;
+			if (sampleCount >= minSamples
+					&& (sampleCount == minSamples || sampleCount
+							% RECOMPUTE_EVERY == 0))
+				window = Arrays.copyOf(latencies, Math.min(sampleCount, WINDOW));
+		}
+		if (window != null) {
+			Arrays.sort(window);
+			int rank = (int) Math.ceil(percentile / 100 * window.length) - 1;
+			delay = window[Math.max(0, Math.min(rank, window.length - 1))];
+		}
+	}
+
+	/**
+	 * Return the time after which a job is hedged, in nanoseconds, or -1 if
+	 * there are not enough samples yet.
+	 */
+	public long getDelay() {
+		return delay;
+	}
+
+	/**
+	 * Return the number of hedged invocations since creation.
+	 */
+	public long getHedgedCount() {
+		return hedgedCount.get();
+	}
+
+	@Override
+	public void configure(JsonNode config) {
+		ObjectNode conf = (ObjectNode) config;
+		if (!conf.has(PERCENTILE) || conf.get(PERCENTILE).isNull())
+			conf.put(PERCENTILE, 95.0);
+		if (!conf.has(MIN_SAMPLES) || conf.get(MIN_SAMPLES).isNull())
+			conf.put(MIN_SAMPLES, 20);
+		if (!conf.has(MAX_HEDGES) || conf.get(MAX_HEDGES).isNull())
+			conf.put(MAX_HEDGES, 1);
+		if (!conf.has(ALTERNATES) || conf.get(ALTERNATES).isNull())
+			conf.put(ALTERNATES, true);
+		double percentile = conf.get(PERCENTILE).asDouble();
+		if (percentile <= 0 || percentile >= 100)
+			throw new IllegalArgumentException(
+					"percentile not between 0 and 100");
+		if (conf.get(MIN_SAMPLES).intValue() < 1)
+			throw new IllegalArgumentException("minSamples < 1");
+		if (conf.get(MAX_HEDGES).intValue() < 0)
+			throw new IllegalArgumentException("maxHedges < 0");
+		this.config = conf;
+		this.percentile = percentile;
+		minSamples = conf.get(MIN_SAMPLES).intValue();
+		maxHedges = conf.get(MAX_HEDGES).intValue();
+		alternates = conf.get(ALTERNATES).booleanValue();
+	}
+
+	@Override
+	public JsonNode getConfiguration() {
+		return config;
+	}
+
+	/**
+	 * Injects the following properties into its parent processor's property
+	 * set:
+	 * <ul>
+	 * <li><code>dispatch.hedge.hedged [Long]</code><br/>
+	 * The number of hedged invocations.</li>
+	 * <li><code>dispatch.hedge.delay [Long]</code><br/>
+	 * The time in milliseconds after which jobs are hedged, or -1 if not yet
+	 * known.</li>
+	 * </ul>
+	 */
+	@Override
+	public void injectPropertiesFor(String owningProcess) {
+		dispatchStack.receiveMonitorableProperty(new HedgeProperty("hedged") {
+			@Override
+			public Long getValue() throws NoSuchPropertyException {
+				return hedgedCount.get();
+			}
+		}, owningProcess);
+		dispatchStack.receiveMonitorableProperty(new HedgeProperty("delay") {
+			@Override
+			public Long getValue() throws NoSuchPropertyException {
+				long nanos = delay;
+				return nanos < 0 ? -1 : NANOSECONDS.toMillis(nanos);
+			}
+		}, owningProcess);
+	}
+
+	private abstract static class HedgeProperty implements
+			MonitorableProperty<Long> {
+		private final String name;
+
+		private HedgeProperty(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Date getLastModified() {
+			return new Date();
+		}
+
+		@Override
+		public String[] getName() {
+			return new String[] { "dispatch", "hedge", name };
+		}
+	}
+
+	/**
+	 * A job and the invocations of it still outstanding
+	 */
+	private class HedgedJob implements Runnable {
+		private final DispatchJobEvent jobEvent;
+		private final long startTime = System.nanoTime();
+		private int invocations = 1;
+		private int outstanding = 1;
+		private boolean finished = false;
+		private ScheduledFuture<?> hedgeTask;
+
+		private HedgedJob(DispatchJobEvent jobEvent) {
+			this.jobEvent = jobEvent;
+		}
+
+		private synchronized void scheduleHedge() {
+			long hedgeDelay = delay;
+			if (finished || streaming || hedgeDelay < 0
+					|| invocations > maxHedges)
+				return;
+			hedgeTask = scheduler.schedule(this, hedgeDelay * invocations
+					- (System.nanoTime() - startTime), NANOSECONDS);
+		}
+
+		private synchronized void cancelHedge() {
+			if (hedgeTask != null)
+				hedgeTask.cancel(false);
+			hedgeTask = null;
+		}
+
+		/**
+		 * Send down another invocation of the job, on the scheduler thread
+		 */
+		@Override
+		public void run() {
+			final DispatchJobEvent hedgeEvent;
+			synchronized (this) {
+				hedgeTask = null;
+				if (finished || streaming)
+					return;
+				hedgeEvent = new DispatchJobEvent(jobEvent.getOwningProcess(),
+						jobEvent.getIndex(), jobEvent.getContext(),
+						jobEvent.getData(), activities(invocations));
+				invocations++;
+				outstanding++;
+			}
+			hedgedCount.incrementAndGet();
+			InvocationExecutor.getInstance().execute(new Runnable() {
+				@Override
+				public void run() {
+					getBelow().receiveJob(hedgeEvent);
+				}
+			}, null, new UncaughtExceptionHandler() {
+				@Override
+				public void uncaughtException(Thread t, Throwable e) {
+					logger.warn("Could not hedge job " + jobEvent, e);
+					if (failed())
+						getAbove().receiveError(
+								new DispatchErrorEvent(jobEvent
+										.getOwningProcess(), jobEvent
+										.getIndex(), jobEvent.getContext(),
+										"Could not hedge job", e, INVOCATION,
+										null));
+				}
+			});
+			scheduleHedge();
+		}
+
+		/**
+		 * Return the activities of the job, starting with the next alternate
+		 * for the given number of invocations if there is one.
+		 */
+		private List<Activity<?>> activities(int invocation) {
+			List<? extends Activity<?>> activities = jobEvent.getActivities();
+			List<Activity<?>> rotated = new ArrayList<>(activities);
+			if (alternates && !activities.isEmpty()) {
+				int first = invocation % activities.size();
+				rotated.clear();
+				rotated.addAll(activities.subList(first, activities.size()));
+				rotated.addAll(activities.subList(0, first));
+			}
+			return rotated;
+		}
+
+		/**
+		 * Count another invocation of the job sent down from above, return
+		 * false if the job has already finished.
+		 */
+		private synchronized boolean join() {
+			if (finished)
+				return false;
+			outstanding++;
+			return true;
+		}
+
+		/**
+		 * An invocation succeeded, return true if it is the first outcome to
+		 * send up.
+		 */
+		private boolean succeeded() {
+			boolean first;
+			synchronized (this) {
+				outstanding--;
+				first = !finished;
+				finished = true;
+			}
+			cancelHedge();
+			if (isDone())
+				remove(this);
+			if (first)
+				sample(System.nanoTime() - startTime);
+			return first;
+		}
+
+		/**
+		 * An invocation failed, return true if it was the last one
+		 * outstanding and the error should be sent up.
+		 */
+		private boolean failed() {
+			boolean last;
+			synchronized (this) {
+				outstanding--;
+				last = !finished && outstanding == 0;
+				if (last)
+					finished = true;
+			}
+			if (last)
+				cancelHedge();
+			if (isDone())
+				remove(this);
+			return last;
+		}
+
+		private synchronized boolean isDone() {
+			return finished && outstanding <= 0;
+		}
+	}
+}
@@ -0,0 +1,52 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import java.util.Arrays;
+
+/**
+ * Hashable wrapper of an index array, used by dispatch layers to match
+ * results, errors and completions coming up the stack against the jobs sent
+ * down.
+ */
+final class IndexKey {
+	private final int[] index;
+	private final int hashCode;
+
+	IndexKey(int[] index) {
+		this.index = index;
+		this.hashCode = Arrays.hashCode(index);
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof IndexKey))
+			return false;
+		IndexKey other = (IndexKey) obj;
+		return hashCode == other.hashCode && Arrays.equals(index, other.index);
+	}
+}
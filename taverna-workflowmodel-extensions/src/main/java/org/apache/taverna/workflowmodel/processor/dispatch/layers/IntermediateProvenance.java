@@ -35,6 +35,7 @@ import java.util.Map;
 import java.util.UUID;
 
 import org.apache.taverna.invocation.Event;
+import org.apache.taverna.invocation.RunScopedMap;
 import org.apache.taverna.provenance.item.ActivityProvenanceItem;
 import org.apache.taverna.provenance.item.ErrorProvenanceItem;
 import org.apache.taverna.provenance.item.InputDataProvenanceItem;
@@ -71,7 +72,7 @@ public class IntermediateProvenance extends AbstractDispatchLayer<String> {
 	private static final Logger logger = Logger.getLogger(IntermediateProvenance.class);
 
 	private ProvenanceReporter reporter;
-	private Map<String, Map<String, IterationProvenanceItem>> processToIndexes = new HashMap<>();
+	private RunScopedMap<Map<String, IterationProvenanceItem>> processToIndexes = new RunScopedMap<>();
 	private Map<ActivityProvenanceItem, List<Object>> activityProvenanceItemMap = new HashMap<>();
 	private Map<InputDataProvenanceItem, List<Object>> inputDataProvenanceItemMap = new HashMap<>();
 
@@ -101,15 +102,15 @@ public class IntermediateProvenance extends AbstractDispatchLayer<String> {
 
 	protected Map<String, IterationProvenanceItem> getIndexesByProcess(
 			String owningProcess) {
-		synchronized (processToIndexes) {
-			Map<String, IterationProvenanceItem> indexes = processToIndexes
-					.get(owningProcess);
-			if (indexes == null) {
-				indexes = new HashMap<>();
-				processToIndexes.put(owningProcess, indexes);
-			}
-			return indexes;
+		Map<String, IterationProvenanceItem> indexes = processToIndexes
+				.get(owningProcess);
+		if (indexes == null) {
+			Map<String, IterationProvenanceItem> newIndexes = new HashMap<>();
+			indexes = processToIndexes.putIfAbsent(owningProcess, newIndexes);
+			if (indexes == null)
+				indexes = newIndexes;
 		}
+		return indexes;
 	}
 
 	protected IterationProvenanceItem getIterationProvItem(Event<?> event) {
@@ -25,15 +25,26 @@ import static org.apache.taverna.workflowmodel.processor.dispatch.description.Di
 
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.sql.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
 
 import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.InvocationExecutor;
+import org.apache.taverna.invocation.IterationIndex;
+import org.apache.taverna.invocation.ProcessIdentifier;
 import org.apache.taverna.monitor.MonitorManager;
 import org.apache.taverna.monitor.MonitorableProperty;
+import org.apache.taverna.monitor.NoSuchPropertyException;
 import org.apache.taverna.provenance.item.InvocationStartedProvenanceItem;
 import org.apache.taverna.provenance.item.IterationProvenanceItem;
 import org.apache.taverna.provenance.reporter.ProvenanceReporter;
@@ -43,9 +54,10 @@ import org.apache.taverna.workflowmodel.ControlBoundary;
 import org.apache.taverna.workflowmodel.OutputPort;
 import org.apache.taverna.workflowmodel.processor.activity.Activity;
 import org.apache.taverna.workflowmodel.processor.activity.AsynchronousActivity;
-import org.apache.taverna.workflowmodel.processor.activity.AsynchronousActivityCallback;
+import org.apache.taverna.workflowmodel.processor.activity.CancellableActivityCallback;
 import org.apache.taverna.workflowmodel.processor.activity.MonitorableAsynchronousActivity;
 import org.apache.taverna.workflowmodel.processor.dispatch.AbstractDispatchLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.PropertyContributingDispatchLayer;
 import org.apache.taverna.workflowmodel.processor.dispatch.DispatchLayer;
 import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerJobReaction;
 import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchCompletionEvent;
@@ -67,6 +79,10 @@ import com.fasterxml.jackson.databind.JsonNode;
  * this point, i.e. by the insertion of a failover layer.
  * <p>
  * Currently only handles activities implementing {@link AsynchronousActivity}.
+ * <p>
+ * Invocations still running can be {@link #cancel(String, int[], Activity)
+ * cancelled}, the activity is told through its
+ * {@link CancellableActivityCallback}.
  *
  * @author Tom Oinn
  * @author Stian Soiland-Reyes
@@ -74,14 +90,17 @@ import com.fasterxml.jackson.databind.JsonNode;
  */
 @DispatchLayerJobReaction(emits = { ERROR, RESULT_COMPLETION, RESULT }, relaysUnmodified = false, stateEffects = {})
 @ControlBoundary
-public class Invoke extends AbstractDispatchLayer<JsonNode> {
+public class Invoke extends AbstractDispatchLayer<JsonNode> implements
+		PropertyContributingDispatchLayer<JsonNode> {
 	public static final String URI = "http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/Invoke";
 	private static Logger logger = Logger.getLogger(Invoke.class);
 	private static Long invocationCount = 0L;
 
 	private MonitorManager monMan;
+	/** Callbacks of the invocations still running, per owning process */
+	private final ConcurrentMap<String, Set<InvokeCallBack>> running = new ConcurrentHashMap<>();
 
-	private static String getNextProcessID() {
+	protected static String getNextProcessID() {
 		long count;
 		synchronized (invocationCount) {
 			count = ++invocationCount;
@@ -104,6 +123,69 @@ public class Invoke extends AbstractDispatchLayer<JsonNode> {
 		return null;
 	}
 
+	/**
+	 * Injects the following properties of the engine wide
+	 * {@link InvocationExecutor} into its parent processor's property set:
+	 * <ul>
+	 * <li><code>dispatch.invoke.active [Long]</code><br/>
+	 * The number of invocations currently running.</li>
+	 * <li><code>dispatch.invoke.queued [Long]</code><br/>
+	 * The number of invocations submitted but not yet started.</li>
+	 * <li><code>dispatch.invoke.submitted [Long]</code><br/>
+	 * The number of invocations submitted since the executor was created.</li>
+	 * <li><code>dispatch.invoke.failed [Long]</code><br/>
+	 * The number of invocations which finished with an uncaught exception or
+	 * could not be scheduled.</li>
+	 * </ul>
+	 */
+	@Override
+	public void injectPropertiesFor(String owningProcess) {
+		dispatchStack.receiveMonitorableProperty(new InvokeProperty("active") {
+			@Override
+			public Long getValue() throws NoSuchPropertyException {
+				return (long) InvocationExecutor.getInstance().getActiveCount();
+			}
+		}, owningProcess);
+		dispatchStack.receiveMonitorableProperty(new InvokeProperty("queued") {
+			@Override
+			public Long getValue() throws NoSuchPropertyException {
+				return InvocationExecutor.getInstance().getQueuedCount();
+			}
+		}, owningProcess);
+		dispatchStack.receiveMonitorableProperty(new InvokeProperty(
+				"submitted") {
+			@Override
+			public Long getValue() throws NoSuchPropertyException {
+				return InvocationExecutor.getInstance().getSubmittedCount();
+			}
+		}, owningProcess);
+		dispatchStack.receiveMonitorableProperty(new InvokeProperty("failed") {
+			@Override
+			public Long getValue() throws NoSuchPropertyException {
+				return InvocationExecutor.getInstance().getFailedCount();
+			}
+		}, owningProcess);
+	}
+
+	private abstract static class InvokeProperty implements
+			MonitorableProperty<Long> {
+		private final String name;
+
+		private InvokeProperty(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public java.util.Date getLastModified() {
+			return new java.util.Date();
+		}
+
+		@Override
+		public String[] getName() {
+			return new String[] { "dispatch", "invoke", name };
+		}
+	}
+
 	/**
 	 * Receive a job from the layer above and pick the first concrete activity
 	 * from the list to invoke. Invoke this activity, creating a callback which
@@ -126,13 +208,8 @@ public class Invoke extends AbstractDispatchLayer<JsonNode> {
 	}
 
 	protected void invoke(final DispatchJobEvent jobEvent, final AsynchronousActivity<?> activity) {
-		// Register with the monitor
-		final String invocationProcessIdentifier = jobEvent.pushOwningProcess(
-				getNextProcessID()).getOwningProcess();
-		monMan.registerNode(activity, invocationProcessIdentifier,
-				new HashSet<MonitorableProperty<?>>());
-		monMan.registerNode(jobEvent, invocationProcessIdentifier,
-				new HashSet<MonitorableProperty<?>>());
+		final String invocationProcessIdentifier = startInvocation(jobEvent,
+				activity, getNextProcessID());
 
 		/*
 		 * The activity is an AsynchronousActivity so we invoke it with an
@@ -147,7 +224,53 @@ public class Invoke extends AbstractDispatchLayer<JsonNode> {
 
 		InvocationContext context = jobEvent.getContext();
 		final ReferenceService refService = context.getReferenceService();
+		Map<String, T2Reference> inputData = activityInputs(jobEvent, activity);
 
+		/*
+		 * Create a callback object to receive events, completions and failure
+		 * notifications from the activity
+		 */
+		InvokeCallBack callback = new InvokeCallBack(jobEvent, refService,
+				invocationProcessIdentifier, activity);
+		running(callback);
+
+		if (activity instanceof MonitorableAsynchronousActivity<?>) {
+			/*
+			 * Monitorable activity so get the monitorable properties and push
+			 * them into the state tree after launching the job
+			 */
+			MonitorableAsynchronousActivity<?> maa = (MonitorableAsynchronousActivity<?>) activity;
+			Set<MonitorableProperty<?>> props = maa
+					.executeAsynchWithMonitoring(inputData, callback);
+			monMan.addPropertiesToNode(
+					ProcessIdentifier.valueOf(invocationProcessIdentifier)
+							.toArray(), props);
+		} else {
+			/*
+			 * Run the job, passing in the callback we've just created along
+			 * with the (possibly renamed) input data map
+			 */
+			activity.executeAsynch(inputData, callback);
+		}
+	}
+
+	/**
+	 * Register the invocation of the activity for the job with the monitor and
+	 * the provenance reporter.
+	 *
+	 * @return the invocation process identifier
+	 */
+	protected String startInvocation(DispatchJobEvent jobEvent,
+			Activity<?> activity, String processID) {
+		// Register with the monitor
+		final String invocationProcessIdentifier = jobEvent.pushOwningProcess(
+				processID).getOwningProcess();
+		monMan.registerNode(activity, invocationProcessIdentifier,
+				new HashSet<MonitorableProperty<?>>());
+		monMan.registerNode(jobEvent, invocationProcessIdentifier,
+				new HashSet<MonitorableProperty<?>>());
+
+		InvocationContext context = jobEvent.getContext();
 		InvocationStartedProvenanceItem invocationItem = null;
 		ProvenanceReporter provenanceReporter = context.getProvenanceReporter();
 		if (provenanceReporter != null) {
@@ -165,11 +288,15 @@ public class Invoke extends AbstractDispatchLayer<JsonNode> {
 				provenanceReporter.addProvenanceItem(invocationItem);
 			}
 		}
+		return invocationProcessIdentifier;
+	}
 
-		/*
-		 * Create a Map of EntityIdentifiers named appropriately given the
-		 * activity mapping
-		 */
+	/**
+	 * Create a Map of EntityIdentifiers named appropriately given the activity
+	 * mapping
+	 */
+	protected Map<String, T2Reference> activityInputs(
+			DispatchJobEvent jobEvent, Activity<?> activity) {
 		Map<String, T2Reference> inputData = new HashMap<>();
 		for (String inputName : jobEvent.getData().keySet()) {
 			String activityInputName = activity
@@ -178,31 +305,62 @@ public class Invoke extends AbstractDispatchLayer<JsonNode> {
 				inputData.put(activityInputName, jobEvent.getData()
 						.get(inputName));
 		}
+		return inputData;
+	}
 
-		/*
-		 * Create a callback object to receive events, completions and failure
-		 * notifications from the activity
-		 */
-		AsynchronousActivityCallback callback = new InvokeCallBack(
-				jobEvent, refService, invocationProcessIdentifier,
-				activity);
+	/**
+	 * Cancel the invocations still running for the job with the owning
+	 * process and index, only those of the given activity if not
+	 * <code>null</code>. Whatever the activity sends back afterwards is
+	 * ignored, so the caller is responsible for sending up an outcome for the
+	 * job.
+	 *
+	 * @return the number of invocations cancelled
+	 */
+	public int cancel(String owningProcess, int[] index, Activity<?> activity) {
+		Set<InvokeCallBack> callbacks = running.get(owningProcess);
+		if (callbacks == null)
+			return 0;
+		int cancelled = 0;
+		for (InvokeCallBack callback : callbacks)
+			if (Arrays.equals(callback.jobEvent.getIndex(), index)
+					&& (activity == null || callback.activity == activity)
+					&& callback.cancel())
+				cancelled++;
+		return cancelled;
+	}
 
-		if (activity instanceof MonitorableAsynchronousActivity<?>) {
-			/*
-			 * Monitorable activity so get the monitorable properties and push
-			 * them into the state tree after launching the job
-			 */
-			MonitorableAsynchronousActivity<?> maa = (MonitorableAsynchronousActivity<?>) activity;
-			Set<MonitorableProperty<?>> props = maa
-					.executeAsynchWithMonitoring(inputData, callback);
-			monMan.addPropertiesToNode(invocationProcessIdentifier.split(":"), props);
-		} else {
-			/*
-			 * Run the job, passing in the callback we've just created along
-			 * with the (possibly renamed) input data map
-			 */
-			activity.executeAsynch(inputData, callback);
+	@Override
+	public void finishedWith(String owningProcess) {
+		running.remove(owningProcess);
+	}
+
+	/**
+	 * Keep the callback of an invocation about to start until it finishes, so
+	 * that the invocation can be {@link #cancel(String, int[], Activity)
+	 * cancelled}.
+	 */
+	protected void running(InvokeCallBack callback) {
+		runningFor(callback.jobEvent.getOwningProcess()).add(callback);
+	}
+
+	private Set<InvokeCallBack> runningFor(String owningProcess) {
+		Set<InvokeCallBack> callbacks = running.get(owningProcess);
+		if (callbacks == null) {
+			Set<InvokeCallBack> newCallbacks = Collections
+					.newSetFromMap(new ConcurrentHashMap<InvokeCallBack, Boolean>());
+			callbacks = running.putIfAbsent(owningProcess, newCallbacks);
+			if (callbacks == null)
+				callbacks = newCallbacks;
 		}
+		return callbacks;
+	}
+
+	private void stopped(InvokeCallBack callback) {
+		Set<InvokeCallBack> callbacks = running.get(callback.jobEvent
+				.getOwningProcess());
+		if (callbacks != null)
+			callbacks.remove(callback);
 	}
 
 	protected IntermediateProvenance findIntermediateProvenance() {
@@ -213,12 +371,16 @@ public class Invoke extends AbstractDispatchLayer<JsonNode> {
 		return null;
 	}
 
-	protected class InvokeCallBack implements AsynchronousActivityCallback {
+	protected class InvokeCallBack implements CancellableActivityCallback {
 		protected final AsynchronousActivity<?> activity;
 		protected final String invocationProcessIdentifier;
 		protected final DispatchJobEvent jobEvent;
 		protected final ReferenceService refService;
 		protected boolean sentJob = false;
+		private boolean done = false;
+		private boolean cancelled = false;
+		private final List<Future<?>> runs = new ArrayList<>();
+		private final List<Runnable> cancellationListeners = new ArrayList<>();
 
 		protected InvokeCallBack(DispatchJobEvent jobEvent,
 				ReferenceService refService,
@@ -243,13 +405,16 @@ public class Invoke extends AbstractDispatchLayer<JsonNode> {
 		@Override
 		public void fail(String message, Throwable t,
 				DispatchErrorType errorType) {
+			if (!finish())
+				return;
 			logger.warn("Failed (" + errorType + ") invoking " + activity
 					+ " for job " + jobEvent + ": " + message, t);
 			monMan.deregisterNode(
 					invocationProcessIdentifier);
 			getAbove().receiveError(
-					new DispatchErrorEvent(jobEvent.getOwningProcess(),
-							jobEvent.getIndex(), jobEvent.getContext(),
+					new DispatchErrorEvent(jobEvent
+							.getOwningProcessIdentifier(), jobEvent
+							.getIterationIndex(), jobEvent.getContext(),
 							message, t, errorType, activity));
 		}
 
@@ -265,25 +430,18 @@ public class Invoke extends AbstractDispatchLayer<JsonNode> {
 
 		@Override
 		public void receiveCompletion(int[] completionIndex) {
+			if (completionIndex.length == 0 ? !finish() : isCancelled())
+				return;
 			if (completionIndex.length == 0)
 				// Final result, clean up monitor state
 				monMan.deregisterNode(invocationProcessIdentifier);
 			if (sentJob) {
-				int[] newIndex;
-				if (completionIndex.length == 0)
-					newIndex = jobEvent.getIndex();
-				else {
-					newIndex = new int[jobEvent.getIndex().length
-							+ completionIndex.length];
-					int i = 0;
-					for (int indexValue : jobEvent.getIndex())
-						newIndex[i++] = indexValue;
-					for (int indexValue : completionIndex)
-						newIndex[i++] = indexValue;
-				}
+				// Shares the job's index rather than copying it
+				IterationIndex newIndex = jobEvent.getIterationIndex().append(
+						completionIndex);
 				DispatchCompletionEvent c = new DispatchCompletionEvent(
-						jobEvent.getOwningProcess(), newIndex, jobEvent
-								.getContext());
+						jobEvent.getOwningProcessIdentifier(), newIndex,
+						jobEvent.getContext());
 				getAbove().receiveResultCompletion(c);
 			} else {
 				/*
@@ -306,6 +464,8 @@ public class Invoke extends AbstractDispatchLayer<JsonNode> {
 
 		@Override
 		public void receiveResult(Map<String, T2Reference> data, int[] index) {
+			if (index.length == 0 ? !finish() : isCancelled())
+				return;
 			/*
 			 * Construct a new result map using the activity mapping (activity
 			 * output name to processor output name)
@@ -318,26 +478,16 @@ public class Invoke extends AbstractDispatchLayer<JsonNode> {
 					resultMap.put(processorOutputName, data.get(outputName));
 			}
 			/*
-			 * Construct a new index array if the specified index is non zero
-			 * length, otherwise just use the original job's index array (means
-			 * we're not streaming)
+			 * Append the specified index to the job's, which is shared rather
+			 * than copied. A zero length index leaves the job's index as it is
+			 * (means we're not streaming)
 			 */
-			int[] newIndex;
-			boolean streaming = false;
-			if (index.length == 0)
-				newIndex = jobEvent.getIndex();
-			else {
-				streaming = true;
-				newIndex = new int[jobEvent.getIndex().length + index.length];
-				int i = 0;
-				for (int indexValue : jobEvent.getIndex())
-					newIndex[i++] = indexValue;
-				for (int indexValue : index)
-					newIndex[i++] = indexValue;
-			}
-			DispatchResultEvent resultEvent = new DispatchResultEvent(jobEvent
-					.getOwningProcess(), newIndex, jobEvent.getContext(),
-					resultMap, streaming);
+			boolean streaming = index.length > 0;
+			IterationIndex newIndex = jobEvent.getIterationIndex().append(
+					index);
+			DispatchResultEvent resultEvent = new DispatchResultEvent(
+					jobEvent.getOwningProcessIdentifier(), newIndex,
+					jobEvent.getContext(), resultMap, streaming);
 			if (!streaming) {
 				monMan.registerNode(resultEvent, invocationProcessIdentifier,
 						new HashSet<MonitorableProperty<?>>());
@@ -350,19 +500,95 @@ public class Invoke extends AbstractDispatchLayer<JsonNode> {
 			sentJob = true;
 		}
 
+		/**
+		 * Run the activity logic on the engine wide {@link InvocationExecutor}
+		 * with the activity's class loader as the context class loader. Any
+		 * uncaught exception fails the job.
+		 */
 		@Override
 		public void requestRun(Runnable runMe) {
-			String newThreadName = jobEvent.toString();
-			Thread thread = new Thread(runMe, newThreadName);
-			thread.setContextClassLoader(activity.getClass()
-					.getClassLoader());
-			thread.setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
-				@Override
-				public void uncaughtException(Thread t, Throwable e) {
-					fail("Uncaught exception while invoking " + activity, e);
+			Future<?> run = InvocationExecutor.getInstance().execute(runMe,
+					activity.getClass().getClassLoader(),
+					new UncaughtExceptionHandler() {
+						@Override
+						public void uncaughtException(Thread t, Throwable e) {
+							fail("Uncaught exception while invoking "
+									+ activity, e);
+						}
+					});
+			synchronized (this) {
+				if (!cancelled) {
+					if (!done)
+						runs.add(run);
+					return;
 				}
-			});
-			thread.start();
+			}
+			run.cancel(true);
+		}
+
+		/**
+		 * The final outcome of the invocation is being sent, return false if
+		 * it is to be ignored as the invocation has been cancelled.
+		 */
+		private boolean finish() {
+			synchronized (this) {
+				if (cancelled)
+					return false;
+				done = true;
+				runs.clear();
+			}
+			stopped(this);
+			return true;
+		}
+
+		/**
+		 * Cancel the invocation unless it has finished, interrupting the
+		 * threads it requested and telling the cancellation listeners.
+		 */
+		private boolean cancel() {
+			List<Future<?>> cancelledRuns;
+			List<Runnable> listeners;
+			synchronized (this) {
+				if (done || cancelled)
+					return false;
+				cancelled = true;
+				cancelledRuns = new ArrayList<>(runs);
+				listeners = new ArrayList<>(cancellationListeners);
+				runs.clear();
+				cancellationListeners.clear();
+			}
+			stopped(this);
+			monMan.deregisterNode(invocationProcessIdentifier);
+			for (Future<?> run : cancelledRuns)
+				run.cancel(true);
+			for (Runnable listener : listeners)
+				runListener(listener);
+			return true;
+		}
+
+		private void runListener(Runnable listener) {
+			try {
+				listener.run();
+			} catch (RuntimeException e) {
+				logger.warn("Cancellation listener failed for " + activity, e);
+			}
+		}
+
+		@Override
+		public synchronized boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public void addCancellationListener(Runnable listener) {
+			synchronized (this) {
+				if (!cancelled) {
+					if (!done)
+						cancellationListeners.add(listener);
+					return;
+				}
+			}
+			runListener(listener);
 		}
 	}
 }
@@ -19,14 +19,17 @@
 
 package org.apache.taverna.workflowmodel.processor.dispatch.layers;
 
+import static java.util.Collections.synchronizedMap;
+
 import java.lang.Thread.UncaughtExceptionHandler;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
 import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.InvocationExecutor;
+import org.apache.taverna.invocation.RunScopedMap;
 import org.apache.taverna.reference.ReferenceService;
 import org.apache.taverna.reference.T2Reference;
 import org.apache.taverna.workflowmodel.Processor;
@@ -91,8 +94,9 @@ public class Loop extends AbstractDispatchLayer<JsonNode> {
 
 	private JsonNode config = JsonNodeFactory.instance.objectNode();
 
-	protected Map<String, AbstractDispatchEvent> incomingJobs = new HashMap<>();
-	protected Map<String, AbstractDispatchEvent> outgoingJobs = new HashMap<>();
+	/** Events received, per owning process and then by index */
+	protected RunScopedMap<Map<String, AbstractDispatchEvent>> incomingJobs = new RunScopedMap<>();
+	protected RunScopedMap<Map<String, AbstractDispatchEvent>> outgoingJobs = new RunScopedMap<>();
 
 	@Override
 	public void configure(JsonNode config) {
@@ -101,17 +105,8 @@ public class Loop extends AbstractDispatchLayer<JsonNode> {
 
 	@Override
 	public void finishedWith(String owningProcess) {
-		String prefix = owningProcess + "[";
-		synchronized (outgoingJobs) {
-			for (String key : new ArrayList<>(outgoingJobs.keySet()))
-				if (key.startsWith(prefix))
-					outgoingJobs.remove(key);
-		}
-		synchronized (incomingJobs) {
-			for (String key : new ArrayList<>(incomingJobs.keySet()))
-				if (key.startsWith(prefix))
-					incomingJobs.remove(key);
-		}
+		outgoingJobs.remove(owningProcess);
+		incomingJobs.remove(owningProcess);
 	}
 
 	@Override
@@ -121,9 +116,7 @@ public class Loop extends AbstractDispatchLayer<JsonNode> {
 
 	@Override
 	public void receiveJob(DispatchJobEvent jobEvent) {
-		synchronized (incomingJobs) {
-			incomingJobs.put(jobIdentifier(jobEvent), jobEvent);
-		}
+		putEvent(incomingJobs, jobEvent);
 		if (config.get("runFirst").asBoolean()) {
 			// We'll do the conditional in receiveResult instead
 			super.receiveJob(jobEvent);
@@ -134,9 +127,7 @@ public class Loop extends AbstractDispatchLayer<JsonNode> {
 
 	@Override
 	public void receiveJobQueue(DispatchJobQueueEvent jobQueueEvent) {
-		synchronized (incomingJobs) {
-			incomingJobs.put(jobIdentifier(jobQueueEvent), jobQueueEvent);
-		}
+		putEvent(incomingJobs, jobQueueEvent);
 		if (config.get("runFirst").asBoolean()) {
 			// We'll do the conditional in receiveResult instead
 			super.receiveJobQueue(jobQueueEvent);
@@ -157,9 +148,7 @@ public class Loop extends AbstractDispatchLayer<JsonNode> {
 			super.receiveResult(resultEvent);
 			return;
 		}
-		synchronized (outgoingJobs) {
-			outgoingJobs.put(jobIdentifier(resultEvent), resultEvent);
-		}
+		putEvent(outgoingJobs, resultEvent);
 		checkCondition(resultEvent);
 	}
 
@@ -170,9 +159,7 @@ public class Loop extends AbstractDispatchLayer<JsonNode> {
 			super.receiveResultCompletion(completionEvent);
 			return;
 		}
-		synchronized (outgoingJobs) {
-			outgoingJobs.put(jobIdentifier(completionEvent), completionEvent);
-		}
+		putEvent(outgoingJobs, completionEvent);
 		checkCondition(completionEvent);
 	}
 
@@ -198,19 +185,17 @@ public class Loop extends AbstractDispatchLayer<JsonNode> {
 			return;
 		}
 		AbstractAsynchronousActivity asyncCondition = (AbstractAsynchronousActivity) condition;
-		String jobIdentifier = jobIdentifier(event);
-		Map<String, T2Reference> inputs = prepareInputs(asyncCondition,
-				jobIdentifier);
-		AsynchronousActivityCallback callback = new ConditionCallBack(
-				jobIdentifier);
+		Map<String, T2Reference> inputs = prepareInputs(asyncCondition, event);
+		AsynchronousActivityCallback callback = new ConditionCallBack(event);
 		asyncCondition.executeAsynch(inputs, callback);
 	}
 
 	private Map<String, T2Reference> prepareInputs(
-			AbstractAsynchronousActivity asyncCondition, String jobIdentifier) {
+			AbstractAsynchronousActivity asyncCondition,
+			AbstractDispatchEvent event) {
 		Map<String, T2Reference> inputs = new HashMap<>();
-		Map<String, T2Reference> inData = getInData(jobIdentifier);
-		Map<String, T2Reference> outData = getOutData(jobIdentifier);
+		Map<String, T2Reference> inData = getInData(event);
+		Map<String, T2Reference> outData = getOutData(event);
 
 		Set<ActivityInputPort> inputPorts = asyncCondition.getInputPorts();
 		for (ActivityInputPort conditionIn : inputPorts) {
@@ -225,28 +210,47 @@ public class Loop extends AbstractDispatchLayer<JsonNode> {
 		return inputs;
 	}
 
-	private Map<String, T2Reference> getInData(String jobIdentifier) {
-		AbstractDispatchEvent inEvent;
-		synchronized (incomingJobs) {
-			inEvent = incomingJobs.get(jobIdentifier);
-		}
+	private Map<String, T2Reference> getInData(AbstractDispatchEvent event) {
+		AbstractDispatchEvent inEvent = getEvent(incomingJobs, event);
 		Map<String, T2Reference> inData = new HashMap<>();
 		if (inEvent instanceof DispatchJobEvent)
 			inData = ((DispatchJobEvent) inEvent).getData();
 		return inData;
 	}
 
-	private Map<String, T2Reference> getOutData(String jobIdentifier) {
-		AbstractDispatchEvent outEvent;
-		synchronized (outgoingJobs) {
-			outEvent = outgoingJobs.get(jobIdentifier);
-		}
+	private Map<String, T2Reference> getOutData(AbstractDispatchEvent event) {
+		AbstractDispatchEvent outEvent = getEvent(outgoingJobs, event);
 		Map<String, T2Reference> outData = new HashMap<>();
 		if (outEvent instanceof DispatchResultEvent)
 			outData = ((DispatchResultEvent) outEvent).getData();
 		return outData;
 	}
 
+	private void putEvent(
+			RunScopedMap<Map<String, AbstractDispatchEvent>> jobs,
+			AbstractDispatchEvent event) {
+		String owningProcess = event.getOwningProcess();
+		Map<String, AbstractDispatchEvent> events = jobs.get(owningProcess);
+		if (events == null) {
+			Map<String, AbstractDispatchEvent> newEvents = synchronizedMap(
+					new HashMap<String, AbstractDispatchEvent>());
+			events = jobs.putIfAbsent(owningProcess, newEvents);
+			if (events == null)
+				events = newEvents;
+		}
+		events.put(Arrays.toString(event.getIndex()), event);
+	}
+
+	private AbstractDispatchEvent getEvent(
+			RunScopedMap<Map<String, AbstractDispatchEvent>> jobs,
+			AbstractDispatchEvent event) {
+		Map<String, AbstractDispatchEvent> events = jobs.get(event
+				.getOwningProcess());
+		if (events == null)
+			return null;
+		return events.get(Arrays.toString(event.getIndex()));
+	}
+
 	private String jobIdentifier(AbstractDispatchEvent event) {
 		String jobId = event.getOwningProcess()
 				+ Arrays.toString(event.getIndex());
@@ -257,15 +261,14 @@ public class Loop extends AbstractDispatchLayer<JsonNode> {
 
 	public class ConditionCallBack implements AsynchronousActivityCallback {
 		private InvocationContext context;
+		private final AbstractDispatchEvent event;
 		private final String jobIdentifier;
 		private String processId;
 
-		public ConditionCallBack(String jobIdentifier) {
-			this.jobIdentifier = jobIdentifier;
-			AbstractDispatchEvent originalEvent;
-			synchronized (incomingJobs) {
-				originalEvent = incomingJobs.get(jobIdentifier);
-			}
+		public ConditionCallBack(AbstractDispatchEvent event) {
+			this.event = event;
+			this.jobIdentifier = jobIdentifier(event);
+			AbstractDispatchEvent originalEvent = getEvent(incomingJobs, event);
 			context = originalEvent.getContext();
 			processId = originalEvent.getOwningProcess() + ":condition";
 		}
@@ -286,10 +289,7 @@ public class Loop extends AbstractDispatchLayer<JsonNode> {
 			logger.warn("Failed (" + errorType + ") invoking condition service "
 					+ jobIdentifier + ":" + message, t);
 
-			AbstractDispatchEvent originalEvent;
-			synchronized (incomingJobs) {
-				originalEvent = incomingJobs.get(jobIdentifier);
-			}
+			AbstractDispatchEvent originalEvent = getEvent(incomingJobs, event);
 			receiveError(new DispatchErrorEvent(originalEvent
 					.getOwningProcess(), originalEvent.getIndex(),
 					originalEvent.getContext(),
@@ -337,10 +337,7 @@ public class Loop extends AbstractDispatchLayer<JsonNode> {
 
 			if (Boolean.parseBoolean(loop)) {
 				// Push it down again
-				AbstractDispatchEvent dispatchEvent;
-				synchronized (incomingJobs) {
-					dispatchEvent = incomingJobs.get(jobIdentifier);
-				}
+				AbstractDispatchEvent dispatchEvent = getEvent(incomingJobs, event);
 				if (dispatchEvent == null) {
 					fail("Unknown job identifier " + jobIdentifier);
 				}
@@ -359,10 +356,7 @@ public class Loop extends AbstractDispatchLayer<JsonNode> {
 			} else {
 				// We'll push it up, end of loop for now
 
-				AbstractDispatchEvent outgoingEvent;
-				synchronized (outgoingJobs) {
-					outgoingEvent = outgoingJobs.get(jobIdentifier);
-				}
+				AbstractDispatchEvent outgoingEvent = getEvent(outgoingJobs, event);
 				if (outgoingEvent == null && !config.get("runFirst").asBoolean()) {
 					fail("Initial loop condition failed");
 				}
@@ -400,17 +394,14 @@ public class Loop extends AbstractDispatchLayer<JsonNode> {
 
 		@Override
 		public void requestRun(Runnable runMe) {
-			String newThreadName = "Condition service "
-					+ getParentProcessIdentifier();
-			Thread thread = new Thread(runMe, newThreadName);
-			thread.setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
-				@Override
-				public void uncaughtException(Thread t, Throwable e) {
-					fail("Uncaught exception while invoking " + jobIdentifier,
-							e);
-				}
-			});
-			thread.start();
+			InvocationExecutor.getInstance().execute(runMe, null,
+					new UncaughtExceptionHandler() {
+						@Override
+						public void uncaughtException(Thread t, Throwable e) {
+							fail("Uncaught exception while invoking "
+									+ jobIdentifier, e);
+						}
+					});
 		}
 	}
 
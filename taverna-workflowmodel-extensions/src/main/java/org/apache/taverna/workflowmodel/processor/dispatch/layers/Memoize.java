@@ -0,0 +1,586 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.CREATE_PROCESS_STATE;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.NO_EFFECT;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.REMOVE_PROCESS_STATE;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchMessageType.RESULT;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.InvocationExecutor;
+import org.apache.taverna.monitor.MonitorableProperty;
+import org.apache.taverna.monitor.NoSuchPropertyException;
+import org.apache.taverna.reference.ReferenceService;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.workflowmodel.processor.activity.Activity;
+import org.apache.taverna.workflowmodel.processor.activity.AsynchronousActivity;
+import org.apache.taverna.workflowmodel.processor.activity.NestedDataflow;
+import org.apache.taverna.workflowmodel.processor.dispatch.AbstractDispatchLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.PropertyContributingDispatchLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerErrorReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerJobReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerResultCompletionReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerResultReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchCompletionEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorType;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchJobEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchResultEvent;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Reuses the results of earlier invocations of an activity with the same
+ * configuration and inputs, from this or previous workflow runs, instead of
+ * invoking the activity again.
+ * <p>
+ * Results are stored in the {@link ResultCache}, keyed by a SHA-256 hash of
+ * the activity type, its JSON configuration with the fields of objects in
+ * sorted order, and the content of the input values. On a hit the stored outputs are registered with the
+ * {@link ReferenceService} and sent up as the result of the job, otherwise the
+ * job is sent down and its result stored once it comes back. Only complete,
+ * error free results of activities configured with JSON are stored; streamed
+ * results, nested workflows and results containing errors are not.
+ * <p>
+ * Computing the key reads the input values, so the lookup is done on the
+ * {@link InvocationExecutor} rather than on the thread sending the job.
+ * <p>
+ * Activities whose results are not reproducible must not be memoized. They
+ * can be excluded by listing their type URIs in
+ * <code>excludedActivities</code>, or for all processors in the system
+ * property <code>taverna.memoize.excludedActivities</code> (comma separated),
+ * and the layer can be switched off with <code>"enabled": false</code>.
+ * <p>
+ * The numbers of hits and misses are published as the
+ * <code>dispatch.memoize.hits</code> and <code>dispatch.memoize.misses</code>
+ * properties.
+ */
+@DispatchLayerJobReaction(emits = { RESULT }, relaysUnmodified = true, stateEffects = {
+		CREATE_PROCESS_STATE, NO_EFFECT })
+@DispatchLayerResultReaction(emits = {}, relaysUnmodified = true, stateEffects = {
+		REMOVE_PROCESS_STATE, NO_EFFECT })
+@DispatchLayerResultCompletionReaction(emits = {}, relaysUnmodified = true, stateEffects = {
+		REMOVE_PROCESS_STATE, NO_EFFECT })
+@DispatchLayerErrorReaction(emits = {}, relaysUnmodified = true, stateEffects = {
+		REMOVE_PROCESS_STATE, NO_EFFECT })
+public class Memoize extends AbstractDispatchLayer<JsonNode> implements
+		PropertyContributingDispatchLayer<JsonNode> {
+	public static final String URI = "http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/Memoize";
+	public static final String EXCLUDED_ACTIVITIES_PROPERTY = "taverna.memoize.excludedActivities";
+	private static final String ENABLED = "enabled";
+	private static final String EXCLUDED_ACTIVITIES = "excludedActivities";
+	/** Version of the format of the stored results */
+	private static final int FORMAT_VERSION = 1;
+
+	private static Logger logger = Logger.getLogger(Memoize.class);
+
+	private ObjectNode config;
+	private boolean enabled;
+	private final Set<String> excludedActivities = new HashSet<>();
+	private ResultCache resultCache;
+
+	/** Pending result of several jobs with the same index, never stored */
+	private static final PendingResult AMBIGUOUS = new PendingResult(null, null);
+
+	/**
+	 * Jobs sent down whose result is to be stored, per owning process and job
+	 * index
+	 */
+	private final ConcurrentMap<String, ConcurrentMap<IndexKey, PendingResult>> pendingResults = new ConcurrentHashMap<>();
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong storedCount = new AtomicLong();
+
+	public Memoize() {
+		super();
+		configure(JsonNodeFactory.instance.objectNode());
+	}
+
+	/**
+	 * Use the specified cache rather than the engine wide one.
+	 */
+	public void setResultCache(ResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+
+	private ResultCache getResultCache() {
+		if (resultCache == null)
+			return ResultCache.getInstance();
+		return resultCache;
+	}
+
+	@Override
+	public void receiveJob(final DispatchJobEvent jobEvent) {
+		final AsynchronousActivity<?> activity = memoizedActivity(jobEvent);
+		if (activity == null) {
+			getBelow().receiveJob(jobEvent);
+			return;
+		}
+		InvocationExecutor.getInstance().execute(new Runnable() {
+			@Override
+			public void run() {
+				lookup(jobEvent, activity);
+			}
+		}, null, new UncaughtExceptionHandler() {
+			@Override
+			public void uncaughtException(Thread t, Throwable e) {
+				logger.error("Could not memoize job " + jobEvent, e);
+				removePending(jobEvent.getOwningProcess(), jobEvent.getIndex());
+				getAbove().receiveError(
+						new DispatchErrorEvent(jobEvent.getOwningProcess(),
+								jobEvent.getIndex(), jobEvent.getContext(),
+								"Could not memoize job", e,
+								DispatchErrorType.INVOCATION, activity));
+			}
+		});
+	}
+
+	/**
+	 * Return the activity the job would invoke if its results may be
+	 * memoized, or <code>null</code> if not.
+	 */
+	private AsynchronousActivity<?> memoizedActivity(DispatchJobEvent jobEvent) {
+		if (!enabled)
+			return null;
+		for (Activity<?> activity : jobEvent.getActivities())
+			if (activity instanceof AsynchronousActivity) {
+				if (activity instanceof NestedDataflow
+						|| !(activity.getConfiguration() instanceof JsonNode))
+					return null;
+				String type = ActivityTypes.typeOf(activity);
+				if (excludedActivities.contains(type)
+						|| globallyExcluded().contains(type))
+					return null;
+				return (AsynchronousActivity<?>) activity;
+			}
+		return null;
+	}
+
+	private void lookup(DispatchJobEvent jobEvent,
+			AsynchronousActivity<?> activity) {
+		InvocationContext context = jobEvent.getContext();
+		String key = null;
+		try {
+			key = key(jobEvent, activity);
+		} catch (IOException | RuntimeException e) {
+			logger.debug("Not memoizing job " + jobEvent, e);
+		}
+		if (key != null) {
+			Map<String, T2Reference> outputs = cachedOutputs(key, activity,
+					context);
+			if (outputs != null) {
+				hitCount.incrementAndGet();
+				getAbove().receiveResult(
+						new DispatchResultEvent(jobEvent.getOwningProcess(),
+								jobEvent.getIndex(), context, outputs, false));
+				return;
+			}
+			missCount.incrementAndGet();
+			ConcurrentMap<IndexKey, PendingResult> pending = pendingFor(jobEvent
+					.getOwningProcess());
+			IndexKey index = new IndexKey(jobEvent.getIndex());
+			/*
+			 * A job raced between alternate activities is sent down more than
+			 * once with the same index, the result can't be told apart
+			 */
+			if (pending.putIfAbsent(index, new PendingResult(key, activity)) != null)
+				pending.put(index, AMBIGUOUS);
+		}
+		getBelow().receiveJob(jobEvent);
+	}
+
+	/**
+	 * Hash the activity type, configuration and input values.
+	 */
+	private String key(DispatchJobEvent jobEvent, Activity<?> activity)
+			throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		DataOutputStream out = new DataOutputStream(new DigestOutputStream(
+				new OutputStream() {
+					@Override
+					public void write(int b) {
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) {
+					}
+				}, digest));
+		out.writeUTF(ActivityTypes.typeOf(activity));
+		writeCanonical((JsonNode) activity.getConfiguration(), out);
+
+		SortedMap<String, T2Reference> inputs = new TreeMap<>();
+		for (Entry<String, T2Reference> input : jobEvent.getData().entrySet()) {
+			String activityInputName = activity.getInputPortMapping().get(
+					input.getKey());
+			if (activityInputName != null)
+				inputs.put(activityInputName, input.getValue());
+		}
+		ReferenceService referenceService = jobEvent.getContext()
+				.getReferenceService();
+		out.writeInt(inputs.size());
+		for (Entry<String, T2Reference> input : inputs.entrySet()) {
+			out.writeUTF(input.getKey());
+			ReferenceContent.write(input.getValue(), referenceService,
+					jobEvent.getContext(), out);
+		}
+		out.flush();
+
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest())
+			key.append(String.format("%02x", b));
+		return key.toString();
+	}
+
+	/**
+	 * Write the JSON in a form which does not depend on the order of the
+	 * fields of its objects, so that equal configurations hash the same.
+	 */
+	static void writeCanonical(JsonNode json, DataOutputStream out)
+			throws IOException {
+		if (json.isObject()) {
+			SortedMap<String, JsonNode> fields = new TreeMap<>();
+			for (Iterator<Entry<String, JsonNode>> i = json.fields(); i
+					.hasNext();) {
+				Entry<String, JsonNode> field = i.next();
+				fields.put(field.getKey(), field.getValue());
+			}
+			out.writeByte('{');
+			out.writeInt(fields.size());
+			for (Entry<String, JsonNode> field : fields.entrySet()) {
+				writeBytes(field.getKey().getBytes(UTF_8), out);
+				writeCanonical(field.getValue(), out);
+			}
+		} else if (json.isArray()) {
+			out.writeByte('[');
+			out.writeInt(json.size());
+			for (JsonNode element : json)
+				writeCanonical(element, out);
+		} else {
+			out.writeByte('=');
+			writeBytes(json.toString().getBytes(UTF_8), out);
+		}
+	}
+
+	private static void writeBytes(byte[] bytes, DataOutputStream out)
+			throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Register the stored outputs for the key, named after the processor
+	 * output ports, or return <code>null</code> if there are none.
+	 */
+	private Map<String, T2Reference> cachedOutputs(String key,
+			Activity<?> activity, InvocationContext context) {
+		byte[] cached = getResultCache().get(key);
+		if (cached == null)
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					cached));
+			if (in.readInt() != FORMAT_VERSION)
+				throw new IOException("Unknown format");
+			Map<String, T2Reference> outputs = new HashMap<>();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String activityOutputName = in.readUTF();
+				T2Reference output = ReferenceContent.read(in,
+						context.getReferenceService(), context);
+				String processorOutputName = activity.getOutputPortMapping()
+						.get(activityOutputName);
+				if (processorOutputName != null)
+					outputs.put(processorOutputName, output);
+			}
+			return outputs;
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Discarding unreadable result cache entry " + key, e);
+			getResultCache().remove(key);
+			return null;
+		}
+	}
+
+	@Override
+	public void receiveResult(final DispatchResultEvent resultEvent) {
+		if (resultEvent.isStreamingEvent()) {
+			// The job streams its results, don't store the final one
+			removeStreaming(resultEvent.getOwningProcess(),
+					resultEvent.getIndex());
+			getAbove().receiveResult(resultEvent);
+			return;
+		}
+		final PendingResult pending = removePending(
+				resultEvent.getOwningProcess(), resultEvent.getIndex());
+		getAbove().receiveResult(resultEvent);
+		if (pending == null || pending == AMBIGUOUS)
+			return;
+		for (T2Reference output : resultEvent.getData().values())
+			if (output.containsErrors())
+				return;
+		InvocationExecutor.getInstance().execute(new Runnable() {
+			@Override
+			public void run() {
+				store(pending, resultEvent);
+			}
+		}, null, new UncaughtExceptionHandler() {
+			@Override
+			public void uncaughtException(Thread t, Throwable e) {
+				logger.warn("Could not store result of " + pending.activity, e);
+			}
+		});
+	}
+
+	/**
+	 * Store the outputs of the result, named after the activity output ports.
+	 */
+	private void store(PendingResult pending, DispatchResultEvent resultEvent) {
+		Map<String, T2Reference> data = resultEvent.getData();
+		SortedMap<String, T2Reference> outputs = new TreeMap<>();
+		for (Entry<String, String> mapping : pending.activity
+				.getOutputPortMapping().entrySet())
+			if (data.containsKey(mapping.getValue()))
+				outputs.put(mapping.getKey(), data.get(mapping.getValue()));
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(outputs.size());
+			for (Entry<String, T2Reference> output : outputs.entrySet()) {
+				out.writeUTF(output.getKey());
+				ReferenceContent.write(output.getValue(), resultEvent
+						.getContext().getReferenceService(), resultEvent
+						.getContext(), out);
+			}
+			out.flush();
+			getResultCache().put(pending.key, bytes.toByteArray());
+			storedCount.incrementAndGet();
+		} catch (IOException e) {
+			logger.debug("Not storing result of " + pending.activity, e);
+		}
+	}
+
+	@Override
+	public void receiveResultCompletion(DispatchCompletionEvent completionEvent) {
+		removePending(completionEvent.getOwningProcess(),
+				completionEvent.getIndex());
+		getAbove().receiveResultCompletion(completionEvent);
+	}
+
+	@Override
+	public void receiveError(DispatchErrorEvent errorEvent) {
+		removePending(errorEvent.getOwningProcess(), errorEvent.getIndex());
+		getAbove().receiveError(errorEvent);
+	}
+
+	@Override
+	public void finishedWith(final String owningProcess) {
+		cleanupTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				pendingResults.remove(owningProcess);
+			}
+		}, CLEANUP_DELAY_MS);
+	}
+
+	private ConcurrentMap<IndexKey, PendingResult> pendingFor(
+			String owningProcess) {
+		ConcurrentMap<IndexKey, PendingResult> pending = pendingResults
+				.get(owningProcess);
+		if (pending == null) {
+			ConcurrentMap<IndexKey, PendingResult> newPending = new ConcurrentHashMap<>();
+			pending = pendingResults.putIfAbsent(owningProcess, newPending);
+			if (pending == null)
+				pending = newPending;
+		}
+		return pending;
+	}
+
+	private PendingResult removePending(String owningProcess, int[] index) {
+		Map<IndexKey, PendingResult> pending = pendingResults
+				.get(owningProcess);
+		if (pending == null)
+			return null;
+		return pending.remove(new IndexKey(index));
+	}
+
+	/**
+	 * Forget the job whose index is a prefix of the index of a streamed
+	 * result.
+	 */
+	private void removeStreaming(String owningProcess, int[] index) {
+		Map<IndexKey, PendingResult> pending = pendingResults
+				.get(owningProcess);
+		if (pending != null)
+			for (int length = index.length - 1; length >= 0; length--)
+				if (pending.remove(new IndexKey(Arrays.copyOf(index, length))) != null)
+					return;
+	}
+
+	private static Set<String> globallyExcluded() {
+		String excluded = System.getProperty(EXCLUDED_ACTIVITIES_PROPERTY);
+		if (excluded == null || excluded.trim().isEmpty())
+			return Collections.emptySet();
+		Set<String> types = new HashSet<>();
+		for (String type : excluded.split(","))
+			types.add(type.trim());
+		return types;
+	}
+
+	/**
+	 * Return the number of jobs answered from the cache since creation.
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * Return the number of memoizable jobs sent down to be invoked since
+	 * creation.
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * Return the number of results stored in the cache since creation.
+	 */
+	public long getStoredCount() {
+		return storedCount.get();
+	}
+
+	@Override
+	public void configure(JsonNode config) {
+		ObjectNode conf = (ObjectNode) config;
+		if (!conf.has(ENABLED) || conf.get(ENABLED).isNull())
+			conf.put(ENABLED, true);
+		if (!conf.has(EXCLUDED_ACTIVITIES)
+				|| conf.get(EXCLUDED_ACTIVITIES).isNull())
+			conf.putArray(EXCLUDED_ACTIVITIES);
+		if (!conf.get(EXCLUDED_ACTIVITIES).isArray())
+			throw new IllegalArgumentException(
+					"excludedActivities is not an array");
+		Set<String> excluded = new HashSet<>();
+		for (JsonNode type : (ArrayNode) conf.get(EXCLUDED_ACTIVITIES))
+			excluded.add(type.textValue());
+		synchronized (excludedActivities) {
+			excludedActivities.clear();
+			excludedActivities.addAll(excluded);
+		}
+		this.config = conf;
+		enabled = conf.get(ENABLED).booleanValue();
+	}
+
+	@Override
+	public JsonNode getConfiguration() {
+		return config;
+	}
+
+	/**
+	 * Injects the following properties into its parent processor's property
+	 * set:
+	 * <ul>
+	 * <li><code>dispatch.memoize.hits [Long]</code><br/>
+	 * The number of jobs answered from the cache.</li>
+	 * <li><code>dispatch.memoize.misses [Long]</code><br/>
+	 * The number of jobs which could have been answered from the cache but
+	 * were invoked.</li>
+	 * </ul>
+	 */
+	@Override
+	public void injectPropertiesFor(String owningProcess) {
+		dispatchStack.receiveMonitorableProperty(
+				new CountProperty("hits", hitCount), owningProcess);
+		dispatchStack.receiveMonitorableProperty(new CountProperty("misses",
+				missCount), owningProcess);
+	}
+
+	private static class CountProperty implements MonitorableProperty<Long> {
+		private final String name;
+		private final AtomicLong count;
+
+		private CountProperty(String name, AtomicLong count) {
+			this.name = name;
+			this.count = count;
+		}
+
+		@Override
+		public Date getLastModified() {
+			return new Date();
+		}
+
+		@Override
+		public String[] getName() {
+			return new String[] { "dispatch", "memoize", name };
+		}
+
+		@Override
+		public Long getValue() throws NoSuchPropertyException {
+			return count.get();
+		}
+	}
+
+	private static class PendingResult {
+		private final String key;
+		private final Activity<?> activity;
+
+		private PendingResult(String key, Activity<?> activity) {
+			this.key = key;
+			this.activity = activity;
+		}
+	}
+}
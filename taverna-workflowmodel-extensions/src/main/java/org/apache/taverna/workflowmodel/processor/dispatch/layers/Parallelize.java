@@ -24,18 +24,26 @@ import static org.apache.taverna.workflowmodel.processor.dispatch.description.Di
 import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.REMOVE_PROCESS_STATE;
 import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchMessageType.JOB;
 
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.TimerTask;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.taverna.invocation.Completion;
 import org.apache.taverna.invocation.IterationInternalEvent;
+import org.apache.taverna.invocation.RunScopedMap;
 import org.apache.taverna.monitor.MonitorManager;
 import org.apache.taverna.monitor.MonitorableProperty;
 import org.apache.taverna.monitor.NoSuchPropertyException;
@@ -52,6 +60,7 @@ import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchL
 import org.apache.taverna.workflowmodel.processor.dispatch.description.SupportsStreamedResult;
 import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchCompletionEvent;
 import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorType;
 import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchJobEvent;
 import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchJobQueueEvent;
 import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchResultEvent;
@@ -68,6 +77,16 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
  * completion events coming up and uses these to determine when to push more
  * jobs downwards into the stack as well as when it can safely emit completion
  * events from the queue.
+ * <p>
+ * The number of simultaneous jobs is <code>maxJobs</code>, unless
+ * <code>adaptive</code> is set in the configuration. The limit then starts at
+ * <code>maxJobs</code> and is adjusted between <code>minJobs</code> and
+ * <code>adaptiveMaxJobs</code> by an {@link AdaptiveLimit} shared by all the
+ * owning processes of the layer: it grows while invocations succeed, and
+ * backs off when they fail with an invocation error or when their latency
+ * rises more than <code>latencyTolerance</code> times above the lowest
+ * recently seen. The current limit is published as the
+ * <code>dispatch.parallelize.limit</code> property.
  *
  * @author Tom Oinn
  *
@@ -85,11 +104,38 @@ public class Parallelize extends AbstractDispatchLayer<JsonNode>
 		PropertyContributingDispatchLayer<JsonNode> {
 	public static final String URI = "http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/Parallelize";
 	private static Logger logger = Logger.getLogger(Parallelize.class);
+	private static final String MAX_JOBS = "maxJobs";
+	private static final String ADAPTIVE = "adaptive";
+	private static final String MIN_JOBS = "minJobs";
+	private static final String ADAPTIVE_MAX_JOBS = "adaptiveMaxJobs";
+	private static final String LATENCY_TOLERANCE = "latencyTolerance";
+	private static final String BACKOFF_RATIO = "backoffRatio";
+	static final int DEFAULT_ADAPTIVE_MAX_JOBS = 64;
+	static final double DEFAULT_LATENCY_TOLERANCE = 2.0;
+	static final double DEFAULT_BACKOFF_RATIO = 0.75;
 
-	private Map<String, StateModel> stateMap = new HashMap<>();
+	/**
+	 * Shared by all Parallelize layers to send completion events up the stack
+	 * without blocking the thread which released them
+	 */
+	private static final Executor completionExecutor = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger threadCount = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Parallelize completions "
+							+ threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private RunScopedMap<StateModel> stateMap = new RunScopedMap<>();
 	private JsonNode config = JsonNodeFactory.instance.objectNode();
-	int sentJobsCount = 0;
-	int completedJobsCount = 0;
+	private volatile AdaptiveLimit adaptiveLimit;
+	final AtomicInteger sentJobsCount = new AtomicInteger();
+	final AtomicInteger completedJobsCount = new AtomicInteger();
 
 	public Parallelize() {
 		super();
@@ -103,15 +149,12 @@ public class Parallelize extends AbstractDispatchLayer<JsonNode>
 	 */
 	public Parallelize(int maxJobs) {
 		super();
-		((ObjectNode)config).put("maxJobs", maxJobs);
+		((ObjectNode)config).put(MAX_JOBS, maxJobs);
 	}
 
 	@Override
 	public void eventAdded(String owningProcess) {
-		StateModel stateModel;
-		synchronized (stateMap) {
-			stateModel = stateMap.get(owningProcess);
-		}
+		StateModel stateModel = stateMap.get(owningProcess);
 		if (stateModel == null)
 			/*
 			 * Should never see this here, it means we've had duplicate
@@ -119,18 +162,14 @@ public class Parallelize extends AbstractDispatchLayer<JsonNode>
 			 */
 			throw new WorkflowStructureException(
 					"Unknown owning process " + owningProcess);
-		synchronized (stateModel) {
-			stateModel.fillFromQueue();
-		}
+		stateModel.fillFromQueue();
 	}
 
 	@Override
 	public void receiveJobQueue(DispatchJobQueueEvent queueEvent) {
-		StateModel model = new StateModel(queueEvent,
-				config.has("maxJobs") ? config.get("maxJobs").intValue() : 1);
-		synchronized (stateMap) {
-			stateMap.put(queueEvent.getOwningProcess(), model);
-		}
+		StateModel model = new StateModel(queueEvent, maxJobs(config),
+				adaptiveLimit);
+		stateMap.put(queueEvent.getOwningProcess(), model);
 		model.fillFromQueue();
 	}
 
@@ -141,26 +180,20 @@ public class Parallelize extends AbstractDispatchLayer<JsonNode>
 
 	@Override
 	public void receiveError(DispatchErrorEvent errorEvent) {
-		StateModel model;
 		String owningProcess = errorEvent.getOwningProcess();
-		synchronized(stateMap) {
-			model = stateMap.get(owningProcess);
-		}
+		StateModel model = stateMap.get(owningProcess);
 		if (model == null) {
 			logger.warn("Error received for unknown owning process: " + owningProcess);
 			return;
 		}
-		model.finishWith(errorEvent.getIndex());
+		model.finishWith(errorEvent.getIndex(), errorEvent.getFailureType());
 		getAbove().receiveError(errorEvent);
 	}
 
 	@Override
 	public void receiveResult(DispatchResultEvent resultEvent) {
-		StateModel model;
 		String owningProcess = resultEvent.getOwningProcess();
-		synchronized(stateMap) {
-			model = stateMap.get(owningProcess);
-		}
+		StateModel model = stateMap.get(owningProcess);
 		if (model == null) {
 			logger.warn("Error received for unknown owning process: " + owningProcess);
 			return;
@@ -170,7 +203,7 @@ public class Parallelize extends AbstractDispatchLayer<JsonNode>
 					owningProcess,
 					new HashSet<MonitorableProperty<?>>());
 		}
-		model.finishWith(resultEvent.getIndex());
+		model.finishWith(resultEvent.getIndex(), null);
 		getAbove().receiveResult(resultEvent);
 	}
 
@@ -181,16 +214,13 @@ public class Parallelize extends AbstractDispatchLayer<JsonNode>
 	 */
 	@Override
 	public void receiveResultCompletion(DispatchCompletionEvent completionEvent) {
-		StateModel model;
 		String owningProcess = completionEvent.getOwningProcess();
-		synchronized(stateMap) {
-			model = stateMap.get(owningProcess);
-		}
+		StateModel model = stateMap.get(owningProcess);
 		if (model == null) {
 			logger.warn("Error received for unknown owning process: " + owningProcess);
 			return;
 		}
-		model.finishWith(completionEvent.getIndex());
+		model.finishWith(completionEvent.getIndex(), null);
 		getAbove().receiveResultCompletion(completionEvent);
 	}
 
@@ -200,16 +230,50 @@ public class Parallelize extends AbstractDispatchLayer<JsonNode>
 		cleanupTimer.schedule(new TimerTask() {
 			@Override
 			public void run() {
-				synchronized(stateMap) {
-					stateMap.remove(owningProcess);
-				}
+				stateMap.remove(owningProcess);
 			}
 		}, CLEANUP_DELAY_MS);
 	}
 
 	@Override
 	public void configure(JsonNode config) {
+		AdaptiveLimit newAdaptiveLimit = null;
+		if (config.has(ADAPTIVE) && config.get(ADAPTIVE).booleanValue())
+			newAdaptiveLimit = new AdaptiveLimit(maxJobs(config), intValue(
+					config, MIN_JOBS, 1), intValue(config, ADAPTIVE_MAX_JOBS,
+					DEFAULT_ADAPTIVE_MAX_JOBS), doubleValue(config,
+					LATENCY_TOLERANCE, DEFAULT_LATENCY_TOLERANCE), doubleValue(
+					config, BACKOFF_RATIO, DEFAULT_BACKOFF_RATIO));
 		this.config = config;
+		this.adaptiveLimit = newAdaptiveLimit;
+	}
+
+	private static int maxJobs(JsonNode config) {
+		return intValue(config, MAX_JOBS, 1);
+	}
+
+	private static int intValue(JsonNode config, String name, int defaultValue) {
+		if (!config.has(name) || config.get(name).isNull())
+			return defaultValue;
+		return config.get(name).intValue();
+	}
+
+	private static double doubleValue(JsonNode config, String name,
+			double defaultValue) {
+		if (!config.has(name) || config.get(name).isNull())
+			return defaultValue;
+		return config.get(name).doubleValue();
+	}
+
+	/**
+	 * Return the number of jobs each owning process may currently have in
+	 * flight.
+	 */
+	public int getLimit() {
+		AdaptiveLimit limit = adaptiveLimit;
+		if (limit != null)
+			return limit.getLimit();
+		return maxJobs(config);
 	}
 
 	@Override
@@ -225,6 +289,9 @@ public class Parallelize extends AbstractDispatchLayer<JsonNode>
 	 * registered process identifier (which will be the case if the process
 	 * hasn't started or has had its state purged after a final completion of
 	 * some kind.</li>
+	 * <li><code>dispatch.parallelize.limit [Integer]</code><br/>The number of
+	 * jobs which may currently be in flight, which changes over time if the
+	 * layer is adaptive.</li>
 	 * </ul>
 	 */
 	@Override
@@ -247,10 +314,7 @@ public class Parallelize extends AbstractDispatchLayer<JsonNode>
 
 			@Override
 			public Integer getValue() throws NoSuchPropertyException {
-				StateModel model;
-				synchronized(stateMap) {
-					model = stateMap.get(owningProcess);
-				}
+				StateModel model = stateMap.get(owningProcess);
 				if (model == null)
 					return -1;
 				return model.queueSize();
@@ -272,7 +336,7 @@ public class Parallelize extends AbstractDispatchLayer<JsonNode>
 
 			@Override
 			public Integer getValue() throws NoSuchPropertyException {
-				return sentJobsCount;
+				return sentJobsCount.get();
 			}
 		};
 		dispatchStack.receiveMonitorableProperty(sentJobsProperty,
@@ -292,46 +356,87 @@ public class Parallelize extends AbstractDispatchLayer<JsonNode>
 
 			@Override
 			public Integer getValue() throws NoSuchPropertyException {
-				return completedJobsCount;
+				return completedJobsCount.get();
 			}
 		};
 		dispatchStack.receiveMonitorableProperty(completedJobsProperty,
 				owningProcess);
+
+		MonitorableProperty<Integer> limitProperty = new MonitorableProperty<Integer>() {
+			@Override
+			public Date getLastModified() {
+				return new Date();
+			}
+
+			@Override
+			public String[] getName() {
+				return new String[] { "dispatch", "parallelize", "limit" };
+			}
+
+			@Override
+			public Integer getValue() throws NoSuchPropertyException {
+				return getLimit();
+			}
+		};
+		dispatchStack.receiveMonitorableProperty(limitProperty, owningProcess);
 	}
 
 	/**
-	 * Holds the state for a given owning process
+	 * Holds the state for a given owning process.
+	 * <p>
+	 * Events taken from the queue are kept in <code>pendingEvents</code>,
+	 * ordered by the sequence in which they were taken, until they can be
+	 * released. Jobs are additionally indexed by their index array so that
+	 * the job matching a result can be found in constant time. All the fields
+	 * are thread safe without locking the model; the draining of the queue and
+	 * the release of completions is serialised by a work counter so that at
+	 * most one thread at a time is sending events on behalf of the model, and
+	 * no monitor is held while calling other layers.
 	 *
 	 * @author Tom Oinn
-	 *
 	 */
 	// suppressed to avoid jdk1.5 error messages caused by the declaration
 	// IterationInternalEvent<? extends IterationInternalEvent<?>> e
 	@SuppressWarnings("rawtypes")
 	class StateModel {
-		private DispatchJobQueueEvent queueEvent;
-		private BlockingQueue<IterationInternalEvent> pendingEvents = new LinkedBlockingQueue<>();
-		private int activeJobs = 0;
-		private int maximumJobs;
+		private final DispatchJobQueueEvent queueEvent;
+		private final int maximumJobs;
+		private final AdaptiveLimit adaptiveLimit;
+		/** Start times of the jobs in flight, only kept if adaptive */
+		private final Map<IndexKey, Long> startTimes = new ConcurrentHashMap<>();
+		private final AtomicInteger activeJobs = new AtomicInteger();
+		private final AtomicLong sequence = new AtomicLong();
+		private final ConcurrentNavigableMap<Long, IterationInternalEvent> pendingEvents = new ConcurrentSkipListMap<>();
+		private final Map<IndexKey, Long> pendingJobs = new ConcurrentHashMap<>();
+		private final AtomicInteger drainRequests = new AtomicInteger();
+		private final Queue<Completion> readyCompletions = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger completionRequests = new AtomicInteger();
 
 		/**
 		 * Construct state model for a particular owning process
 		 *
-		 * @param owningProcess
-		 *            Process to track parallel execution
-		 * @param queue
-		 *            reference to the queue into which jobs are inserted by the
-		 *            iteration strategy
-		 * @param activities
-		 *            activities to pass along with job events down into the
-		 *            stack below
+		 * @param queueEvent
+		 *            the event holding the queue into which jobs are inserted
+		 *            by the iteration strategy, and the activities to pass
+		 *            along with job events down into the stack below
 		 * @param maxJobs
 		 *            maximum number of concurrent jobs to keep 'hot' at any
-		 *            given point
+		 *            given point, unless adaptive
+		 * @param adaptiveLimit
+		 *            the adaptive limit replacing <code>maxJobs</code>, or
+		 *            <code>null</code> if the layer is not adaptive
 		 */
-		protected StateModel(DispatchJobQueueEvent queueEvent, int maxJobs) {
+		protected StateModel(DispatchJobQueueEvent queueEvent, int maxJobs,
+				AdaptiveLimit adaptiveLimit) {
 			this.queueEvent = queueEvent;
 			this.maximumJobs = maxJobs;
+			this.adaptiveLimit = adaptiveLimit;
+		}
+
+		private int limit() {
+			if (adaptiveLimit != null)
+				return adaptiveLimit.getLimit();
+			return maximumJobs;
 		}
 
 		Integer queueSize() {
@@ -342,7 +447,7 @@ public class Parallelize extends AbstractDispatchLayer<JsonNode>
 		 * Poll the queue repeatedly until either the queue is empty or we have
 		 * enough jobs pulled from it. The semantics for this are:
 		 * <ul>
-		 * <li>If the head of the queue is a Job and activeJobs < maximumJobs
+		 * <li>If the head of the queue is a Job and activeJobs < limit()
 		 * then increment activeJobs, add the Job to the pending events list at
 		 * the end and send the message down the stack
 		 * <li>If the head of the queue is a Completion and the pending jobs
@@ -351,112 +456,158 @@ public class Parallelize extends AbstractDispatchLayer<JsonNode>
 		 * list is not empty then add the Completion to the end of the pending
 		 * jobs list and return
 		 * </ul>
+		 * If another thread is already filling from the queue this returns
+		 * immediately, that thread will do another pass on our behalf.
 		 */
 		protected void fillFromQueue() {
-			synchronized (this) {
-				while (queueEvent.getQueue().peek() != null
-						&& activeJobs < maximumJobs) {
-					final IterationInternalEvent e = queueEvent.getQueue()
-							.remove();
-
-					if (e instanceof Completion && pendingEvents.peek() == null) {
-						new Thread(new Runnable() {
-							@Override
-							public void run() {
-								getAbove().receiveResultCompletion(
-										new DispatchCompletionEvent(e
-												.getOwningProcess(), e
-												.getIndex(), e.getContext()));
-							}
-						}, "Parallelize " + e.getOwningProcess()).start();
-						// getAbove().receiveResultCompletion((Completion) e);
-					} else {
-						pendingEvents.add(e);
-					}
-					if (e instanceof Job) {
-						synchronized (this) {
-							activeJobs++;
-						}
-						sentJobsCount++;
-
-						DispatchJobEvent dispatchJobEvent = new DispatchJobEvent(e
-								.getOwningProcess(), e
-								.getIndex(), e.getContext(),
-								((Job) e).getData(), queueEvent
-										.getActivities());
-						// Register with the monitor
-						MonitorManager.getInstance().registerNode(dispatchJobEvent,
-								e.getOwningProcess(),
-								new HashSet<MonitorableProperty<?>>());
-
-						getBelow().receiveJob(dispatchJobEvent);
-					}
+			if (drainRequests.getAndIncrement() != 0)
+				return;
+			int missed = 1;
+			do {
+				releaseCompletions();
+				pollQueue();
+				missed = drainRequests.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		/**
+		 * Must only be called from {@link #fillFromQueue()}, which guarantees
+		 * that only one thread at a time takes events from the queue. Other
+		 * threads may only decrease activeJobs, so checking before
+		 * incrementing is safe.
+		 */
+		private void pollQueue() {
+			BlockingQueue<IterationInternalEvent<? extends IterationInternalEvent<?>>> queue = queueEvent
+					.getQueue();
+			while (queue.peek() != null && activeJobs.get() < limit()) {
+				final IterationInternalEvent e = queue.poll();
+				if (e == null)
+					return;
+
+				if (e instanceof Completion) {
+					if (pendingEvents.isEmpty())
+						sendCompletion((Completion) e);
+					else
+						pendingEvents.put(sequence.incrementAndGet(), e);
+					continue;
+				}
+				Long jobSequence = sequence.incrementAndGet();
+				pendingEvents.put(jobSequence, e);
+				if (e instanceof Job) {
+					IndexKey key = new IndexKey(e.getIndex());
+					pendingJobs.put(key, jobSequence);
+					if (adaptiveLimit != null)
+						startTimes.put(key, System.nanoTime());
+					activeJobs.incrementAndGet();
+					sentJobsCount.incrementAndGet();
+
+					DispatchJobEvent dispatchJobEvent = new DispatchJobEvent(e
+							.getOwningProcessIdentifier(), e
+							.getIterationIndex(), e.getContext(),
+							((Job) e).getData(), queueEvent
+									.getActivities());
+					// Register with the monitor
+					MonitorManager.getInstance().registerNode(dispatchJobEvent,
+							e.getOwningProcess(),
+							new HashSet<MonitorableProperty<?>>());
+
+					getBelow().receiveJob(dispatchJobEvent);
 				}
 			}
 		}
 
+		/**
+		 * Pull any completion events that have reached the head of the
+		 * pending events - this indicates that all the job events which came
+		 * in before them have been processed and we can emit the completions.
+		 * Must only be called from {@link #fillFromQueue()}.
+		 */
+		private void releaseCompletions() {
+			Map.Entry<Long, IterationInternalEvent> head;
+			while ((head = pendingEvents.firstEntry()) != null
+					&& head.getValue() instanceof Completion) {
+				pendingEvents.remove(head.getKey());
+				sendCompletion((Completion) head.getValue());
+			}
+		}
+
+		/**
+		 * Send the completion to the layer above from the shared completion
+		 * executor. Completions are sent in the order they are given to this
+		 * method.
+		 */
+		private void sendCompletion(Completion c) {
+			readyCompletions.add(c);
+			if (completionRequests.getAndIncrement() == 0)
+				completionExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						int missed = 1;
+						do {
+							Completion c;
+							while ((c = readyCompletions.poll()) != null)
+								getAbove().receiveResultCompletion(
+										new DispatchCompletionEvent(c
+												.getOwningProcessIdentifier(),
+												c.getIterationIndex(), c
+														.getContext()));
+							missed = completionRequests.addAndGet(-missed);
+						} while (missed != 0);
+					}
+				});
+		}
+
 		/**
 		 * Returns true if the index matched an existing Job exactly, if this
 		 * method returns false then you have a partial completion event which
 		 * should be sent up the stack without modification.
 		 *
 		 * @param index
+		 * @param errorType
+		 *            the type of failure if the job failed, or
+		 *            <code>null</code> if it succeeded
 		 * @return
 		 */
-		protected boolean finishWith(int[] index) {
-			synchronized (this) {
-				for (IterationInternalEvent e : new ArrayList<>(pendingEvents)) {
-					if (!(e instanceof Job))
-						continue;
-					Job j = (Job) e;
-					if (!arrayEquals(j.getIndex(), index))
-						continue;
-
-					/*
-					 * Found a job in the pending events list which has the
-					 * same index, remove it and decrement the current count
-					 * of active jobs
-					 */
-					pendingEvents.remove(e);
-					activeJobs--;
-					completedJobsCount++;
-					/*
-					 * Now pull any completion events that have reached the head
-					 * of the queue - this indicates that all the job events
-					 * which came in before them have been processed and we can
-					 * emit the completions
-					 */
-					while (pendingEvents.peek() != null
-							&& pendingEvents.peek() instanceof Completion) {
-						Completion c = (Completion) pendingEvents.remove();
-						getAbove().receiveResultCompletion(
-								new DispatchCompletionEvent(c
-										.getOwningProcess(), c.getIndex(), c
-										.getContext()));
-					}
-					/*
-					 * Refresh from the queue; as we've just decremented the
-					 * active job count there should be a worker available
-					 */
-					fillFromQueue();
-					/*
-					 * Return true to indicate that we removed a job event from
-					 * the queue, that is to say that the index wasn't that of a
-					 * partial completion.
-					 */
-					return true;
-				}
-			}
-			return false;
-		}
-
-		private boolean arrayEquals(int[] a, int[] b) {
-			if (a.length != b.length)
+		protected boolean finishWith(int[] index, DispatchErrorType errorType) {
+			IndexKey key = new IndexKey(index);
+			Long jobSequence = pendingJobs.remove(key);
+			if (jobSequence == null)
 				return false;
-			for (int i = 0; i < a.length; i++)
-				if (a[i] != b[i])
-					return false;
+			if (adaptiveLimit != null)
+				sample(key, errorType);
+			/*
+			 * Found a job in the pending events which has the same index,
+			 * remove it and decrement the current count of active jobs
+			 */
+			pendingEvents.remove(jobSequence);
+			activeJobs.decrementAndGet();
+			completedJobsCount.incrementAndGet();
+			/*
+			 * Release completions now at the head of the pending events and
+			 * refresh from the queue; as we've just decremented the active job
+			 * count there should be a worker available
+			 */
+			fillFromQueue();
+			/*
+			 * Return true to indicate that we removed a job event from the
+			 * queue, that is to say that the index wasn't that of a partial
+			 * completion.
+			 */
 			return true;
 		}
+
+		/**
+		 * Feed the outcome of a finished job to the adaptive limit. Only
+		 * invocation failures count as failures, errors in the input data or
+		 * authentication say nothing about the load on the service.
+		 */
+		private void sample(IndexKey key, DispatchErrorType errorType) {
+			Long started = startTimes.remove(key);
+			if (errorType == DispatchErrorType.INVOCATION)
+				adaptiveLimit.failed();
+			else if (errorType == null && started != null)
+				adaptiveLimit.succeeded(System.nanoTime() - started,
+						activeJobs.get());
+		}
 	}
 }
@@ -25,13 +25,19 @@ import org.apache.taverna.workflowmodel.processor.config.ConfigurationProperty;
 /**
  * Bean to hold the configuration for the parallelize layer, specifically a
  * single int property defining the number of concurrent jobs in that processor
- * instance per owning process ID.
+ * instance per owning process ID, and the bounds within which an adaptive layer
+ * adjusts that number.
  * 
  * @author Tom Oinn
  */
 @ConfigurationBean(uri = Parallelize.URI + "#Config")
 public class ParallelizeConfig {
 	private int maxJobs;
+	private boolean adaptive = false;
+	private int minJobs = 1;
+	private int adaptiveMaxJobs = Parallelize.DEFAULT_ADAPTIVE_MAX_JOBS;
+	private double latencyTolerance = Parallelize.DEFAULT_LATENCY_TOLERANCE;
+	private double backoffRatio = Parallelize.DEFAULT_BACKOFF_RATIO;
 
 	public ParallelizeConfig() {
 		super();
@@ -46,4 +52,49 @@ public class ParallelizeConfig {
 	public int getMaximumJobs() {
 		return this.maxJobs;
 	}
+
+	@ConfigurationProperty(name = "adaptive", label = "Adaptive", description = "Adjust the number of parallel jobs from the latency and failures of the invocations, starting from the maximum parallel jobs", required = false)
+	public void setAdaptive(boolean adaptive) {
+		this.adaptive = adaptive;
+	}
+
+	public boolean isAdaptive() {
+		return this.adaptive;
+	}
+
+	@ConfigurationProperty(name = "minJobs", label = "Minimum Adaptive Jobs", description = "The lowest number of parallel jobs an adaptive layer backs off to", required = false)
+	public void setMinimumJobs(int minJobs) {
+		this.minJobs = minJobs;
+	}
+
+	public int getMinimumJobs() {
+		return this.minJobs;
+	}
+
+	@ConfigurationProperty(name = "adaptiveMaxJobs", label = "Maximum Adaptive Jobs", description = "The highest number of parallel jobs an adaptive layer grows to", required = false)
+	public void setAdaptiveMaximumJobs(int adaptiveMaxJobs) {
+		this.adaptiveMaxJobs = adaptiveMaxJobs;
+	}
+
+	public int getAdaptiveMaximumJobs() {
+		return this.adaptiveMaxJobs;
+	}
+
+	@ConfigurationProperty(name = "latencyTolerance", label = "Latency Tolerance", description = "How many times the lowest recent latency the latency may reach before an adaptive layer backs off", required = false)
+	public void setLatencyTolerance(double latencyTolerance) {
+		this.latencyTolerance = latencyTolerance;
+	}
+
+	public double getLatencyTolerance() {
+		return this.latencyTolerance;
+	}
+
+	@ConfigurationProperty(name = "backoffRatio", label = "Backoff Ratio", description = "The factor an adaptive layer multiplies the number of parallel jobs by when it backs off", required = false)
+	public void setBackoffRatio(double backoffRatio) {
+		this.backoffRatio = backoffRatio;
+	}
+
+	public double getBackoffRatio() {
+		return this.backoffRatio;
+	}
 }
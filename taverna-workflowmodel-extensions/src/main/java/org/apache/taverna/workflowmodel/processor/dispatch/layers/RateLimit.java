@@ -0,0 +1,267 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.NO_EFFECT;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.taverna.monitor.MonitorableProperty;
+import org.apache.taverna.monitor.NoSuchPropertyException;
+import org.apache.taverna.workflowmodel.processor.activity.Activity;
+import org.apache.taverna.workflowmodel.processor.activity.NestedDataflow;
+import org.apache.taverna.workflowmodel.processor.dispatch.AbstractDispatchLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.PropertyContributingDispatchLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerJobReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchJobEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.layers.RateLimits.TokenBucket;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Keeps the invocations of a service to at most <code>rate</code> per second,
+ * with bursts of up to <code>burst</code> invocations.
+ * <p>
+ * Jobs take a token from a {@link RateLimits token bucket} shared by all
+ * processors and workflow runs in the JVM. The bucket is the one named by
+ * <code>bucket</code>, or else the one of the activity type and the endpoint
+ * found in the activity configuration under one of the
+ * <code>endpointFields</code>, so processors calling the same service share a
+ * bucket. A job finding the bucket empty is sent down once its token is due,
+ * by the dispatch layer scheduler, rather than blocking a thread. A job of a
+ * workflow run cancelled while it waits gives its token back and is dropped,
+ * like the {@link Stop} layer would, so that no layer above retries it.
+ * <p>
+ * Put above the {@link Governor} layer, so that jobs waiting for a token don't
+ * hold a permit. Nested workflows are not limited.
+ * <p>
+ * The number of jobs delayed and the number currently waiting for a token are
+ * published as the <code>dispatch.ratelimit.delayed</code> and
+ * <code>dispatch.ratelimit.waiting</code> properties.
+ */
+@DispatchLayerJobReaction(emits = {}, relaysUnmodified = true, stateEffects = { NO_EFFECT })
+public class RateLimit extends AbstractDispatchLayer<JsonNode> implements
+		PropertyContributingDispatchLayer<JsonNode> {
+	public static final String URI = "http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/RateLimit";
+	private static final String RATE = "rate";
+	private static final String BURST = "burst";
+	private static final String BUCKET = "bucket";
+	private static final String ENDPOINT_FIELDS = "endpointFields";
+	private static final String[] DEFAULT_ENDPOINT_FIELDS = { "endpoint",
+			"url", "wsdl", "absoluteURITemplate" };
+
+	private static Logger logger = Logger.getLogger(RateLimit.class);
+
+	private ObjectNode config;
+	private double rate;
+	private int burst;
+	private String bucketName;
+	private final List<String> endpointFields = new ArrayList<>();
+	private RateLimits rateLimits;
+	/**
+	 * Buckets of the activities seen, so that the endpoint of an activity is
+	 * only looked up in its configuration once
+	 */
+	private final ConcurrentMap<Activity<?>, TokenBucket> activityBuckets = new ConcurrentHashMap<>();
+	private final AtomicLong delayedCount = new AtomicLong();
+	private final AtomicInteger waitingCount = new AtomicInteger();
+
+	public RateLimit() {
+		super();
+		configure(JsonNodeFactory.instance.objectNode());
+	}
+
+	public RateLimit(double rate, int burst) {
+		super();
+		ObjectNode conf = JsonNodeFactory.instance.objectNode();
+		conf.put(RATE, rate);
+		conf.put(BURST, burst);
+		configure(conf);
+	}
+
+	/**
+	 * Use the specified buckets rather than the engine wide ones.
+	 */
+	public void setRateLimits(RateLimits rateLimits) {
+		this.rateLimits = rateLimits;
+		activityBuckets.clear();
+	}
+
+	private RateLimits getRateLimits() {
+		if (rateLimits == null)
+			return RateLimits.getInstance();
+		return rateLimits;
+	}
+
+	@Override
+	public void receiveJob(final DispatchJobEvent jobEvent) {
+		List<? extends Activity<?>> activities = jobEvent.getActivities();
+		if (activities.isEmpty() || activities.get(0) instanceof NestedDataflow) {
+			getBelow().receiveJob(jobEvent);
+			return;
+		}
+		final TokenBucket bucket = bucketOf(activities.get(0));
+		long delay = bucket.reserve();
+		if (delay <= 0) {
+			getBelow().receiveJob(jobEvent);
+			return;
+		}
+		delayedCount.incrementAndGet();
+		waitingCount.incrementAndGet();
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (Stop.isCancelled(jobEvent))
+						// Drop the job like the Stop layer would
+						bucket.refund();
+					else
+						getBelow().receiveJob(jobEvent);
+				} catch (RuntimeException e) {
+					logger.error("Could not send delayed job " + jobEvent, e);
+				} finally {
+					waitingCount.decrementAndGet();
+				}
+			}
+		}, delay, NANOSECONDS);
+	}
+
+	/**
+	 * Return the bucket the invocations of the activity take their tokens
+	 * from.
+	 */
+	TokenBucket bucketOf(Activity<?> activity) {
+		TokenBucket bucket = activityBuckets.get(activity);
+		if (bucket == null) {
+			String name = bucketName;
+			if (name == null)
+				name = ActivityTypes.endpointKeyOf(activity, endpointFields);
+			bucket = getRateLimits().getBucket(name, rate, burst);
+			activityBuckets.put(activity, bucket);
+		}
+		return bucket;
+	}
+
+	/**
+	 * Return the number of jobs delayed since creation.
+	 */
+	public long getDelayedCount() {
+		return delayedCount.get();
+	}
+
+	/**
+	 * Return the number of jobs waiting for their token.
+	 */
+	public int getWaitingCount() {
+		return waitingCount.get();
+	}
+
+	@Override
+	public void configure(JsonNode config) {
+		ObjectNode conf = (ObjectNode) config;
+		if (!conf.has(RATE) || conf.get(RATE).isNull())
+			conf.put(RATE, 1.0);
+		if (!conf.has(BURST) || conf.get(BURST).isNull())
+			conf.put(BURST, 1);
+		if (!conf.has(ENDPOINT_FIELDS) || conf.get(ENDPOINT_FIELDS).isNull()) {
+			ArrayNode fields = conf.putArray(ENDPOINT_FIELDS);
+			for (String field : DEFAULT_ENDPOINT_FIELDS)
+				fields.add(field);
+		}
+		if (!(conf.get(RATE).asDouble() > 0))
+			throw new IllegalArgumentException("rate <= 0");
+		if (conf.get(BURST).intValue() < 1)
+			throw new IllegalArgumentException("burst < 1");
+		if (!conf.get(ENDPOINT_FIELDS).isArray())
+			throw new IllegalArgumentException("endpointFields not an array");
+		this.config = conf;
+		rate = conf.get(RATE).asDouble();
+		burst = conf.get(BURST).intValue();
+		bucketName = conf.has(BUCKET) && conf.get(BUCKET).isTextual() ? conf
+				.get(BUCKET).textValue() : null;
+		endpointFields.clear();
+		for (JsonNode field : conf.get(ENDPOINT_FIELDS))
+			endpointFields.add(field.asText());
+		activityBuckets.clear();
+	}
+
+	@Override
+	public JsonNode getConfiguration() {
+		return config;
+	}
+
+	/**
+	 * Injects the following properties into its parent processor's property
+	 * set:
+	 * <ul>
+	 * <li><code>dispatch.ratelimit.delayed [Long]</code><br/>
+	 * The number of jobs which had to wait for a token.</li>
+	 * <li><code>dispatch.ratelimit.waiting [Long]</code><br/>
+	 * The number of jobs currently waiting for a token.</li>
+	 * </ul>
+	 */
+	@Override
+	public void injectPropertiesFor(String owningProcess) {
+		dispatchStack.receiveMonitorableProperty(new RateLimitProperty(
+				"delayed") {
+			@Override
+			public Long getValue() throws NoSuchPropertyException {
+				return delayedCount.get();
+			}
+		}, owningProcess);
+		dispatchStack.receiveMonitorableProperty(new RateLimitProperty(
+				"waiting") {
+			@Override
+			public Long getValue() throws NoSuchPropertyException {
+				return (long) waitingCount.get();
+			}
+		}, owningProcess);
+	}
+
+	private abstract static class RateLimitProperty implements
+			MonitorableProperty<Long> {
+		private final String name;
+
+		private RateLimitProperty(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Date getLastModified() {
+			return new Date();
+		}
+
+		@Override
+		public String[] getName() {
+			return new String[] { "dispatch", "ratelimit", name };
+		}
+	}
+}
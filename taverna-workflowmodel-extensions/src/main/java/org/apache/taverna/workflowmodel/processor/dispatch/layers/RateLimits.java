@@ -0,0 +1,143 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The named token buckets of the {@link RateLimit} layers, shared by all
+ * processors and workflow runs in the JVM so that together they keep to the
+ * rate of the service a bucket stands for.
+ */
+public class RateLimits {
+	private static Logger logger = Logger.getLogger(RateLimits.class);
+	private static RateLimits instance;
+
+	/**
+	 * Get the RateLimits singleton instance, creating it on first access.
+	 *
+	 * @return The RateLimits singleton
+	 */
+	public synchronized static RateLimits getInstance() {
+		if (instance == null)
+			setInstance(new RateLimits());
+		return instance;
+	}
+
+	/**
+	 * Set the RateLimits singleton instance. Only to be used by the platform
+	 * at initialisation time.
+	 *
+	 * @param instance
+	 *            RateLimits singleton to be returned by {@link #getInstance()}.
+	 */
+	public synchronized static void setInstance(RateLimits instance) {
+		RateLimits.instance = instance;
+	}
+
+	private final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+	/**
+	 * Get the bucket with the name, creating it with the given rate and burst
+	 * if needed. The rate and burst of a bucket are those it was created
+	 * with; asking for it with others logs a warning and keeps them.
+	 */
+	public TokenBucket getBucket(String name, double rate, int burst) {
+		TokenBucket bucket = buckets.get(name);
+		if (bucket == null) {
+			TokenBucket newBucket = new TokenBucket(name, rate, burst);
+			bucket = buckets.putIfAbsent(name, newBucket);
+			if (bucket == null)
+				return newBucket;
+		}
+		if (bucket.rate != rate || bucket.burst != burst)
+			logger.warn("Rate limit " + name + " keeps its rate "
+					+ bucket.rate + " and burst " + bucket.burst
+					+ " rather than " + rate + " and " + burst);
+		return bucket;
+	}
+
+	/**
+	 * Bucket refilled at <code>rate</code> tokens per second, holding at most
+	 * <code>burst</code> tokens. Every invocation takes a token; when there is
+	 * none left the invocation reserves the next token to come, so invocations
+	 * go in the order they asked.
+	 */
+	public static class TokenBucket {
+		private final String name;
+		private final double rate;
+		private final int burst;
+		/** Tokens available, negative when tokens to come are reserved */
+		private double tokens;
+		private long lastRefill = System.nanoTime();
+
+		private TokenBucket(String name, double rate, int burst) {
+			this.name = name;
+			this.rate = rate;
+			this.burst = burst;
+			this.tokens = burst;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		private void refill() {
+			long now = System.nanoTime();
+			tokens = Math.min(burst, tokens + (now - lastRefill) * rate
+					/ SECONDS.toNanos(1));
+			lastRefill = now;
+		}
+
+		/**
+		 * Take a token, return the time in nanoseconds to wait before the
+		 * invocation may go, 0 if it may go straight away.
+		 */
+		public synchronized long reserve() {
+			refill();
+			tokens--;
+			if (tokens >= 0)
+				return 0;
+			return (long) Math.ceil(-tokens * SECONDS.toNanos(1) / rate);
+		}
+
+		/**
+		 * Give back the token reserved by an invocation which did not go.
+		 */
+		public synchronized void refund() {
+			refill();
+			tokens = Math.min(burst, tokens + 1);
+		}
+
+		/**
+		 * Return the number of tokens available, negative if invocations are
+		 * waiting for tokens to come.
+		 */
+		public synchronized double getTokens() {
+			refill();
+			return tokens;
+		}
+	}
+}
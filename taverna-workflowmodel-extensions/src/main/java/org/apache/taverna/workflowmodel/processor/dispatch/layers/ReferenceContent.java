@@ -0,0 +1,160 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.taverna.reference.ExternalReferenceSPI;
+import org.apache.taverna.reference.ReferenceContext;
+import org.apache.taverna.reference.ReferenceService;
+import org.apache.taverna.reference.ReferenceSet;
+import org.apache.taverna.reference.ReferencedDataNature;
+import org.apache.taverna.reference.T2Reference;
+
+/**
+ * Writes the content of a {@link T2Reference}, as opposed to its identity, to
+ * a stream and registers it again from the stream, for the {@link Memoize}
+ * layer. Two references with the same content are written identically, so
+ * the written form can be hashed to compare inputs.
+ * <p>
+ * Text is written as UTF-8 whatever its original character set, binary data
+ * as is and lists recursively with their depth. References to errors can't be
+ * written.
+ */
+final class ReferenceContent {
+	private static final byte TEXT = 'T';
+	private static final byte BINARY = 'B';
+	private static final byte LIST = 'L';
+
+	private ReferenceContent() {
+	}
+
+	/**
+	 * Write the content of the reference.
+	 *
+	 * @throws IOException
+	 *             if the content could not be read, or if the reference is or
+	 *             contains an error
+	 */
+	static void write(T2Reference reference, ReferenceService referenceService,
+			ReferenceContext context, DataOutputStream out) throws IOException {
+		switch (reference.getReferenceType()) {
+		case IdentifiedList:
+			List<T2Reference> list = referenceService.getListService()
+					.getList(reference);
+			out.writeByte(LIST);
+			out.writeInt(reference.getDepth());
+			out.writeInt(list.size());
+			for (T2Reference item : list)
+				write(item, referenceService, context, out);
+			break;
+		case ReferenceSet:
+			ReferenceSet referenceSet = referenceService
+					.getReferenceSetService().getReferenceSet(reference);
+			ExternalReferenceSPI cheapest = null;
+			for (ExternalReferenceSPI external : referenceSet
+					.getExternalReferences())
+				if (cheapest == null
+						|| external.getResolutionCost() < cheapest
+								.getResolutionCost())
+					cheapest = external;
+			if (cheapest == null)
+				throw new IOException("No external reference for " + reference);
+			byte[] data = read(cheapest, context);
+			if (cheapest.getDataNature() == ReferencedDataNature.TEXT) {
+				String charset = cheapest.getCharset();
+				String text = new String(data, charset == null ? UTF_8
+						: Charset.forName(charset));
+				writeBytes(TEXT, text.getBytes(UTF_8), out);
+			} else
+				writeBytes(BINARY, data, out);
+			break;
+		default:
+			throw new IOException("Can't write the content of error "
+					+ reference);
+		}
+	}
+
+	/**
+	 * Register content written by
+	 * {@link #write(T2Reference, ReferenceService, ReferenceContext, DataOutputStream)
+	 * write()} as a new reference.
+	 */
+	static T2Reference read(DataInputStream in,
+			ReferenceService referenceService, ReferenceContext context)
+			throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case LIST:
+			int depth = in.readInt();
+			int size = in.readInt();
+			if (size == 0)
+				return referenceService.getListService()
+						.registerEmptyList(depth, context).getId();
+			List<T2Reference> items = new ArrayList<>(size);
+			for (int i = 0; i < size; i++)
+				items.add(read(in, referenceService, context));
+			return referenceService.register(items, depth, true, context);
+		case TEXT:
+			return referenceService.register(new String(readBytes(in), UTF_8),
+					0, true, context);
+		case BINARY:
+			return referenceService.register(readBytes(in), 0, true, context);
+		default:
+			throw new IOException("Unknown content type " + type);
+		}
+	}
+
+	private static byte[] read(ExternalReferenceSPI external,
+			ReferenceContext context) throws IOException {
+		try (InputStream in = external.openStream(context)) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				bytes.write(buffer, 0, read);
+			return bytes.toByteArray();
+		} catch (RuntimeException e) {
+			throw new IOException("Could not read " + external, e);
+		}
+	}
+
+	private static void writeBytes(byte type, byte[] data, DataOutputStream out)
+			throws IOException {
+		out.writeByte(type);
+		out.writeInt(data.length);
+		out.write(data);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] data = new byte[in.readInt()];
+		in.readFully(data);
+		return data;
+	}
+}
@@ -0,0 +1,337 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.attribute.PosixFilePermission.OWNER_EXECUTE;
+import static java.nio.file.attribute.PosixFilePermission.OWNER_READ;
+import static java.nio.file.attribute.PosixFilePermission.OWNER_WRITE;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.nio.file.attribute.UserPrincipalNotFoundException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Local on-disk store of activity results for the {@link Memoize} layer,
+ * shared by all the workflow runs of the JVM and kept between runs.
+ * <p>
+ * Each entry is a file in the cache directory, named after its key. When the
+ * total size of the entries goes over the limit the least recently used
+ * entries are deleted; the last modification time of the files records their
+ * use, so the order survives restarts. The directory is taken from the system
+ * property <code>taverna.memoize.dir</code> (by default
+ * <code>.taverna/memoize</code> in the home directory of the user) and the
+ * size limit from <code>taverna.memoize.maxBytes</code> (by default 256 MB).
+ * <p>
+ * Entries are trusted as results of earlier invocations, so the directory must
+ * be private to the user: it is created readable only by its owner, and an
+ * existing directory owned by another user or open to other users is not
+ * used.
+ */
+public class ResultCache {
+	public static final String DIRECTORY_PROPERTY = "taverna.memoize.dir";
+	public static final String MAX_BYTES_PROPERTY = "taverna.memoize.maxBytes";
+	public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+	private static final String SUFFIX = ".result";
+	private static final Set<PosixFilePermission> OWNER_ONLY = EnumSet.of(
+			OWNER_READ, OWNER_WRITE, OWNER_EXECUTE);
+
+	private static Logger logger = Logger.getLogger(ResultCache.class);
+	private static ResultCache instance;
+
+	/**
+	 * Get the ResultCache singleton instance, creating it from the system
+	 * properties on first access.
+	 *
+	 * @return The ResultCache singleton
+	 */
+	public synchronized static ResultCache getInstance() {
+		if (instance == null) {
+			Path directory = Paths.get(System.getProperty(DIRECTORY_PROPERTY,
+					Paths.get(System.getProperty("user.home"), ".taverna",
+							"memoize").toString()));
+			long maxBytes = DEFAULT_MAX_BYTES;
+			String maxBytesProperty = System.getProperty(MAX_BYTES_PROPERTY);
+			if (maxBytesProperty != null)
+				maxBytes = Long.parseLong(maxBytesProperty);
+			setInstance(new ResultCache(directory, maxBytes));
+		}
+		return instance;
+	}
+
+	/**
+	 * Set the ResultCache singleton instance. Only to be used by the platform
+	 * at initialisation time.
+	 *
+	 * @param instance
+	 *            ResultCache singleton to be returned by
+	 *            {@link #getInstance()}.
+	 */
+	public synchronized static void setInstance(ResultCache instance) {
+		ResultCache.instance = instance;
+	}
+
+	private final Path directory;
+	private final long maxBytes;
+	/** Size of each entry, least recently used first */
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(
+			16, 0.75f, true);
+	private long totalBytes = 0;
+	/** False if the directory could not be opened or is not private */
+	private final boolean usable;
+
+	/**
+	 * Open the cache in the given directory, creating the directory if needed
+	 * and indexing the entries already there. The cache stays empty if the
+	 * directory is not private to the user.
+	 *
+	 * @param directory
+	 *            the directory holding the entries
+	 * @param maxBytes
+	 *            the total size of the entries above which the least recently
+	 *            used are deleted
+	 */
+	public ResultCache(Path directory, long maxBytes) {
+		if (maxBytes < 1)
+			throw new IllegalArgumentException("maxBytes < 1");
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		boolean opened = false;
+		try {
+			opened = open();
+		} catch (IOException e) {
+			logger.warn("Could not open result cache in " + directory, e);
+		}
+		usable = opened;
+	}
+
+	private boolean open() throws IOException {
+		if (!Files.isDirectory(directory)) {
+			Files.createDirectories(directory);
+			if (isPosix())
+				Files.setPosixFilePermissions(directory, OWNER_ONLY);
+		}
+		if (!isPrivate()) {
+			logger.warn("Not using result cache in " + directory
+					+ " as it is not private to the user");
+			return false;
+		}
+		index();
+		return true;
+	}
+
+	private boolean isPosix() throws IOException {
+		return Files.getFileStore(directory).supportsFileAttributeView(
+				PosixFileAttributeView.class);
+	}
+
+	/**
+	 * Return true if the directory is not a link, and is owned by and only
+	 * accessible to the user. Always true without POSIX permissions.
+	 */
+	private boolean isPrivate() throws IOException {
+		if (Files.isSymbolicLink(directory))
+			return false;
+		if (!isPosix())
+			return true;
+		PosixFileAttributes attributes = Files.readAttributes(directory,
+				PosixFileAttributes.class, NOFOLLOW_LINKS);
+		if (!OWNER_ONLY.containsAll(attributes.permissions()))
+			return false;
+		try {
+			UserPrincipal user = directory.getFileSystem()
+					.getUserPrincipalLookupService()
+					.lookupPrincipalByName(System.getProperty("user.name"));
+			return attributes.owner().equals(user);
+		} catch (UserPrincipalNotFoundException e) {
+			// Unknown user name, the permissions have to do
+			return true;
+		}
+	}
+
+	private void index() throws IOException {
+		final Map<Path, FileTime> files = new LinkedHashMap<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+				directory, "*" + SUFFIX)) {
+			for (Path file : stream)
+				files.put(file, Files.getLastModifiedTime(file));
+		}
+		List<Path> byUse = new ArrayList<>(files.keySet());
+		Collections.sort(byUse, new Comparator<Path>() {
+			@Override
+			public int compare(Path file1, Path file2) {
+				return files.get(file1).compareTo(files.get(file2));
+			}
+		});
+		synchronized (this) {
+			for (Path file : byUse) {
+				String name = file.getFileName().toString();
+				long size = Files.size(file);
+				entries.put(name.substring(0, name.length() - SUFFIX.length()),
+						size);
+				totalBytes += size;
+			}
+			evict();
+		}
+	}
+
+	/**
+	 * Return the entry for the key, or <code>null</code> if there is none.
+	 */
+	public byte[] get(String key) {
+		if (!usable)
+			return null;
+		synchronized (this) {
+			if (entries.get(key) == null)
+				return null;
+		}
+		Path file = file(key);
+		try {
+			byte[] value = Files.readAllBytes(file);
+			Files.setLastModifiedTime(file,
+					FileTime.fromMillis(System.currentTimeMillis()));
+			return value;
+		} catch (NoSuchFileException e) {
+			// Evicted meanwhile, or deleted behind our back
+			remove(key);
+		} catch (IOException e) {
+			logger.warn("Could not read result cache entry " + file, e);
+		}
+		return null;
+	}
+
+	/**
+	 * Store the entry for the key, replacing any previous entry, and delete
+	 * the least recently used entries if the cache is over its size.
+	 */
+	public void put(String key, byte[] value) {
+		if (!usable || value.length > maxBytes)
+			return;
+		Path file = file(key);
+		try {
+			Path temp = Files.createTempFile(directory, key, ".tmp");
+			Files.write(temp, value);
+			try {
+				Files.move(temp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, file, REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			logger.warn("Could not write result cache entry " + file, e);
+			return;
+		}
+		synchronized (this) {
+			Long previous = entries.put(key, (long) value.length);
+			if (previous != null)
+				totalBytes -= previous;
+			totalBytes += value.length;
+			evict();
+		}
+	}
+
+	/**
+	 * Delete the entry for the key, if any.
+	 */
+	public void remove(String key) {
+		synchronized (this) {
+			Long size = entries.remove(key);
+			if (size == null)
+				return;
+			totalBytes -= size;
+		}
+		delete(key);
+	}
+
+	/**
+	 * Delete all the entries.
+	 */
+	public void clear() {
+		List<String> keys;
+		synchronized (this) {
+			keys = new ArrayList<>(entries.keySet());
+			entries.clear();
+			totalBytes = 0;
+		}
+		for (String key : keys)
+			delete(key);
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Must be called holding the lock.
+	 */
+	private void evict() {
+		Iterator<Entry<String, Long>> leastRecent = entries.entrySet()
+				.iterator();
+		while (totalBytes > maxBytes && leastRecent.hasNext()) {
+			Entry<String, Long> entry = leastRecent.next();
+			totalBytes -= entry.getValue();
+			leastRecent.remove();
+			delete(entry.getKey());
+		}
+	}
+
+	private void delete(String key) {
+		try {
+			Files.deleteIfExists(file(key));
+		} catch (IOException e) {
+			logger.warn("Could not delete result cache entry " + key, e);
+		}
+	}
+
+	private Path file(String key) {
+		return directory.resolve(key + SUFFIX);
+	}
+}
@@ -23,19 +23,36 @@ import static org.apache.taverna.workflowmodel.processor.dispatch.description.Di
 import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.REMOVE_LOCAL_STATE;
 import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.UPDATE_LOCAL_STATE;
 import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchMessageType.JOB;
+import static org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorType.INVOCATION;
 
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.Date;
 import java.util.Iterator;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.InvocationExecutor;
+import org.apache.taverna.monitor.MonitorableProperty;
+import org.apache.taverna.monitor.NoSuchPropertyException;
 import org.apache.taverna.workflowmodel.processor.dispatch.AbstractErrorHandlerLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.PropertyContributingDispatchLayer;
 import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerErrorReaction;
 import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerJobReaction;
 import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerResultReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorEvent;
 import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchJobEvent;
 
 /**
@@ -47,7 +64,20 @@ import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchJobEve
  * <li>initialDelay = 1000 (milliseconds)</li>
  * <li>maxDelay = 2000 (milliseconds)</li>
  * <li>backoffFactor = 1.0 (double)</li>
+ * <li>jitter = false (boolean)</li>
+ * <li>runRetryBudget = 0 (int)</li>
  * </ul>
+ * <p>
+ * With <code>jitter</code> set the delays are randomised using decorrelated
+ * jitter instead of following the backoff factor, each delay is picked
+ * between <code>initialDelay</code> and three times the previous delay (capped
+ * at <code>maxDelay</code>), so that jobs failing together do not retry in
+ * lockstep. A positive <code>runRetryBudget</code> limits the number of
+ * retries made in a workflow run, once spent errors are passed on without
+ * retrying.
+ * <p>
+ * Retries are scheduled on a single shared scheduler thread and handed to the
+ * {@link InvocationExecutor} when due.
  *
  * @author Tom Oinn
  * @author David Withers
@@ -57,11 +87,14 @@ import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchJobEve
 		UPDATE_LOCAL_STATE, REMOVE_LOCAL_STATE })
 @DispatchLayerJobReaction(emits = {}, relaysUnmodified = true, stateEffects = { CREATE_LOCAL_STATE })
 @DispatchLayerResultReaction(emits = {}, relaysUnmodified = true, stateEffects = { REMOVE_LOCAL_STATE })
-public class Retry extends AbstractErrorHandlerLayer<JsonNode> {
+public class Retry extends AbstractErrorHandlerLayer<JsonNode> implements
+		PropertyContributingDispatchLayer<JsonNode> {
 	private static final String BACKOFF_FACTOR = "backoffFactor";
     private static final String MAX_DELAY = "maxDelay";
     private static final String MAX_RETRIES = "maxRetries";
     private static final String INITIAL_DELAY = "initialDelay";
+    private static final String JITTER = "jitter";
+    private static final String RUN_RETRY_BUDGET = "runRetryBudget";
     public static final String URI = "http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/Retry";
 
 	private ObjectNode config;
@@ -69,8 +102,29 @@ public class Retry extends AbstractErrorHandlerLayer<JsonNode> {
     private int initialDelay;
     private int maxDelay;
     private double backoffFactor;
+    private boolean jitter;
+    private int runRetryBudget;
+
+	private static Logger logger = Logger.getLogger(Retry.class);
+	private static final ScheduledExecutorService retryScheduler = createRetryScheduler();
+
+	private final AtomicLong scheduledCount = new AtomicLong();
+	private final AtomicLong firedCount = new AtomicLong();
+	private final AtomicLong exhaustedCount = new AtomicLong();
 
-	private static Timer retryTimer = new Timer("Retry timer", true);
+	private static ScheduledExecutorService createRetryScheduler() {
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+				1, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Retry scheduler");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		scheduler.setRemoveOnCancelPolicy(true);
+		return scheduler;
+	}
 
 	public Retry() {
 		super();
@@ -90,6 +144,7 @@ public class Retry extends AbstractErrorHandlerLayer<JsonNode> {
 
 	class RetryState extends JobState {
 		int currentRetryCount = 0;
+		int previousDelay = initialDelay;
 
 		public RetryState(DispatchJobEvent jobEvent) {
 			super(jobEvent);
@@ -97,34 +152,173 @@ public class Retry extends AbstractErrorHandlerLayer<JsonNode> {
 
 		/**
 		 * Try to schedule a retry, returns true if a retry is scheduled, false
-		 * if the retry count has already been reached (in which case no retry
-		 * is scheduled
+		 * if the retry count or the retry budget of the workflow run has
+		 * already been reached (in which case no retry is scheduled)
 		 *
 		 * @return
 		 */
 		@Override
 		public boolean handleError() {
-			if (currentRetryCount >= maxRetries)
+			if (currentRetryCount >= maxRetries
+					|| !takeFromRunBudget(jobEvent.getContext())) {
+				exhaustedCount.incrementAndGet();
 				return false;
-			int delay = (int) (initialDelay * Math.pow(backoffFactor, currentRetryCount));
-			delay = Math.min(delay, maxDelay);
-			TimerTask task = new TimerTask() {
+			}
+			int delay;
+			if (jitter) {
+				int upper = (int) Math.min(maxDelay,
+						Math.max(initialDelay, previousDelay * 3L));
+				delay = initialDelay
+						+ ThreadLocalRandom.current().nextInt(
+								upper - initialDelay + 1);
+			} else {
+				delay = (int) (initialDelay * Math.pow(backoffFactor,
+						currentRetryCount));
+				delay = Math.min(delay, maxDelay);
+			}
+			previousDelay = delay;
+			retryScheduler.schedule(new Runnable() {
 				@Override
 				public void run() {
-					currentRetryCount++;
-					getBelow().receiveJob(jobEvent);
+					InvocationExecutor.getInstance().execute(new Runnable() {
+						@Override
+						public void run() {
+							firedCount.incrementAndGet();
+							currentRetryCount++;
+							getBelow().receiveJob(jobEvent);
+						}
+					}, null, new UncaughtExceptionHandler() {
+						@Override
+						public void uncaughtException(Thread t, Throwable e) {
+							logger.error("Could not retry job " + jobEvent, e);
+							removeJob(jobEvent.getOwningProcess(),
+									RetryState.this);
+							getAbove().receiveError(
+									new DispatchErrorEvent(jobEvent
+											.getOwningProcess(), jobEvent
+											.getIndex(), jobEvent.getContext(),
+											"Could not retry job", e,
+											INVOCATION, null));
+						}
+					});
 				}
-			};
-			retryTimer.schedule(task, delay);
+			}, delay, TimeUnit.MILLISECONDS);
+			scheduledCount.incrementAndGet();
 			return true;
 		}
 	}
 
+	/**
+	 * Number of retries made in a workflow run. Kept as an entity of the
+	 * invocation context of the run, shared by nested workflows, so it is
+	 * discarded together with the run.
+	 */
+	public static class RunRetries {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public int getCount() {
+			return count.get();
+		}
+	}
+
+	private boolean takeFromRunBudget(InvocationContext context) {
+		if (runRetryBudget <= 0 || context == null)
+			return true;
+		RunRetries runRetries;
+		synchronized (RunRetries.class) {
+			List<RunRetries> entities = context
+					.getEntities(RunRetries.class);
+			if (entities.isEmpty()) {
+				runRetries = new RunRetries();
+				context.addEntity(runRetries);
+			} else
+				runRetries = entities.get(0);
+		}
+		while (true) {
+			int used = runRetries.count.get();
+			if (used >= runRetryBudget)
+				return false;
+			if (runRetries.count.compareAndSet(used, used + 1))
+				return true;
+		}
+	}
+
+	/**
+	 * Return the number of retries scheduled by this layer.
+	 */
+	public long getScheduledCount() {
+		return scheduledCount.get();
+	}
+
+	/**
+	 * Return the number of scheduled retries which have been sent down the
+	 * dispatch stack.
+	 */
+	public long getFiredCount() {
+		return firedCount.get();
+	}
+
+	/**
+	 * Return the number of errors passed on without retrying because the
+	 * maximum number of retries or the retry budget of the run was reached.
+	 */
+	public long getExhaustedCount() {
+		return exhaustedCount.get();
+	}
+
 	@Override
 	protected JobState getStateObject(DispatchJobEvent jobEvent) {
 		return new RetryState(jobEvent);
 	}
 
+	/**
+	 * Injects the following properties into its parent processor's property
+	 * set:
+	 * <ul>
+	 * <li><code>dispatch.retry.scheduled [Long]</code><br/>
+	 * The number of retries scheduled.</li>
+	 * <li><code>dispatch.retry.fired [Long]</code><br/>
+	 * The number of scheduled retries sent down the dispatch stack.</li>
+	 * <li><code>dispatch.retry.exhausted [Long]</code><br/>
+	 * The number of errors passed on as the retries or the retry budget of
+	 * the run were used up.</li>
+	 * </ul>
+	 */
+	@Override
+	public void injectPropertiesFor(String owningProcess) {
+		dispatchStack.receiveMonitorableProperty(new RetryProperty(
+				"scheduled", scheduledCount), owningProcess);
+		dispatchStack.receiveMonitorableProperty(new RetryProperty("fired",
+				firedCount), owningProcess);
+		dispatchStack.receiveMonitorableProperty(new RetryProperty(
+				"exhausted", exhaustedCount), owningProcess);
+	}
+
+	private static class RetryProperty implements MonitorableProperty<Long> {
+		private final String name;
+		private final AtomicLong count;
+
+		private RetryProperty(String name, AtomicLong count) {
+			this.name = name;
+			this.count = count;
+		}
+
+		@Override
+		public Date getLastModified() {
+			return new Date();
+		}
+
+		@Override
+		public String[] getName() {
+			return new String[] { "dispatch", "retry", name };
+		}
+
+		@Override
+		public Long getValue() throws NoSuchPropertyException {
+			return count.get();
+		}
+	}
+
 	@Override
 	public void configure(JsonNode config) {
 	    ObjectNode defaultConfig = defaultConfig();
@@ -134,7 +328,9 @@ public class Retry extends AbstractErrorHandlerLayer<JsonNode> {
         maxRetries = config.get(MAX_RETRIES).intValue();
         initialDelay = config.get(INITIAL_DELAY).intValue();
         maxDelay = config.get(MAX_DELAY).intValue();
-        backoffFactor = config.get(BACKOFF_FACTOR).doubleValue();       
+        backoffFactor = config.get(BACKOFF_FACTOR).doubleValue();
+        jitter = config.get(JITTER).booleanValue();
+        runRetryBudget = config.get(RUN_RETRY_BUDGET).intValue();
 	}
 
     private void setAllMissingFields(ObjectNode config, ObjectNode defaults) {
@@ -161,6 +357,8 @@ public class Retry extends AbstractErrorHandlerLayer<JsonNode> {
             throw new IllegalArgumentException("maxDelay < initialDelay");
         if (conf.get(BACKOFF_FACTOR).doubleValue() < 0.0)
             throw new IllegalArgumentException("backoffFactor < 0.0");
+        if (conf.get(RUN_RETRY_BUDGET).intValue() < 0)
+            throw new IllegalArgumentException("runRetryBudget < 0");
     }
 
     public static ObjectNode defaultConfig() {
@@ -169,6 +367,8 @@ public class Retry extends AbstractErrorHandlerLayer<JsonNode> {
 	    conf.put(INITIAL_DELAY, 1000);
 	    conf.put(MAX_DELAY, 5000);
 	    conf.put(BACKOFF_FACTOR, 1.0);
+	    conf.put(JITTER, false);
+	    conf.put(RUN_RETRY_BUDGET, 0);
 	    return conf;
     }
 
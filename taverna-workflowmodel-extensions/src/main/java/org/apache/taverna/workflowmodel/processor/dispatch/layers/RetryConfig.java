@@ -28,11 +28,14 @@ public class RetryConfig {
 	private static final int MAX_DELAY = 5000;
 	private static final int INITIAL_DELAY = 1000;
 	private static final int MAX_RETRIES = 0;
+	private static final int RUN_RETRY_BUDGET = 0;
 
 	private float backoffFactor = BACKOFF_FACTOR;
 	private int initialDelay = INITIAL_DELAY;
 	private int maxDelay = MAX_DELAY;
 	private int maxRetries = MAX_RETRIES;
+	private boolean jitter = false;
+	private int runRetryBudget = RUN_RETRY_BUDGET;
 
 	/**
 	 * Factor by which the initial delay is multiplied for each retry after the
@@ -74,6 +77,25 @@ public class RetryConfig {
 		return this.maxRetries;
 	}
 
+	/**
+	 * Whether to randomise the delays with decorrelated jitter rather than
+	 * following the backoff factor
+	 *
+	 * @return
+	 */
+	public boolean isJitter() {
+		return this.jitter;
+	}
+
+	/**
+	 * Maximum number of retries in a workflow run, or 0 for no limit
+	 *
+	 * @return
+	 */
+	public int getRunRetryBudget() {
+		return this.runRetryBudget;
+	}
+
 	@ConfigurationProperty(name = "backoffFactor", label = "Backoff Factor", description = "Factor by which the initial delay is multiplied for each retry after the first retry", required=false)
 	public void setBackoffFactor(float factor) {
 		this.backoffFactor = factor;
@@ -93,4 +115,14 @@ public class RetryConfig {
 	public void setMaxRetries(int max) {
 		this.maxRetries = max;
 	}
+
+	@ConfigurationProperty(name = "jitter", label = "Jitter", description = "Randomise the delays between retries so that jobs failing together do not retry together", required=false)
+	public void setJitter(boolean jitter) {
+		this.jitter = jitter;
+	}
+
+	@ConfigurationProperty(name = "runRetryBudget", label = "Retry Budget", description = "Maximum number of retries in a workflow run, 0 for no limit", required=false)
+	public void setRunRetryBudget(int budget) {
+		this.runRetryBudget = budget;
+	}
 }
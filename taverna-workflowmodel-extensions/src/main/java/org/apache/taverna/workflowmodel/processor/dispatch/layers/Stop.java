@@ -121,6 +121,27 @@ public class Stop extends AbstractDispatchLayer<JsonNode> {
 		return true;
 	}
 
+	/**
+	 * Return true if the workflow run with the specified id has been cancelled
+	 *
+	 * @param workflowRunId
+	 *            The id of the workflow run
+	 */
+	public static synchronized boolean isCancelled(String workflowRunId) {
+		return cancelledWorkflowRuns.contains(workflowRunId);
+	}
+
+	/**
+	 * Return true if the workflow run of the job has been cancelled, for the
+	 * layers holding jobs back
+	 */
+	static boolean isCancelled(DispatchJobEvent jobEvent) {
+		List<WorkflowRunIdEntity> entities = jobEvent.getContext().getEntities(
+				WorkflowRunIdEntity.class);
+		return entities != null && !entities.isEmpty()
+				&& isCancelled(entities.get(0).getWorkflowRunId());
+	}
+
 	/**
 	 * Pause the workflow run with the specified id
 	 *
@@ -0,0 +1,375 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.CREATE_PROCESS_STATE;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.NO_EFFECT;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerStateEffect.REMOVE_PROCESS_STATE;
+import static org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchMessageType.ERROR;
+import static org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorType.INVOCATION;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.taverna.invocation.InvocationExecutor;
+import org.apache.taverna.monitor.MonitorableProperty;
+import org.apache.taverna.monitor.NoSuchPropertyException;
+import org.apache.taverna.workflowmodel.processor.activity.Activity;
+import org.apache.taverna.workflowmodel.processor.activity.CancellableActivityCallback;
+import org.apache.taverna.workflowmodel.processor.activity.NestedDataflow;
+import org.apache.taverna.workflowmodel.processor.dispatch.AbstractDispatchLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.DispatchLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.PropertyContributingDispatchLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerErrorReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerJobReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerResultCompletionReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.description.DispatchLayerResultReaction;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchCompletionEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchJobEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchResultEvent;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Fails an invocation which has not finished within <code>timeout</code>
+ * milliseconds, so that a hung activity does not hold up the workflow run.
+ * <p>
+ * A deadline is armed for every job sent down. If the final result, result
+ * completion or error has not come back when it expires, an invocation error
+ * caused by a {@link TimeoutException} is sent up in its place, for layers
+ * such as {@link Retry} and {@link Failover} to handle. With
+ * <code>cancel</code> set, the default, the invocation is also
+ * {@link Invoke#cancel(String, int[], Activity) cancelled}: the threads it
+ * started through <code>requestRun()</code> are interrupted and activities
+ * using a {@link CancellableActivityCallback} are told to release their
+ * resources. Anything the timed out invocation sends back afterwards is
+ * dropped.
+ * <p>
+ * Put directly above the {@link Invoke} layer, so that time spent waiting for
+ * a rate limit or a permit does not count. Nested workflows are not timed.
+ * <p>
+ * The number of timed out invocations is published as the
+ * <code>dispatch.timeout.timedout</code> property.
+ */
+@DispatchLayerJobReaction(emits = { ERROR }, relaysUnmodified = true, stateEffects = { CREATE_PROCESS_STATE })
+@DispatchLayerResultReaction(emits = {}, relaysUnmodified = true, stateEffects = {
+		REMOVE_PROCESS_STATE, NO_EFFECT })
+@DispatchLayerResultCompletionReaction(emits = {}, relaysUnmodified = true, stateEffects = { REMOVE_PROCESS_STATE })
+@DispatchLayerErrorReaction(emits = {}, relaysUnmodified = true, stateEffects = { REMOVE_PROCESS_STATE })
+public class Timeout extends AbstractDispatchLayer<JsonNode> implements
+		PropertyContributingDispatchLayer<JsonNode> {
+	public static final String URI = "http://ns.taverna.org.uk/2010/scufl2/taverna/dispatchlayer/Timeout";
+	private static final String TIMEOUT = "timeout";
+	private static final String CANCEL = "cancel";
+
+	private static Logger logger = Logger.getLogger(Timeout.class);
+
+	private ObjectNode config;
+	private long timeout;
+	private boolean cancel;
+
+	/**
+	 * Deadlines of the jobs sent down, per owning process. A job hedged or
+	 * raced between activities has several deadlines for the same index.
+	 */
+	private final ConcurrentMap<String, Set<Deadline>> deadlines = new ConcurrentHashMap<>();
+	private final AtomicLong timedOutCount = new AtomicLong();
+
+	public Timeout() {
+		super();
+		configure(JsonNodeFactory.instance.objectNode());
+	}
+
+	public Timeout(long timeout, boolean cancel) {
+		super();
+		ObjectNode conf = JsonNodeFactory.instance.objectNode();
+		conf.put(TIMEOUT, timeout);
+		conf.put(CANCEL, cancel);
+		configure(conf);
+	}
+
+	@Override
+	public void receiveJob(DispatchJobEvent jobEvent) {
+		List<? extends Activity<?>> activities = jobEvent.getActivities();
+		if (activities.isEmpty() || activities.get(0) instanceof NestedDataflow) {
+			getBelow().receiveJob(jobEvent);
+			return;
+		}
+		Deadline deadline = new Deadline(jobEvent, activities.get(0));
+		deadlinesFor(jobEvent.getOwningProcess()).add(deadline);
+		deadline.arm();
+		getBelow().receiveJob(jobEvent);
+	}
+
+	@Override
+	public void receiveResult(DispatchResultEvent resultEvent) {
+		if (outcome(resultEvent.getOwningProcess(), resultEvent.getIndex(),
+				null, !resultEvent.isStreamingEvent()))
+			getAbove().receiveResult(resultEvent);
+	}
+
+	@Override
+	public void receiveResultCompletion(DispatchCompletionEvent completionEvent) {
+		if (outcome(completionEvent.getOwningProcess(),
+				completionEvent.getIndex(), null, true))
+			getAbove().receiveResultCompletion(completionEvent);
+	}
+
+	@Override
+	public void receiveError(DispatchErrorEvent errorEvent) {
+		if (outcome(errorEvent.getOwningProcess(), errorEvent.getIndex(),
+				errorEvent.getFailedActivity(), true))
+			getAbove().receiveError(errorEvent);
+	}
+
+	/**
+	 * Match an event coming up with the deadline of its job, disarming it if
+	 * the event is the final one. Return false if the event is from an
+	 * invocation which has timed out and is to be dropped.
+	 */
+	private boolean outcome(String owningProcess, int[] index,
+			Activity<?> activity, boolean last) {
+		Set<Deadline> owned = deadlines.get(owningProcess);
+		if (owned == null)
+			return true;
+		Deadline expired = null;
+		boolean found = true;
+		while (found) {
+			found = false;
+			Deadline live = null;
+			for (Deadline deadline : owned)
+				if (deadline.hasIndex(index)) {
+					found = true;
+					if (deadline.isExpired())
+						expired = deadline;
+					else if (live == null || deadline.activity == activity)
+						live = deadline;
+				}
+			if (live == null)
+				break;
+			if (!last)
+				return true;
+			if (live.finish()) {
+				owned.remove(live);
+				return true;
+			}
+			// Expired meanwhile, look again
+		}
+		if (expired == null)
+			return true;
+		if (last)
+			owned.remove(expired);
+		return false;
+	}
+
+	@Override
+	public void finishedWith(final String owningProcess) {
+		cleanupTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				Set<Deadline> owned = deadlines.remove(owningProcess);
+				if (owned != null)
+					for (Deadline deadline : owned)
+						deadline.finish();
+			}
+		}, CLEANUP_DELAY_MS);
+	}
+
+	private Set<Deadline> deadlinesFor(String owningProcess) {
+		Set<Deadline> owned = deadlines.get(owningProcess);
+		if (owned == null) {
+			Set<Deadline> newOwned = Collections
+					.newSetFromMap(new ConcurrentHashMap<Deadline, Boolean>());
+			owned = deadlines.putIfAbsent(owningProcess, newOwned);
+			if (owned == null)
+				owned = newOwned;
+		}
+		return owned;
+	}
+
+	/**
+	 * Cancel the invocation of the activity for the job in the {@link Invoke}
+	 * layers below, return true if there was one to cancel.
+	 */
+	private boolean cancelInvocation(DispatchJobEvent jobEvent,
+			Activity<?> activity) {
+		int cancelled = 0;
+		for (DispatchLayer<?> layer = getBelow(); layer != null; layer = dispatchStack
+				.layerBelow(layer))
+			if (layer instanceof Invoke)
+				cancelled += ((Invoke) layer).cancel(
+						jobEvent.getOwningProcess(), jobEvent.getIndex(),
+						activity);
+		return cancelled > 0;
+	}
+
+	/**
+	 * Return the number of invocations timed out since creation.
+	 */
+	public long getTimedOutCount() {
+		return timedOutCount.get();
+	}
+
+	@Override
+	public void configure(JsonNode config) {
+		ObjectNode conf = (ObjectNode) config;
+		if (!conf.has(TIMEOUT) || conf.get(TIMEOUT).isNull())
+			conf.put(TIMEOUT, 60000);
+		if (!conf.has(CANCEL) || conf.get(CANCEL).isNull())
+			conf.put(CANCEL, true);
+		if (conf.get(TIMEOUT).longValue() <= 0)
+			throw new IllegalArgumentException("timeout <= 0");
+		this.config = conf;
+		timeout = conf.get(TIMEOUT).longValue();
+		cancel = conf.get(CANCEL).booleanValue();
+	}
+
+	@Override
+	public JsonNode getConfiguration() {
+		return config;
+	}
+
+	/**
+	 * Injects the following properties into its parent processor's property
+	 * set:
+	 * <ul>
+	 * <li><code>dispatch.timeout.timedout [Long]</code><br/>
+	 * The number of invocations which timed out.</li>
+	 * </ul>
+	 */
+	@Override
+	public void injectPropertiesFor(String owningProcess) {
+		dispatchStack.receiveMonitorableProperty(
+				new MonitorableProperty<Long>() {
+					@Override
+					public Date getLastModified() {
+						return new Date();
+					}
+
+					@Override
+					public String[] getName() {
+						return new String[] { "dispatch", "timeout", "timedout" };
+					}
+
+					@Override
+					public Long getValue() throws NoSuchPropertyException {
+						return timedOutCount.get();
+					}
+				}, owningProcess);
+	}
+
+	/**
+	 * The deadline of one invocation of a job
+	 */
+	private class Deadline implements Runnable {
+		private final DispatchJobEvent jobEvent;
+		private final Activity<?> activity;
+		private ScheduledFuture<?> task;
+		private boolean finished = false;
+		private boolean expired = false;
+
+		private Deadline(DispatchJobEvent jobEvent, Activity<?> activity) {
+			this.jobEvent = jobEvent;
+			this.activity = activity;
+		}
+
+		private boolean hasIndex(int[] index) {
+			return Arrays.equals(jobEvent.getIndex(), index);
+		}
+
+		private synchronized void arm() {
+			if (!finished)
+				task = scheduler.schedule(this, timeout, MILLISECONDS);
+		}
+
+		private synchronized boolean isExpired() {
+			return expired;
+		}
+
+		/**
+		 * The invocation finished in time, return false if it did not.
+		 */
+		private synchronized boolean finish() {
+			if (expired)
+				return false;
+			finished = true;
+			if (task != null)
+				task.cancel(false);
+			return true;
+		}
+
+		/**
+		 * Expire on the scheduler thread, the layers above are told on an
+		 * invocation thread as they may send the job down again.
+		 */
+		@Override
+		public void run() {
+			synchronized (this) {
+				if (finished)
+					return;
+				expired = true;
+			}
+			InvocationExecutor.getInstance().execute(new Runnable() {
+				@Override
+				public void run() {
+					expire();
+				}
+			}, null, new UncaughtExceptionHandler() {
+				@Override
+				public void uncaughtException(Thread t, Throwable e) {
+					logger.error("Could not time out job " + jobEvent, e);
+				}
+			});
+		}
+
+		private void expire() {
+			timedOutCount.incrementAndGet();
+			if (cancel && cancelInvocation(jobEvent, activity)) {
+				// Nothing more will come back from the invocation
+				Set<Deadline> owned = deadlines.get(jobEvent.getOwningProcess());
+				if (owned != null)
+					owned.remove(this);
+			}
+			String message = "Invocation of " + activity + " timed out after "
+					+ timeout + " ms";
+			logger.warn(message + " for job " + jobEvent);
+			getAbove().receiveError(
+					new DispatchErrorEvent(jobEvent.getOwningProcess(),
+							jobEvent.getIndex(), jobEvent.getContext(),
+							message, new TimeoutException(message),
+							INVOCATION, activity));
+		}
+	}
+}
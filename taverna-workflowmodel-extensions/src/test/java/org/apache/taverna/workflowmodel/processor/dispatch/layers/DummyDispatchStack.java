@@ -0,0 +1,170 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.taverna.annotation.AbstractAnnotatedThing;
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.monitor.MonitorableProperty;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.workflowmodel.Processor;
+import org.apache.taverna.workflowmodel.processor.activity.Activity;
+import org.apache.taverna.workflowmodel.processor.dispatch.DispatchLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.DispatchStack;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorType;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchJobEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchResultEvent;
+
+/**
+ * Minimal dispatch stack for testing layers in isolation. Events leaving the
+ * top of the stack are recorded by {@link #getTop()}, the last layer given is
+ * usually a {@link RecordingLayer} capturing the jobs sent down. Monitorable
+ * properties injected by the layers are kept for {@link #getProperty(String...)}.
+ * <p>
+ * Also makes the events without data of the owning process {@link #OWNER}
+ * which the layer tests send through the stack.
+ */
+public class DummyDispatchStack extends AbstractAnnotatedThing<DispatchStack>
+		implements DispatchStack {
+	public static final String OWNER = "facade0:dataflow:proc";
+
+	private final List<DispatchLayer<?>> layers;
+	private final RecordingLayer top = new RecordingLayer();
+	private final List<MonitorableProperty<?>> properties = new ArrayList<>();
+
+	public DummyDispatchStack(DispatchLayer<?>... layers) {
+		this.layers = new ArrayList<DispatchLayer<?>>(Arrays.asList(layers));
+		top.setDispatchStack(this);
+		for (DispatchLayer<?> layer : layers)
+			layer.setDispatchStack(this);
+	}
+
+	/**
+	 * Make a job of {@link #OWNER} at index <code>i</code> for the activities.
+	 */
+	public static DispatchJobEvent job(int i, InvocationContext context,
+			Activity<?>... activities) {
+		return new DispatchJobEvent(OWNER, new int[] { i }, context,
+				new HashMap<String, T2Reference>(), Arrays.asList(activities));
+	}
+
+	/**
+	 * Make a result of the job of {@link #OWNER} at index <code>i</code>.
+	 */
+	public static DispatchResultEvent result(int i, InvocationContext context) {
+		return new DispatchResultEvent(OWNER, new int[] { i }, context,
+				new HashMap<String, T2Reference>(), false);
+	}
+
+	/**
+	 * Make an invocation error of the job of {@link #OWNER} at index
+	 * <code>i</code>.
+	 */
+	public static DispatchErrorEvent error(int i, InvocationContext context,
+			Activity<?> activity) {
+		return error(i, context, DispatchErrorType.INVOCATION, activity);
+	}
+
+	/**
+	 * Make an error of the job of {@link #OWNER} at index <code>i</code>.
+	 */
+	public static DispatchErrorEvent error(int i, InvocationContext context,
+			DispatchErrorType type, Activity<?> activity) {
+		return new DispatchErrorEvent(OWNER, new int[] { i }, context,
+				"failed", null, type, activity);
+	}
+
+	public RecordingLayer getTop() {
+		return top;
+	}
+
+	@Override
+	public List<DispatchLayer<?>> getLayers() {
+		return layers;
+	}
+
+	@Override
+	public Processor getProcessor() {
+		return null;
+	}
+
+	@Override
+	public DispatchLayer<?> layerAbove(DispatchLayer<?> layer) {
+		int layerIndex = layers.indexOf(layer);
+		if (layerIndex > 0)
+			return layers.get(layerIndex - 1);
+		if (layerIndex == 0)
+			return top;
+		return null;
+	}
+
+	@Override
+	public DispatchLayer<?> layerBelow(DispatchLayer<?> layer) {
+		int layerIndex = layers.indexOf(layer) + 1;
+		if (layerIndex <= 0 || layerIndex >= layers.size())
+			return null;
+		return layers.get(layerIndex);
+	}
+
+	@Override
+	public synchronized void receiveMonitorableProperty(
+			MonitorableProperty<?> prop, String processID) {
+		properties.add(prop);
+	}
+
+	/**
+	 * Return the property received with the name, or <code>null</code>.
+	 */
+	public synchronized MonitorableProperty<?> getProperty(String... name) {
+		for (MonitorableProperty<?> property : properties)
+			if (Arrays.equals(name, property.getName()))
+				return property;
+		return null;
+	}
+
+	@Override
+	public void setQueueWatermarks(int highWatermark, int lowWatermark) {
+	}
+
+	@Override
+	public int getQueueHighWatermark() {
+		return 0;
+	}
+
+	@Override
+	public int getQueueLowWatermark() {
+		return 0;
+	}
+
+	@Override
+	public boolean hasQueueRoom(String owningProcess) {
+		return true;
+	}
+
+	@Override
+	public void resumeWhenQueueHasRoom(String owningProcess, Runnable resume) {
+		resume.run();
+	}
+}
@@ -0,0 +1,90 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.taverna.workflowmodel.processor.dispatch.AbstractDispatchLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchCompletionEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchJobEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchResultEvent;
+
+/**
+ * Dispatch layer recording every event it receives without passing it on.
+ */
+public class RecordingLayer extends AbstractDispatchLayer<Object> {
+	public final List<DispatchJobEvent> jobs = new ArrayList<>();
+	public final List<DispatchResultEvent> results = new ArrayList<>();
+	public final List<DispatchErrorEvent> errors = new ArrayList<>();
+	public final List<DispatchCompletionEvent> completions = new ArrayList<>();
+
+	@Override
+	public synchronized void receiveJob(DispatchJobEvent jobEvent) {
+		jobs.add(jobEvent);
+		notifyAll();
+	}
+
+	@Override
+	public synchronized void receiveResult(DispatchResultEvent resultEvent) {
+		results.add(resultEvent);
+		notifyAll();
+	}
+
+	@Override
+	public synchronized void receiveError(DispatchErrorEvent errorEvent) {
+		errors.add(errorEvent);
+		notifyAll();
+	}
+
+	@Override
+	public synchronized void receiveResultCompletion(
+			DispatchCompletionEvent completionEvent) {
+		completions.add(completionEvent);
+		notifyAll();
+	}
+
+	/**
+	 * Wait up to <code>timeout</code> milliseconds for the number of recorded
+	 * events of all kinds to reach <code>count</code>.
+	 */
+	public synchronized boolean awaitEvents(int count, long timeout)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (jobs.size() + results.size() + errors.size()
+				+ completions.size() < count) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return false;
+			wait(remaining);
+		}
+		return true;
+	}
+
+	@Override
+	public void configure(Object config) {
+	}
+
+	@Override
+	public Object getConfiguration() {
+		return null;
+	}
+}
@@ -0,0 +1,95 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestAdaptiveLimit {
+	private static final long LATENCY = 1000000;
+
+	@Test
+	public void slowStartUntilFailure() {
+		AdaptiveLimit limit = new AdaptiveLimit(2, 1, 20, 2.0, 0.5);
+		for (int i = 0; i < 4; i++)
+			limit.succeeded(LATENCY, limit.getLimit());
+		assertEquals(6, limit.getLimit());
+		limit.failed();
+		assertEquals(3, limit.getLimit());
+		// additive increase after congestion, about one per limit successes
+		for (int i = 0; i < 3; i++)
+			limit.succeeded(LATENCY, limit.getLimit());
+		assertEquals(3, limit.getLimit());
+		limit.succeeded(LATENCY, limit.getLimit());
+		assertEquals(4, limit.getLimit());
+	}
+
+	@Test
+	public void failuresInFlightBackOffOnce() {
+		AdaptiveLimit limit = new AdaptiveLimit(16, 1, 20, 2.0, 0.5);
+		limit.failed();
+		assertEquals(8, limit.getLimit());
+		for (int i = 0; i < 7; i++)
+			limit.failed();
+		assertEquals(8, limit.getLimit());
+		limit.failed();
+		assertEquals(4, limit.getLimit());
+	}
+
+	@Test
+	public void boundedByMinAndMax() {
+		AdaptiveLimit limit = new AdaptiveLimit(1, 2, 5, 2.0, 0.5);
+		assertEquals(2, limit.getLimit());
+		for (int i = 0; i < 100; i++)
+			limit.succeeded(LATENCY, limit.getLimit());
+		assertEquals(5, limit.getLimit());
+		for (int i = 0; i < 100; i++)
+			limit.failed();
+		assertEquals(2, limit.getLimit());
+	}
+
+	@Test
+	public void backOffWhenLatencyRises() {
+		AdaptiveLimit limit = new AdaptiveLimit(10, 1, 20, 2.0, 0.5);
+		limit.failed();
+		assertEquals(5, limit.getLimit());
+		for (int i = 0; i < 10; i++)
+			limit.succeeded(LATENCY, limit.getLimit());
+		int before = limit.getLimit();
+		for (int i = 0; i < 20; i++)
+			limit.succeeded(10 * LATENCY, limit.getLimit());
+		assertTrue(limit.getLimit() < before);
+	}
+
+	@Test
+	public void idleWindowDoesNotGrow() {
+		AdaptiveLimit limit = new AdaptiveLimit(10, 1, 20, 2.0, 0.5);
+		for (int i = 0; i < 100; i++)
+			limit.succeeded(LATENCY, 1);
+		assertEquals(10, limit.getLimit());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidBackoffRatio() {
+		new AdaptiveLimit(10, 1, 20, 2.0, 1.5);
+	}
+}
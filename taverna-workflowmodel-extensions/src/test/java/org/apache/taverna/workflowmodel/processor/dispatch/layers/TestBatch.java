@@ -0,0 +1,202 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.OWNER;
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.job;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.workflowmodel.processor.activity.AbstractAsynchronousActivity;
+import org.apache.taverna.workflowmodel.processor.activity.AsynchronousActivityCallback;
+import org.apache.taverna.workflowmodel.processor.activity.BatchAsynchronousActivity;
+import org.apache.taverna.workflowmodel.processor.activity.BatchAsynchronousActivityCallback;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+public class TestBatch {
+	private InvocationContext context = new DummyInvocationContext();
+	private BatchActivity activity;
+	private RecordingLayer top;
+
+	@Before
+	public void makeActivity() {
+		activity = new BatchActivity();
+	}
+
+	private Batch makeStack(Batch batch) {
+		top = new DummyDispatchStack(batch).getTop();
+		return batch;
+	}
+
+	@Test
+	public void fullBatchInvokedAtOnce() throws Exception {
+		Batch batch = makeStack(new Batch(3, 60000));
+		for (int i = 0; i < 7; i++)
+			batch.receiveJob(job(i, context, activity));
+		assertEquals(2, activity.batchSizes.size());
+		assertEquals(3, (int) activity.batchSizes.get(0));
+		assertEquals(6, top.results.size());
+		for (int i = 0; i < 6; i++)
+			assertArrayEquals(new int[] { i }, top.results.get(i).getIndex());
+		assertEquals(2, batch.getBatchCount());
+		assertEquals(6, batch.getBatchedJobCount());
+	}
+
+	@Test
+	public void partialBatchInvokedAfterWait() throws Exception {
+		Batch batch = makeStack(new Batch(10, 50));
+		batch.receiveJob(job(0, context, activity));
+		batch.receiveJob(job(1, context, activity));
+		assertEquals(0, activity.batchSizes.size());
+		assertTrue(top.awaitEvents(2, 5000));
+		assertEquals(1, activity.batchSizes.size());
+		assertEquals(2, (int) activity.batchSizes.get(0));
+	}
+
+	@Test
+	public void activityLimitsBatchSize() throws Exception {
+		activity.maxBatchSize = 2;
+		Batch batch = makeStack(new Batch(10, 60000));
+		for (int i = 0; i < 4; i++)
+			batch.receiveJob(job(i, context, activity));
+		assertEquals(2, activity.batchSizes.size());
+		assertEquals(4, top.results.size());
+	}
+
+	@Test
+	public void failedBatchFailsUnfinishedJobs() throws Exception {
+		activity.failAfter = 1;
+		Batch batch = makeStack(new Batch(3, 60000));
+		for (int i = 0; i < 3; i++)
+			batch.receiveJob(job(i, context, activity));
+		assertEquals(1, top.results.size());
+		assertEquals(2, top.errors.size());
+		assertArrayEquals(new int[] { 1 }, top.errors.get(0).getIndex());
+		assertArrayEquals(new int[] { 2 }, top.errors.get(1).getIndex());
+	}
+
+	@Test
+	public void throwingFullBatchFailsJobs() throws Exception {
+		activity.fail = new IllegalStateException("Bulk endpoint down");
+		Batch batch = makeStack(new Batch(2, 60000));
+		batch.receiveJob(job(0, context, activity));
+		batch.receiveJob(job(1, context, activity));
+		assertEquals(2, top.errors.size());
+		assertEquals(activity.fail, top.errors.get(0).getCause());
+	}
+
+	@Test
+	public void throwingBatchFailsJobsAfterWait() throws Exception {
+		activity.fail = new IllegalStateException("Bulk endpoint down");
+		Batch batch = makeStack(new Batch(10, 50));
+		batch.receiveJob(job(0, context, activity));
+		batch.receiveJob(job(1, context, activity));
+		assertTrue(top.awaitEvents(2, 5000));
+		assertEquals(2, top.errors.size());
+		assertEquals(activity.fail, top.errors.get(0).getCause());
+	}
+
+	@Test
+	public void batchedInvocationCancelled() throws Exception {
+		activity.respond = false;
+		Batch batch = makeStack(new Batch(2, 60000));
+		batch.receiveJob(job(0, context, activity));
+		batch.receiveJob(job(1, context, activity));
+		assertEquals(1, batch.cancel(OWNER, new int[] { 0 }, null));
+		assertEquals(0, batch.cancel(OWNER, new int[] { 0 }, null));
+
+		// What the activity sends for the cancelled job is ignored
+		for (int i = 0; i < 2; i++)
+			activity.callback.getCallback(i).receiveResult(
+					new HashMap<String, T2Reference>(), new int[0]);
+		assertEquals(1, top.results.size());
+		assertArrayEquals(new int[] { 1 }, top.results.get(0).getIndex());
+		assertEquals(0, batch.cancel(OWNER, new int[] { 1 }, null));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidBatchSize() throws Exception {
+		new Batch(0, 10);
+	}
+
+	private static class BatchActivity extends
+			AbstractAsynchronousActivity<JsonNode> implements
+			BatchAsynchronousActivity<JsonNode> {
+		final List<Integer> batchSizes = Collections
+				.synchronizedList(new ArrayList<Integer>());
+		int maxBatchSize = 0;
+		int failAfter = -1;
+		RuntimeException fail;
+		boolean respond = true;
+		BatchAsynchronousActivityCallback callback;
+
+		@Override
+		public void configure(JsonNode conf) {
+		}
+
+		@Override
+		public JsonNode getConfiguration() {
+			return null;
+		}
+
+		@Override
+		public void executeAsynch(Map<String, T2Reference> data,
+				AsynchronousActivityCallback callback) {
+			callback.receiveResult(new HashMap<String, T2Reference>(),
+					new int[0]);
+		}
+
+		@Override
+		public void executeAsynchBatch(List<Map<String, T2Reference>> data,
+				BatchAsynchronousActivityCallback callback) {
+			batchSizes.add(data.size());
+			if (fail != null)
+				throw fail;
+			this.callback = callback;
+			if (!respond)
+				return;
+			for (int i = 0; i < data.size(); i++) {
+				if (i == failAfter) {
+					callback.fail("Bulk call failed", null);
+					return;
+				}
+				callback.getCallback(i).receiveResult(
+						new HashMap<String, T2Reference>(), new int[0]);
+			}
+		}
+
+		@Override
+		public int getMaxBatchSize() {
+			return maxBatchSize;
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.OWNER;
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.error;
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.job;
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.result;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.reference.WorkflowRunIdEntity;
+import org.apache.taverna.workflowmodel.processor.activity.AbstractAsynchronousActivity;
+import org.apache.taverna.workflowmodel.processor.activity.Activity;
+import org.apache.taverna.workflowmodel.processor.activity.AsynchronousActivityCallback;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorType;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchJobEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchResultEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.layers.CircuitBreakers.CircuitOpenException;
+import org.apache.taverna.workflowmodel.processor.dispatch.layers.CircuitBreakers.State;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestCircuitBreaker {
+	private InvocationContext context = new DummyInvocationContext();
+	private CircuitBreakers circuits = new CircuitBreakers();
+	private Activity<?> activity = new TestActivity("http://example.com:8080/service");
+	private RecordingLayer below = new RecordingLayer();
+	private RecordingLayer top;
+
+	private CircuitBreaker breaker(int failureThreshold, long openDelay,
+			boolean park) {
+		CircuitBreaker breaker = new CircuitBreaker(failureThreshold,
+				openDelay, park);
+		breaker.setCircuitBreakers(circuits);
+		top = new DummyDispatchStack(breaker, below).getTop();
+		return breaker;
+	}
+
+	private State state(CircuitBreaker breaker) {
+		return breaker.circuitOf(activity).getState();
+	}
+
+	@Test
+	public void opensAfterFailuresInARow() throws Exception {
+		CircuitBreaker breaker = breaker(2, 60000, false);
+		breaker.receiveJob(job(0, context, activity));
+		breaker.receiveError(error(0, context, activity));
+		breaker.receiveJob(job(1, context, activity));
+		breaker.receiveResult(result(1, context));
+		breaker.receiveJob(job(2, context, activity));
+		breaker.receiveError(error(2, context, activity));
+		assertEquals(State.CLOSED, state(breaker));
+		breaker.receiveJob(job(3, context, activity));
+		breaker.receiveError(error(3, context, activity));
+		assertEquals(State.OPEN, state(breaker));
+
+		breaker.receiveJob(job(4, context, activity));
+		assertEquals(4, below.jobs.size());
+		assertEquals(4, top.errors.size());
+		DispatchErrorEvent refused = top.errors.get(3);
+		assertTrue(refused.getCause() instanceof CircuitOpenException);
+		assertEquals(DispatchErrorType.INVOCATION, refused.getFailureType());
+		assertEquals(1, breaker.getRefusedCount());
+	}
+
+	@Test
+	public void dataErrorsDoNotOpen() throws Exception {
+		CircuitBreaker breaker = breaker(1, 60000, false);
+		breaker.receiveJob(job(0, context, activity));
+		breaker.receiveError(error(0, context, DispatchErrorType.DATA,
+				activity));
+		assertEquals(State.CLOSED, state(breaker));
+	}
+
+	@Test
+	public void probeClosesCircuit() throws Exception {
+		CircuitBreaker breaker = breaker(1, 50, false);
+		breaker.receiveJob(job(0, context, activity));
+		breaker.receiveError(error(0, context, activity));
+		assertEquals(State.OPEN, state(breaker));
+		Thread.sleep(100);
+
+		breaker.receiveJob(job(1, context, activity));
+		assertEquals(2, below.jobs.size());
+		assertEquals(State.HALF_OPEN, state(breaker));
+		breaker.receiveJob(job(2, context, activity));
+		assertEquals(2, below.jobs.size());
+		breaker.receiveResult(result(1, context));
+		assertEquals(State.CLOSED, state(breaker));
+	}
+
+	@Test
+	public void failedProbeReopens() throws Exception {
+		CircuitBreaker breaker = breaker(3, 50, false);
+		for (int i = 0; i < 3; i++) {
+			breaker.receiveJob(job(i, context, activity));
+			breaker.receiveError(error(i, context, activity));
+		}
+		Thread.sleep(100);
+		breaker.receiveJob(job(3, context, activity));
+		breaker.receiveError(error(3, context, activity));
+		assertEquals(State.OPEN, state(breaker));
+	}
+
+	@Test
+	public void parkedJobsSentOnceProbeSucceeds() throws Exception {
+		CircuitBreaker breaker = breaker(1, 50, true);
+		breaker.receiveJob(job(0, context, activity));
+		breaker.receiveError(error(0, context, activity));
+		breaker.receiveJob(job(1, context, activity));
+		breaker.receiveJob(job(2, context, activity));
+		assertEquals(1, below.jobs.size());
+		assertEquals(1, top.errors.size());
+
+		assertTrue(below.awaitEvents(2, 5000));
+		int[] probe = below.jobs.get(1).getIndex();
+		breaker.receiveResult(new DispatchResultEvent(OWNER, probe, context,
+				new HashMap<String, T2Reference>(), false));
+		assertEquals(3, below.jobs.size());
+		assertEquals(State.CLOSED, state(breaker));
+	}
+
+	@Test
+	public void parkedJobsOfCancelledRunDropped() throws Exception {
+		CircuitBreaker breaker = breaker(1, 50, true);
+		breaker.receiveJob(job(0, context, activity));
+		breaker.receiveError(error(0, context, activity));
+		InvocationContext cancelledRun = new DummyInvocationContext();
+		cancelledRun.addEntity(new WorkflowRunIdEntity("cancelledRun"));
+		breaker.receiveJob(new DispatchJobEvent(OWNER, new int[] { 1 },
+				cancelledRun, new HashMap<String, T2Reference>(), Collections
+						.<Activity<?>> singletonList(activity)));
+		breaker.receiveJob(job(2, context, activity));
+		Stop.cancelWorkflow("cancelledRun");
+
+		assertTrue(below.awaitEvents(2, 5000));
+		int[] probe = below.jobs.get(1).getIndex();
+		assertEquals(2, probe[0]);
+		breaker.receiveResult(result(2, context));
+		assertEquals(2, below.jobs.size());
+		assertEquals(State.CLOSED, state(breaker));
+	}
+
+	@Test
+	public void limitsKeptFromCreation() throws Exception {
+		CircuitBreaker breaker = breaker(1, 60000, false);
+		CircuitBreaker other = new CircuitBreaker(3, 60000, false);
+		other.setCircuitBreakers(circuits);
+		assertSame(breaker.circuitOf(activity), other.circuitOf(activity));
+		other.circuitOf(activity).failed();
+		assertEquals(State.OPEN, state(breaker));
+	}
+
+	@Test
+	public void circuitSharedPerEndpoint() throws Exception {
+		CircuitBreaker breaker = breaker(1, 60000, false);
+		CircuitBreaker other = new CircuitBreaker();
+		other.setCircuitBreakers(circuits);
+		assertSame(breaker.circuitOf(activity),
+				other.circuitOf(new TestActivity("http://example.com:8080/other")));
+		assertNotSame(breaker.circuitOf(activity),
+				other.circuitOf(new TestActivity("http://example.org/service")));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidFailureThreshold() {
+		ObjectNode conf = JsonNodeFactory.instance.objectNode();
+		conf.put("failureThreshold", 0);
+		new CircuitBreaker().configure(conf);
+	}
+
+	private static class TestActivity extends
+			AbstractAsynchronousActivity<JsonNode> {
+		private final ObjectNode configuration = JsonNodeFactory.instance
+				.objectNode();
+
+		private TestActivity(String url) {
+			configuration.put("url", url);
+		}
+
+		@Override
+		public void configure(JsonNode conf) {
+		}
+
+		@Override
+		public JsonNode getConfiguration() {
+			return configuration;
+		}
+
+		@Override
+		public void executeAsynch(Map<String, T2Reference> data,
+				AsynchronousActivityCallback callback) {
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.OWNER;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.reference.T2ReferenceType;
+import org.apache.taverna.reference.WorkflowRunIdEntity;
+import org.apache.taverna.workflowmodel.processor.activity.AbstractAsynchronousActivity;
+import org.apache.taverna.workflowmodel.processor.activity.Activity;
+import org.apache.taverna.workflowmodel.processor.activity.AsynchronousActivityCallback;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchCompletionEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorType;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchJobEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchResultEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+public class TestCollapse {
+	private InvocationContext context = new DummyInvocationContext();
+	private Activity<?> activity = new TestActivity();
+	private T2Reference constant = reference("constant");
+	private Collapse collapse;
+	private RecordingLayer below;
+	private RecordingLayer top;
+
+	@Before
+	public void makeStack() {
+		context.addEntity(new WorkflowRunIdEntity("run0"));
+		collapse = new Collapse();
+		below = new RecordingLayer();
+		top = new DummyDispatchStack(collapse, below).getTop();
+	}
+
+	private DispatchJobEvent job(int i, T2Reference input) {
+		Map<String, T2Reference> data = new HashMap<>();
+		data.put("in", input);
+		return new DispatchJobEvent(OWNER, new int[] { i }, context, data,
+				Collections.<Activity<?>> singletonList(activity));
+	}
+
+	private Map<String, T2Reference> outputs() {
+		Map<String, T2Reference> data = new HashMap<>();
+		data.put("out", reference("output"));
+		return data;
+	}
+
+	@Test
+	public void identicalJobsShareInvocation() {
+		for (int i = 0; i < 3; i++)
+			collapse.receiveJob(job(i, constant));
+		collapse.receiveJob(job(3, reference("other")));
+		assertEquals(2, below.jobs.size());
+		assertEquals(2, collapse.getCollapsedCount());
+
+		Map<String, T2Reference> outputs = outputs();
+		collapse.receiveResult(new DispatchResultEvent(OWNER, new int[] { 0 },
+				context, outputs, false));
+		assertEquals(3, top.results.size());
+		for (int i = 0; i < 3; i++) {
+			assertArrayEquals(new int[] { i }, top.results.get(i).getIndex());
+			assertSame(outputs, top.results.get(i).getData());
+		}
+		assertEquals(1, collapse.getInFlightCount());
+	}
+
+	@Test
+	public void jobAfterResultInvokedAgain() {
+		collapse.receiveJob(job(0, constant));
+		collapse.receiveResult(new DispatchResultEvent(OWNER, new int[] { 0 },
+				context, outputs(), false));
+		collapse.receiveJob(job(1, constant));
+		assertEquals(2, below.jobs.size());
+		assertEquals(0, collapse.getCollapsedCount());
+	}
+
+	@Test
+	public void streamedResultsReindexed() {
+		collapse.receiveJob(job(0, constant));
+		collapse.receiveJob(job(5, constant));
+		collapse.receiveResult(new DispatchResultEvent(OWNER,
+				new int[] { 0, 1 }, context, outputs(), true));
+		collapse.receiveResultCompletion(new DispatchCompletionEvent(OWNER,
+				new int[] { 0 }, context));
+		assertEquals(2, top.results.size());
+		assertArrayEquals(new int[] { 5, 1 }, top.results.get(1).getIndex());
+		assertEquals(2, top.completions.size());
+		assertArrayEquals(new int[] { 5 }, top.completions.get(1).getIndex());
+	}
+
+	@Test
+	public void jobAfterStreamedResultInvokedAgain() {
+		collapse.receiveJob(job(0, constant));
+		collapse.receiveJob(job(1, constant));
+		collapse.receiveResult(new DispatchResultEvent(OWNER,
+				new int[] { 0, 0 }, context, outputs(), true));
+		collapse.receiveJob(job(2, constant));
+		assertEquals(2, below.jobs.size());
+		assertArrayEquals(new int[] { 2 }, below.jobs.get(1).getIndex());
+
+		collapse.receiveResult(new DispatchResultEvent(OWNER,
+				new int[] { 0, 1 }, context, outputs(), true));
+		collapse.receiveResultCompletion(new DispatchCompletionEvent(OWNER,
+				new int[] { 0 }, context));
+		// both streamed results for jobs 0 and 1, none for job 2
+		assertEquals(4, top.results.size());
+		assertEquals(2, top.completions.size());
+		assertEquals(1, collapse.getInFlightCount());
+	}
+
+	@Test
+	public void errorSentToEveryWaitingJob() {
+		collapse.receiveJob(job(0, constant));
+		collapse.receiveJob(job(1, constant));
+		collapse.receiveError(new DispatchErrorEvent(OWNER, new int[] { 0 },
+				context, "failed", null, DispatchErrorType.INVOCATION, activity));
+		assertEquals(2, top.errors.size());
+		assertArrayEquals(new int[] { 1 }, top.errors.get(1).getIndex());
+		assertEquals(DispatchErrorType.INVOCATION, top.errors.get(1)
+				.getFailureType());
+		assertEquals(0, collapse.getInFlightCount());
+	}
+
+	@Test
+	public void differentRunsNotCollapsed() {
+		collapse.receiveJob(job(0, constant));
+		InvocationContext otherRun = new DummyInvocationContext();
+		otherRun.addEntity(new WorkflowRunIdEntity("run1"));
+		Map<String, T2Reference> data = new HashMap<>();
+		data.put("in", constant);
+		collapse.receiveJob(new DispatchJobEvent(OWNER, new int[] { 1 },
+				otherRun, data, Collections.<Activity<?>> singletonList(activity)));
+		assertEquals(2, below.jobs.size());
+	}
+
+	private static T2Reference reference(final String localPart) {
+		return new T2Reference() {
+			@Override
+			public T2ReferenceType getReferenceType() {
+				return T2ReferenceType.ReferenceSet;
+			}
+
+			@Override
+			public int getDepth() {
+				return 0;
+			}
+
+			@Override
+			public boolean containsErrors() {
+				return false;
+			}
+
+			@Override
+			public String getNamespacePart() {
+				return "test";
+			}
+
+			@Override
+			public String getLocalPart() {
+				return localPart;
+			}
+
+			@Override
+			public URI toUri() {
+				return URI.create("t2:ref//test?" + localPart);
+			}
+		};
+	}
+
+	private static class TestActivity extends
+			AbstractAsynchronousActivity<JsonNode> {
+		@Override
+		public void configure(JsonNode conf) {
+		}
+
+		@Override
+		public JsonNode getConfiguration() {
+			return null;
+		}
+
+		@Override
+		public void executeAsynch(Map<String, T2Reference> data,
+				AsynchronousActivityCallback callback) {
+		}
+	}
+}
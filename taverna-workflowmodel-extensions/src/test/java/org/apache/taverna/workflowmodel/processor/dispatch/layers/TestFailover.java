@@ -0,0 +1,130 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.OWNER;
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.error;
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.job;
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.result;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Map;
+
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.workflowmodel.processor.activity.AbstractAsynchronousActivity;
+import org.apache.taverna.workflowmodel.processor.activity.Activity;
+import org.apache.taverna.workflowmodel.processor.activity.AsynchronousActivityCallback;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+public class TestFailover {
+	private InvocationContext context = new DummyInvocationContext();
+	private Activity<?> first = new TestActivity();
+	private Activity<?> second = new TestActivity();
+	private Activity<?> third = new TestActivity();
+	private RecordingLayer below = new RecordingLayer();
+	private RecordingLayer top;
+
+	private Failover failover(int race) {
+		Failover failover = new Failover(race);
+		top = new DummyDispatchStack(failover, below).getTop();
+		return failover;
+	}
+
+	@Test
+	public void sequentialByDefault() throws Exception {
+		Failover failover = failover(1);
+		failover.receiveJob(job(0, context, first, second, third));
+		assertEquals(1, below.jobs.size());
+		assertEquals(3, below.jobs.get(0).getActivities().size());
+		failover.receiveError(error(0, context, first));
+		assertEquals(2, below.jobs.size());
+		assertSame(second, below.jobs.get(1).getActivities().get(0));
+		failover.receiveResult(result(0, context));
+		assertEquals(1, top.results.size());
+	}
+
+	@Test
+	public void firstResultWins() throws Exception {
+		Failover failover = failover(2);
+		failover.receiveJob(job(0, context, first, second, third));
+		assertEquals(2, below.jobs.size());
+		assertSame(first, below.jobs.get(0).getActivities().get(0));
+		assertSame(second, below.jobs.get(1).getActivities().get(0));
+
+		failover.receiveResult(result(0, context));
+		failover.receiveResult(result(0, context));
+		assertEquals(1, top.results.size());
+		assertEquals(0, top.errors.size());
+	}
+
+	@Test
+	public void failedRacerReplaced() throws Exception {
+		Failover failover = failover(2);
+		failover.receiveJob(job(0, context, first, second, third));
+		failover.receiveError(error(0, context, first));
+		assertEquals(3, below.jobs.size());
+		assertSame(third, below.jobs.get(2).getActivities().get(0));
+		assertEquals(0, top.errors.size());
+
+		failover.receiveResult(result(0, context));
+		failover.receiveError(error(0, context, third));
+		assertEquals(1, top.results.size());
+		assertEquals(0, top.errors.size());
+	}
+
+	@Test
+	public void errorOnceAllFailed() throws Exception {
+		Failover failover = failover(3);
+		failover.receiveJob(job(0, context, first, second, third));
+		assertEquals(3, below.jobs.size());
+		failover.receiveError(error(0, context, second));
+		failover.receiveError(error(0, context, first));
+		assertEquals(0, top.errors.size());
+		failover.receiveError(error(0, context, third));
+		assertEquals(1, top.errors.size());
+		assertEquals(0, top.results.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidRace() {
+		new Failover(0);
+	}
+
+	private static class TestActivity extends
+			AbstractAsynchronousActivity<JsonNode> {
+		@Override
+		public void configure(JsonNode conf) {
+		}
+
+		@Override
+		public JsonNode getConfiguration() {
+			return null;
+		}
+
+		@Override
+		public void executeAsynch(Map<String, T2Reference> data,
+				AsynchronousActivityCallback callback) {
+		}
+	}
+}
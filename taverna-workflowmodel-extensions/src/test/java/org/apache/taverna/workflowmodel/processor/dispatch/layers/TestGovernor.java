@@ -0,0 +1,100 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.OWNER;
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.job;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import org.apache.taverna.invocation.ConcurrencyGovernor;
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.reference.WorkflowRunIdEntity;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorType;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchResultEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestGovernor {
+	private InvocationContext context = new DummyInvocationContext();
+	private ConcurrencyGovernor concurrencyGovernor;
+	private Governor governor;
+	private RecordingLayer below;
+	private RecordingLayer top;
+
+	@Before
+	public void makeStack() {
+		context.addEntity(new WorkflowRunIdEntity("run0"));
+		concurrencyGovernor = new ConcurrencyGovernor(0, 2);
+		governor = new Governor();
+		governor.setConcurrencyGovernor(concurrencyGovernor);
+		below = new RecordingLayer();
+		top = new DummyDispatchStack(governor, below).getTop();
+	}
+
+	@Test
+	public void jobsHeldUntilPermitReleased() throws Exception {
+		for (int i = 0; i < 4; i++)
+			governor.receiveJob(job(i, context));
+		assertEquals(2, below.jobs.size());
+		assertEquals(2, concurrencyGovernor.getInFlight("run0"));
+		assertEquals(2, concurrencyGovernor.getWaiting());
+
+		governor.receiveResult(new DispatchResultEvent(OWNER, new int[] { 0 },
+				context, new HashMap<String, T2Reference>(), false));
+		// granted jobs are sent down by the invocation executor
+		assertTrue(below.awaitEvents(3, 5000));
+		assertEquals(3, below.jobs.size());
+		assertArrayEquals(new int[] { 2 }, below.jobs.get(2).getIndex());
+
+		governor.receiveError(new DispatchErrorEvent(OWNER, new int[] { 1 },
+				context, "failed", null, DispatchErrorType.INVOCATION, null));
+		assertTrue(below.awaitEvents(4, 5000));
+		assertEquals(4, below.jobs.size());
+		assertEquals(1, top.results.size());
+		assertEquals(1, top.errors.size());
+	}
+
+	@Test
+	public void streamingResultKeepsPermit() {
+		governor.receiveJob(job(0, context));
+		governor.receiveResult(new DispatchResultEvent(OWNER, new int[] { 0 },
+				context, new HashMap<String, T2Reference>(), true));
+		assertEquals(1, concurrencyGovernor.getInFlight("run0"));
+		governor.receiveResult(new DispatchResultEvent(OWNER, new int[] { 0 },
+				context, new HashMap<String, T2Reference>(), false));
+		assertEquals(0, concurrencyGovernor.getInFlight("run0"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidActivityLimit() {
+		ObjectNode conf = JsonNodeFactory.instance.objectNode();
+		conf.put("activityLimit", -1);
+		governor.configure(conf);
+	}
+}
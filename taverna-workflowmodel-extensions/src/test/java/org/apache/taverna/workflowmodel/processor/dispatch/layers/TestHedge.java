@@ -0,0 +1,151 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.OWNER;
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.error;
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.job;
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.result;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.workflowmodel.processor.activity.AbstractAsynchronousActivity;
+import org.apache.taverna.workflowmodel.processor.activity.Activity;
+import org.apache.taverna.workflowmodel.processor.activity.AsynchronousActivityCallback;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestHedge {
+	private InvocationContext context = new DummyInvocationContext();
+	private Activity<?> primary = new TestActivity();
+	private Activity<?> alternate = new TestActivity();
+	private Hedge hedge;
+	private RecordingLayer below;
+	private RecordingLayer top;
+
+	@Before
+	public void makeStack() {
+		hedge = new Hedge(50, 3, 1);
+		below = new RecordingLayer();
+		top = new DummyDispatchStack(hedge, below).getTop();
+	}
+
+	/**
+	 * Finish a few jobs straight away so that the hedging delay is known
+	 */
+	private void warmUp() {
+		for (int i = 0; i < 3; i++) {
+			hedge.receiveJob(job(i, context, primary, alternate));
+			hedge.receiveResult(result(i, context));
+		}
+		assertTrue(hedge.getDelay() >= 0);
+	}
+
+	@Test
+	public void noHedgeBeforeEnoughSamples() throws Exception {
+		hedge.receiveJob(job(0, context, primary, alternate));
+		assertFalse(below.awaitEvents(2, 200));
+		assertEquals(-1, hedge.getDelay());
+		assertEquals(0, hedge.getHedgedCount());
+	}
+
+	@Test
+	public void slowJobHedgedToAlternate() throws Exception {
+		warmUp();
+		hedge.receiveJob(job(10, context, primary, alternate));
+		assertTrue(below.awaitEvents(5, 5000));
+		assertEquals(1, hedge.getHedgedCount());
+		List<? extends Activity<?>> activities = below.jobs.get(4)
+				.getActivities();
+		assertSame(alternate, activities.get(0));
+
+		hedge.receiveResult(result(10, context));
+		hedge.receiveResult(result(10, context));
+		assertEquals(4, top.results.size());
+		assertEquals(0, top.errors.size());
+	}
+
+	@Test
+	public void errorHeldWhileOtherInvocationRuns() throws Exception {
+		warmUp();
+		hedge.receiveJob(job(10, context, primary, alternate));
+		assertTrue(below.awaitEvents(5, 5000));
+		hedge.receiveError(error(10, context, primary));
+		assertEquals(0, top.errors.size());
+		hedge.receiveResult(result(10, context));
+		assertEquals(4, top.results.size());
+		assertEquals(0, top.errors.size());
+	}
+
+	@Test
+	public void errorSentOnceAllInvocationsFailed() throws Exception {
+		warmUp();
+		hedge.receiveJob(job(10, context, primary, alternate));
+		assertTrue(below.awaitEvents(5, 5000));
+		hedge.receiveError(error(10, context, primary));
+		hedge.receiveError(error(10, context, primary));
+		assertEquals(1, top.errors.size());
+	}
+
+	@Test
+	public void sameActivityWithoutAlternates() throws Exception {
+		ObjectNode conf = JsonNodeFactory.instance.objectNode();
+		conf.put("minSamples", 3);
+		conf.put("alternates", false);
+		hedge.configure(conf);
+		warmUp();
+		hedge.receiveJob(job(10, context, primary, alternate));
+		assertTrue(below.awaitEvents(5, 5000));
+		assertSame(primary, below.jobs.get(4).getActivities().get(0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidPercentile() {
+		new Hedge(100, 3, 1);
+	}
+
+	private static class TestActivity extends
+			AbstractAsynchronousActivity<JsonNode> {
+		@Override
+		public void configure(JsonNode conf) {
+		}
+
+		@Override
+		public JsonNode getConfiguration() {
+			return null;
+		}
+
+		@Override
+		public void executeAsynch(Map<String, T2Reference> data,
+				AsynchronousActivityCallback callback) {
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.OWNER;
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.job;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.workflowmodel.processor.activity.AbstractAsynchronousActivity;
+import org.apache.taverna.workflowmodel.processor.activity.AsynchronousActivityCallback;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchResultEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestMemoize {
+	private InvocationContext context = new DummyInvocationContext();
+	private Path directory;
+	private ResultCache cache;
+	private Memoize memoize;
+	private RecordingLayer below;
+	private RecordingLayer top;
+
+	@Before
+	public void makeStack() throws IOException {
+		directory = Files.createTempDirectory("test-memoize");
+		cache = new ResultCache(directory, 1024);
+		memoize = new Memoize();
+		memoize.setResultCache(cache);
+		below = new RecordingLayer();
+		top = new DummyDispatchStack(memoize, below).getTop();
+	}
+
+	@After
+	public void deleteCache() throws IOException {
+		cache.clear();
+		Files.deleteIfExists(directory);
+	}
+
+	private void finish(int i) {
+		memoize.receiveResult(new DispatchResultEvent(OWNER, new int[] { i },
+				context, new HashMap<String, T2Reference>(), false));
+	}
+
+	private void awaitStored(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (cache.getEntryCount() < count
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(count, cache.getEntryCount());
+	}
+
+	@Test
+	public void secondJobAnsweredFromCache() throws Exception {
+		EchoActivity activity = new EchoActivity("a");
+		memoize.receiveJob(job(0, context, activity));
+		assertTrue(below.awaitEvents(1, 5000));
+		finish(0);
+		awaitStored(1);
+
+		memoize.receiveJob(job(1, context, activity));
+		assertTrue(top.awaitEvents(2, 5000));
+		assertEquals(1, below.jobs.size());
+		assertEquals(1, memoize.getHitCount());
+		assertEquals(1, memoize.getMissCount());
+		assertEquals(1, memoize.getStoredCount());
+	}
+
+	@Test
+	public void configurationIsPartOfKey() throws Exception {
+		memoize.receiveJob(job(0, context, new EchoActivity("a")));
+		assertTrue(below.awaitEvents(1, 5000));
+		finish(0);
+		awaitStored(1);
+
+		memoize.receiveJob(job(1, context, new EchoActivity("b")));
+		assertTrue(below.awaitEvents(2, 5000));
+		assertEquals(0, memoize.getHitCount());
+		assertEquals(2, memoize.getMissCount());
+	}
+
+	@Test
+	public void configurationFieldOrderNotPartOfKey() throws Exception {
+		ObjectNode first = JsonNodeFactory.instance.objectNode();
+		first.put("a", 1);
+		first.putObject("nested").put("x", "1").put("y", "2");
+		ObjectNode second = JsonNodeFactory.instance.objectNode();
+		second.putObject("nested").put("y", "2").put("x", "1");
+		second.put("a", 1);
+		assertArrayEquals(canonical(first), canonical(second));
+		second.put("a", 2);
+		assertFalse(Arrays.equals(canonical(first), canonical(second)));
+	}
+
+	private static byte[] canonical(JsonNode json) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		Memoize.writeCanonical(json, out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void streamedResultNotStored() throws Exception {
+		memoize.receiveJob(job(0, context, new EchoActivity("a")));
+		assertTrue(below.awaitEvents(1, 5000));
+		memoize.receiveResult(new DispatchResultEvent(OWNER,
+				new int[] { 0, 0 }, context, new HashMap<String, T2Reference>(),
+				true));
+		finish(0);
+		assertEquals(2, top.results.size());
+		assertEquals(0, memoize.getStoredCount());
+	}
+
+	@Test
+	public void excludedActivityNotMemoized() {
+		ObjectNode conf = JsonNodeFactory.instance.objectNode();
+		conf.putArray("excludedActivities").add(EchoActivity.URI);
+		memoize.configure(conf);
+		memoize.receiveJob(job(0, context, new EchoActivity("a")));
+		// Passed down straight away, without looking up the cache
+		assertEquals(1, below.jobs.size());
+		assertEquals(0, memoize.getMissCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidExcludedActivities() {
+		ObjectNode conf = JsonNodeFactory.instance.objectNode();
+		conf.put("excludedActivities", "none");
+		memoize.configure(conf);
+	}
+
+	private static class EchoActivity extends
+			AbstractAsynchronousActivity<JsonNode> {
+		public static final String URI = "http://ns.taverna.org.uk/2010/activity/test/echo";
+		private JsonNode configuration;
+
+		EchoActivity(String value) {
+			ObjectNode conf = JsonNodeFactory.instance.objectNode();
+			conf.put("value", value);
+			configuration = conf;
+		}
+
+		@Override
+		public void configure(JsonNode conf) {
+			configuration = conf;
+		}
+
+		@Override
+		public JsonNode getConfiguration() {
+			return configuration;
+		}
+
+		@Override
+		public void executeAsynch(Map<String, T2Reference> data,
+				AsynchronousActivityCallback callback) {
+			callback.receiveResult(new HashMap<String, T2Reference>(),
+					new int[0]);
+		}
+	}
+}
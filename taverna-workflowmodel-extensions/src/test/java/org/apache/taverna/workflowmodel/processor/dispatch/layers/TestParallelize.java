@@ -0,0 +1,190 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.OWNER;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.taverna.invocation.Completion;
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.IterationInternalEvent;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.workflowmodel.processor.activity.Activity;
+import org.apache.taverna.workflowmodel.processor.activity.Job;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchErrorType;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchJobQueueEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchResultEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestParallelize {
+	private InvocationContext context = new DummyInvocationContext();
+	private BlockingQueue<IterationInternalEvent<? extends IterationInternalEvent<?>>> queue;
+	private Parallelize parallelize;
+	private RecordingLayer below;
+	private RecordingLayer top;
+
+	@Before
+	public void makeStack() {
+		queue = new LinkedBlockingQueue<>();
+		parallelize = new Parallelize(2);
+		below = new RecordingLayer();
+		top = new DummyDispatchStack(parallelize, below).getTop();
+	}
+
+	private Job job(int i) {
+		return new Job(OWNER, new int[] { i },
+				new HashMap<String, T2Reference>(), context);
+	}
+
+	private void start() {
+		parallelize.receiveJobQueue(new DispatchJobQueueEvent(OWNER, context,
+				queue, Collections.<Activity<?>> emptyList()));
+	}
+
+	private void finish(int... index) {
+		parallelize.receiveResult(new DispatchResultEvent(OWNER, index,
+				context, new HashMap<String, T2Reference>(), false));
+	}
+
+	@Test
+	public void limitsConcurrentJobs() throws Exception {
+		for (int i = 0; i < 5; i++)
+			queue.add(job(i));
+		start();
+		assertEquals(2, below.jobs.size());
+		finish(1);
+		assertEquals(3, below.jobs.size());
+		assertArrayEquals(new int[] { 2 }, below.jobs.get(2).getIndex());
+		finish(0);
+		finish(2);
+		finish(3);
+		assertEquals(5, below.jobs.size());
+		assertEquals(4, parallelize.completedJobsCount.get());
+		assertEquals(5, parallelize.sentJobsCount.get());
+	}
+
+	@Test
+	public void eventAddedFillsFromQueue() throws Exception {
+		start();
+		assertEquals(0, below.jobs.size());
+		queue.add(job(0));
+		parallelize.eventAdded(OWNER);
+		assertEquals(1, below.jobs.size());
+	}
+
+	@Test
+	public void completionWaitsForEarlierJobs() throws Exception {
+		queue.add(job(0));
+		queue.add(job(1));
+		queue.add(new Completion(OWNER, context));
+		start();
+		finish(1);
+		Thread.sleep(100);
+		assertEquals(0, top.completions.size());
+		finish(0);
+		// results relayed, then the completion is sent asynchronously
+		assertTrue(top.awaitEvents(3, 5000));
+		assertEquals(1, top.completions.size());
+		assertEquals(0, top.completions.get(0).getIndex().length);
+	}
+
+	@Test
+	public void completionsKeepQueueOrder() throws Exception {
+		parallelize = new Parallelize(1);
+		below = new RecordingLayer();
+		top = new DummyDispatchStack(parallelize, below).getTop();
+		queue.add(job(0));
+		queue.add(new Completion(OWNER, new int[] { 0 }, context));
+		queue.add(new Completion(OWNER, new int[] { 1 }, context));
+		queue.add(new Completion(OWNER, context));
+		start();
+		finish(0);
+		assertTrue(top.awaitEvents(4, 5000));
+		assertArrayEquals(new int[] { 0 }, top.completions.get(0).getIndex());
+		assertArrayEquals(new int[] { 1 }, top.completions.get(1).getIndex());
+		assertArrayEquals(new int[] {}, top.completions.get(2).getIndex());
+	}
+
+	@Test
+	public void partialResultIsRelayed() throws Exception {
+		queue.add(job(0));
+		start();
+		parallelize.receiveResult(new DispatchResultEvent(OWNER, new int[] {
+				0, 3 }, context, new HashMap<String, T2Reference>(), true));
+		assertEquals(1, top.results.size());
+		assertEquals(0, parallelize.completedJobsCount.get());
+	}
+
+	@Test
+	public void adaptiveLimitFollowsOutcomes() throws Exception {
+		ObjectNode conf = JsonNodeFactory.instance.objectNode();
+		conf.put("maxJobs", 2);
+		conf.put("adaptive", true);
+		conf.put("adaptiveMaxJobs", 8);
+		// only failures back off, whatever the timing of the test
+		conf.put("latencyTolerance", 1e9);
+		parallelize.configure(conf);
+		assertEquals(2, parallelize.getLimit());
+		for (int i = 0; i < 20; i++)
+			queue.add(job(i));
+		start();
+		assertEquals(2, below.jobs.size());
+
+		// each success widens the window until the first failure
+		finish(0);
+		assertEquals(3, parallelize.getLimit());
+		assertEquals(4, below.jobs.size());
+		finish(1);
+		assertEquals(4, parallelize.getLimit());
+		assertEquals(6, below.jobs.size());
+
+		parallelize.receiveError(new DispatchErrorEvent(OWNER, new int[] { 2 },
+				context, "throttled", null, DispatchErrorType.INVOCATION, null));
+		assertEquals(3, parallelize.getLimit());
+		// three jobs still in flight, no room for another
+		assertEquals(6, below.jobs.size());
+		assertEquals(1, top.errors.size());
+	}
+
+	@Test
+	public void dataErrorsDoNotBackOff() throws Exception {
+		ObjectNode conf = JsonNodeFactory.instance.objectNode();
+		conf.put("maxJobs", 4);
+		conf.put("adaptive", true);
+		parallelize.configure(conf);
+		queue.add(job(0));
+		start();
+		parallelize.receiveError(new DispatchErrorEvent(OWNER, new int[] { 0 },
+				context, "bad input", null, DispatchErrorType.DATA, null));
+		assertEquals(4, parallelize.getLimit());
+	}
+}
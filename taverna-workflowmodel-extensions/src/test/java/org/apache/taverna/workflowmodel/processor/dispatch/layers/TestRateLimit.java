@@ -0,0 +1,172 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.OWNER;
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.job;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.reference.WorkflowRunIdEntity;
+import org.apache.taverna.workflowmodel.processor.activity.AbstractAsynchronousActivity;
+import org.apache.taverna.workflowmodel.processor.activity.Activity;
+import org.apache.taverna.workflowmodel.processor.activity.AsynchronousActivityCallback;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchJobEvent;
+import org.apache.taverna.workflowmodel.processor.dispatch.layers.RateLimits.TokenBucket;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestRateLimit {
+	private InvocationContext context = new DummyInvocationContext();
+	private RateLimits rateLimits = new RateLimits();
+	private Activity<?> activity = new TestActivity();
+
+	private RateLimit rateLimit(double rate, int burst, String bucket) {
+		RateLimit rateLimit = new RateLimit();
+		ObjectNode conf = JsonNodeFactory.instance.objectNode();
+		conf.put("rate", rate);
+		conf.put("burst", burst);
+		if (bucket != null)
+			conf.put("bucket", bucket);
+		rateLimit.configure(conf);
+		rateLimit.setRateLimits(rateLimits);
+		return rateLimit;
+	}
+
+	/**
+	 * Wait for the delayed jobs to be handled, they are counted as waiting
+	 * until sent down or dropped
+	 */
+	private void awaitNoneWaiting(RateLimit rateLimit)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (rateLimit.getWaitingCount() > 0
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(0, rateLimit.getWaitingCount());
+	}
+
+	@Test
+	public void bucketReservesTokensToCome() {
+		TokenBucket bucket = rateLimits.getBucket("test", 10, 2);
+		assertEquals(0, bucket.reserve());
+		assertEquals(0, bucket.reserve());
+		long wait = bucket.reserve();
+		assertTrue(wait > MILLISECONDS.toNanos(50));
+		assertTrue(wait <= MILLISECONDS.toNanos(100));
+		assertTrue(bucket.reserve() > wait);
+	}
+
+	@Test
+	public void burstSentStraightAway() throws Exception {
+		RateLimit rateLimit = rateLimit(10, 3, null);
+		RecordingLayer below = new RecordingLayer();
+		new DummyDispatchStack(rateLimit, below);
+		for (int i = 0; i < 4; i++)
+			rateLimit.receiveJob(job(i, context, activity));
+		assertEquals(3, below.jobs.size());
+		assertEquals(1, rateLimit.getWaitingCount());
+		assertTrue(below.awaitEvents(4, 5000));
+		awaitNoneWaiting(rateLimit);
+		assertEquals(1, rateLimit.getDelayedCount());
+	}
+
+	@Test
+	public void namedBucketShared() throws Exception {
+		RateLimit first = rateLimit(20, 1, "service");
+		RateLimit second = rateLimit(20, 1, "service");
+		assertSame(first.bucketOf(activity), second.bucketOf(activity));
+		RecordingLayer firstBelow = new RecordingLayer();
+		RecordingLayer secondBelow = new RecordingLayer();
+		new DummyDispatchStack(first, firstBelow);
+		new DummyDispatchStack(second, secondBelow);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 5; i++) {
+			first.receiveJob(job(i, context, activity));
+			second.receiveJob(job(i, context, activity));
+		}
+		assertTrue(firstBelow.awaitEvents(5, 5000));
+		assertTrue(secondBelow.awaitEvents(5, 5000));
+		// 9 tokens to wait for at 20 per second
+		assertTrue(System.nanoTime() - start >= MILLISECONDS.toNanos(400));
+	}
+
+	@Test
+	public void cancelledJobDroppedAndGivesTokenBack() throws Exception {
+		RateLimit rateLimit = rateLimit(10, 1, null);
+		RecordingLayer below = new RecordingLayer();
+		RecordingLayer top = new DummyDispatchStack(rateLimit, below).getTop();
+		InvocationContext cancelledRun = new DummyInvocationContext();
+		cancelledRun.addEntity(new WorkflowRunIdEntity("cancelledRateRun"));
+		rateLimit.receiveJob(job(0, context, activity));
+		rateLimit.receiveJob(new DispatchJobEvent(OWNER, new int[] { 1 },
+				cancelledRun, new HashMap<String, T2Reference>(), Collections
+						.<Activity<?>> singletonList(activity)));
+		Stop.cancelWorkflow("cancelledRateRun");
+
+		awaitNoneWaiting(rateLimit);
+		assertEquals(1, below.jobs.size());
+		// Not an error, which layers above could retry
+		assertEquals(0, top.errors.size());
+		assertEquals(0, rateLimit.bucketOf(activity).reserve());
+	}
+
+	@Test
+	public void bucketKeepsRateFromCreation() {
+		TokenBucket bucket = rateLimits.getBucket("kept", 10, 1);
+		assertSame(bucket, rateLimits.getBucket("kept", 1000, 5));
+		assertEquals(0, bucket.reserve());
+		assertTrue(bucket.reserve() > MILLISECONDS.toNanos(50));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidRate() {
+		new RateLimit(0, 1);
+	}
+
+	private static class TestActivity extends
+			AbstractAsynchronousActivity<JsonNode> {
+		@Override
+		public void configure(JsonNode conf) {
+		}
+
+		@Override
+		public JsonNode getConfiguration() {
+			return null;
+		}
+
+		@Override
+		public void executeAsynch(Map<String, T2Reference> data,
+				AsynchronousActivityCallback callback) {
+		}
+	}
+}
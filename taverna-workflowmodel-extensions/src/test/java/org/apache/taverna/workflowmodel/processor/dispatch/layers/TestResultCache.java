@@ -0,0 +1,123 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestResultCache {
+	private Path directory;
+	private ResultCache cache;
+
+	@Before
+	public void makeCache() throws IOException {
+		directory = Files.createTempDirectory("test-result-cache");
+		cache = new ResultCache(directory, 10);
+	}
+
+	@After
+	public void deleteCache() throws IOException {
+		cache.clear();
+		Files.deleteIfExists(directory);
+	}
+
+	@Test
+	public void putAndGet() {
+		assertNull(cache.get("key1"));
+		cache.put("key1", new byte[] { 1, 2, 3 });
+		assertArrayEquals(new byte[] { 1, 2, 3 }, cache.get("key1"));
+		cache.put("key1", new byte[] { 4 });
+		assertArrayEquals(new byte[] { 4 }, cache.get("key1"));
+		assertEquals(1, cache.getEntryCount());
+		assertEquals(1, cache.getTotalBytes());
+		cache.remove("key1");
+		assertNull(cache.get("key1"));
+	}
+
+	@Test
+	public void leastRecentlyUsedEvicted() {
+		cache.put("key1", new byte[4]);
+		cache.put("key2", new byte[4]);
+		cache.get("key1");
+		cache.put("key3", new byte[4]);
+		assertEquals(2, cache.getEntryCount());
+		assertNull(cache.get("key2"));
+		assertEquals(4, cache.get("key1").length);
+		assertEquals(4, cache.get("key3").length);
+		assertEquals(8, cache.getTotalBytes());
+	}
+
+	@Test
+	public void entryLargerThanCacheNotStored() {
+		cache.put("key1", new byte[11]);
+		assertNull(cache.get("key1"));
+		assertEquals(0, cache.getEntryCount());
+	}
+
+	@Test
+	public void entriesFoundWhenReopened() {
+		cache.put("key1", new byte[] { 1 });
+		cache.put("key2", new byte[] { 2, 2 });
+		cache = new ResultCache(directory, 10);
+		assertEquals(2, cache.getEntryCount());
+		assertEquals(3, cache.getTotalBytes());
+		assertArrayEquals(new byte[] { 2, 2 }, cache.get("key2"));
+	}
+
+	@Test
+	public void directoryCreatedPrivate() throws IOException {
+		Path created = directory.resolve("created");
+		ResultCache createdCache = new ResultCache(created, 10);
+		createdCache.put("key1", new byte[] { 1 });
+		assertArrayEquals(new byte[] { 1 }, createdCache.get("key1"));
+		if (Files.getFileStore(created).supportsFileAttributeView(
+				PosixFileAttributeView.class))
+			assertEquals(PosixFilePermissions.fromString("rwx------"),
+					Files.getPosixFilePermissions(created));
+		createdCache.clear();
+		Files.delete(created);
+	}
+
+	@Test
+	public void sharedDirectoryNotUsed() throws IOException {
+		if (!Files.getFileStore(directory).supportsFileAttributeView(
+				PosixFileAttributeView.class))
+			return;
+		cache.put("key1", new byte[] { 1 });
+		Files.setPosixFilePermissions(directory,
+				PosixFilePermissions.fromString("rwxrwxrwx"));
+		ResultCache shared = new ResultCache(directory, 10);
+		assertEquals(0, shared.getEntryCount());
+		assertNull(shared.get("key1"));
+		shared.put("key2", new byte[] { 2 });
+		assertNull(shared.get("key2"));
+	}
+}
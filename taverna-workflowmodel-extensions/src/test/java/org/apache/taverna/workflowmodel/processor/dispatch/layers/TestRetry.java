@@ -19,12 +19,16 @@
 
 package org.apache.taverna.workflowmodel.processor.dispatch.layers;
 
+import org.apache.taverna.invocation.InvocationContext;
 import org.junit.Test;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.OWNER;
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.error;
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.job;
 import static org.junit.Assert.*;
 
 public class TestRetry {
@@ -126,4 +130,72 @@ public class TestRetry {
     // TODO: Testing the Retry layer without making a big dispatch stack and job context
     
     
+
+    private InvocationContext context = new DummyInvocationContext();
+
+    @Test
+    public void retriesUntilExhausted() throws Exception {
+        Retry retry = new Retry(2, 10, 50, 1.0);
+        RecordingLayer below = new RecordingLayer();
+        DummyDispatchStack stack = new DummyDispatchStack(retry, below);
+        RecordingLayer top = stack.getTop();
+
+        retry.receiveJob(job(0, context));
+        assertEquals(1, below.jobs.size());
+        retry.receiveError(error(0, context, null));
+        assertTrue(below.awaitEvents(2, 5000));
+        retry.receiveError(error(0, context, null));
+        assertTrue(below.awaitEvents(3, 5000));
+        retry.receiveError(error(0, context, null));
+        assertTrue(top.awaitEvents(1, 5000));
+        assertEquals(1, top.errors.size());
+
+        assertEquals(2, retry.getScheduledCount());
+        assertEquals(2, retry.getFiredCount());
+        assertEquals(1, retry.getExhaustedCount());
+
+        retry.injectPropertiesFor(OWNER);
+        assertEquals(2L, stack.getProperty("dispatch", "retry", "fired")
+                .getValue());
+        assertEquals(1L, stack.getProperty("dispatch", "retry", "exhausted")
+                .getValue());
+    }
+
+    @Test
+    public void runRetryBudget() throws Exception {
+        Retry retry = new Retry(5, 10, 50, 1.0);
+        ObjectNode conf = (ObjectNode) retry.getConfiguration();
+        conf.put("runRetryBudget", 1);
+        retry.configure(conf);
+        RecordingLayer below = new RecordingLayer();
+        RecordingLayer top = new DummyDispatchStack(retry, below).getTop();
+
+        retry.receiveJob(job(0, context));
+        retry.receiveJob(job(1, context));
+        retry.receiveError(error(0, context, null));
+        assertTrue(below.awaitEvents(3, 5000));
+        retry.receiveError(error(1, context, null));
+        assertTrue(top.awaitEvents(1, 5000));
+        assertArrayEquals(new int[] { 1 }, top.errors.get(0).getIndex());
+        assertEquals(1, retry.getScheduledCount());
+        assertEquals(1, retry.getExhaustedCount());
+    }
+
+    @Test
+    public void jitteredRetry() throws Exception {
+        Retry retry = new Retry(3, 10, 40, 1.0);
+        ObjectNode conf = (ObjectNode) retry.getConfiguration();
+        conf.put("jitter", true);
+        retry.configure(conf);
+        assertTrue(retry.getConfiguration().get("jitter").booleanValue());
+        RecordingLayer below = new RecordingLayer();
+        new DummyDispatchStack(retry, below);
+
+        retry.receiveJob(job(0, context));
+        for (int i = 1; i <= 3; i++) {
+            retry.receiveError(error(0, context, null));
+            assertTrue(below.awaitEvents(i + 1, 5000));
+        }
+        assertEquals(3, retry.getFiredCount());
+    }
 }
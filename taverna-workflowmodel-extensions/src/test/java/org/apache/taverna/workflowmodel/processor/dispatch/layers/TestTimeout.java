@@ -0,0 +1,148 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.layers;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.OWNER;
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.job;
+import static org.apache.taverna.workflowmodel.processor.dispatch.layers.DummyDispatchStack.result;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.workflowmodel.processor.activity.AbstractAsynchronousActivity;
+import org.apache.taverna.workflowmodel.processor.activity.AsynchronousActivityCallback;
+import org.apache.taverna.workflowmodel.processor.activity.CancellableActivityCallback;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+public class TestTimeout {
+	private InvocationContext context = new DummyInvocationContext();
+	private HangingActivity activity = new HangingActivity();
+
+	@Test
+	public void expiredJobFails() throws Exception {
+		Timeout timeout = new Timeout(50, false);
+		RecordingLayer below = new RecordingLayer();
+		RecordingLayer top = new DummyDispatchStack(timeout, below).getTop();
+		timeout.receiveJob(job(0, context, activity));
+		assertEquals(1, below.jobs.size());
+		assertTrue(top.awaitEvents(1, 5000));
+		assertEquals(1, top.errors.size());
+		assertTrue(top.errors.get(0).getCause() instanceof TimeoutException);
+		assertEquals(1, timeout.getTimedOutCount());
+
+		// Late result of the timed out invocation
+		timeout.receiveResult(result(0, context));
+		assertEquals(0, top.results.size());
+	}
+
+	@Test
+	public void resultInTime() throws Exception {
+		Timeout timeout = new Timeout(100, false);
+		RecordingLayer below = new RecordingLayer();
+		RecordingLayer top = new DummyDispatchStack(timeout, below).getTop();
+		timeout.receiveJob(job(0, context, activity));
+		timeout.receiveResult(result(0, context));
+		assertEquals(1, top.results.size());
+		assertFalse(top.awaitEvents(2, 300));
+		assertEquals(0, timeout.getTimedOutCount());
+	}
+
+	@Test
+	public void retriedJobTimedSeparately() throws Exception {
+		Timeout timeout = new Timeout(50, false);
+		RecordingLayer below = new RecordingLayer();
+		RecordingLayer top = new DummyDispatchStack(timeout, below).getTop();
+		timeout.receiveJob(job(0, context, activity));
+		assertTrue(top.awaitEvents(1, 5000));
+		timeout.receiveJob(job(0, context, activity));
+		// The late result is taken as the one of the job sent again
+		timeout.receiveResult(result(0, context));
+		assertEquals(1, top.results.size());
+	}
+
+	@Test
+	public void invocationCancelled() throws Exception {
+		Timeout timeout = new Timeout(50, true);
+		Invoke invoke = new Invoke();
+		RecordingLayer top = new DummyDispatchStack(timeout, invoke).getTop();
+		timeout.receiveJob(job(0, context, activity));
+		assertTrue(activity.interrupted.await(5, SECONDS));
+		assertTrue(activity.listenerCalled.await(5, SECONDS));
+		assertTrue(top.awaitEvents(1, 5000));
+		assertEquals(1, top.errors.size());
+		// Nothing more from the cancelled invocation
+		assertFalse(top.awaitEvents(2, 300));
+		assertEquals(0, top.results.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidTimeout() {
+		new Timeout(0, true);
+	}
+
+	private static class HangingActivity extends
+			AbstractAsynchronousActivity<JsonNode> {
+		final CountDownLatch interrupted = new CountDownLatch(1);
+		final CountDownLatch listenerCalled = new CountDownLatch(1);
+
+		@Override
+		public void configure(JsonNode conf) {
+		}
+
+		@Override
+		public JsonNode getConfiguration() {
+			return null;
+		}
+
+		@Override
+		public void executeAsynch(Map<String, T2Reference> data,
+				final AsynchronousActivityCallback callback) {
+			((CancellableActivityCallback) callback)
+					.addCancellationListener(new Runnable() {
+						@Override
+						public void run() {
+							listenerCalled.countDown();
+						}
+					});
+			callback.requestRun(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(10000);
+					} catch (InterruptedException e) {
+						interrupted.countDown();
+					}
+					callback.receiveResult(new HashMap<String, T2Reference>(),
+							new int[0]);
+				}
+			});
+		}
+	}
+}
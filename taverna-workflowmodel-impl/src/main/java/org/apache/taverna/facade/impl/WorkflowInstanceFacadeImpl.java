@@ -23,12 +23,16 @@ import static java.lang.System.currentTimeMillis;
 import static java.util.Collections.synchronizedList;
 import static java.util.UUID.randomUUID;
 
+import java.lang.Thread.UncaughtExceptionHandler;
 import java.lang.ref.WeakReference;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.UUID;
 import java.util.WeakHashMap;
 import java.util.concurrent.atomic.AtomicLong;
@@ -38,6 +42,8 @@ import org.apache.taverna.facade.ResultListener;
 import org.apache.taverna.facade.WorkflowInstanceFacade;
 import org.apache.taverna.facade.WorkflowRunCancellation;
 import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.InvocationExecutor;
+import org.apache.taverna.invocation.RunScope;
 import org.apache.taverna.invocation.TokenOrderException;
 import org.apache.taverna.invocation.WorkflowDataToken;
 import org.apache.taverna.lang.observer.Observable;
@@ -58,6 +64,7 @@ import org.apache.taverna.workflowmodel.DataflowOutputPort;
 import org.apache.taverna.workflowmodel.DataflowValidationReport;
 import org.apache.taverna.workflowmodel.EditException;
 import org.apache.taverna.workflowmodel.Edits;
+import org.apache.taverna.workflowmodel.FlowControlledInputPort;
 import org.apache.taverna.workflowmodel.InvalidDataflowException;
 import org.apache.taverna.workflowmodel.Processor;
 import org.apache.taverna.workflowmodel.ProcessorFinishedEvent;
@@ -110,6 +117,7 @@ public class WorkflowInstanceFacadeImpl implements WorkflowInstanceFacade {
 	private Timestamp workflowStarted;
 	private WorkflowProvenanceItem workflowItem = null;
 	private int portsToComplete;
+	private final Map<ProcessorImpl, ProcessorFinishedObserver> processorObservers = new HashMap<>();
 	
 	private enum WorkflowInstanceFacadeChange {
 		CANCELLATION, PORT_DECREMENT, PROCESSOR_DECREMENT
@@ -148,7 +156,10 @@ public class WorkflowInstanceFacadeImpl implements WorkflowInstanceFacade {
 			 * IDs against the corresponding WorkflowInstanceFacadeS/ - to be
 			 * used by DependencyActivity's such as API consumer and Beanshell
 			 */
-			workflowRunFacades.put(localName, new WeakReference<WorkflowInstanceFacade>(this));
+			synchronized (workflowRunFacades) {
+				workflowRunFacades.put(localName,
+						new WeakReference<WorkflowInstanceFacade>(this));
+			}
 			/*
 			 * Note that we do not put the IDs for nested workflows, just for
 			 * the main ones!
@@ -184,6 +195,7 @@ public class WorkflowInstanceFacadeImpl implements WorkflowInstanceFacade {
 			ProcessorFinishedObserver observer = new ProcessorFinishedObserver(
 					workflowItem, expectedProcessId);
 			((ProcessorImpl) processor).addObserver(observer);
+			processorObservers.put((ProcessorImpl) processor, observer);
 		}
 	}
 
@@ -336,6 +348,43 @@ public class WorkflowInstanceFacadeImpl implements WorkflowInstanceFacade {
 		}
 	}
 
+	/**
+	 * Room is left while the input port of the dataflow has room for the
+	 * events of this run.
+	 */
+	@Override
+	public boolean hasRoom(String portName) {
+		DataflowInputPort port = inputPort(portName);
+		return !(port instanceof FlowControlledInputPort)
+				|| ((FlowControlledInputPort) port)
+						.hasRoomFor(instanceOwningProcessId);
+	}
+
+	@Override
+	public void resumeWhenRoom(final String portName, Runnable resume) {
+		DataflowInputPort port = inputPort(portName);
+		if (port instanceof FlowControlledInputPort) {
+			((FlowControlledInputPort) port).resumeWhenRoomFor(
+					instanceOwningProcessId, resume);
+			return;
+		}
+		InvocationExecutor.getInstance().execute(resume, null,
+				new UncaughtExceptionHandler() {
+					@Override
+					public void uncaughtException(Thread t, Throwable e) {
+						logger.error("Could not resume a client of "
+								+ portName, e);
+					}
+				});
+	}
+
+	private DataflowInputPort inputPort(String portName) {
+		for (DataflowInputPort port : dataflow.getInputPorts())
+			if (portName.equals(port.getName()))
+				return port;
+		throw new IllegalArgumentException("No input port " + portName);
+	}
+
 	@Override
 	public void removeFacadeListener(FacadeListener listener) {
 		facadeListeners.remove(listener);
@@ -490,6 +539,23 @@ public class WorkflowInstanceFacadeImpl implements WorkflowInstanceFacade {
 			provItem.setState(getState());
 			context.getProvenanceReporter().addProvenanceItem(provItem);
 		}
+
+		/*
+		 * Stop listening to the dataflow, which may be shared with other runs,
+		 * as processors of a cancelled run might never finish
+		 */
+		for (DataflowOutputPort port : dataflow.getOutputPorts())
+			port.removeResultListener(facadeResultListener);
+		for (Entry<ProcessorImpl, ProcessorFinishedObserver> observer : processorObservers
+				.entrySet())
+			observer.getKey().removeObserver(observer.getValue());
+
+		/*
+		 * Drop the state kept for the run by the processors and their layers,
+		 * nested workflow runs share the scope of the top level run.
+		 */
+		if (instanceOwningProcessId.equals(localName))
+			RunScope.release(localName);
 	}
 
 	@Override
@@ -23,11 +23,16 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 
 import org.apache.taverna.invocation.Completion;
 import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.IterationIndex;
 import org.apache.taverna.invocation.IterationInternalEvent;
-import org.apache.taverna.invocation.TreeCache;
+import org.apache.taverna.invocation.ProcessIdentifier;
+import org.apache.taverna.invocation.RunScopedMap;
+import org.apache.taverna.reference.IdentifiedList;
+import org.apache.taverna.reference.ListService;
 import org.apache.taverna.reference.T2Reference;
 import org.apache.taverna.workflowmodel.processor.activity.Job;
 
@@ -37,6 +42,14 @@ import org.apache.taverna.workflowmodel.processor.activity.Job;
  * of the jobs at immediate child locations in the index structure. These list
  * identifiers are sent in place of the Completion events.
  * <p>
+ * The data of each job is put in its place in the collection being built as
+ * soon as the job arrives, the job itself is not kept. When a completion
+ * seals a collection the lists which have not been registered yet below it
+ * are registered bottom up, up to {@value #REGISTRATION_BATCH_SIZE} at a time
+ * through {@link ListService#registerLists(List, org.apache.taverna.reference.ReferenceContext)
+ * ListService.registerLists()}, and the nodes holding their items are
+ * released.
+ * <p>
  * State for a given process ID is purged when a final completion event is
  * received so there is no need for an explicit cache purge operation in the
  * public API (although for termination of partially complete workflows it may
@@ -47,7 +60,10 @@ import org.apache.taverna.workflowmodel.processor.activity.Job;
  * @author David Withers
  */
 public abstract class AbstractCrystalizer implements Crystalizer {
-	private Map<String, CompletionAwareTreeCache> cacheMap = new HashMap<>();
+	/** Maximum number of lists registered by one call to the list service */
+	public static final int REGISTRATION_BATCH_SIZE = 1000;
+
+	private RunScopedMap<CollectionBuilder> builders = new RunScopedMap<>();
 
 	public abstract Job getEmptyJob(String owningProcess, int[] index,
 			InvocationContext context);
@@ -65,129 +81,259 @@ public abstract class AbstractCrystalizer implements Crystalizer {
 	 * @param e The event (a {@link Job} or a {@link Completion})
 	 */
 	@Override
-	public void receiveEvent(IterationInternalEvent<?> e) {
+	public void receiveEvent(
+			IterationInternalEvent<? extends IterationInternalEvent<?>> e) {
 		String owningProcess = e.getOwningProcess();
-		CompletionAwareTreeCache cache = null;
-		synchronized (cacheMap) {
-			if (!cacheMap.containsKey(owningProcess)) {
-				cache = new CompletionAwareTreeCache(owningProcess, e
-						.getContext());
-				cacheMap.put(owningProcess, cache);
-			} else
-				cache = cacheMap.get(owningProcess);
+		CollectionBuilder builder = null;
+		synchronized (builders) {
+			builder = builders.get(owningProcess);
+			if (builder == null) {
+				builder = new CollectionBuilder(owningProcess, e.getContext());
+				builders.put(owningProcess, builder);
+			}
 		}
 		if (e instanceof Job) {
-			// Pass through Job after storing it in the cache
+			// Pass through Job after storing its data in the collection
 			Job j = (Job) e;
-			synchronized (cache) {
-				cache.insertJob(new Job("", j.getIndex(), j.getData(), j
-						.getContext()));
+			synchronized (builder) {
+				builder.put(j.getIndex(), j.getData());
 				jobCreated(j);
-				if (j.getIndex().length == 0)
-					cacheMap.remove(j.getOwningProcess());
 			}
-		} else if (e instanceof Completion) {
-			Completion c = (Completion) e;
-			synchronized (cache) {
-				cache.resolveAt(owningProcess, c.getIndex());
-				if (c.getIndex().length == 0)
-					cacheMap.remove(c.getOwningProcess());
+		} else if (e instanceof Completion)
+			synchronized (builder) {
+				builder.resolveAt(e.getIndex());
+			}
+		if (e.getIterationIndex().length() == 0)
+			synchronized (builders) {
+				builders.remove(owningProcess);
 			}
-		}
 	}
 
-	protected class CompletionAwareTreeCache extends TreeCache {
+	/**
+	 * The collection being built for one owning process. Each position in a
+	 * list holds either the data of the job at that position, or the
+	 * {@link Node} of the sub-list at that position until it is sealed.
+	 */
+	protected class CollectionBuilder {
 		private String owningProcess;
+		private ProcessIdentifier owner;
 		private InvocationContext context;
+		/** The root position, with index [] */
+		private Object root;
 
-		public CompletionAwareTreeCache(String owningProcess,
+		public CollectionBuilder(String owningProcess,
 				InvocationContext context) {
-			super();
 			this.context = context;
 			this.owningProcess = owningProcess;
+			this.owner = ProcessIdentifier.valueOf(owningProcess);
 		}
 
-		public void resolveAt(String owningProcess, int[] completionIndex) {
-			NamedNode n = nodeAt(completionIndex);
-			if (n != null) {
-				assignNamesTo(n, completionIndex);
+		/**
+		 * Store the data of a job at the position given by its index
+		 */
+		public void put(int[] index, Map<String, T2Reference> data) {
+			if (index.length == 0) {
+				root = data;
 				return;
 			}
-
-			/*
-			 * We know what the list depth should be, so we can construct
-			 * appropriate depth empty lists to fill in the gaps.
-			 */
-
-			Job j = getEmptyJob(owningProcess, completionIndex, context);
-			insertJob(j);
-			jobCreated(j);
+			if (!(root instanceof Node))
+				root = new Node();
+			Node node = (Node) root;
+			for (int i = 0; i < index.length - 1; i++)
+				node = node.childNode(index[i]);
+			node.set(index[index.length - 1], data);
 		}
 
-		private void assignNamesTo(NamedNode n, int[] index) {
-			/* Only act if contents of this node undefined */
-			if (n.contents != null)
-				return;
-
-			Map<String, List<T2Reference>> listItems = new HashMap<>();
-			int pos = 0;
-			for (NamedNode child : n.children) {
+		/**
+		 * Seal the collection at the position, registering the lists below it
+		 * which haven't been yet, or emit a job of empty lists if nothing was
+		 * received for the position.
+		 */
+		public void resolveAt(int[] completionIndex) {
+			Node parent = null;
+			Object position = root;
+			for (int i = 0; i < completionIndex.length
+					&& position instanceof Node; i++) {
+				parent = (Node) position;
+				position = parent.get(completionIndex[i]);
+			}
+			if (position instanceof Node) {
+				Map<String, T2Reference> data = seal((Node) position,
+						IterationIndex.valueOf(completionIndex));
+				if (parent == null)
+					root = data;
+				else
+					parent.set(completionIndex[completionIndex.length - 1],
+							data);
+			} else if (position == null) {
 				/*
-				 * If child doesn't have a defined name map yet then define it.
+				 * We know what the list depth should be, so we can construct
+				 * appropriate depth empty lists to fill in the gaps.
 				 */
-				Job j;
+				Job j = getEmptyJob(owningProcess, completionIndex, context);
+				put(completionIndex, j.getData());
+				jobCreated(j);
+			}
+			// Otherwise there was a job at this position, nothing to do
+		}
+
+		/**
+		 * Register the lists of the node and of the nodes below it, deepest
+		 * first, emitting a job for each of them. Return the data of the job
+		 * for the node itself.
+		 */
+		private Map<String, T2Reference> seal(Node node, IterationIndex index) {
+			List<List<Pending>> byHeight = new ArrayList<>();
+			Pending top = new Pending(null, -1, node, index);
+			collect(top, byHeight);
+			for (List<Pending> pending : byHeight)
+				for (int from = 0; from < pending.size(); from += REGISTRATION_BATCH_SIZE) {
+					int to = Math.min(pending.size(), from
+							+ REGISTRATION_BATCH_SIZE);
+					register(pending.subList(from, to));
+				}
+			return top.data;
+		}
+
+		/**
+		 * Gather the nodes to register by height above the job data, filling
+		 * the positions nothing was received for with empty lists. Return the
+		 * height of the node.
+		 */
+		private int collect(Pending pending, List<List<Pending>> byHeight) {
+			int height = 0;
+			Node node = pending.node;
+			for (int pos = 0; pos < node.size(); pos++) {
+				Object child = node.get(pos);
 				if (child == null) {
 					/*
 					 * happens if we're completing a partially empty collection
 					 * structure
 					 */
-					int[] newIndex = new int[index.length + 1];
-					for (int i = 0; i < index.length; i++)
-						newIndex[i] = index[i];
-					newIndex[index.length] = pos++;
-					j = getEmptyJob(owningProcess, newIndex, context);
+					Job j = getEmptyJob(owningProcess, pending.index
+							.append(pos).toArray(), context);
+					node.set(pos, j.getData());
 					jobCreated(j);
-				} else if (child.contents == null) {
-					int[] newIndex = new int[index.length + 1];
-					for (int i = 0; i < index.length; i++)
-						newIndex[i] = index[i];
-					newIndex[index.length] = pos++;
-					assignNamesTo(child, newIndex);
-					j = child.contents;
-				} else {
-					pos++;
-					j = child.contents;
-				}
+				} else if (child instanceof Node)
+					// The children share this node's index
+					height = Math.max(height, collect(new Pending(node, pos,
+							(Node) child, pending.index.append(pos)), byHeight));
+			}
+			while (byHeight.size() <= height)
+				byHeight.add(new ArrayList<Pending>());
+			byHeight.get(height).add(pending);
+			return height + 1;
+		}
 
+		/**
+		 * Register the lists of nodes whose children all hold job data, in a
+		 * single call to the list service, and replace the nodes by the data
+		 * of their jobs.
+		 */
+		private void register(List<Pending> batch) {
+			List<List<T2Reference>> lists = new ArrayList<>();
+			List<String> names = new ArrayList<>();
+			int[] listCounts = new int[batch.size()];
+			for (int i = 0; i < batch.size(); i++) {
 				/*
-				 * Now pull the names out of the child job map and push them
-				 * into lists to be registered
+				 * Pull the names out of the child data maps and push them into
+				 * lists to be registered
 				 */
+				Map<String, List<T2Reference>> listItems = batch.get(i).node
+						.listItems();
+				for (Entry<String, List<T2Reference>> entry : listItems
+						.entrySet()) {
+					names.add(entry.getKey());
+					lists.add(entry.getValue());
+				}
+				listCounts[i] = listItems.size();
+			}
+			List<IdentifiedList<T2Reference>> registered = new ArrayList<>();
+			if (!lists.isEmpty())
+				registered = context.getReferenceService().getListService()
+						.registerLists(lists, context);
+			int list = 0;
+			for (int i = 0; i < batch.size(); i++) {
+				Pending pending = batch.get(i);
+				Map<String, T2Reference> newDataMap = new HashMap<>();
+				for (int j = 0; j < listCounts[i]; j++, list++)
+					newDataMap.put(names.get(list), registered.get(list)
+							.getId());
+				pending.data = newDataMap;
+				// Get rid of the node as we've now named it
+				if (pending.parent != null)
+					pending.parent.set(pending.position, newDataMap);
+				jobCreated(new Job(owner, pending.index, newDataMap, context));
+			}
+		}
+	}
+
+	/**
+	 * A list not yet registered, its positions holding the data of the jobs
+	 * received for them or the nodes of their sub-lists
+	 */
+	private static class Node {
+		private final List<Object> children = new ArrayList<>();
+
+		private int size() {
+			return children.size();
+		}
 
-				for (String outputName : j.getData().keySet()) {
-					List<T2Reference> items = listItems.get(outputName);
+		private Object get(int position) {
+			if (position >= children.size())
+				return null;
+			return children.get(position);
+		}
+
+		private void set(int position, Object child) {
+			// Pad with blank positions
+			while (position >= children.size())
+				children.add(null);
+			children.set(position, child);
+		}
+
+		private Node childNode(int position) {
+			Object child = get(position);
+			if (child instanceof Node)
+				return (Node) child;
+			Node node = new Node();
+			set(position, node);
+			return node;
+		}
+
+		@SuppressWarnings("unchecked")
+		private Map<String, List<T2Reference>> listItems() {
+			Map<String, List<T2Reference>> listItems = new HashMap<>();
+			for (Object child : children)
+				for (Entry<String, T2Reference> entry : ((Map<String, T2Reference>) child)
+						.entrySet()) {
+					List<T2Reference> items = listItems.get(entry.getKey());
 					if (items == null) {
-						items = new ArrayList<>();
-						listItems.put(outputName, items);
+						items = new ArrayList<>(children.size());
+						listItems.put(entry.getKey(), items);
 					}
-					items.add(j.getData().get(outputName));
+					items.add(entry.getValue());
 				}
-			}
-			Map<String, T2Reference> newDataMap = new HashMap<>();
-			for (String outputName : listItems.keySet())
-				newDataMap.put(
-						outputName,
-						context.getReferenceService()
-								.getListService()
-								.registerList(listItems.get(outputName),
-										context).getId());
-			Job newJob = new Job(owningProcess, index, newDataMap, context);
-			n.contents = newJob;
-
-			/* Get rid of the children as we've now named this node */
-
-			n.children.clear();
-			jobCreated(n.contents);
+			return listItems;
+		}
+	}
+
+	/**
+	 * A node to register, with its position in its parent
+	 */
+	private static class Pending {
+		private final Node parent;
+		private final int position;
+		private final Node node;
+		private final IterationIndex index;
+		private Map<String, T2Reference> data;
+
+		private Pending(Node parent, int position, Node node,
+				IterationIndex index) {
+			this.parent = parent;
+			this.position = position;
+			this.node = node;
+			this.index = index;
 		}
 	}
 }
@@ -19,26 +19,69 @@
 
 package org.apache.taverna.workflowmodel.impl;
 
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 
 import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.InvocationExecutor;
+import org.apache.taverna.invocation.IterationIndex;
+import org.apache.taverna.invocation.RunScopedMap;
 import org.apache.taverna.invocation.WorkflowDataToken;
 import org.apache.taverna.reference.ContextualizedT2Reference;
 import org.apache.taverna.reference.ReferenceService;
 import org.apache.taverna.reference.T2Reference;
 import org.apache.taverna.workflowmodel.FilteringInputPort;
+import org.apache.taverna.workflowmodel.FlowControlledInputPort;
 import org.apache.taverna.workflowmodel.WorkflowStructureException;
 
+import org.apache.log4j.Logger;
+
 /**
  * Abstract superclass for filtering input ports, extend and implement the
  * pushXXX methods to configure behaviour
+ * <p>
+ * While the consumer of the port has no room for more events (see
+ * {@link #hasRoom(String)}) the events received for an owning process are
+ * held back by the port, and the port tells its producers it has no room
+ * through {@link FlowControlledInputPort}. Producers which check are resumed
+ * once the held back events have been pushed, so the port only holds back
+ * the rest of the list it was shredding and the events already on their way,
+ * such as the results of jobs running upstream. To bound the memory of
+ * producers which don't check, such as clients pushing data into a workflow
+ * without checking
+ * {@link org.apache.taverna.facade.WorkflowInstanceFacade#hasRoom(String)
+ * WorkflowInstanceFacade.hasRoom()}, the number of tokens held back per
+ * owning process is limited, see {@link #HELD_BACK_LIMIT_PROPERTY}.
+ * The held back events and producers of a run are dropped when the run is
+ * cancelled or finishes.
  * 
  * @author Tom Oinn
  */
 public abstract class AbstractFilteringInputPort extends
-		AbstractEventHandlingInputPort implements FilteringInputPort {
+		AbstractEventHandlingInputPort implements FilteringInputPort,
+		FlowControlledInputPort {
+	/**
+	 * System property giving the most tokens held back per owning process,
+	 * 10000 if not set, past which receiving a token fails with an
+	 * {@link IllegalStateException}
+	 */
+	public static final String HELD_BACK_LIMIT_PROPERTY = "taverna.inputport.heldBackLimit";
+	private static final int HELD_BACK_LIMIT = Integer.getInteger(
+			HELD_BACK_LIMIT_PROPERTY, 10000);
+
+	private static Logger logger = Logger
+			.getLogger(AbstractFilteringInputPort.class);
+	private static final UncaughtExceptionHandler resumeFailureHandler = new UncaughtExceptionHandler() {
+		@Override
+		public void uncaughtException(Thread t, Throwable e) {
+			logger.error("Could not resume a producer of an input port", e);
+		}
+	};
+
 	protected AbstractFilteringInputPort(String name, int depth) {
 		super(name, depth);
 		this.filterDepth = depth;
@@ -50,38 +93,29 @@ public abstract class AbstractFilteringInputPort extends
 	}
 
 	private int filterDepth;
+	/**
+	 * The events of each owning process waiting to be pushed, dropped with
+	 * the run of the owning process
+	 */
+	private final RunScopedMap<HeldBack> heldBack = new RunScopedMap<>();
+	private final Object heldBackLock = new Object();
 
 	@Override
 	public void receiveEvent(WorkflowDataToken token) {
 		receiveToken(token);
 	}
 
+	/**
+	 * Shred the token down to the desired depth and push the resulting events,
+	 * followed by a completion event, into the port. The children are visited
+	 * lazily, and while the port has no room for more events (see
+	 * {@link #hasRoom(String)}) the rest of the shredding, and any events
+	 * received for the owning process after it, are held back until the port
+	 * resumes them, rather than holding the thread of the producer.
+	 */
 	public void pushToken(WorkflowDataToken dt, String owningProcess,
 			int desiredDepth) {
-		if (dt.getData().getDepth() == desiredDepth)
-			pushData(getName(), owningProcess, dt.getIndex(), dt.getData(), dt
-					.getContext());
-		else {
-			ReferenceService rs = dt.getContext().getReferenceService();
-			Iterator<ContextualizedT2Reference> children = rs.traverseFrom(dt
-					.getData(), dt.getData().getDepth() - 1);
-
-			while (children.hasNext()) {
-				ContextualizedT2Reference ci = children.next();
-				int[] newIndex = new int[dt.getIndex().length
-						+ ci.getIndex().length];
-				int i = 0;
-				for (int indx : dt.getIndex())
-					newIndex[i++] = indx;
-				for (int indx : ci.getIndex())
-					newIndex[i++] = indx;
-				pushToken(new WorkflowDataToken(owningProcess, newIndex, ci
-						.getReference(), dt.getContext()), owningProcess,
-						desiredDepth);
-			}
-			pushCompletion(getName(), owningProcess, dt.getIndex(), dt
-					.getContext());
-		}
+		push(new Shredding(dt, owningProcess, desiredDepth));
 	}
 
 	public void receiveToken(WorkflowDataToken token) {
@@ -97,8 +131,7 @@ public abstract class AbstractFilteringInputPort extends
 				 * Pass event straight through, the filter depth is the same as
 				 * the desired input port depth
 				 */
-				pushData(getName(), newOwner, token.getIndex(),
-						token.getData(), token.getContext());
+				push(new Shredding(token, newOwner, tokenDepth));
 			else {
 				pushToken(token, newOwner, getDepth());
 				/*
@@ -109,8 +142,7 @@ public abstract class AbstractFilteringInputPort extends
 			}
 		} else if (tokenDepth > filterDepth) {
 			// Convert to a completion event and push into the iteration strategy
-			pushCompletion(getName(), newOwner, token.getIndex(), token
-					.getContext());
+			push(new Shredding(newOwner, token.getIndex(), token.getContext()));
 		} else if (tokenDepth < filterDepth) {
 			/*
 			 * Normally we can ignore these, but there is a special case where
@@ -131,10 +163,142 @@ public abstract class AbstractFilteringInputPort extends
 							.registerList(newList, token.getContext()).getId();
 					currentDepth++;
 				}
-				pushData(getName(), newOwner, new int[0], ref,
-						token.getContext());
+				push(new Shredding(new WorkflowDataToken(
+						token.getOwningProcessIdentifier(),
+						token.getIterationIndex(), ref, token.getContext()),
+						newOwner, filterDepth));
+			}
+		}
+	}
+
+	/**
+	 * Push the events of the shredding, unless events held back for the
+	 * owning process are waiting to be pushed, in which case the shredding is
+	 * pushed after them.
+	 */
+	private void push(Shredding shredding) {
+		String owningProcess = shredding.owningProcess;
+		HeldBack waiting;
+		synchronized (heldBackLock) {
+			waiting = heldBack.get(owningProcess);
+			if (waiting != null) {
+				if (waiting.shreddings.size() >= HELD_BACK_LIMIT)
+					throw new IllegalStateException("Port " + getName()
+							+ " has held back " + HELD_BACK_LIMIT
+							+ " tokens of " + owningProcess
+							+ ", the producer is not checking for room");
+				waiting.shreddings.add(shredding);
+				return;
+			}
+			waiting = new HeldBack();
+			waiting.shreddings.add(shredding);
+			heldBack.put(owningProcess, waiting);
+		}
+		pushWaiting(owningProcess, waiting);
+	}
+
+	/**
+	 * Push the waiting shreddings of the owning process in turn, until there
+	 * are none left or the port has no room for more events. Only one thread
+	 * at a time pushes the shreddings of an owning process, the one which
+	 * queued the first of them or the one resuming them. Once none are left
+	 * the producers waiting for room are resumed. Nothing is pushed if the
+	 * shreddings have been dropped with their run.
+	 */
+	private void pushWaiting(final String owningProcess, final HeldBack waiting) {
+		while (true) {
+			Shredding shredding;
+			synchronized (heldBackLock) {
+				if (heldBack.get(owningProcess) != waiting)
+					return;
+				shredding = waiting.shreddings.peek();
+				if (shredding == null) {
+					heldBack.remove(owningProcess, waiting);
+					break;
+				}
+				waiting.held = false;
+			}
+			if (!shredding.push()) {
+				waiting.held = true;
+				resumeWhenRoom(owningProcess, new Runnable() {
+					@Override
+					public void run() {
+						pushWaiting(owningProcess, waiting);
+					}
+				});
+				return;
+			}
+			synchronized (heldBackLock) {
+				waiting.shreddings.poll();
+			}
+		}
+		for (Runnable producer : waiting.producers)
+			resume(producer);
+	}
+
+	/**
+	 * No room is left while events of the owning process are held back, or
+	 * the consumer of the port has no room.
+	 */
+	@Override
+	public boolean hasRoomFor(String owningProcess) {
+		String newOwner = transformOwningProcess(owningProcess);
+		HeldBack waiting = heldBack.get(newOwner);
+		if (waiting != null && waiting.held)
+			return false;
+		return hasRoom(newOwner);
+	}
+
+	@Override
+	public void resumeWhenRoomFor(String owningProcess, Runnable resume) {
+		String newOwner = transformOwningProcess(owningProcess);
+		synchronized (heldBackLock) {
+			HeldBack waiting = heldBack.get(newOwner);
+			if (waiting != null && waiting.held) {
+				waiting.producers.add(resume);
+				return;
 			}
 		}
+		if (hasRoom(newOwner))
+			resume(resume);
+		else
+			resumeWhenRoom(newOwner, resume);
+	}
+
+	/**
+	 * Hand the producer to the executor, so that it neither runs on nor
+	 * recurses through the thread which made room
+	 */
+	static void resume(Runnable resume) {
+		try {
+			InvocationExecutor.getInstance().execute(resume, null,
+					resumeFailureHandler);
+		} catch (RuntimeException e) {
+			logger.error("Could not resume a producer of an input port", e);
+		}
+	}
+
+	/**
+	 * Return true if the consumer of the port has room for more data events
+	 * of the owning process, by default always. Override to hold back the
+	 * shredding of lists while the consumer catches up.
+	 * 
+	 * @param owningProcess
+	 *            the owning process of the events, as transformed by
+	 *            {@link #transformOwningProcess(String)}
+	 */
+	protected boolean hasRoom(String owningProcess) {
+		return true;
+	}
+
+	/**
+	 * Run <code>resume</code>, which must not be run by the calling thread,
+	 * once the consumer of the port has room again for data events of the
+	 * owning process. Must be overridden along with {@link #hasRoom(String)}.
+	 */
+	protected void resumeWhenRoom(String owningProcess, Runnable resume) {
+		throw new IllegalStateException("Port " + getName()
+				+ " has no room but can't resume");
 	}
 
 	public void setFilterDepth(int filterDepth) {
@@ -164,6 +328,106 @@ public abstract class AbstractFilteringInputPort extends
 	protected abstract void pushData(String portName, String owningProcess,
 			int[] index, T2Reference data, InvocationContext context);
 
+	/**
+	 * The shreddings of an owning process waiting to be pushed, in the order
+	 * they were received, the first of them being pushed or held back, and the
+	 * producers to resume once they have all been pushed.
+	 */
+	private static final class HeldBack {
+		private final Deque<Shredding> shreddings = new ArrayDeque<>();
+		private final List<Runnable> producers = new ArrayList<>();
+		/** Whether the first shredding is held back for lack of room */
+		private volatile boolean held = false;
+	}
+
+	/**
+	 * The events of a token received by the port, pushed into the port one at
+	 * a time so that the pushing can be held back and resumed. These are the
+	 * data events of the token shredded down to the desired depth, each list
+	 * followed by a completion event, or only the completion event of a
+	 * token.
+	 */
+	private final class Shredding {
+		private final String owningProcess;
+		private final int desiredDepth;
+		/**
+		 * The lists being shredded, innermost first, with the children left
+		 * to visit.
+		 */
+		private final Deque<WorkflowDataToken> lists = new ArrayDeque<>();
+		private final Deque<Iterator<ContextualizedT2Reference>> children = new ArrayDeque<>();
+		private WorkflowDataToken data;
+		private int[] completionIndex;
+		private InvocationContext completionContext;
+
+		private Shredding(WorkflowDataToken token, String owningProcess,
+				int desiredDepth) {
+			this.owningProcess = owningProcess;
+			this.desiredDepth = desiredDepth;
+			visit(token);
+		}
+
+		private Shredding(String owningProcess, int[] index,
+				InvocationContext context) {
+			this.owningProcess = owningProcess;
+			this.desiredDepth = 0;
+			completionIndex = index;
+			completionContext = context;
+		}
+
+		private void visit(WorkflowDataToken token) {
+			if (token.getData().getDepth() == desiredDepth) {
+				data = token;
+				return;
+			}
+			ReferenceService rs = token.getContext().getReferenceService();
+			lists.push(token);
+			children.push(rs.traverseFrom(token.getData(), token.getData()
+					.getDepth() - 1));
+		}
+
+		/**
+		 * Push the events left, return false if the port ran out of room
+		 * before all were pushed.
+		 */
+		private boolean push() {
+			while (true) {
+				if (data != null) {
+					if (!hasRoom(owningProcess))
+						return false;
+					WorkflowDataToken token = data;
+					data = null;
+					pushData(getName(), owningProcess, token.getIndex(),
+							token.getData(), token.getContext());
+				} else if (!lists.isEmpty()) {
+					WorkflowDataToken list = lists.peek();
+					Iterator<ContextualizedT2Reference> listChildren = children
+							.peek();
+					if (listChildren.hasNext()) {
+						ContextualizedT2Reference ci = listChildren.next();
+						// The list's index is shared by all its children
+						IterationIndex newIndex = list.getIterationIndex()
+								.append(ci.getIndex());
+						visit(new WorkflowDataToken(
+								list.getOwningProcessIdentifier(), newIndex,
+								ci.getReference(), list.getContext()));
+					} else {
+						lists.pop();
+						children.pop();
+						pushCompletion(getName(), owningProcess,
+								list.getIndex(), list.getContext());
+					}
+				} else if (completionIndex != null) {
+					int[] index = completionIndex;
+					completionIndex = null;
+					pushCompletion(getName(), owningProcess, index,
+							completionContext);
+				} else
+					return true;
+			}
+		}
+	}
+
 	/**
 	 * Override this to transform owning process identifiers as they pass
 	 * through the filter, by default this is the identity transformation
@@ -27,6 +27,8 @@ import org.apache.taverna.invocation.WorkflowDataToken;
 import org.apache.taverna.workflowmodel.AbstractOutputPort;
 import org.apache.taverna.workflowmodel.Datalink;
 import org.apache.taverna.workflowmodel.EventForwardingOutputPort;
+import org.apache.taverna.workflowmodel.EventHandlingInputPort;
+import org.apache.taverna.workflowmodel.FlowControlledInputPort;
 
 /**
  * Extension of AbstractOutputPort implementing EventForwardingOutputPort
@@ -60,7 +62,9 @@ public class BasicEventForwardingOutputPort extends AbstractOutputPort
 	}
 
 	/**
-	 * Forward the specified event to all targets
+	 * Forward the specified event to all targets. The targets are called on
+	 * the current thread and always take the event, senders which can hold
+	 * their events back check {@link #hasRoomFor(String)} first.
 	 * 
 	 * @param e
 	 */
@@ -69,6 +73,41 @@ public class BasicEventForwardingOutputPort extends AbstractOutputPort
 			link.getSink().receiveEvent(e);
 	}
 
+	/**
+	 * Return true if all the targets have room for more events of the owning
+	 * process, see {@link FlowControlledInputPort}.
+	 */
+	public boolean hasRoomFor(String owningProcess) {
+		for (Datalink link : outgoingLinks) {
+			EventHandlingInputPort sink = link.getSink();
+			if (sink instanceof FlowControlledInputPort
+					&& !((FlowControlledInputPort) sink)
+							.hasRoomFor(owningProcess))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Run <code>resume</code> once a target without room for events of the
+	 * owning process has room again, or straight away if all have room. The
+	 * sender is expected to check {@link #hasRoomFor(String)} again when
+	 * resumed, as another target may have run out of room meanwhile.
+	 */
+	public void resumeWhenRoomFor(String owningProcess, Runnable resume) {
+		for (Datalink link : outgoingLinks) {
+			EventHandlingInputPort sink = link.getSink();
+			if (sink instanceof FlowControlledInputPort
+					&& !((FlowControlledInputPort) sink)
+							.hasRoomFor(owningProcess)) {
+				((FlowControlledInputPort) sink).resumeWhenRoomFor(
+						owningProcess, resume);
+				return;
+			}
+		}
+		AbstractFilteringInputPort.resume(resume);
+	}
+
 	protected void addOutgoingLink(DatalinkImpl link) {
 		if (outgoingLinks.contains(link) == false)
 			outgoingLinks.add(link);
@@ -24,14 +24,13 @@ import static org.apache.taverna.workflowmodel.utils.Tools.addDataflowIdentifica
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.UUID;
 
 import org.apache.taverna.annotation.AbstractAnnotatedThing;
 import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.RunScopedMap;
 import org.apache.taverna.monitor.MonitorManager;
 import org.apache.taverna.workflowmodel.Dataflow;
 import org.apache.taverna.workflowmodel.DataflowInputPort;
@@ -661,9 +660,10 @@ public class DataflowImpl extends AbstractAnnotatedThing<Dataflow> implements
 
 	/**
 	 * The active process identifiers correspond to current strands of data
-	 * running through this dataflow.
+	 * running through this dataflow, held by the scope of their run so that
+	 * they are forgotten once the run has finished.
 	 */
-	private Set<String> activeProcessIdentifiers = new HashSet<>();
+	private RunScopedMap<Boolean> activeProcessIdentifiers = new RunScopedMap<>();
 	private volatile boolean immutable;
 
 	/**
@@ -682,7 +682,7 @@ public class DataflowImpl extends AbstractAnnotatedThing<Dataflow> implements
 	protected boolean tokenReceived(String owningProcess,
 			InvocationContext context) {
 		synchronized (activeProcessIdentifiers) {
-			if (activeProcessIdentifiers.contains(owningProcess))
+			if (activeProcessIdentifiers.containsKey(owningProcess))
 				return true;
 			MonitorManager.getInstance().registerNode(this, owningProcess);
 
@@ -697,7 +697,7 @@ public class DataflowImpl extends AbstractAnnotatedThing<Dataflow> implements
 				if (p.getInputPorts().isEmpty())
 					p.fire(owningProcess, context);
 			}
-			activeProcessIdentifiers.add(owningProcess);
+			activeProcessIdentifiers.put(owningProcess, true);
 			return false;
 		}
 	}
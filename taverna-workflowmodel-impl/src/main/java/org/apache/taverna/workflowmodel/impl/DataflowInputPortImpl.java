@@ -24,9 +24,10 @@ import org.apache.taverna.workflowmodel.Dataflow;
 import org.apache.taverna.workflowmodel.DataflowInputPort;
 import org.apache.taverna.workflowmodel.Datalink;
 import org.apache.taverna.workflowmodel.EventForwardingOutputPort;
+import org.apache.taverna.workflowmodel.FlowControlledInputPort;
 
 public class DataflowInputPortImpl extends AbstractEventHandlingInputPort
-		implements DataflowInputPort {
+		implements DataflowInputPort, FlowControlledInputPort {
 	protected BasicEventForwardingOutputPort internalOutput;
 	private int granularInputDepth;
 	private Dataflow dataflow;
@@ -79,6 +80,22 @@ public class DataflowInputPortImpl extends AbstractEventHandlingInputPort
 			dl.getSink().receiveEvent(transformedToken);
 	}
 
+	/**
+	 * Room is left while the ports inside the dataflow fed by this one have
+	 * room for the events of the dataflow run.
+	 */
+	@Override
+	public boolean hasRoomFor(String owningProcess) {
+		return internalOutput.hasRoomFor(owningProcess + ":"
+				+ dataflow.getLocalName());
+	}
+
+	@Override
+	public void resumeWhenRoomFor(String owningProcess, Runnable resume) {
+		internalOutput.resumeWhenRoomFor(owningProcess + ":"
+				+ dataflow.getLocalName(), resume);
+	}
+
 	@Override
 	public Dataflow getDataflow() {
 		return dataflow;
@@ -75,6 +75,7 @@ import org.apache.taverna.workflowmodel.processor.dispatch.impl.AbstractDispatch
 import org.apache.taverna.workflowmodel.processor.dispatch.impl.DispatchStackImpl;
 import org.apache.taverna.workflowmodel.processor.dispatch.layers.ErrorBounce;
 import org.apache.taverna.workflowmodel.processor.dispatch.layers.Failover;
+import org.apache.taverna.workflowmodel.processor.dispatch.layers.Governor;
 import org.apache.taverna.workflowmodel.processor.dispatch.layers.Invoke;
 import org.apache.taverna.workflowmodel.processor.dispatch.layers.Parallelize;
 import org.apache.taverna.workflowmodel.processor.dispatch.layers.Retry;
@@ -1126,6 +1127,7 @@ public class EditsImpl implements Edits {
 		edits.add(getAddDispatchLayerEdit(stack, new Failover(), layer++));
 		edits.add(getAddDispatchLayerEdit(stack, new Retry(), layer++));
 		edits.add(getAddDispatchLayerEdit(stack, new Stop(), layer++));
+		edits.add(getAddDispatchLayerEdit(stack, new Governor(), layer++));
 		edits.add(getAddDispatchLayerEdit(stack, new Invoke(), layer++));
 
 		final Edit<?> compoundEdit = new CompoundEdit(edits);
@@ -19,7 +19,6 @@
 
 package org.apache.taverna.workflowmodel.impl;
 
-import static java.lang.System.arraycopy;
 import static java.util.Collections.nCopies;
 
 import java.util.ArrayList;
@@ -28,6 +27,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.IterationIndex;
 import org.apache.taverna.invocation.WorkflowDataToken;
 import org.apache.taverna.reference.IdentifiedList;
 import org.apache.taverna.reference.ListService;
@@ -133,13 +133,12 @@ class MergeImpl implements Merge {
 		if (portIndex == -1)
 			throw new WorkflowStructureException(
 					"Received event on unknown port " + portName);
-		int[] currentIndex = token.getIndex();
-		int[] newIndex = new int[currentIndex.length + 1];
-		newIndex[0] = portIndex;
-		arraycopy(currentIndex, 0, newIndex, 1, currentIndex.length);
+		IterationIndex newIndex = IterationIndex.valueOf(portIndex).append(
+				token.getIterationIndex());
 		InvocationContext context = token.getContext();
-		output.sendEvent(new WorkflowDataToken(owningProcess,
-				newIndex, token.getData(), context));
+		output.sendEvent(new WorkflowDataToken(token
+				.getOwningProcessIdentifier(), newIndex, token.getData(),
+				context));
 		if (token.getIndex().length == 0)
 			// Add to completion list
 			synchronized (outputList) {
@@ -20,11 +20,12 @@
 package org.apache.taverna.workflowmodel.impl;
 
 import org.apache.taverna.invocation.WorkflowDataToken;
+import org.apache.taverna.workflowmodel.FlowControlledInputPort;
 import org.apache.taverna.workflowmodel.Merge;
 import org.apache.taverna.workflowmodel.MergeInputPort;
 
 class MergeInputPortImpl extends AbstractEventHandlingInputPort implements
-		MergeInputPort {
+		MergeInputPort, FlowControlledInputPort {
 	private MergeImpl parent;
 
 	protected MergeInputPortImpl(MergeImpl merge, String name, int depth) {
@@ -37,6 +38,21 @@ class MergeInputPortImpl extends AbstractEventHandlingInputPort implements
 		parent.receiveEvent(t, this.name);
 	}
 
+	/**
+	 * Room is left while the ports fed by the merge have room.
+	 */
+	@Override
+	public boolean hasRoomFor(String owningProcess) {
+		return ((BasicEventForwardingOutputPort) parent.getOutputPort())
+				.hasRoomFor(owningProcess);
+	}
+
+	@Override
+	public void resumeWhenRoomFor(String owningProcess, Runnable resume) {
+		((BasicEventForwardingOutputPort) parent.getOutputPort())
+				.resumeWhenRoomFor(owningProcess, resume);
+	}
+
 	@Override
 	public Merge getMerge() {
 		return parent;
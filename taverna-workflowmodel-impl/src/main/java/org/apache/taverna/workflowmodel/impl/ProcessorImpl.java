@@ -108,6 +108,17 @@ public final class ProcessorImpl extends AbstractAnnotatedThing<Processor>
 			protected void receiveEventFromStrategy(IterationInternalEvent<?> e) {
 				dispatchStack.receiveEvent(e);
 			}
+
+			@Override
+			protected boolean hasRoom(String owningProcess) {
+				return dispatchStack.hasQueueRoom(owningProcess);
+			}
+
+			@Override
+			protected void resumeWhenRoom(String owningProcess,
+					Runnable resume) {
+				dispatchStack.resumeWhenQueueHasRoom(owningProcess, resume);
+			}
 		};
 		iterationStack.addStrategy(new IterationStrategyImpl());
 
@@ -132,6 +143,33 @@ public final class ProcessorImpl extends AbstractAnnotatedThing<Processor>
 				crystalizer.receiveEvent(e);
 			}
 
+			/**
+			 * The output has room while every port fed by the output ports of
+			 * the processor has room for the events of the enclosing process.
+			 */
+			@Override
+			protected boolean outputHasRoom(String owningProcess) {
+				String enclosingProcess = owningProcess.substring(0,
+						owningProcess.lastIndexOf(':'));
+				for (ProcessorOutputPortImpl port : outputPorts)
+					if (!port.hasRoomFor(enclosingProcess))
+						return false;
+				return true;
+			}
+
+			@Override
+			protected void resumeWhenOutputHasRoom(String owningProcess,
+					Runnable resume) {
+				String enclosingProcess = owningProcess.substring(0,
+						owningProcess.lastIndexOf(':'));
+				for (ProcessorOutputPortImpl port : outputPorts)
+					if (!port.hasRoomFor(enclosingProcess)) {
+						port.resumeWhenRoomFor(enclosingProcess, resume);
+						return;
+					}
+				super.resumeWhenOutputHasRoom(owningProcess, resume);
+			}
+
 			/**
 			 * Iterate over all the preconditions and return true if and only if
 			 * all are satisfied for the given process identifier.
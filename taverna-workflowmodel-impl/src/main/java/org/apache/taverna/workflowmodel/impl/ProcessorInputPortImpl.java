@@ -64,6 +64,20 @@ class ProcessorInputPortImpl extends AbstractFilteringInputPort implements
 				context);
 	}
 
+	/**
+	 * Room is left while the dispatch queue of the processor is below its high
+	 * watermark.
+	 */
+	@Override
+	protected boolean hasRoom(String owningProcess) {
+		return parent.dispatchStack.hasQueueRoom(owningProcess);
+	}
+
+	@Override
+	protected void resumeWhenRoom(String owningProcess, Runnable resume) {
+		parent.dispatchStack.resumeWhenQueueHasRoom(owningProcess, resume);
+	}
+
 	@Override
 	public Processor getProcessor() {
 		return this.parent;
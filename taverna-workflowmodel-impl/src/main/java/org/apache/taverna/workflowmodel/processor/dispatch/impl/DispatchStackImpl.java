@@ -21,16 +21,28 @@ package org.apache.taverna.workflowmodel.processor.dispatch.impl;
 
 import static java.util.Collections.unmodifiableList;
 
+import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.taverna.annotation.AbstractAnnotatedThing;
 import org.apache.taverna.invocation.Completion;
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.InvocationExecutor;
 import org.apache.taverna.invocation.IterationInternalEvent;
+import org.apache.taverna.invocation.RunScope;
+import org.apache.taverna.invocation.RunScopedMap;
 import org.apache.taverna.workflowmodel.processor.activity.Activity;
 import org.apache.taverna.workflowmodel.processor.activity.Job;
 import org.apache.taverna.workflowmodel.processor.dispatch.AbstractDispatchLayer;
@@ -59,9 +71,45 @@ import org.apache.log4j.Logger;
  */
 public abstract class DispatchStackImpl extends
 		AbstractAnnotatedThing<DispatchStack> implements DispatchStack {
+	/**
+	 * System property giving the default high watermark of the dispatch
+	 * queues, see {@link #setQueueWatermarks(int, int)}
+	 */
+	public static final String HIGH_WATERMARK_PROPERTY = "taverna.dispatch.queue.highWatermark";
+	/**
+	 * System property giving the default low watermark of the dispatch queues,
+	 * half the high watermark if not set
+	 */
+	public static final String LOW_WATERMARK_PROPERTY = "taverna.dispatch.queue.lowWatermark";
+
 	private static Logger logger = Logger.getLogger(DispatchStackImpl.class);
-	private Map<String, BlockingQueue<IterationInternalEvent<? extends IterationInternalEvent<?>>>> queues = new HashMap<>();
-	private List<DispatchLayer<?>> dispatchLayers = new ArrayList<>();
+	private static final UncaughtExceptionHandler resumeFailureHandler = new UncaughtExceptionHandler() {
+		@Override
+		public void uncaughtException(Thread t, Throwable e) {
+			logger.error("Could not resume a producer of a dispatch queue", e);
+		}
+	};
+	private ConcurrentMap<String, ProcessQueue> queues = new ConcurrentHashMap<>();
+	/**
+	 * The queues again, held by the scope of their run so that the queues of
+	 * a cancelled run, which might never be finished with, are dropped along
+	 * with their held back producers when the run is released
+	 */
+	private RunScopedMap<ProcessQueue> runQueues = new RunScopedMap<>();
+	/** The queues with producers held back, to resume on new watermarks */
+	private Set<ProcessQueue> holdingQueues = Collections
+			.newSetFromMap(new ConcurrentHashMap<ProcessQueue, Boolean>());
+	private List<DispatchLayer<?>> dispatchLayers = new CopyOnWriteArrayList<>();
+	private DispatchLayer<Object> topLayer = new TopLayer();
+	/**
+	 * Links between the layers, rebuilt whenever a layer is added or removed
+	 * so that moving events between layers does not search the layer list
+	 */
+	private volatile LayerLinks links = new LayerLinks();
+	private volatile int highWatermark = Integer.getInteger(
+			HIGH_WATERMARK_PROPERTY, 0);
+	private volatile int lowWatermark = Integer.getInteger(
+			LOW_WATERMARK_PROPERTY, highWatermark / 2);
 
 	/**
 	 * Override to return the list of activities to be used by this dispatch
@@ -107,7 +155,31 @@ public abstract class DispatchStackImpl extends
 	 */
 	protected abstract String getProcessName();
 
-	private DispatchLayer<Object> topLayer = new TopLayer();
+	/**
+	 * Return true if whoever receives the events pushed out of the dispatch
+	 * stack for the owning process has room for more, by default always.
+	 * While it has none the jobs of the owning process are held in its queue,
+	 * the layers polling the queue find it empty, so that a processor
+	 * downstream with a full bounded queue holds back the processors feeding
+	 * it.
+	 * 
+	 * @param owningProcess
+	 *            the owning process of the events in the dispatch stack
+	 */
+	protected boolean outputHasRoom(String owningProcess) {
+		return true;
+	}
+
+	/**
+	 * Run <code>resume</code>, which must not be run by the calling thread,
+	 * once whoever receives the events pushed out of the dispatch stack for
+	 * the owning process has room again. Must be overridden along with
+	 * {@link #outputHasRoom(String)}.
+	 */
+	protected void resumeWhenOutputHasRoom(String owningProcess,
+			Runnable resume) {
+		resume(resume);
+	}
 
 	/**
 	 * Receive an event to be fed into the top layer of the dispatch stack for
@@ -120,48 +192,71 @@ public abstract class DispatchStackImpl extends
 	 * colon in will fail with an index array out of bounds error. All owning
 	 * process identifiers must resemble 'enclosingProcess:processorName' at the
 	 * minimum.
+	 * <p>
+	 * This method may be called concurrently by several upstream threads, there
+	 * is no lock shared between owning processes. It never blocks, the event
+	 * is queued even if the queue has no room (see
+	 * {@link #setQueueWatermarks(int, int)}), producers which can hold their
+	 * events back check {@link #hasQueueRoom(String)} first.
 	 * 
 	 * @param event
 	 */
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public void receiveEvent(IterationInternalEvent event) {
-		BlockingQueue<IterationInternalEvent<? extends IterationInternalEvent<?>>> queue = null;
 		String owningProcess = event.getOwningProcess();
-		String enclosingProcess = owningProcess.substring(0, owningProcess
-				.lastIndexOf(':'));
-		synchronized (queues) {
-			queue = queues.get(owningProcess);
-			if (queue == null) {
-				queue = new LinkedBlockingQueue<>();
-				queues.put(owningProcess, queue);
-				queue.add(event);
-
-				/*
-				 * If all preconditions are satisfied push the queue to the
-				 * dispatch layer
-				 */
-				if (conditionsSatisfied(enclosingProcess))
-					firstLayer().receiveJobQueue(
-							new DispatchJobQueueEvent(owningProcess, event
-									.getContext(), queue, getActivities()));
-			} else {
-				queue.add(event);
-
-				/*
-				 * If all preconditions are satisfied then notify the queue
-				 * addition to any NotifiableLayer instances. If the
-				 * preconditions are not satisfied the queue isn't visible to
-				 * the dispatch stack yet so do nothing.
-				 */
-				if (conditionsSatisfied(enclosingProcess))
-					for (DispatchLayer layer : dispatchLayers)
-						if (layer instanceof NotifiableLayer)
-							((NotifiableLayer) layer).eventAdded(owningProcess);
+		ProcessQueue processQueue = queues.get(owningProcess);
+		if (processQueue == null) {
+			ProcessQueue newQueue = new ProcessQueue(owningProcess,
+					event.getContext());
+			processQueue = queues.putIfAbsent(owningProcess, newQueue);
+			if (processQueue == null) {
+				processQueue = newQueue;
+				runQueues.put(owningProcess, newQueue);
 			}
 		}
+		processQueue.add(event);
+
+		if (processQueue.announced)
+			/*
+			 * The queue is already visible to the dispatch stack so notify
+			 * the queue addition to any NotifiableLayer instances.
+			 */
+			notifyEventAdded(owningProcess);
+		else {
+			/*
+			 * If all preconditions are satisfied push the queue to the
+			 * dispatch layer. If not the queue isn't visible to the dispatch
+			 * stack yet so do nothing, satisfyConditions() will push it.
+			 */
+			String enclosingProcess = event.getOwningProcessIdentifier()
+					.getParent().toString();
+			if (conditionsSatisfied(enclosingProcess))
+				announce(owningProcess, processQueue);
+		}
 	}
 
+	/**
+	 * Push the queue for the owning process to the first layer, unless that
+	 * has already been done. Events added by other threads while the queue was
+	 * being pushed are notified afterwards.
+	 */
+	private void announce(String owningProcess, ProcessQueue processQueue) {
+		synchronized (processQueue) {
+			if (processQueue.announced)
+				return;
+			firstLayer().receiveJobQueue(
+					new DispatchJobQueueEvent(owningProcess,
+							processQueue.context, processQueue, getActivities()));
+			processQueue.announced = true;
+		}
+		if (!processQueue.isEmpty())
+			notifyEventAdded(owningProcess);
+	}
 
+	private void notifyEventAdded(String owningProcess) {
+		for (NotifiableLayer layer : links.notifiable)
+			layer.eventAdded(owningProcess);
+	}
 
 	/**
 	 * Called when a set of conditions which were unsatisfied in the context of
@@ -176,28 +271,69 @@ public abstract class DispatchStackImpl extends
 	public void satisfyConditions(String enclosingProcess) {
 		if (conditionsSatisfied(enclosingProcess)) {
 			String owningProcess = enclosingProcess + ":" + getProcessName();
-			synchronized (queues) {
-				if (queues.containsKey(owningProcess)) {
-					/*
-					 * At least one event has been received with this process ID
-					 * and a queue exists for it.
-					 */
-					firstLayer()
-							.receiveJobQueue(
-									new DispatchJobQueueEvent(owningProcess,
-											queues.get(owningProcess).peek()
-													.getContext(), queues
-													.get(owningProcess),
-											getActivities()));
-				} else {
-					/*
-					 * Do nothing, if the conditions are satisfied before any
-					 * jobs are received this mechanism is effectively redundant
-					 * and the normal notification system for the events will
-					 * let everything work through as per usual
-					 */
-				}
-			}
+			ProcessQueue processQueue = queues.get(owningProcess);
+			if (processQueue != null)
+				/*
+				 * At least one event has been received with this process ID
+				 * and a queue exists for it.
+				 */
+				announce(owningProcess, processQueue);
+			/*
+			 * Otherwise do nothing, if the conditions are satisfied before any
+			 * jobs are received this mechanism is effectively redundant and the
+			 * normal notification system for the events will let everything
+			 * work through as per usual
+			 */
+		}
+	}
+
+	@Override
+	public void setQueueWatermarks(int highWatermark, int lowWatermark) {
+		if (highWatermark < 0 || lowWatermark < 0)
+			throw new IllegalArgumentException("Negative queue watermark");
+		if (highWatermark > 0 && lowWatermark >= highWatermark)
+			throw new IllegalArgumentException("Low watermark " + lowWatermark
+					+ " not below high watermark " + highWatermark);
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+		// Resume held back producers which have room with the new watermarks
+		for (ProcessQueue processQueue : holdingQueues)
+			processQueue.taken();
+	}
+
+	@Override
+	public int getQueueHighWatermark() {
+		return highWatermark;
+	}
+
+	@Override
+	public int getQueueLowWatermark() {
+		return lowWatermark;
+	}
+
+	@Override
+	public boolean hasQueueRoom(String owningProcess) {
+		ProcessQueue processQueue = queues.get(owningProcess);
+		return processQueue == null || processQueue.hasRoom();
+	}
+
+	@Override
+	public void resumeWhenQueueHasRoom(String owningProcess, Runnable resume) {
+		ProcessQueue processQueue = queues.get(owningProcess);
+		if (processQueue == null || !processQueue.holdBack(resume))
+			resume(resume);
+	}
+
+	/**
+	 * Hand the producer to the executor, so that it neither runs on nor
+	 * recurses through the thread taking from the queue
+	 */
+	private static void resume(Runnable resume) {
+		try {
+			InvocationExecutor.getInstance().execute(resume, null,
+					resumeFailureHandler);
+		} catch (RuntimeException e) {
+			logger.error("Could not resume a producer of a dispatch queue", e);
 		}
 	}
 
@@ -206,19 +342,22 @@ public abstract class DispatchStackImpl extends
 		return unmodifiableList(this.dispatchLayers);
 	}
 
-	public void addLayer(DispatchLayer<?> newLayer) {
+	public synchronized void addLayer(DispatchLayer<?> newLayer) {
 		dispatchLayers.add(newLayer);
 		newLayer.setDispatchStack(this);
+		links = new LayerLinks();
 	}
 
-	public void addLayer(DispatchLayer<?> newLayer, int index) {
+	public synchronized void addLayer(DispatchLayer<?> newLayer, int index) {
 		dispatchLayers.add(index, newLayer);
 		newLayer.setDispatchStack(this);
+		links = new LayerLinks();
 	}
 
-	public int removeLayer(DispatchLayer<?> layer) {
+	public synchronized int removeLayer(DispatchLayer<?> layer) {
 		int priorIndex = dispatchLayers.indexOf(layer);
 		dispatchLayers.remove(layer);
+		links = new LayerLinks();
 		return priorIndex;
 	}
 
@@ -237,12 +376,7 @@ public abstract class DispatchStackImpl extends
 	 */
 	@Override
 	public DispatchLayer<?> layerAbove(DispatchLayer<?> layer) {
-		int layerIndex = dispatchLayers.indexOf(layer);
-		if (layerIndex > 0)
-			return dispatchLayers.get(layerIndex - 1);
-		if (layerIndex == 0)
-			return topLayer;
-		return null;
+		return links.above.get(layer);
 	}
 
 	/**
@@ -251,10 +385,7 @@ public abstract class DispatchStackImpl extends
 	 */
 	@Override
 	public DispatchLayer<?> layerBelow(DispatchLayer<?> layer) {
-		int layerIndex = dispatchLayers.indexOf(layer) + 1;
-		if (layerIndex >= dispatchLayers.size())
-			return null;
-		return dispatchLayers.get(layerIndex);
+		return links.below.get(layer);
 	}
 	
 	protected DispatchLayer<?> firstLayer() {
@@ -265,9 +396,10 @@ public abstract class DispatchStackImpl extends
 		@Override
 		public void receiveResult(DispatchResultEvent resultEvent) {
 			DispatchStackImpl.this.pushEvent(new Job(resultEvent
-					.getOwningProcess(), resultEvent.getIndex(), resultEvent
-					.getData(), resultEvent.getContext()));
-			if (resultEvent.getIndex().length == 0)
+					.getOwningProcessIdentifier(), resultEvent
+					.getIterationIndex(), resultEvent.getData(), resultEvent
+					.getContext()));
+			if (resultEvent.isFinal())
 				sendCachePurge(resultEvent.getOwningProcess());
 		}
 
@@ -288,8 +420,10 @@ public abstract class DispatchStackImpl extends
 		@Override
 		public void receiveResultCompletion(
 				DispatchCompletionEvent completionEvent) {
-			Completion c = new Completion(completionEvent.getOwningProcess(),
-					completionEvent.getIndex(), completionEvent.getContext());
+			Completion c = new Completion(
+					completionEvent.getOwningProcessIdentifier(),
+					completionEvent.getIterationIndex(),
+					completionEvent.getContext());
 			DispatchStackImpl.this.pushEvent(c);
 			if (c.isFinal())
 				sendCachePurge(c.getOwningProcess());
@@ -299,7 +433,9 @@ public abstract class DispatchStackImpl extends
 			for (DispatchLayer<?> layer : dispatchLayers)
 				layer.finishedWith(owningProcess);
 			DispatchStackImpl.this.finishedWith(owningProcess);
-			queues.remove(owningProcess);
+			ProcessQueue processQueue = queues.remove(owningProcess);
+			if (processQueue != null)
+				runQueues.remove(owningProcess, processQueue);
 		}
 
 		@Override
@@ -313,4 +449,197 @@ public abstract class DispatchStackImpl extends
 			return null;
 		}
 	}
+
+	/**
+	 * The queue of events for an owning process, and whether it has been
+	 * pushed to the first layer yet. Producers held back by a bounded queue
+	 * are resumed as events are taken from the queue.
+	 * <p>
+	 * While the output of the dispatch stack has no room (see
+	 * {@link DispatchStackImpl#outputHasRoom(String)}) a job at the head of
+	 * the queue is held there, {@link #peek()} and {@link #poll()} return
+	 * <code>null</code> as if the queue were empty, and the layers are
+	 * notified of the job once the output has room again. Layers blocking on
+	 * {@link #take()} or {@link #poll(long, TimeUnit)} are not held.
+	 */
+	@SuppressWarnings("serial")
+	private final class ProcessQueue extends
+			LinkedBlockingQueue<IterationInternalEvent<? extends IterationInternalEvent<?>>>
+			implements RunScope.Releasable {
+		private final String owningProcess;
+		private final InvocationContext context;
+		private volatile boolean announced = false;
+		private final List<Runnable> heldBack = new ArrayList<>();
+		private volatile boolean holdingBack = false;
+		private final AtomicBoolean waitingForOutput = new AtomicBoolean();
+
+		private ProcessQueue(String owningProcess, InvocationContext context) {
+			this.owningProcess = owningProcess;
+			this.context = context;
+		}
+
+		/**
+		 * A queue which hasn't been pushed to the first layer always has
+		 * room, as it is not drained until the conditions of the processor are
+		 * satisfied, which may take the producers finishing first.
+		 */
+		private boolean hasRoom() {
+			int high = highWatermark;
+			return high == 0 || !announced || size() < high;
+		}
+
+		/**
+		 * Return true if the job at the head of the queue is held there while
+		 * the output has no room, making sure the layers are notified once it
+		 * has.
+		 */
+		private boolean outputHeld() {
+			if (!(super.peek() instanceof Job) || outputHasRoom(owningProcess))
+				return false;
+			if (waitingForOutput.compareAndSet(false, true))
+				resumeWhenOutputHasRoom(owningProcess, new Runnable() {
+					@Override
+					public void run() {
+						waitingForOutput.set(false);
+						if (queues.get(owningProcess) == ProcessQueue.this)
+							notifyEventAdded(owningProcess);
+					}
+				});
+			return true;
+		}
+
+		/**
+		 * Keep the producer until the queue is down to the low watermark, or
+		 * return false if the queue has room already.
+		 */
+		private boolean holdBack(Runnable resume) {
+			synchronized (heldBack) {
+				if (hasRoom())
+					return false;
+				heldBack.add(resume);
+				holdingBack = true;
+				holdingQueues.add(this);
+			}
+			// The queue may have been taken down before holdingBack was set
+			taken();
+			return true;
+		}
+
+		private void taken() {
+			if (!holdingBack)
+				return;
+			List<Runnable> resumed;
+			synchronized (heldBack) {
+				if (highWatermark > 0 && size() > lowWatermark)
+					return;
+				resumed = new ArrayList<>(heldBack);
+				heldBack.clear();
+				holdingBack = false;
+				holdingQueues.remove(this);
+			}
+			for (Runnable resume : resumed)
+				resume(resume);
+		}
+
+		/**
+		 * Drop the events and held back producers of a run which has been
+		 * released, such as a cancelled run.
+		 */
+		@Override
+		public void release() {
+			queues.remove(owningProcess, this);
+			synchronized (heldBack) {
+				heldBack.clear();
+				holdingBack = false;
+				holdingQueues.remove(this);
+			}
+			super.clear();
+		}
+
+		@Override
+		public IterationInternalEvent<? extends IterationInternalEvent<?>> peek() {
+			if (outputHeld())
+				return null;
+			return super.peek();
+		}
+
+		@Override
+		public IterationInternalEvent<? extends IterationInternalEvent<?>> poll() {
+			if (outputHeld())
+				return null;
+			IterationInternalEvent<? extends IterationInternalEvent<?>> event = super
+					.poll();
+			if (event != null)
+				taken();
+			return event;
+		}
+
+		@Override
+		public IterationInternalEvent<? extends IterationInternalEvent<?>> poll(
+				long timeout, TimeUnit unit) throws InterruptedException {
+			IterationInternalEvent<? extends IterationInternalEvent<?>> event = super
+					.poll(timeout, unit);
+			if (event != null)
+				taken();
+			return event;
+		}
+
+		@Override
+		public IterationInternalEvent<? extends IterationInternalEvent<?>> take()
+				throws InterruptedException {
+			IterationInternalEvent<? extends IterationInternalEvent<?>> event = super
+					.take();
+			taken();
+			return event;
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			boolean removed = super.remove(o);
+			if (removed)
+				taken();
+			return removed;
+		}
+
+		@Override
+		public int drainTo(
+				Collection<? super IterationInternalEvent<? extends IterationInternalEvent<?>>> c,
+				int maxElements) {
+			int drained = super.drainTo(c, maxElements);
+			if (drained > 0)
+				taken();
+			return drained;
+		}
+
+		@Override
+		public void clear() {
+			super.clear();
+			taken();
+		}
+	}
+
+	/**
+	 * Immutable snapshot of the layers above and below each layer, and of the
+	 * layers to notify when events are added to a queue. The top layer is
+	 * above the first layer, and the first layer is below the top layer.
+	 */
+	private final class LayerLinks {
+		private final Map<DispatchLayer<?>, DispatchLayer<?>> above = new IdentityHashMap<>();
+		private final Map<DispatchLayer<?>, DispatchLayer<?>> below = new IdentityHashMap<>();
+		private final NotifiableLayer[] notifiable;
+
+		private LayerLinks() {
+			List<NotifiableLayer> notifiableLayers = new ArrayList<>();
+			DispatchLayer<?> previous = topLayer;
+			for (DispatchLayer<?> layer : dispatchLayers) {
+				above.put(layer, previous);
+				below.put(previous, layer);
+				if (layer instanceof NotifiableLayer)
+					notifiableLayers.add((NotifiableLayer) layer);
+				previous = layer;
+			}
+			notifiable = notifiableLayers
+					.toArray(new NotifiableLayer[notifiableLayers.size()]);
+		}
+	}
 }
@@ -96,6 +96,19 @@ public class IterationStrategyImpl implements IterationStrategy {
 			pushEvent(completion);
 		}
 
+		@Override
+		protected boolean hasRoom(String owningProcess) {
+			return stack == null || stack.hasRoom(owningProcess);
+		}
+
+		@Override
+		protected void resumeWhenRoom(String owningProcess, Runnable resume) {
+			if (stack == null)
+				resume.run();
+			else
+				stack.resumeWhenRoom(owningProcess, resume);
+		}
+
 		@Override
 		public int getIterationDepth(Map<String, Integer> inputDepths)
 				throws IterationTypeMismatchException {
@@ -150,4 +150,23 @@ public class IterationStrategyStackImpl implements IterationStrategyStack {
 	protected void receiveEventFromStrategy(IterationInternalEvent<? extends IterationInternalEvent<?>> e) {
 		// TODO - push events onto dispatch queue
 	}
+
+	/**
+	 * Return true if the dispatcher has room for more events of the owning
+	 * process, by default always. Iteration strategy nodes forming many jobs
+	 * from one hold the rest back while there is no room.
+	 */
+	protected boolean hasRoom(String owningProcess) {
+		return true;
+	}
+
+	/**
+	 * Run <code>resume</code>, which must not be run by the calling thread,
+	 * once the dispatcher has room again for events of the owning process.
+	 * Must be overridden along with {@link #hasRoom(String)}.
+	 */
+	protected void resumeWhenRoom(String owningProcess, Runnable resume) {
+		throw new IllegalStateException(
+				"Dispatcher has no room but can't resume");
+	}
 }
@@ -0,0 +1,163 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.facade.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.taverna.facade.FacadeListener;
+import org.apache.taverna.facade.WorkflowInstanceFacade;
+import org.apache.taverna.facade.WorkflowInstanceFacade.State;
+import org.apache.taverna.invocation.RunScope;
+import org.apache.taverna.invocation.RunScopedMap;
+import org.apache.taverna.invocation.impl.InvocationContextImpl;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.workflowmodel.Dataflow;
+import org.apache.taverna.workflowmodel.Edits;
+import org.apache.taverna.workflowmodel.Processor;
+import org.apache.taverna.workflowmodel.impl.EditsImpl;
+import org.apache.taverna.workflowmodel.processor.activity.AbstractAsynchronousActivity;
+import org.apache.taverna.workflowmodel.processor.activity.ActivityConfigurationException;
+import org.apache.taverna.workflowmodel.processor.activity.AsynchronousActivityCallback;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WorkflowInstanceFacadeImplTest {
+	private static final int RUNS = 10000;
+
+	private Dataflow dataflow;
+
+	@Before
+	public void makeDataflow() throws Exception {
+		Edits edits = new EditsImpl();
+		dataflow = edits.createDataflow();
+		Processor processor = edits.createProcessor("proc");
+		edits.getDefaultDispatchStackEdit(processor).doEdit();
+		edits.getAddActivityEdit(processor, new EmptyActivity()).doEdit();
+		edits.getAddProcessorEdit(dataflow, processor).doEdit();
+	}
+
+	@Test
+	public void runScopesReleasedWhenRunsFinish() throws Exception {
+		int openBefore = RunScope.getOpenCount();
+		String lastRun = null;
+		for (int i = 0; i < RUNS; i++)
+			lastRun = run().getIdentifier();
+		// The scope is released just after the state changes
+		long deadline = System.currentTimeMillis() + 10000;
+		while (RunScope.getOpenCount() > openBefore
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(openBefore, RunScope.getOpenCount());
+
+		// The maps of the processor and its layers have nothing left
+		RunScope scope = RunScope.find(lastRun);
+		assertTrue(scope.isReleased());
+		assertEquals(0, scope.size());
+	}
+
+	@Test
+	public void lateEventsOfReleasedRunNotHeld() throws Exception {
+		WorkflowInstanceFacade facade = run();
+		String runName = facade.getIdentifier();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!RunScope.forRun(runName).isReleased()
+				&& System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+
+		// Push the run out of the scopes kept for late events
+		for (int i = 0; i < 1000; i++) {
+			RunScope.forRun("other" + i);
+			RunScope.release("other" + i);
+		}
+		assertNull(RunScope.find(runName));
+
+		int open = RunScope.getOpenCount();
+		RunScopedMap<String> map = new RunScopedMap<>();
+		map.put(runName + ":dataflow:proc", "late");
+		assertNull(map.get(runName + ":dataflow:proc"));
+		assertNull(RunScope.find(runName));
+		assertEquals(open, RunScope.getOpenCount());
+		assertEquals(State.completed, facade.getState());
+	}
+
+	private WorkflowInstanceFacade run() throws Exception {
+		WorkflowInstanceFacade facade = new WorkflowInstanceFacadeImpl(
+				dataflow, new InvocationContextImpl(null, null), "");
+		CompletionListener listener = new CompletionListener();
+		facade.addFacadeListener(listener);
+		facade.fire();
+		assertTrue("Run " + facade.getIdentifier() + " did not finish",
+				listener.finished.await(10, TimeUnit.SECONDS));
+		return facade;
+	}
+
+	private static class CompletionListener implements FacadeListener {
+		private final CountDownLatch finished = new CountDownLatch(1);
+
+		@Override
+		public void workflowFailed(WorkflowInstanceFacade facade,
+				String message, Throwable t) {
+			finished.countDown();
+		}
+
+		@Override
+		public void stateChange(WorkflowInstanceFacade facade,
+				State oldState, State newState) {
+			if (newState == State.completed)
+				finished.countDown();
+		}
+	}
+
+	/**
+	 * Activity without ports returning its empty result from another thread
+	 */
+	private static class EmptyActivity extends
+			AbstractAsynchronousActivity<Object> {
+		@Override
+		public void configure(Object conf)
+				throws ActivityConfigurationException {
+		}
+
+		@Override
+		public Object getConfiguration() {
+			return null;
+		}
+
+		@Override
+		public void executeAsynch(Map<String, T2Reference> data,
+				final AsynchronousActivityCallback callback) {
+			callback.requestRun(new Runnable() {
+				@Override
+				public void run() {
+					callback.receiveResult(
+							Collections.<String, T2Reference> emptyMap(),
+							new int[0]);
+				}
+			});
+		}
+	}
+}
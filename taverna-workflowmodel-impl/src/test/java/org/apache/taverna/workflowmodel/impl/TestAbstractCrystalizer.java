@@ -0,0 +1,242 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.taverna.invocation.Completion;
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.impl.InvocationContextImpl;
+import org.apache.taverna.reference.IdentifiedList;
+import org.apache.taverna.reference.ListService;
+import org.apache.taverna.reference.ReferenceService;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.reference.T2ReferenceType;
+import org.apache.taverna.workflowmodel.processor.activity.Job;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestAbstractCrystalizer {
+	private static final String OWNER = "facade0:dataflow:proc";
+
+	private final List<Integer> batchSizes = new ArrayList<>();
+	private final List<String> emitted = new ArrayList<>();
+	private final List<Map<String, T2Reference>> emittedData = new ArrayList<>();
+	private InvocationContext context;
+	private AbstractCrystalizer crystalizer;
+
+	@Before
+	public void makeCrystalizer() {
+		context = new InvocationContextImpl(referenceService(), null);
+		crystalizer = new AbstractCrystalizer() {
+			@Override
+			public void jobCreated(Job outputJob) {
+				emitted.add(Arrays.toString(outputJob.getIndex()));
+				emittedData.add(outputJob.getData());
+			}
+
+			@Override
+			public void completionCreated(Completion completion) {
+			}
+
+			@Override
+			public Job getEmptyJob(String owningProcess, int[] index,
+					InvocationContext context) {
+				return new Job(owningProcess, index, data("empty"
+						+ Arrays.toString(index)), context);
+			}
+		};
+	}
+
+	private static Map<String, T2Reference> data(String name) {
+		return Collections.<String, T2Reference> singletonMap("out",
+				new DummyReference(name));
+	}
+
+	private void job(int... index) {
+		crystalizer.receiveEvent(new Job(OWNER, index, data(Arrays
+				.toString(index)), context));
+	}
+
+	private void completion(int... index) {
+		crystalizer.receiveEvent(new Completion(OWNER, index, context));
+	}
+
+	private T2Reference emittedAt(String index) {
+		return emittedData.get(emitted.lastIndexOf(index)).get("out");
+	}
+
+	@Test
+	public void sublistsSealedAsTheyComplete() {
+		job(0, 0);
+		job(0, 1);
+		completion(0);
+		assertEquals(Arrays.asList("[0, 0]", "[0, 1]", "[0]"), emitted);
+		assertEquals("list([0, 0],[0, 1])", emittedAt("[0]").toString());
+		job(1, 0);
+		completion(1);
+		completion();
+		assertEquals(Arrays.asList("[0, 0]", "[0, 1]", "[0]", "[1, 0]",
+				"[1]", "[]"), emitted);
+		assertEquals("list(list([0, 0],[0, 1]),list([1, 0]))", emittedAt("[]")
+				.toString());
+		assertEquals(Arrays.asList(1, 1, 1), batchSizes);
+	}
+
+	@Test
+	public void registeredInBatchesByHeight() {
+		for (int i = 0; i < 2; i++)
+			for (int j = 0; j < 3; j++)
+				for (int k = 0; k < 2; k++)
+					job(i, j, k);
+		assertEquals(12, emitted.size());
+		completion();
+		assertEquals(12 + 6 + 2 + 1, emitted.size());
+		assertEquals(Arrays.asList(6, 2, 1), batchSizes);
+		assertEquals("[]", emitted.get(emitted.size() - 1));
+		assertEquals("list([1, 2, 0],[1, 2, 1])", emittedAt("[1, 2]")
+				.toString());
+	}
+
+	@Test
+	public void missingPositionsFilledWithEmptyLists() {
+		job(0);
+		job(2);
+		completion();
+		assertEquals(Arrays.asList("[0]", "[2]", "[1]", "[]"), emitted);
+		assertEquals("list([0],empty[1],[2])", emittedAt("[]").toString());
+	}
+
+	@Test
+	public void completionWithoutJobsEmitsEmptyJob() {
+		completion(3);
+		assertEquals(Arrays.asList("[3]"), emitted);
+		assertEquals("empty[3]", emittedAt("[3]").toString());
+		assertEquals(0, batchSizes.size());
+	}
+
+	private ReferenceService referenceService() {
+		final ListService listService = (ListService) Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { ListService.class }, new InvocationHandler() {
+					@Override
+					@SuppressWarnings("unchecked")
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (!method.getName().equals("registerLists"))
+							throw new UnsupportedOperationException(method
+									.getName());
+						List<List<T2Reference>> lists = (List<List<T2Reference>>) args[0];
+						batchSizes.add(lists.size());
+						List<IdentifiedList<T2Reference>> registered = new ArrayList<>();
+						for (List<T2Reference> items : lists)
+							registered.add(new DummyList(items));
+						return registered;
+					}
+				});
+		return (ReferenceService) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class<?>[] { ReferenceService.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (!method.getName().equals("getListService"))
+							throw new UnsupportedOperationException(method
+									.getName());
+						return listService;
+					}
+				});
+	}
+
+	@SuppressWarnings("serial")
+	private static class DummyList extends ArrayList<T2Reference> implements
+			IdentifiedList<T2Reference> {
+		private final T2Reference id;
+
+		DummyList(List<T2Reference> items) {
+			super(items);
+			StringBuilder name = new StringBuilder("list(");
+			for (T2Reference item : items) {
+				if (name.length() > 5)
+					name.append(",");
+				name.append(item);
+			}
+			id = new DummyReference(name.append(")").toString());
+		}
+
+		@Override
+		public T2Reference getId() {
+			return id;
+		}
+	}
+
+	private static class DummyReference implements T2Reference {
+		private final String name;
+
+		DummyReference(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public T2ReferenceType getReferenceType() {
+			return T2ReferenceType.ReferenceSet;
+		}
+
+		@Override
+		public int getDepth() {
+			return 0;
+		}
+
+		@Override
+		public boolean containsErrors() {
+			return false;
+		}
+
+		@Override
+		public String getNamespacePart() {
+			return "test";
+		}
+
+		@Override
+		public String getLocalPart() {
+			return name;
+		}
+
+		@Override
+		public URI toUri() {
+			return URI.create("t2:ref//test?" + name);
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+}
@@ -0,0 +1,314 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.impl;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.RunScope;
+import org.apache.taverna.invocation.WorkflowDataToken;
+import org.apache.taverna.invocation.impl.InvocationContextImpl;
+import org.apache.taverna.reference.ContextualizedT2Reference;
+import org.apache.taverna.reference.ReferenceService;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.reference.T2ReferenceType;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestAbstractFilteringInputPort {
+	private static final String OWNER = "facade0:dataflow";
+
+	private final List<String> pushed = new ArrayList<>();
+	private InvocationContext context;
+	private RecordingPort port;
+
+	@Before
+	public void makePort() {
+		context = new InvocationContextImpl(referenceService(), null);
+		port = new RecordingPort();
+		port.setFilterDepth(1);
+	}
+
+	private WorkflowDataToken list(int size, int... index) {
+		return list(OWNER, size, index);
+	}
+
+	private WorkflowDataToken list(String owner, int size, int... index) {
+		return new WorkflowDataToken(owner, index, new DummyReference("list",
+				1, size), context);
+	}
+
+	private WorkflowDataToken completion(String owner) {
+		return new WorkflowDataToken(owner, new int[0], new DummyReference(
+				"lists", 2, 0), context);
+	}
+
+	@Test
+	public void listShredded() {
+		port.receiveToken(list(3));
+		assertEquals(Arrays.asList("item0 [0]", "item1 [1]", "item2 [2]",
+				"completion []"), pushed);
+	}
+
+	@Test
+	public void shreddingHeldBackWithoutRoom() {
+		port.room = 2;
+		port.receiveToken(list(4));
+		assertEquals(Arrays.asList("item0 [0]", "item1 [1]"), pushed);
+		assertNotNull(port.resume);
+
+		// Events for the owning process wait for the held back shredding
+		port.receiveToken(new WorkflowDataToken(OWNER, new int[0],
+				new DummyReference("lists", 2, 0), context));
+		assertEquals(2, pushed.size());
+
+		port.room = Integer.MAX_VALUE;
+		Runnable resume = port.resume;
+		port.resume = null;
+		resume.run();
+		assertEquals(Arrays.asList("item0 [0]", "item1 [1]", "item2 [2]",
+				"item3 [3]", "completion []", "completion []"), pushed);
+		assertNull(port.resume);
+
+		// Nothing is held back once all were pushed
+		port.receiveToken(list(1));
+		assertEquals(8, pushed.size());
+	}
+
+	@Test
+	public void noRoomWhileHeldBack() throws Exception {
+		assertTrue(port.hasRoomFor(OWNER));
+		port.room = 1;
+		port.receiveToken(list(3));
+		assertFalse(port.hasRoomFor(OWNER));
+
+		CountDownLatch resumed = new CountDownLatch(1);
+		port.resumeWhenRoomFor(OWNER, countDown(resumed));
+		port.room = 1;
+		port.resume.run();
+		assertFalse("Producer resumed while held back",
+				resumed.await(300, MILLISECONDS));
+		assertFalse(port.hasRoomFor(OWNER));
+
+		// Producers are resumed once all held back events were pushed
+		port.room = Integer.MAX_VALUE;
+		port.resume.run();
+		assertTrue("Producer not resumed", resumed.await(1, SECONDS));
+		assertTrue(port.hasRoomFor(OWNER));
+		assertEquals(4, pushed.size());
+	}
+
+	@Test
+	public void noRoomThroughDatalink() throws Exception {
+		BasicEventForwardingOutputPort source = new BasicEventForwardingOutputPort(
+				"out", 1, 1);
+		source.addOutgoingLink(new DatalinkImpl(source, port));
+		port.room = 0;
+		source.sendEvent(list(2));
+		assertFalse(source.hasRoomFor(OWNER));
+
+		CountDownLatch resumed = new CountDownLatch(1);
+		source.resumeWhenRoomFor(OWNER, countDown(resumed));
+		port.room = Integer.MAX_VALUE;
+		port.resume.run();
+		assertTrue("Producer not resumed", resumed.await(1, SECONDS));
+		assertTrue(source.hasRoomFor(OWNER));
+	}
+
+	@Test
+	public void heldBackDroppedWithRun() throws Exception {
+		String owner = "scopeP:dataflow";
+		port.room = 1;
+		port.receiveToken(list(owner, 3));
+		CountDownLatch resumed = new CountDownLatch(1);
+		port.resumeWhenRoomFor(owner, countDown(resumed));
+
+		assertTrue(RunScope.release("scopeP"));
+		port.room = Integer.MAX_VALUE;
+		port.resume.run();
+		assertEquals(Arrays.asList("item0 [0]"), pushed);
+		assertFalse("Producer of a released run resumed",
+				resumed.await(300, MILLISECONDS));
+	}
+
+	@Test
+	public void heldBackBounded() {
+		String owner = "scopeB:dataflow";
+		port.room = 0;
+		port.receiveToken(list(owner, 1));
+		int limit = Integer.getInteger(
+				AbstractFilteringInputPort.HELD_BACK_LIMIT_PROPERTY, 10000);
+		for (int i = 1; i < limit; i++)
+			port.receiveToken(completion(owner));
+		try {
+			port.receiveToken(completion(owner));
+			fail("Held back more than " + limit + " events");
+		} catch (IllegalStateException e) {
+		} finally {
+			RunScope.release("scopeB");
+		}
+	}
+
+	private Runnable countDown(final CountDownLatch latch) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		};
+	}
+
+	private class RecordingPort extends AbstractFilteringInputPort {
+		private int room = Integer.MAX_VALUE;
+		private Runnable resume;
+
+		RecordingPort() {
+			super("in", 0);
+		}
+
+		@Override
+		protected boolean hasRoom(String owningProcess) {
+			return room > 0;
+		}
+
+		@Override
+		protected void resumeWhenRoom(String owningProcess, Runnable resume) {
+			this.resume = resume;
+		}
+
+		@Override
+		protected void pushCompletion(String portName, String owningProcess,
+				int[] index, InvocationContext context) {
+			pushed.add("completion " + Arrays.toString(index));
+		}
+
+		@Override
+		protected void pushData(String portName, String owningProcess,
+				int[] index, T2Reference data, InvocationContext context) {
+			room--;
+			pushed.add(data + " " + Arrays.toString(index));
+		}
+	}
+
+	/**
+	 * A reference service traversing the items of the dummy lists
+	 */
+	private ReferenceService referenceService() {
+		return (ReferenceService) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class<?>[] { ReferenceService.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (!method.getName().equals("traverseFrom"))
+							throw new UnsupportedOperationException(method
+									.getName());
+						DummyReference list = (DummyReference) args[0];
+						List<ContextualizedT2Reference> items = new ArrayList<>();
+						for (int i = 0; i < list.size; i++)
+							items.add(new DummyItem(i));
+						return items.iterator();
+					}
+				});
+	}
+
+	private static class DummyItem implements ContextualizedT2Reference {
+		private final int index;
+
+		DummyItem(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public T2Reference getReference() {
+			return new DummyReference("item" + index, 0, 0);
+		}
+
+		@Override
+		public int[] getIndex() {
+			return new int[] { index };
+		}
+	}
+
+	private static class DummyReference implements T2Reference {
+		private final String name;
+		private final int depth;
+		private final int size;
+
+		DummyReference(String name, int depth, int size) {
+			this.name = name;
+			this.depth = depth;
+			this.size = size;
+		}
+
+		@Override
+		public T2ReferenceType getReferenceType() {
+			return depth == 0 ? T2ReferenceType.ReferenceSet
+					: T2ReferenceType.IdentifiedList;
+		}
+
+		@Override
+		public int getDepth() {
+			return depth;
+		}
+
+		@Override
+		public boolean containsErrors() {
+			return false;
+		}
+
+		@Override
+		public String getNamespacePart() {
+			return "test";
+		}
+
+		@Override
+		public String getLocalPart() {
+			return name;
+		}
+
+		@Override
+		public URI toUri() {
+			return URI.create("t2:ref//test?" + name);
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+}
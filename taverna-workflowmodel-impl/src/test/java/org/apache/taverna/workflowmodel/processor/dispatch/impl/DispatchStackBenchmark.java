@@ -0,0 +1,224 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.IterationInternalEvent;
+import org.apache.taverna.invocation.impl.InvocationContextImpl;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.workflowmodel.processor.activity.Activity;
+import org.apache.taverna.workflowmodel.processor.activity.Job;
+import org.apache.taverna.workflowmodel.processor.dispatch.AbstractDispatchLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.DispatchLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.NotifiableLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchJobQueueEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH comparison of {@link DispatchStackImpl} against the previous
+ * implementation, which kept all queues in a map guarded by a single lock and
+ * looked up neighbouring layers by searching the layer list.
+ * <p>
+ * Not run as part of the unit tests, run with the JMH runner from the test
+ * classpath, for instance
+ * <code>java -cp ... org.openjdk.jmh.Main DispatchStackBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchStackBenchmark {
+	private static final int LAYERS = 8;
+	private static final int PROCESSES = 64;
+	private static final Map<String, T2Reference> NO_DATA = Collections
+			.emptyMap();
+
+	private DispatchStackImpl stack;
+	private LegacyDispatchStack legacyStack;
+	private DispatchLayer<?> lastLayer;
+	private DispatchLayer<?> legacyLastLayer;
+	private String[] owningProcesses;
+	private InvocationContext context = new InvocationContextImpl(null, null);
+
+	@Setup
+	public void setUp() {
+		stack = new DummyDispatchStackImpl();
+		legacyStack = new LegacyDispatchStack();
+		for (int i = 0; i < LAYERS; i++) {
+			DispatchLayer<?> layer = new DrainingLayer();
+			stack.addLayer(layer);
+			DispatchLayer<?> legacyLayer = new DrainingLayer();
+			legacyStack.dispatchLayers.add(legacyLayer);
+			lastLayer = layer;
+			legacyLastLayer = legacyLayer;
+		}
+		owningProcesses = new String[PROCESSES];
+		for (int i = 0; i < PROCESSES; i++)
+			owningProcesses[i] = "facade" + i + ":dataflow:proc";
+	}
+
+	@State(Scope.Thread)
+	public static class ThreadState {
+		private static final AtomicInteger threads = new AtomicInteger();
+		private final int offset = threads.getAndIncrement();
+		private int counter;
+
+		int next() {
+			return (offset + counter++) % PROCESSES;
+		}
+	}
+
+	@Benchmark
+	public void walkLayers(Blackhole blackhole) {
+		for (DispatchLayer<?> layer = stack.getLayers().get(0); layer != null; layer = stack
+				.layerBelow(layer))
+			blackhole.consume(stack.layerAbove(layer));
+	}
+
+	@Benchmark
+	public void walkLayersLegacy(Blackhole blackhole) {
+		for (DispatchLayer<?> layer = legacyStack.dispatchLayers.get(0); layer != null; layer = legacyStack
+				.layerBelow(layer))
+			blackhole.consume(legacyStack.layerAbove(layer));
+	}
+
+	@Benchmark
+	public DispatchLayer<?> layerAboveLast() {
+		return stack.layerAbove(lastLayer);
+	}
+
+	@Benchmark
+	public DispatchLayer<?> layerAboveLastLegacy() {
+		return legacyStack.layerAbove(legacyLastLayer);
+	}
+
+	@Benchmark
+	@Threads(8)
+	public void receiveEvent(ThreadState state) {
+		stack.receiveEvent(new Job(owningProcesses[state.next()], new int[0],
+				NO_DATA, context));
+	}
+
+	@Benchmark
+	@Threads(8)
+	public void receiveEventLegacy(ThreadState state) {
+		legacyStack.receiveEvent(new Job(owningProcesses[state.next()],
+				new int[0], NO_DATA, context));
+	}
+
+	/**
+	 * Layer taking events off the queue as soon as they are notified so that
+	 * the queues do not grow during the benchmark
+	 */
+	private static class DrainingLayer extends AbstractDispatchLayer<Object>
+			implements NotifiableLayer {
+		private final Map<String, BlockingQueue<?>> queues = new ConcurrentHashMap<>();
+
+		@Override
+		public void receiveJobQueue(DispatchJobQueueEvent queueEvent) {
+			queues.put(queueEvent.getOwningProcess(), queueEvent.getQueue());
+			eventAdded(queueEvent.getOwningProcess());
+		}
+
+		@Override
+		public void eventAdded(String owningProcess) {
+			BlockingQueue<?> queue = queues.get(owningProcess);
+			if (queue != null)
+				queue.poll();
+		}
+
+		@Override
+		public void configure(Object config) {
+		}
+
+		@Override
+		public Object getConfiguration() {
+			return null;
+		}
+	}
+
+	/**
+	 * Queue registry and layer lookup as they were before the dispatch stack
+	 * was made concurrent
+	 */
+	private static class LegacyDispatchStack {
+		private final Map<String, BlockingQueue<IterationInternalEvent<? extends IterationInternalEvent<?>>>> queues = new HashMap<>();
+		private final List<DispatchLayer<?>> dispatchLayers = new ArrayList<>();
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public void receiveEvent(IterationInternalEvent event) {
+			synchronized (queues) {
+				String owningProcess = event.getOwningProcess();
+				if (!queues.containsKey(owningProcess)) {
+					BlockingQueue<IterationInternalEvent<? extends IterationInternalEvent<?>>> queue = new LinkedBlockingQueue<>();
+					queues.put(owningProcess, queue);
+					queue.add(event);
+					dispatchLayers.get(0).receiveJobQueue(
+							new DispatchJobQueueEvent(owningProcess, event
+									.getContext(), queue, Collections
+									.<Activity<?>> emptyList()));
+				} else {
+					queues.get(owningProcess).add(event);
+					for (DispatchLayer<?> layer : dispatchLayers)
+						if (layer instanceof NotifiableLayer)
+							((NotifiableLayer) layer).eventAdded(owningProcess);
+				}
+			}
+		}
+
+		public DispatchLayer<?> layerAbove(DispatchLayer<?> layer) {
+			int layerIndex = dispatchLayers.indexOf(layer);
+			if (layerIndex > 0)
+				return dispatchLayers.get(layerIndex - 1);
+			return null;
+		}
+
+		public DispatchLayer<?> layerBelow(DispatchLayer<?> layer) {
+			int layerIndex = dispatchLayers.indexOf(layer) + 1;
+			if (layerIndex >= dispatchLayers.size())
+				return null;
+			return dispatchLayers.get(layerIndex);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.impl;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.taverna.invocation.IterationInternalEvent;
+import org.apache.taverna.monitor.MonitorableProperty;
+import org.apache.taverna.workflowmodel.Processor;
+import org.apache.taverna.workflowmodel.processor.activity.Activity;
+
+/**
+ * Dispatch stack for processor "proc" with no activities, conditions are
+ * satisfied as long as {@link #satisfied} is true and the output has room as
+ * long as {@link #outputRoom} is true.
+ */
+public class DummyDispatchStackImpl extends DispatchStackImpl {
+	public volatile boolean satisfied = true;
+	public volatile boolean outputRoom = true;
+	public volatile Runnable outputResume;
+
+	@Override
+	protected List<? extends Activity<?>> getActivities() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	protected void pushEvent(
+			IterationInternalEvent<? extends IterationInternalEvent<?>> e) {
+	}
+
+	@Override
+	protected boolean conditionsSatisfied(String owningProcess) {
+		return satisfied;
+	}
+
+	@Override
+	protected void finishedWith(String owningProcess) {
+	}
+
+	@Override
+	protected boolean outputHasRoom(String owningProcess) {
+		return outputRoom;
+	}
+
+	@Override
+	protected void resumeWhenOutputHasRoom(String owningProcess,
+			Runnable resume) {
+		outputResume = resume;
+	}
+
+	@Override
+	protected String getProcessName() {
+		return "proc";
+	}
+
+	@Override
+	public void receiveMonitorableProperty(MonitorableProperty<?> prop,
+			String processID) {
+	}
+
+	@Override
+	public Processor getProcessor() {
+		return null;
+	}
+}
@@ -0,0 +1,305 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.dispatch.impl;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.InvocationExecutor;
+import org.apache.taverna.invocation.RunScope;
+import org.apache.taverna.invocation.impl.InvocationContextImpl;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.workflowmodel.processor.activity.Job;
+import org.apache.taverna.workflowmodel.processor.dispatch.AbstractDispatchLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.NotifiableLayer;
+import org.apache.taverna.workflowmodel.processor.dispatch.events.DispatchJobQueueEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDispatchStackImpl {
+	private DummyDispatchStackImpl stack;
+	private QueueLayer first;
+	private InvocationContext context = new InvocationContextImpl(null, null);
+
+	@Before
+	public void makeStack() {
+		stack = new DummyDispatchStackImpl();
+		first = new QueueLayer();
+		stack.addLayer(first);
+	}
+
+	private Job job(String owner, int i) {
+		return new Job(owner, new int[] { i },
+				Collections.<String, T2Reference> emptyMap(), context);
+	}
+
+	@Test
+	public void layerLinks() {
+		QueueLayer second = new QueueLayer();
+		QueueLayer third = new QueueLayer();
+		stack.addLayer(third);
+		stack.addLayer(second, 1);
+		assertSame(second, stack.layerBelow(first));
+		assertSame(third, stack.layerBelow(second));
+		assertNull(stack.layerBelow(third));
+		assertSame(second, stack.layerAbove(third));
+		assertSame(first, stack.layerAbove(second));
+		assertTrue(stack.layerAbove(first) != null);
+		assertSame(first, stack.layerBelow(stack.layerAbove(first)));
+
+		assertEquals(1, stack.removeLayer(second));
+		assertSame(third, stack.layerBelow(first));
+		assertSame(first, stack.layerAbove(third));
+		assertNull(stack.layerAbove(second));
+		assertNull(stack.layerBelow(second));
+	}
+
+	@Test
+	public void queueAnnouncedOnceConditionsSatisfied() {
+		stack.satisfied = false;
+		stack.receiveEvent(job("facade0:dataflow:proc", 0));
+		stack.receiveEvent(job("facade0:dataflow:proc", 1));
+		assertEquals(0, first.queueEvents.size());
+		assertEquals(0, first.notified.get());
+
+		stack.satisfied = true;
+		stack.satisfyConditions("facade0:dataflow");
+		assertEquals(1, first.queueEvents.size());
+		assertEquals(2, first.queueEvents.get(0).getQueue().size());
+
+		stack.receiveEvent(job("facade0:dataflow:proc", 2));
+		assertEquals(1, first.queueEvents.size());
+		assertEquals(3, first.queueEvents.get(0).getQueue().size());
+		assertTrue(first.notified.get() >= 1);
+	}
+
+	@Test
+	public void concurrentEventsShareOneQueue() throws Exception {
+		final int threads = 8;
+		final int eventsPerThread = 500;
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final int offset = t * eventsPerThread;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < eventsPerThread; i++)
+							stack.receiveEvent(job("facade0:dataflow:proc",
+									offset + i));
+					} catch (InterruptedException e) {
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		start.countDown();
+		done.await();
+		assertEquals(1, first.queueEvents.size());
+		assertEquals(threads * eventsPerThread, first.queueEvents.get(0)
+				.getQueue().size());
+	}
+
+	@Test
+	public void producerResumedAtLowWatermark() throws Exception {
+		stack.setQueueWatermarks(3, 1);
+		for (int i = 0; i < 3; i++)
+			stack.receiveEvent(job("facade0:dataflow:proc", i));
+		assertFalse(stack.hasQueueRoom("facade0:dataflow:proc"));
+		assertTrue(stack.hasQueueRoom("facade0:dataflow:other"));
+		CountDownLatch resumed = new CountDownLatch(1);
+		stack.resumeWhenQueueHasRoom("facade0:dataflow:proc",
+				countDown(resumed));
+
+		BlockingQueue<?> queue = first.queueEvents.get(0).getQueue();
+		queue.poll();
+		assertFalse("Producer resumed above low watermark",
+				resumed.await(300, MILLISECONDS));
+		queue.poll();
+		assertTrue("Producer not resumed", resumed.await(1, SECONDS));
+	}
+
+	@Test
+	public void queueFilledWhileExecutorSaturated() throws Exception {
+		InvocationExecutor previous = InvocationExecutor.getInstance();
+		ExecutorService pool = Executors.newFixedThreadPool(1);
+		InvocationExecutor.setInstance(new InvocationExecutor(pool, false, 1));
+		final CountDownLatch release = new CountDownLatch(1);
+		try {
+			// Every invocation thread is busy
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+					}
+				}
+			});
+			stack.setQueueWatermarks(2, 1);
+			Thread producer = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 5; i++)
+						stack.receiveEvent(job("facade0:dataflow:proc", i));
+				}
+			};
+			producer.start();
+			producer.join(1000);
+			assertFalse("Producer held on a full queue", producer.isAlive());
+			BlockingQueue<?> queue = first.queueEvents.get(0).getQueue();
+			assertEquals(5, queue.size());
+
+			CountDownLatch resumed = new CountDownLatch(1);
+			stack.resumeWhenQueueHasRoom("facade0:dataflow:proc",
+					countDown(resumed));
+			queue.clear();
+			assertFalse("Producer resumed on a busy thread",
+					resumed.await(300, MILLISECONDS));
+			release.countDown();
+			assertTrue("Producer not resumed", resumed.await(1, SECONDS));
+		} finally {
+			release.countDown();
+			InvocationExecutor.setInstance(previous);
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void unboundedQueueResumesProducers() throws Exception {
+		stack.setQueueWatermarks(1, 0);
+		stack.receiveEvent(job("facade0:dataflow:proc", 0));
+		CountDownLatch resumed = new CountDownLatch(1);
+		stack.resumeWhenQueueHasRoom("facade0:dataflow:proc",
+				countDown(resumed));
+		assertFalse(resumed.await(300, MILLISECONDS));
+		stack.setQueueWatermarks(0, 0);
+		assertTrue("Producer not resumed", resumed.await(1, SECONDS));
+	}
+
+	@Test
+	public void jobsHeldWhileOutputHasNoRoom() {
+		stack.outputRoom = false;
+		stack.receiveEvent(job("facade0:dataflow:proc", 0));
+		stack.receiveEvent(job("facade0:dataflow:proc", 1));
+		BlockingQueue<?> queue = first.queueEvents.get(0).getQueue();
+		assertNull(queue.peek());
+		assertNull(queue.poll());
+		assertEquals(2, queue.size());
+		assertNotNull(stack.outputResume);
+
+		// Layers are told about the held jobs once the output has room
+		int notified = first.notified.get();
+		stack.outputRoom = true;
+		stack.outputResume.run();
+		assertEquals(notified + 1, first.notified.get());
+		assertNotNull(queue.poll());
+		assertEquals(1, queue.size());
+	}
+
+	@Test
+	public void queueHasRoomUntilAnnounced() {
+		stack.setQueueWatermarks(1, 0);
+		stack.satisfied = false;
+		stack.receiveEvent(job("facade0:dataflow:proc", 0));
+		stack.receiveEvent(job("facade0:dataflow:proc", 1));
+		assertTrue(stack.hasQueueRoom("facade0:dataflow:proc"));
+
+		stack.satisfied = true;
+		stack.satisfyConditions("facade0:dataflow");
+		assertFalse(stack.hasQueueRoom("facade0:dataflow:proc"));
+	}
+
+	@Test
+	public void queueDroppedWithRun() throws Exception {
+		stack.setQueueWatermarks(1, 0);
+		stack.receiveEvent(job("scopeQ:dataflow:proc", 0));
+		CountDownLatch resumed = new CountDownLatch(1);
+		stack.resumeWhenQueueHasRoom("scopeQ:dataflow:proc",
+				countDown(resumed));
+		BlockingQueue<?> queue = first.queueEvents.get(0).getQueue();
+
+		assertTrue(RunScope.release("scopeQ"));
+		assertEquals(0, queue.size());
+		assertTrue(stack.hasQueueRoom("scopeQ:dataflow:proc"));
+		stack.setQueueWatermarks(0, 0);
+		assertFalse("Producer of a released run resumed",
+				resumed.await(300, MILLISECONDS));
+	}
+
+	private Runnable countDown(final CountDownLatch latch) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		};
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void lowWatermarkBelowHigh() {
+		stack.setQueueWatermarks(10, 10);
+	}
+
+	private static class QueueLayer extends AbstractDispatchLayer<Object>
+			implements NotifiableLayer {
+		final List<DispatchJobQueueEvent> queueEvents = Collections
+				.synchronizedList(new ArrayList<DispatchJobQueueEvent>());
+		final AtomicInteger notified = new AtomicInteger();
+
+		@Override
+		public void receiveJobQueue(DispatchJobQueueEvent queueEvent) {
+			queueEvents.add(queueEvent);
+		}
+
+		@Override
+		public void eventAdded(String owningProcess) {
+			notified.incrementAndGet();
+		}
+
+		@Override
+		public void configure(Object config) {
+		}
+
+		@Override
+		public Object getConfiguration() {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements. See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership. The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License. You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+
+package org.apache.taverna.workflowmodel.processor.iteration;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.taverna.invocation.Completion;
+import org.apache.taverna.invocation.InvocationContext;
+import org.apache.taverna.invocation.IterationIndex;
+import org.apache.taverna.invocation.impl.InvocationContextImpl;
+import org.apache.taverna.reference.T2Reference;
+import org.apache.taverna.workflowmodel.processor.activity.Job;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH comparison of the index handling of a deep {@link CrossProduct}, where
+ * every combination appends the indices of its jobs, against concatenating
+ * <code>int[]</code> as was done before {@link IterationIndex}.
+ * <p>
+ * Not run as part of the unit tests. The allocation rates are shown by the
+ * JMH GC profiler, for instance
+ * <code>java -cp ... org.openjdk.jmh.Main CrossProductBenchmark -prof gc</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CrossProductBenchmark {
+	private static final int INPUTS = 3;
+	private static final int JOBS_PER_INPUT = 8;
+	private static final Map<String, T2Reference> NO_DATA = Collections
+			.emptyMap();
+
+	/** Length of the index of the jobs on each input */
+	@Param({ "2", "8", "32" })
+	public int depth;
+
+	private InvocationContext context = new InvocationContextImpl(null, null);
+	private Job[][] jobs;
+	private int[][][] indices;
+
+	@Setup
+	public void setUp() {
+		jobs = new Job[INPUTS][JOBS_PER_INPUT];
+		indices = new int[INPUTS][JOBS_PER_INPUT][];
+		for (int input = 0; input < INPUTS; input++)
+			for (int i = 0; i < JOBS_PER_INPUT; i++) {
+				int[] index = new int[depth];
+				for (int d = 0; d < depth; d++)
+					index[d] = (i + d) % JOBS_PER_INPUT;
+				indices[input][i] = index;
+				jobs[input][i] = new Job("facade0:dataflow:proc", index,
+						NO_DATA, context);
+			}
+	}
+
+	@Benchmark
+	public void crossProduct(Blackhole blackhole) {
+		CrossProduct crossProduct = new CrossProduct();
+		for (int input = 0; input < INPUTS; input++)
+			crossProduct.insert(new NamedInputPortNode("in" + input, 0));
+		crossProduct.setParent(new ConsumingNode(blackhole));
+		for (int i = 0; i < JOBS_PER_INPUT; i++)
+			for (int input = 0; input < INPUTS; input++)
+				crossProduct.receiveJob(input, jobs[input][i]);
+	}
+
+	@Benchmark
+	public void appendIndices(Blackhole blackhole) {
+		for (Job job0 : jobs[0])
+			for (Job job1 : jobs[1])
+				for (Job job2 : jobs[2])
+					blackhole.consume(job0.getIterationIndex()
+							.append(job1.getIterationIndex())
+							.append(job2.getIterationIndex()).hashCode());
+	}
+
+	@Benchmark
+	public void concatenateArraysLegacy(Blackhole blackhole) {
+		for (int[] index0 : indices[0])
+			for (int[] index1 : indices[1])
+				for (int[] index2 : indices[2])
+					blackhole.consume(concatenate(concatenate(index0, index1),
+							index2));
+	}
+
+	private static int[] concatenate(int[] index1, int[] index2) {
+		int[] newIndex = new int[index1.length + index2.length];
+		int j = 0;
+		for (int i = 0; i < index1.length; i++)
+			newIndex[j++] = index1[i];
+		for (int i = 0; i < index2.length; i++)
+			newIndex[j++] = index2[i];
+		return newIndex;
+	}
+
+	/**
+	 * Parent of the cross product, hashing the index of the jobs it receives
+	 * as a dispatch layer keeping per job state would
+	 */
+	@SuppressWarnings("serial")
+	private static class ConsumingNode extends AbstractIterationStrategyNode {
+		private final Blackhole blackhole;
+
+		private ConsumingNode(Blackhole blackhole) {
+			this.blackhole = blackhole;
+		}
+
+		@Override
+		public void receiveJob(int inputIndex, Job newJob) {
+			blackhole.consume(newJob.getIterationIndex().hashCode());
+		}
+
+		@Override
+		public void receiveCompletion(int inputIndex, Completion completion) {
+		}
+
+		@Override
+		public int getIterationDepth(Map<String, Integer> inputDepths)
+				throws IterationTypeMismatchException {
+			return 0;
+		}
+	}
+}